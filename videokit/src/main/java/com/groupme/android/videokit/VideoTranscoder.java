@@ -6,48 +6,105 @@ import android.database.Cursor;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
-import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
-import android.media.MediaMuxer;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.view.Surface;
 
+import com.groupme.android.videokit.mp4.FastStart;
+import com.groupme.android.videokit.mp4.Mp4Probe;
+import com.groupme.android.videokit.mp4.SampleIndex;
+import com.groupme.android.videokit.pipeline.AndroidCodec;
+import com.groupme.android.videokit.pipeline.AndroidCodecConfigReader;
+import com.groupme.android.videokit.pipeline.AndroidExtractor;
+import com.groupme.android.videokit.pipeline.AndroidMuxer;
+import com.groupme.android.videokit.pipeline.AndroidPcmFormatReader;
+import com.groupme.android.videokit.pipeline.AndroidSegmentStore;
+import com.groupme.android.videokit.pipeline.AndroidTrackFormatReader;
+import com.groupme.android.videokit.pipeline.CodecEventQueue;
+import com.groupme.android.videokit.pipeline.DirectFrameRenderer;
+import com.groupme.android.videokit.pipeline.ExtractorPort;
+import com.groupme.android.videokit.pipeline.FragmentedMuxer;
+import com.groupme.android.videokit.pipeline.FrameRenderer;
+import com.groupme.android.videokit.pipeline.MuxerPort;
+import com.groupme.android.videokit.pipeline.OutputSink;
+import com.groupme.android.videokit.pipeline.ParallelTranscodePipeline;
+import com.groupme.android.videokit.pipeline.RemuxPipeline;
+import com.groupme.android.videokit.pipeline.RenditionFrameRenderer;
+import com.groupme.android.videokit.pipeline.SinkChannel;
+import com.groupme.android.videokit.pipeline.SmartTrimPipeline;
+import com.groupme.android.videokit.pipeline.SurfaceFrameRenderer;
+import com.groupme.android.videokit.pipeline.TranscodePipeline;
+import com.groupme.android.videokit.support.CodecCatalog;
+import com.groupme.android.videokit.support.CodecPool;
 import com.groupme.android.videokit.support.Component;
 import com.groupme.android.videokit.support.InputSurface;
 import com.groupme.android.videokit.support.OutputSurface;
+import com.groupme.android.videokit.support.SourceSession;
 import com.groupme.android.videokit.util.DefaultLogger;
 import com.groupme.android.videokit.util.DeviceUtils;
 import com.groupme.android.videokit.util.Logger;
 import com.groupme.android.videokit.util.MediaInfo;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Locale;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class VideoTranscoder {
     public static int TRIM_TIME_END = -1;
 
-    private static final String KEY_ROTATION = "rotation";
+    /** Drives every codec from a single loop of blocking dequeue calls. */
+    public static final int ENGINE_POLLING = TranscodePipeline.ENGINE_POLLING;
+    /** Drives every codec from {@link MediaCodec.Callback} notifications. Requires API 23. */
+    public static final int ENGINE_ASYNC = TranscodePipeline.ENGINE_ASYNC;
+    /** Runs the video chain, the audio chain and the muxer on threads of their own. */
+    public static final int ENGINE_THREADED = TranscodePipeline.ENGINE_THREADED;
+
+    /** The output has no audio track. */
+    public static final int AUDIO_PATH_NONE = 0;
+    /** Audio was decoded and encoded again. */
+    public static final int AUDIO_PATH_TRANSCODE = 1;
+    /** Audio samples were copied from the source as is. */
+    public static final int AUDIO_PATH_COPY = 2;
+
+    /** Decoded frames were drawn into the encoder's input surface with GL. */
+    public static final int VIDEO_PATH_GL = 0;
+    /** The decoder rendered straight into the encoder's input surface. */
+    public static final int VIDEO_PATH_SURFACE = 1;
+    /** Video samples were copied from the source as is. */
+    public static final int VIDEO_PATH_COPY = 2;
 
-    /** How long to wait for the next buffer to become available in microseconds. */
-    private static final int TIMEOUT_USEC = 40000;
+    private static final String KEY_ROTATION = "rotation";
 
     private final Context mContext;
     private final Uri mSrcUri;
 
     private String mOutputFilePath;
+    // Receives the output instead of the file, as the muxer writes it
+    private OutputSink mOutputSink;
+    private SinkChannel mOutputChannel;
 
     private boolean mIncludeAudio = true;
 
+    // Opened once per job unless the caller passed one in, every extractor reads through it
+    private SourceSession mSource;
+    private boolean mOwnsSource;
     private Component mInputVideoComponent;
     private Component mInputAudioComponent;
+    // Metadata read from the source's boxes, null if it isn't an MP4 file
+    private Mp4Probe.Result mProbe;
 
     private int mOutputVideoWidth;
     private int mOutputVideoHeight;
@@ -65,42 +122,42 @@ public class VideoTranscoder {
     private MediaFormat mOutputVideoFormat;
     private MediaFormat mOutputAudioFormat;
 
-    private MediaCodec mVideoEncoder;
-    private MediaCodec mVideoDecoder;
+    private AndroidCodec mVideoEncoder;
+    private AndroidCodec mVideoDecoder;
 
     private InputSurface mInputSurface;
     private OutputSurface mOutputSurface;
-
-    private MediaCodec mAudioEncoder;
-    private MediaCodec mAudioDecoder;
-    private MediaMuxer mMuxer;
+    // The encoder's input surface when the decoder renders into it directly
+    private Surface mEncoderSurface;
+
+    private AndroidCodec mAudioEncoder;
+    private AndroidCodec mAudioDecoder;
+    private MuxerPort<MediaFormat> mMuxer;
+
+    private final List<RenditionOutput> mRenditions = new ArrayList<>();
+
+    private int mEngine = ENGINE_POLLING;
+    private boolean mReuseCodecs;
+    private boolean mRemux;
+    private boolean mSmartTrim;
+    private boolean mSmartTrimming;
+    private int mMaxParallelSegments = 1;
+    private int mParallelSegments;
+    private boolean mCopyAudio;
+    private boolean mRenderDirect;
+    private boolean mFragmentedOutput;
+    private boolean mFastStart = true;
+    private boolean mTranscodeSucceeded;
+    private long mTranscodeTimeMs;
+    private CodecEventQueue<MediaFormat> mCodecEvents;
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
 
     private Stats mStats;
     private Logger mLogger;
-    private int mRetryCount;
-
-    // Buffers
-    private ByteBuffer[] mVideoDecoderInputBuffers;
-    private ByteBuffer[] mVideoEncoderOutputBuffers;
-    private ByteBuffer[] mAudioDecoderInputBuffers;
-    private ByteBuffer[] mAudioDecoderOutputBuffers;
-    private ByteBuffer[] mAudioEncoderInputBuffers;
-    private ByteBuffer[] mAudioEncoderOutputBuffers;
-
-    // Media Formats from codecs
-    private MediaFormat mDecoderOutputVideoFormat;
-    private MediaFormat mDecoderOutputAudioFormat;
-    private MediaFormat mEncoderOutputVideoFormat;
-    private MediaFormat mEncoderOutputAudioFormat;
-
-    private int mPendingAudioDecoderOutputBufferIndex = -1;
-
-    private int mOutputVideoTrack = -1;
-    private int mOutputAudioTrack = -1;
-
-    private long mPreviousPresentationTime = 0L;
 
     private long mStartTime;
+    private long mStartCpuTime;
 
     private VideoTranscoder(Context context, Uri srcUri) {
         mContext = context;
@@ -149,11 +206,15 @@ public class VideoTranscoder {
         }
 
         mStartTime = System.currentTimeMillis();
+        mStartCpuTime = Process.getElapsedCpuTime();
+        mStats = new Stats();
 
         boolean setupSuccess = false;
         boolean transcodeSuccess = false;
         boolean cleanupSuccess = false;
 
+        mTranscodeSucceeded = false;
+
         try {
             setup();
             setupSuccess = true;
@@ -164,8 +225,11 @@ public class VideoTranscoder {
 
         try {
             if (setupSuccess) {
+                long transcodeStartTime = SystemClock.elapsedRealtime();
                 transcode();
+                mTranscodeTimeMs = SystemClock.elapsedRealtime() - transcodeStartTime;
                 transcodeSuccess = true;
+                mTranscodeSucceeded = true;
             }
         } catch (Exception ex) {
             mLogger.e(String.format("Failed while transcoding video: %s", mSrcUri));
@@ -183,141 +247,478 @@ public class VideoTranscoder {
     }
 
     private void setup() throws IOException {
+        if (mSource == null) {
+            mSource = new SourceSession(mContext, mSrcUri);
+            mOwnsSource = true;
+        }
+
         createComponents();
+        mProbe = mSource.getProbe();
 
         setOrientationHint();
         calculateOutputDimensions();
 
+        // Every other path writes a single output
+        boolean singleOutput = mRenditions.isEmpty();
+
+        if (singleOutput && canRemux()) {
+            mLogger.i("Source already meets the output constraints, copying samples without transcoding");
+            mRemux = true;
+            mStats.remuxed = true;
+            mStats.videoPath = VIDEO_PATH_COPY;
+            mStats.audioPath = shouldIncludeAudio() ? AUDIO_PATH_COPY : AUDIO_PATH_NONE;
+            createMuxer();
+            return;
+        }
+
+        // Renditions are drawn from the frame latched for the main output, they need the GL path
+        mRenderDirect = singleOutput && canRenderDirect();
+        mStats.videoPath = mRenderDirect ? VIDEO_PATH_SURFACE : VIDEO_PATH_GL;
+
+        if (singleOutput && mSmartTrim && canSmartTrim()) {
+            mLogger.i("Source can be copied between the trim points, transcoding only the boundaries");
+            mSmartTrimming = true;
+            mStats.audioPath = shouldIncludeAudio() ? AUDIO_PATH_COPY : AUDIO_PATH_NONE;
+            mStats.videoEncoder = selectEncoder(Defaults.OUTPUT_VIDEO_MIME_TYPE, mOutputVideoWidth, mOutputVideoHeight);
+            createSmartTrimOutputFormat();
+            createMuxer();
+            return;
+        }
+
+        // Segments are concatenated with the audio copied alongside, there is no audio encoder
+        if (singleOutput && mMaxParallelSegments > 1 && (!shouldIncludeAudio() || canCopyAudio())) {
+            mParallelSegments = getParallelSegmentCount();
+        }
+
+        if (mParallelSegments > 1) {
+            mLogger.i(String.format("Transcoding up to %s segments in parallel", mParallelSegments));
+            mStats.audioPath = shouldIncludeAudio() ? AUDIO_PATH_COPY : AUDIO_PATH_NONE;
+            mStats.videoEncoder = selectEncoder(Defaults.OUTPUT_VIDEO_MIME_TYPE, mOutputVideoWidth, mOutputVideoHeight);
+            createVideoOutputFormat();
+            createMuxer();
+            return;
+        }
+
+        if (shouldIncludeAudio()) {
+            mCopyAudio = canCopyAudio();
+            mStats.audioPath = mCopyAudio ? AUDIO_PATH_COPY : AUDIO_PATH_TRANSCODE;
+        }
+
+        if (mEngine == ENGINE_ASYNC) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                createCallbackThread();
+            } else {
+                mLogger.w("Async engine requires API 23, falling back to the polling engine");
+                mEngine = ENGINE_POLLING;
+            }
+        }
+
         createOutputFormats();
         createVideoEncoder();
+        createRenditionEncoders();
         createVideoDecoder();
 
-        if (shouldIncludeAudio()) {
+        if (shouldIncludeAudio() && !mCopyAudio) {
             createAudioEncoder();
             createAudioDecoder();
         }
 
         createMuxer();
+        createRenditionMuxers();
     }
 
-    private void transcode() {
-        mStats = new Stats();
+    private void transcode() throws IOException, InterruptedException {
+        if (mRemux) {
+            remux();
+            return;
+        }
 
-        boolean videoEncoderDone = false;
-        boolean audioEncoderDone = false;
+        if (mSmartTrimming) {
+            smartTrim();
+            return;
+        }
 
-        boolean videoDecoderDone = false;
-        boolean audioDecoderDone = false;
+        if (mParallelSegments > 1) {
+            transcodeParallel();
+            return;
+        }
 
-        boolean videoExtractorDone = false;
-        boolean audioExtractorDone = false;
+        SurfaceFrameRenderer surfaceRenderer = mRenderDirect
+                ? null : new SurfaceFrameRenderer(mOutputSurface, mInputSurface, mStats);
+        FrameRenderer renderer = surfaceRenderer != null ? surfaceRenderer : new DirectFrameRenderer();
 
-        boolean muxing = false;
+        TranscodePipeline.Builder<MediaFormat> builder = new TranscodePipeline.Builder<MediaFormat>()
+                .video(new AndroidExtractor(mInputVideoComponent.getMediaExtractor()),
+                        mVideoDecoder, mVideoEncoder, renderer)
+                .muxer(mMuxer)
+                .frameRate(mOutputVideoFrameRate)
+                .codecEvents(mCodecEvents)
+                .trim(mTrimStartTime * 1000, mTrimEndTime > 0 ? mTrimEndTime * 1000 : TranscodePipeline.TRIM_TIME_END)
+                .stats(mStats)
+                .logger(mLogger);
 
-        mVideoDecoderInputBuffers = mVideoDecoder.getInputBuffers();
-        mVideoEncoderOutputBuffers = mVideoEncoder.getOutputBuffers();
+        if (shouldIncludeAudio() && mCopyAudio) {
+            MediaFormat audioFormat = mInputAudioComponent.getTrackFormat();
+            builder.audioCopy(new AndroidExtractor(mInputAudioComponent.getMediaExtractor()), audioFormat,
+                    getMaxInputSize(audioFormat));
+        } else if (shouldIncludeAudio()) {
+            builder.audio(new AndroidExtractor(mInputAudioComponent.getMediaExtractor()), mAudioDecoder, mAudioEncoder)
+                    .pcmFormatReader(new AndroidPcmFormatReader());
+        }
+
+        for (RenditionOutput rendition : mRenditions) {
+            builder.rendition(rendition.encoder,
+                    new RenditionFrameRenderer(mOutputSurface, rendition.inputSurface, mInputSurface), rendition.muxer);
+        }
+
+        try {
+            builder.build().transcode(mEngine);
+        } finally {
+            if (surfaceRenderer != null) {
+                surfaceRenderer.release();
+            }
+        }
+    }
+
+    private void remux() {
+        RemuxPipeline.Builder<MediaFormat> builder = new RemuxPipeline.Builder<MediaFormat>()
+                .video(new AndroidExtractor(mInputVideoComponent.getMediaExtractor()), mInputVideoComponent.getTrackFormat())
+                .muxer(mMuxer)
+                .bufferSize(getMaxInputSize())
+                .stats(mStats)
+                .logger(mLogger);
 
         if (shouldIncludeAudio()) {
-            mAudioDecoderInputBuffers = mAudioDecoder.getInputBuffers();
-            mAudioDecoderOutputBuffers = mAudioDecoder.getOutputBuffers();
-            mAudioEncoderInputBuffers = mAudioEncoder.getInputBuffers();
-            mAudioEncoderOutputBuffers = mAudioEncoder.getOutputBuffers();
+            builder.audio(new AndroidExtractor(mInputAudioComponent.getMediaExtractor()), mInputAudioComponent.getTrackFormat());
         }
 
-        MediaCodec.BufferInfo videoDecoderOutputBufferInfo = new MediaCodec.BufferInfo();
-        MediaCodec.BufferInfo videoEncoderOutputBufferInfo = new MediaCodec.BufferInfo();
+        builder.build().remux();
+    }
+
+    private void smartTrim() throws IOException, InterruptedException {
+        final AndroidExtractor videoExtractor = new AndroidExtractor(mInputVideoComponent.getMediaExtractor());
 
-        MediaCodec.BufferInfo audioDecoderOutputBufferInfo = null;
-        MediaCodec.BufferInfo audioEncoderOutputBufferInfo = null;
+        SmartTrimPipeline.Builder<MediaFormat> builder = new SmartTrimPipeline.Builder<MediaFormat>()
+                .video(videoExtractor, mInputVideoComponent.getTrackFormat())
+                .muxer(mMuxer)
+                .segments((startTimeUs, endTimeUs, muxer) -> transcodeSegment(videoExtractor, startTimeUs, endTimeUs, muxer),
+                        new AndroidCodecConfigReader())
+                .trim(mTrimStartTime * 1000, mTrimEndTime > 0 ? mTrimEndTime * 1000 : TranscodePipeline.TRIM_TIME_END)
+                .bufferSize(getMaxInputSize())
+                .stats(mStats)
+                .logger(mLogger);
 
         if (shouldIncludeAudio()) {
-            audioDecoderOutputBufferInfo = new MediaCodec.BufferInfo();
-            audioEncoderOutputBufferInfo = new MediaCodec.BufferInfo();
+            builder.audio(new AndroidExtractor(mInputAudioComponent.getMediaExtractor()), mInputAudioComponent.getTrackFormat());
         }
 
-        if (mTrimStartTime > 0) {
-            mInputVideoComponent.getMediaExtractor().seekTo(mTrimStartTime * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        builder.build().trim();
+    }
+
+    private void transcodeParallel() throws IOException, InterruptedException {
+        AndroidSegmentStore segmentStore = new AndroidSegmentStore(mContext.getCacheDir());
+
+        try {
+            ParallelTranscodePipeline.Builder<MediaFormat> builder = new ParallelTranscodePipeline.Builder<MediaFormat>()
+                    .video(new AndroidExtractor(mInputVideoComponent.getMediaExtractor()),
+                            mInputVideoComponent.getTrackFormat().getLong(MediaFormat.KEY_DURATION))
+                    .muxer(mMuxer)
+                    .segments(this::transcodeSourceSegment, new AndroidCodecConfigReader(), segmentStore)
+                    .maxSegments(mParallelSegments)
+                    .trim(mTrimStartTime * 1000, mTrimEndTime > 0 ? mTrimEndTime * 1000 : TranscodePipeline.TRIM_TIME_END)
+                    .bufferSize(getMaxInputSize())
+                    .stats(mStats)
+                    .logger(mLogger);
+
+            SampleIndex sampleIndex = mSource.getVideoSampleIndex();
+            if (sampleIndex != null) {
+                mLogger.d(String.format("Sample index: %d samples in %d bytes",
+                        sampleIndex.getSampleCount(), sampleIndex.getMemoryUsage()));
+                builder.syncIndex(sampleIndex);
+            }
 
             if (shouldIncludeAudio()) {
-                mInputAudioComponent.getMediaExtractor().seekTo(mTrimStartTime * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                builder.audio(new AndroidExtractor(mInputAudioComponent.getMediaExtractor()), mInputAudioComponent.getTrackFormat());
             }
+
+            builder.build().transcode();
+        } finally {
+            segmentStore.release();
         }
+    }
 
-        // loop until all the encoding is finished
-        while (!videoEncoderDone || (shouldIncludeAudio() && !audioEncoderDone)) {
+    /**
+     * Transcodes one segment of a parallel transcode from an extractor of its own.
+     */
+    private void transcodeSourceSegment(long startTimeUs, long endTimeUs, MuxerPort<MediaFormat> muxer)
+            throws IOException, InterruptedException {
+        Component component = new Component(mSource, Component.COMPONENT_TYPE_VIDEO);
 
-            // Extract video from file and feed to decoder.
-            // Do not extract video if we have determined the output format but we are not yet
-            // ready to mux the frames.
-            if (!videoExtractorDone && (mEncoderOutputVideoFormat == null || muxing)) {
-                videoExtractorDone = extractAndFeedDecoder(mVideoDecoder, mVideoDecoderInputBuffers, mInputVideoComponent);
-            }
+        try {
+            transcodeSegment(new AndroidExtractor(component.getMediaExtractor()), startTimeUs, endTimeUs, muxer);
+        } finally {
+            component.release();
+        }
+    }
 
-            // Extract audio from file and feed to decoder.
-            // Do not extract audio if we have determined the output format but we are not yet
-            // ready to mux the frames.
-            if (shouldIncludeAudio() && !audioExtractorDone && (mEncoderOutputAudioFormat == null || muxing)) {
-                audioExtractorDone = extractAndFeedDecoder(mAudioDecoder, mAudioDecoderInputBuffers, mInputAudioComponent);
-            }
+    /**
+     * Transcodes one range of the video with a decoder, encoder and, unless the decoder renders
+     * directly, a GL context of its own, which only live for the range. Safe to call from several
+     * threads at once.
+     */
+    private void transcodeSegment(ExtractorPort extractor, long startTimeUs, long endTimeUs,
+                                  MuxerPort<MediaFormat> muxer) throws IOException, InterruptedException {
+        MediaFormat inputFormat = mInputVideoComponent.getTrackFormat();
+        String inputMimeType = MediaInfo.getMimeTypeFor(inputFormat);
+        Stats stats = new Stats();
 
-            // Poll output frames from the video decoder and feed the encoder
-            if (!videoDecoderDone && (mEncoderOutputVideoFormat == null || muxing)) {
-                videoDecoderDone = pollVideoFromDecoderAndFeedToEncoder(videoDecoderOutputBufferInfo);
-            }
+        AndroidCodec encoder = null;
+        AndroidCodec decoder = null;
+        Surface encoderSurface = null;
+        InputSurface inputSurface = null;
+        OutputSurface outputSurface = null;
+        SurfaceFrameRenderer surfaceRenderer = null;
 
-            // Poll output frames from the audio decoder.
-            if (shouldIncludeAudio() && !audioDecoderDone && mPendingAudioDecoderOutputBufferIndex == -1
-                    && (mEncoderOutputAudioFormat == null || muxing)) {
-                pollAudioFromDecoder(audioDecoderOutputBufferInfo);
-            }
+        try {
+            encoder = new AndroidCodec(obtainCodec(mStats.videoEncoder, Defaults.OUTPUT_VIDEO_MIME_TYPE, true));
+            encoder.getMediaCodec().configure(mOutputVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoderSurface = encoder.getMediaCodec().createInputSurface();
+            encoder.start();
+
+            FrameRenderer renderer;
+            Surface decoderSurface;
+            if (mRenderDirect) {
+                renderer = new DirectFrameRenderer();
+                decoderSurface = encoderSurface;
+            } else {
+                inputSurface = new InputSurface(encoderSurface);
+                inputSurface.makeCurrent();
 
-            // Feed the pending audio buffer to the audio encoder
-            if (shouldIncludeAudio() && mPendingAudioDecoderOutputBufferIndex != -1) {
-                feedPendingAudioBufferToEncoder(audioDecoderOutputBufferInfo);
+                outputSurface = new OutputSurface();
+                surfaceRenderer = new SurfaceFrameRenderer(outputSurface, inputSurface, stats);
+                renderer = surfaceRenderer;
+                decoderSurface = outputSurface.getSurface();
             }
 
-            // Poll frames from video encoder and send them to the muxer
-            if (!videoEncoderDone && (mEncoderOutputVideoFormat == null || muxing)) {
-                videoEncoderDone = pollVideoFromEncoderAndFeedToMuxer(videoEncoderOutputBufferInfo);
+            decoder = new AndroidCodec(obtainCodec(null, inputMimeType, false));
+            decoder.getMediaCodec().configure(inputFormat, decoderSurface, null, 0);
+            decoder.start();
+
+            new TranscodePipeline.Builder<MediaFormat>()
+                    .video(extractor, decoder, encoder, renderer)
+                    .muxer(muxer)
+                    .frameRate(mOutputVideoFrameRate)
+                    .trim(startTimeUs, endTimeUs)
+                    .stats(stats)
+                    .logger(mLogger)
+                    .build()
+                    .transcode(ENGINE_POLLING);
+        } finally {
+            if (surfaceRenderer != null) {
+                surfaceRenderer.release();
             }
-
-            // Poll frames from audio encoder and send them to the muxer
-            if (shouldIncludeAudio() && !audioEncoderDone && (mEncoderOutputAudioFormat == null || muxing)) {
-                audioEncoderDone = pollAudioFromEncoderAndFeedToMuxer(audioEncoderOutputBufferInfo);
+            if (decoder != null) {
+                releaseCodec(decoder, inputMimeType, false);
+            }
+            if (outputSurface != null) {
+                outputSurface.release();
             }
+            if (encoder != null) {
+                releaseCodec(encoder, Defaults.OUTPUT_VIDEO_MIME_TYPE, true);
+            }
+            if (inputSurface != null) {
+                inputSurface.release();
+            } else if (encoderSurface != null) {
+                encoderSurface.release();
+            }
+
+            addSegmentStats(stats);
+        }
+    }
+
+    private void addSegmentStats(Stats stats) {
+        synchronized (mStats) {
+            mStats.videoExtractedFrameCount += stats.videoExtractedFrameCount;
+            mStats.videoDecodedFrameCount += stats.videoDecodedFrameCount;
+            mStats.videoEncodedFrameCount += stats.videoEncodedFrameCount;
+            mStats.videoPreRollFrameCount += stats.videoPreRollFrameCount;
+            mStats.videoDroppedFrameCount += stats.videoDroppedFrameCount;
+            mStats.stagedSampleHighWaterMark = Math.max(mStats.stagedSampleHighWaterMark, stats.stagedSampleHighWaterMark);
+            mStats.sampleBufferAcquireCount += stats.sampleBufferAcquireCount;
+            mStats.sampleBufferAllocationCount += stats.sampleBufferAllocationCount;
+            mStats.renderFramesInFlightHighWaterMark = Math.max(mStats.renderFramesInFlightHighWaterMark,
+                    stats.renderFramesInFlightHighWaterMark);
+            mStats.renderGpuWaitTimeUs += stats.renderGpuWaitTimeUs;
+            mStats.engine = stats.engine;
+        }
+    }
+
+    /**
+     * @return How many segments of the source can be transcoded at once, bounded by the
+     * instances the decoder and the encoder support at the same time
+     */
+    private int getParallelSegmentCount() {
+        MediaFormat inputFormat = mInputVideoComponent.getTrackFormat();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || !inputFormat.containsKey(MediaFormat.KEY_DURATION)) {
+            return 1;
+        }
+
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        String inputMimeType = MediaInfo.getMimeTypeFor(inputFormat);
+        String decoderName = codecList.findDecoderForFormat(inputFormat);
+        String encoderName = selectEncoder(Defaults.OUTPUT_VIDEO_MIME_TYPE, mOutputVideoWidth, mOutputVideoHeight);
 
-            // Setup muxer
-            if (!muxing && (!shouldIncludeAudio() || mEncoderOutputAudioFormat != null) && (mEncoderOutputVideoFormat != null)) {
-                setupMuxer();
-                muxing = true;
+        int count = mMaxParallelSegments;
+        for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
+            if (codecInfo.getName().equals(decoderName)) {
+                count = Math.min(count, codecInfo.getCapabilitiesForType(inputMimeType).getMaxSupportedInstances());
+            } else if (codecInfo.getName().equals(encoderName)) {
+                count = Math.min(count, codecInfo.getCapabilitiesForType(Defaults.OUTPUT_VIDEO_MIME_TYPE).getMaxSupportedInstances());
             }
         }
 
-        // Basic sanity checks
-        sanityChecks();
+        return decoderName != null ? count : 1;
     }
 
     /**
-     * Performs a basic checks in an attempt to see if the transcode was successful.
-     * Will throw an IllegalStateException if any checks fail.
+     * Decides whether the source can be copied into the output as is.
+     * Trimming always transcodes since the cut has to be frame accurate.
      */
-    private void sanityChecks() {
-        if (mStats.videoDecodedFrameCount != mStats.videoEncodedFrameCount) {
-            throw new IllegalStateException("encoded and decoded video frame counts should match");
+    private boolean canRemux() {
+        if (mTrimStartTime > 0 || mTrimEndTime != TRIM_TIME_END) {
+            return false;
         }
 
-        if (mStats.videoDecodedFrameCount > mStats.videoExtractedFrameCount) {
-            throw new IllegalStateException("decoded frame count should be less than extracted frame count");
+        return canCopySource();
+    }
+
+    /**
+     * Decides whether a trim can copy the source between its first and last sync samples in the
+     * range. The transcoded boundaries have to match the copied frames exactly, so the source may
+     * not even be rotated into the output size.
+     */
+    private boolean canSmartTrim() {
+        if (mTrimStartTime <= 0 && mTrimEndTime == TRIM_TIME_END) {
+            return false;
         }
 
+        MediaFormat videoFormat = mInputVideoComponent.getTrackFormat();
+        if (videoFormat.getInteger(MediaFormat.KEY_WIDTH) != mOutputVideoWidth
+                || videoFormat.getInteger(MediaFormat.KEY_HEIGHT) != mOutputVideoHeight) {
+            return false;
+        }
+
+        return canCopySource();
+    }
+
+    /**
+     * The decoder can render straight into the encoder's input surface when the frames go through
+     * unchanged. That skips the GL context, the texture copy and the glFinish() for every frame.
+     *
+     * @return true if the output has exactly the source's size
+     */
+    private boolean canRenderDirect() {
+        MediaFormat videoFormat = mInputVideoComponent.getTrackFormat();
+
+        return videoFormat.getInteger(MediaFormat.KEY_WIDTH) == mOutputVideoWidth
+                && videoFormat.getInteger(MediaFormat.KEY_HEIGHT) == mOutputVideoHeight;
+    }
+
+    /**
+     * @return true if the source meets the output constraints: H.264 video that needs no scaling
+     * and stays under the bit rate limit, and AAC-LC audio under its bit rate limit
+     */
+    private boolean canCopySource() {
+        MediaFormat videoFormat = mInputVideoComponent.getTrackFormat();
+        if (!Defaults.OUTPUT_VIDEO_MIME_TYPE.equalsIgnoreCase(MediaInfo.getMimeTypeFor(videoFormat))) {
+            return false;
+        }
+
+        // calculateOutputDimensions() only changes the size of sources over the limits
+        int inputWidth = videoFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int inputHeight = videoFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        boolean sameSize = (inputWidth == mOutputVideoWidth && inputHeight == mOutputVideoHeight)
+                || (inputWidth == mOutputVideoHeight && inputHeight == mOutputVideoWidth);
+        if (!sameSize) {
+            return false;
+        }
+
+        // The muxer carries the rotation over as an orientation hint, just like a transcode would
+        if (mOrientationHint % 90 != 0) {
+            return false;
+        }
+
+        int inputBitRate = getInputVideoBitRate();
+        if (inputBitRate <= 0 || inputBitRate > mOutputVideoBitRate) {
+            return false;
+        }
+
+        // A transcode would drop the frames over the output frame rate
+        if (getInputVideoFrameRate() > mOutputVideoFrameRate) {
+            return false;
+        }
+
+        return !shouldIncludeAudio() || canCopyAudio();
+    }
+
+    /**
+     * @return The frame rate declared by the source video, or 0 if it isn't known
+     */
+    private float getInputVideoFrameRate() {
+        MediaFormat videoFormat = mInputVideoComponent.getTrackFormat();
+        if (!videoFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return 0;
+        }
+
+        // Extractors store the frame rate as an integer or a float depending on the container
+        try {
+            return videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return videoFormat.getFloat(MediaFormat.KEY_FRAME_RATE);
+        }
+    }
+
+    /**
+     * @return true if the source audio is AAC-LC under the bit rate limit, and can be copied into
+     * the output without decoding it
+     */
+    private boolean canCopyAudio() {
+        MediaFormat audioFormat = mInputAudioComponent.getTrackFormat();
+        if (!Defaults.OUTPUT_AUDIO_MIME_TYPE.equalsIgnoreCase(MediaInfo.getMimeTypeFor(audioFormat))) {
+            return false;
+        }
+
+        if (audioFormat.containsKey(MediaFormat.KEY_AAC_PROFILE)
+                && audioFormat.getInteger(MediaFormat.KEY_AAC_PROFILE) != Defaults.OUTPUT_AUDIO_AAC_PROFILE) {
+            return false;
+        }
+
+        return audioFormat.containsKey(MediaFormat.KEY_BIT_RATE)
+                && audioFormat.getInteger(MediaFormat.KEY_BIT_RATE) <= mOutputAudioBitRate;
+    }
+
+    /**
+     * @return The largest sample size declared by the source tracks
+     */
+    private int getMaxInputSize() {
+        int maxInputSize = getMaxInputSize(mInputVideoComponent.getTrackFormat());
+
         if (shouldIncludeAudio()) {
-            if (mPendingAudioDecoderOutputBufferIndex != -1) {
-                throw new IllegalStateException("no frame should be pending");
-            }
+            maxInputSize = Math.max(maxInputSize, getMaxInputSize(mInputAudioComponent.getTrackFormat()));
+        }
+
+        return maxInputSize;
+    }
 
-            mLogger.d(String.format("audioDecodedFrameCount: %s audioExtractedFrameCount: %s",
-                    mStats.audioDecodedFrameCount, mStats.audioExtractedFrameCount));
+    /**
+     * @return The largest sample size declared by the track format, or a generous default
+     */
+    private static int getMaxInputSize(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            return format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
         }
+
+        return RemuxPipeline.DEFAULT_BUFFER_SIZE;
     }
 
     private void logResults() {
@@ -333,12 +734,58 @@ public class VideoTranscoder {
             returnCursor.close();
         }
 
-        mStats.outputFileSize = Math.round(new File(mOutputFilePath).length() / 1024. / 1000 * 10) / 10.;
+        long outputSize;
+        if (mOutputChannel != null) {
+            outputSize = mOutputChannel.getBytesWritten();
+            mStats.outputBytesEmitted = outputSize;
+            if (mOutputChannel.getFirstByteTimeMs() > 0) {
+                mStats.outputTimeToFirstByteMs = mOutputChannel.getFirstByteTimeMs() - mStartTime;
+            }
+        } else {
+            outputSize = new File(mOutputFilePath).length();
+        }
+        mStats.outputFileSize = Math.round(outputSize / 1024. / 1000 * 10) / 10.;
         mStats.timeToTranscode = Math.round(((System.currentTimeMillis() - mStartTime) / 1000.) * 10) / 10.;
+        mStats.cpuTimeToTranscode = Math.round(((Process.getElapsedCpuTime() - mStartCpuTime) / 1000.) * 10) / 10.;
 
         mLogger.w(String.format("Input file: %sMB", mStats.inputFileSize));
         mLogger.w(String.format("Output file: %sMB", mStats.outputFileSize));
         mLogger.w(String.format("Time to encode: %ss", mStats.timeToTranscode));
+        mLogger.w(String.format("CPU time to encode: %ss", mStats.cpuTimeToTranscode));
+        mLogger.w(String.format("Staged samples before muxing: %s", mStats.stagedSampleHighWaterMark));
+        mLogger.w(String.format("Sample buffers: %s acquired, %s allocated", mStats.sampleBufferAcquireCount,
+                mStats.sampleBufferAllocationCount));
+        mLogger.w(String.format("Time to move moov to the front: %sms", mStats.fastStartTimeMs));
+        mLogger.w(String.format("Source reads: %s, mapped: %s", mStats.sourceReadCount, mStats.sourceMapped));
+        if (mStats.sourcePrefetchHitRate > 0 || mStats.sourcePrefetchStallTimeUs > 0) {
+            mLogger.w(String.format("Source prefetch hit rate: %s, stalled: %sus", mStats.sourcePrefetchHitRate,
+                    mStats.sourcePrefetchStallTimeUs));
+        }
+        if (mOutputChannel != null) {
+            mLogger.w(String.format("Output sink: %s bytes, first byte after %sms", mStats.outputBytesEmitted,
+                    mStats.outputTimeToFirstByteMs));
+        }
+
+        if (mStats.videoPath == VIDEO_PATH_GL && mStats.videoEncodedFrameCount > 0) {
+            mLogger.w(String.format("GPU frames in flight: %s, wait per frame: %sus", mStats.renderFramesInFlightHighWaterMark,
+                    mStats.renderGpuWaitTimeUs / mStats.videoEncodedFrameCount));
+        }
+
+        for (int i = 0; i < mStats.renditionEncodedFrameCount.length; i++) {
+            mLogger.w(String.format("Rendition %s: %s frames encoded", i + 1, mStats.renditionEncodedFrameCount[i]));
+        }
+
+        // Parallel segments and renditions ran several encoders at once, a smart trim spent most
+        // of the job copying and a remux encoded nothing, that's not one encoder's throughput
+        if (mTranscodeSucceeded && mTranscodeTimeMs > 0 && !mSmartTrimming && !mRemux
+                && mStats.videoSegmentCount <= 1 && mStats.renditionEncodedFrameCount.length == 0) {
+            CodecCatalog.getInstance(mContext).recordThroughput(mStats.videoEncoder,
+                    mStats.videoEncodedFrameCount * 1000f / mTranscodeTimeMs);
+        }
+
+        if (mReuseCodecs) {
+            mLogger.w(String.format("Codec pool hits: %s, misses: %s", mStats.codecPoolHits, mStats.codecPoolMisses));
+        }
     }
 
     private void cleanup() throws Exception {
@@ -370,10 +817,29 @@ public class VideoTranscoder {
                 exception = e;
             }
         }
+        try {
+            if (mSource != null) {
+                mStats.sourceMapped = mSource.isMapped();
+                mStats.sourceReadCount = mSource.getReadCount();
+                if (mSource.isPrefetching()) {
+                    mStats.sourcePrefetchHitRate = mSource.getPrefetchHitRate();
+                    mStats.sourcePrefetchStallTimeUs = mSource.getPrefetchStallTimeUs();
+                }
+            }
+            if (mSource != null && mOwnsSource) {
+                mSource.release();
+                mSource = null;
+            }
+        } catch(Exception e) {
+            mLogger.e("error while releasing source");
+            mLogger.e(e);
+            if (exception == null) {
+                exception = e;
+            }
+        }
         try {
             if (mVideoDecoder != null) {
-                mVideoDecoder.stop();
-                mVideoDecoder.release();
+                releaseCodec(mVideoDecoder, MediaInfo.getMimeTypeFor(mInputVideoComponent.getTrackFormat()), false);
             }
         } catch(Exception e) {
             mLogger.e("error while releasing videoDecoder");
@@ -395,8 +861,7 @@ public class VideoTranscoder {
         }
         try {
             if (mVideoEncoder != null) {
-                mVideoEncoder.stop();
-                mVideoEncoder.release();
+                releaseCodec(mVideoEncoder, Defaults.OUTPUT_VIDEO_MIME_TYPE, true);
             }
         } catch(Exception e) {
             mLogger.e("error while releasing videoEncoder");
@@ -407,8 +872,7 @@ public class VideoTranscoder {
         }
         try {
             if (mAudioDecoder != null) {
-                mAudioDecoder.stop();
-                mAudioDecoder.release();
+                releaseCodec(mAudioDecoder, MediaInfo.getMimeTypeFor(mInputAudioComponent.getTrackFormat()), false);
             }
         } catch(Exception e) {
             mLogger.e("error while releasing audioDecoder");
@@ -419,8 +883,7 @@ public class VideoTranscoder {
         }
         try {
             if (mAudioEncoder != null) {
-                mAudioEncoder.stop();
-                mAudioEncoder.release();
+                releaseCodec(mAudioEncoder, Defaults.OUTPUT_AUDIO_MIME_TYPE, true);
             }
         } catch(Exception e) {
             mLogger.e("error while releasing audioEncoder");
@@ -441,9 +904,22 @@ public class VideoTranscoder {
                 exception = e;
             }
         }
+        for (RenditionOutput rendition : mRenditions) {
+            try {
+                releaseRendition(rendition);
+            } catch(Exception e) {
+                mLogger.e("error while releasing rendition");
+                mLogger.e(e);
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
         try {
             if (mInputSurface != null) {
                 mInputSurface.release();
+            } else if (mEncoderSurface != null) {
+                mEncoderSurface.release();
             }
         } catch(Exception e) {
             mLogger.e("error while releasing inputSurface");
@@ -452,395 +928,92 @@ public class VideoTranscoder {
                 exception = e;
             }
         }
-
-        if (exception != null) {
-            throw exception;
-        }
-
-        logResults();
-    }
-
-    /**
-     * Extract and feed to decoder.
-     *
-     * @return Finished. True when it extracts the last frame.
-     */
-    private boolean extractAndFeedDecoder(MediaCodec decoder, ByteBuffer[] buffers, Component component) {
-        String type = component.getType() == Component.COMPONENT_TYPE_VIDEO ? "video" : "audio";
-
-        int decoderInputBufferIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
-        if (decoderInputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            mLogger.d(String.format(Locale.US, "no %s decoder input buffer", type));
-            return false;
-        }
-
-        mLogger.d(String.format(Locale.US, "%s decoder: returned input buffer: %d", type, decoderInputBufferIndex));
-
-        MediaExtractor extractor = component.getMediaExtractor();
-        int size = extractor.readSampleData(buffers[decoderInputBufferIndex], 0);
-        long presentationTime = extractor.getSampleTime();
-
-        mLogger.d(String.format(Locale.US, "%s extractor: returned buffer of size %d", type, size));
-        mLogger.d(String.format(Locale.US, "%s extractor: returned buffer for time %d", type, presentationTime));
-
-        if (mTrimEndTime > 0 && presentationTime > (mTrimEndTime * 1000)) {
-            mLogger.d("The current sample is over the trim time. Lets stop.");
-            decoder.queueInputBuffer(
-                    decoderInputBufferIndex,
-                    0,
-                    0,
-                    0,
-                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            return true;
-        }
-
-        if (size >= 0) {
-            decoder.queueInputBuffer(
-                    decoderInputBufferIndex,
-                    0,
-                    size,
-                    presentationTime,
-                    extractor.getSampleFlags());
-
-            mStats.incrementExtractedFrameCount(component);
-        }
-
-        if (!extractor.advance()) {
-            mLogger.d(String.format("%s extractor: EOS", type));
-            try {
-                decoder.queueInputBuffer(
-                        decoderInputBufferIndex,
-                        0,
-                        0,
-                        0,
-                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            } catch (Exception e) {
-                mRetryCount++;
-                if (mRetryCount < 5) {
-                    this.extractAndFeedDecoder(decoder, buffers, component);
-                } else {
-                    mRetryCount = 0;
-                    throw e;
-                }
+        try {
+            if (mCallbackThread != null) {
+                mCallbackThread.quitSafely();
+            }
+        } catch(Exception e) {
+            mLogger.e("error while stopping codec callback thread");
+            mLogger.e(e);
+            if (exception == null) {
+                exception = e;
             }
-            return true;
-        }
-
-        return false;
-    }
-
-    /**
-     * Extract frame for decoder and feed to encoder.
-     * @param videoDecoderOutputBufferInfo BufferInfo from the video decoder
-     * @return true if video was completely polled from decoder and fed to encoder, false otherwise
-     */
-    private boolean pollVideoFromDecoderAndFeedToEncoder(MediaCodec.BufferInfo videoDecoderOutputBufferInfo) {
-        int decoderOutputBufferIndex = mVideoDecoder.dequeueOutputBuffer(videoDecoderOutputBufferInfo, TIMEOUT_USEC);
-
-        if (decoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            mLogger.d("no video decoder output buffer");
-            return false;
-        }
-
-        if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-            mLogger.d("video decoder: output buffers changed");
-            return false;
-        }
-
-        if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            mDecoderOutputVideoFormat = mVideoDecoder.getOutputFormat();
-            mLogger.d(String.format("video decoder: output format changed: %s", mDecoderOutputVideoFormat));
-            return false;
         }
 
-        if ((videoDecoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-            mLogger.d("video decoder: codec config buffer");
-            mVideoDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
-            return false;
+        if (exception != null) {
+            throw exception;
         }
 
-        mLogger.d(String.format(Locale.US, "video decoder: returned output buffer: %s", decoderOutputBufferIndex));
-        mLogger.d(String.format(Locale.US, "video decoder: returned buffer of size %s", videoDecoderOutputBufferInfo.size));
-        mLogger.d(String.format(Locale.US, "video decoder: returned buffer for time %d", videoDecoderOutputBufferInfo.presentationTimeUs));
-
-        boolean render = videoDecoderOutputBufferInfo.size != 0;
-
-        mVideoDecoder.releaseOutputBuffer(decoderOutputBufferIndex, render);
-
-        if (render) {
-            mOutputSurface.awaitNewImage();
-            mOutputSurface.drawImage();
-            mInputSurface.setPresentationTime(videoDecoderOutputBufferInfo.presentationTimeUs * 1000);
-            mInputSurface.swapBuffers();
-            mLogger.d("video encoder: notified of new frame");
+        // The muxers have written their moov boxes, a fragmented output has its own in front
+        if (mTranscodeSucceeded && mFastStart && !mFragmentedOutput) {
+            moveMoovToFront();
         }
 
-        if ((videoDecoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            mLogger.d("video decoder: EOS");
-
-            mVideoEncoder.signalEndOfInputStream();
-            return true;
-        }
-
-        mStats.videoDecodedFrameCount++;
-
-        return false;
+        logResults();
     }
 
     /**
-     *
-     * @param audioDecoderOutputBufferInfo BufferInfo from the audio decoder
+     * Rewrites every output so its moov box comes before the media data, for progressive playback.
      */
-    private void pollAudioFromDecoder(MediaCodec.BufferInfo audioDecoderOutputBufferInfo) {
-        int decoderOutputBufferIndex = mAudioDecoder.dequeueOutputBuffer(audioDecoderOutputBufferInfo, TIMEOUT_USEC);
+    private void moveMoovToFront() throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
 
-        if (decoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            mLogger.d("no audio decoder output buffer");
-            return;
+        boolean moved = FastStart.relocate(new File(mOutputFilePath));
+        for (RenditionOutput rendition : mRenditions) {
+            moved |= FastStart.relocate(new File(rendition.filePath));
         }
 
-        if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-            mLogger.d("audio decoder: output buffers changed");
-            mAudioDecoderOutputBuffers = mAudioDecoder.getOutputBuffers();
-            return;
+        if (moved) {
+            mStats.fastStartTimeMs = SystemClock.elapsedRealtime() - startTime;
         }
-
-        if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            mDecoderOutputAudioFormat = mAudioDecoder.getOutputFormat();
-            mLogger.d(String.format(Locale.US, "audio decoder: output format changed: %s", mDecoderOutputAudioFormat));
-            return;
-        }
-
-        mLogger.d(String.format(Locale.US, "audio decoder: returned output buffer: %d", decoderOutputBufferIndex));
-        mLogger.d(String.format(Locale.US, "audio decoder: returned buffer of size %d", audioDecoderOutputBufferInfo.size));
-
-        if ((audioDecoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-            mLogger.d("audio decoder: codec config buffer");
-            mAudioDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
-            return;
-        }
-
-        mLogger.d(String.format("audio decoder: returned buffer for time %s", audioDecoderOutputBufferInfo.presentationTimeUs));
-        mLogger.d(String.format("audio decoder: output buffer is now pending: %s", mPendingAudioDecoderOutputBufferIndex));
-
-        mPendingAudioDecoderOutputBufferIndex = decoderOutputBufferIndex;
-        mStats.audioDecodedFrameCount++;
     }
 
-    /**
-     *
-     * @param audioDecoderOutputBufferInfo Audio buffer to be processed
-     */
-    private void feedPendingAudioBufferToEncoder(MediaCodec.BufferInfo audioDecoderOutputBufferInfo) {
-        mLogger.d(String.format(Locale.US, "audio decoder: attempting to process pending buffer: %d", mPendingAudioDecoderOutputBufferIndex));
-
-        int encoderInputBufferIndex = mAudioEncoder.dequeueInputBuffer(TIMEOUT_USEC);
-
-        if (encoderInputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            mLogger.d("no audio encoder input buffer");
-            return;
+    private void releaseRendition(RenditionOutput rendition) {
+        if (rendition.encoder != null) {
+            releaseCodec(rendition.encoder, Defaults.OUTPUT_VIDEO_MIME_TYPE, true);
         }
-
-        mLogger.d(String.format(Locale.US, "audio encoder: returned input buffer: %d", encoderInputBufferIndex));
-
-        ByteBuffer encoderInputBuffer = mAudioEncoderInputBuffers[encoderInputBufferIndex];
-
-        int size = audioDecoderOutputBufferInfo.size;
-        long presentationTime = audioDecoderOutputBufferInfo.presentationTimeUs;
-
-        mLogger.d(String.format(Locale.US, "audio decoder: processing pending buffer: %d", mPendingAudioDecoderOutputBufferIndex));
-        mLogger.d(String.format(Locale.US, "audio decoder: pending buffer of size %s", size));
-        mLogger.d(String.format(Locale.US, "audio decoder: pending buffer for time %s", presentationTime));
-
-        if (size >= 0) {
-            ByteBuffer decoderOutputBuffer = mAudioDecoderOutputBuffers[mPendingAudioDecoderOutputBufferIndex].duplicate();
-            decoderOutputBuffer.position(audioDecoderOutputBufferInfo.offset);
-            decoderOutputBuffer.limit(audioDecoderOutputBufferInfo.offset + size);
-            encoderInputBuffer.position(0);
-            encoderInputBuffer.put(decoderOutputBuffer);
-
-            mAudioEncoder.queueInputBuffer(
-                    encoderInputBufferIndex,
-                    0,
-                    size,
-                    presentationTime,
-                    audioDecoderOutputBufferInfo.flags);
+        if (rendition.muxer != null) {
+            rendition.muxer.stop();
+            rendition.muxer.release();
         }
-
-        mAudioDecoder.releaseOutputBuffer(mPendingAudioDecoderOutputBufferIndex, false);
-        mPendingAudioDecoderOutputBufferIndex = -1;
-
-        if ((audioDecoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            mLogger.d("audio decoder: EOS");
+        // Has to go before the main input surface, which owns the EGL display
+        if (rendition.inputSurface != null) {
+            rendition.inputSurface.release();
         }
     }
 
     /**
-     *
-     * @param videoEncoderOutputBufferInfo BufferInfo from the video encoder
-     * @return true if video was successfully polled from encoder and fed to muxer, false otherwise
+     * Stops and releases a codec, or hands it to the {@link CodecPool} if it can be reused.
      */
-    private boolean pollVideoFromEncoderAndFeedToMuxer(MediaCodec.BufferInfo videoEncoderOutputBufferInfo) {
-        int encoderOutputBufferIndex = mVideoEncoder.dequeueOutputBuffer(videoEncoderOutputBufferInfo, TIMEOUT_USEC);
-
-        if (encoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            mLogger.d("no video encoder output buffer");
-            return false;
-        }
-
-        if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-            mLogger.d("video encoder: output buffers changed");
-            mVideoEncoderOutputBuffers = mVideoEncoder.getOutputBuffers();
-            return false;
-        }
-
-        if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            mLogger.d("video encoder: output format changed");
-            if (mOutputVideoTrack >= 0) {
-                throw new IllegalStateException("Video encoder changed its output format again? What's going on?");
-            }
-            mEncoderOutputVideoFormat = mVideoEncoder.getOutputFormat();
-            return false;
-        }
-
-        if ((videoEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-            mLogger.d("video encoder: codec config buffer");
-            // Simply ignore codec config buffers.
-            mVideoEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
-            return false;
-        }
-
-//        TODO: is this needed?
-//        if (!mMuxing) {
-//            throw new IllegalStateException("should have added track before processing output");
-//        }
-
-        mLogger.d(String.format(Locale.US, "video encoder: returned output buffer: %d", encoderOutputBufferIndex));
-        mLogger.d(String.format(Locale.US, "video encoder: returned buffer of size %d", videoEncoderOutputBufferInfo.size));
-        mLogger.d(String.format(Locale.US, "video encoder: returned buffer for time %d", videoEncoderOutputBufferInfo.presentationTimeUs));
-
-        ByteBuffer encoderOutputBuffer = mVideoEncoderOutputBuffers[encoderOutputBufferIndex];
-        if (videoEncoderOutputBufferInfo.size != 0) {
-            mMuxer.writeSampleData(mOutputVideoTrack, encoderOutputBuffer, videoEncoderOutputBufferInfo);
-        }
-
-        mVideoEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
-
-        if ((videoEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            mLogger.d("video encoder: EOS");
-            return true;
-        }
-
-        mStats.videoEncodedFrameCount++;
-
-        return false;
-    }
-
-    private boolean pollAudioFromEncoderAndFeedToMuxer(MediaCodec.BufferInfo audioEncoderOutputBufferInfo) {
-        int encoderOutputBufferIndex = mAudioEncoder.dequeueOutputBuffer(audioEncoderOutputBufferInfo, TIMEOUT_USEC);
-
-        if (encoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            mLogger.d("no audio encoder output buffer");
-            return false;
-        }
-
-        if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-            mLogger.d("audio encoder: output buffers changed");
-            mAudioEncoderOutputBuffers = mAudioEncoder.getOutputBuffers();
-            return false;
-        }
-
-        if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            mLogger.d("audio encoder: output format changed");
-            if (mOutputAudioTrack >= 0) {
-                throw new IllegalStateException("audio encoder changed its output format again?");
-            }
-
-            mEncoderOutputAudioFormat = mAudioEncoder.getOutputFormat();
-            return false;
-        }
-
-        if ((audioEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-            mLogger.d("audio encoder: codec config buffer");
-            // Simply ignore codec config buffers.
-            mAudioEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
-            return false;
-        }
-
-//        TODO: is this needed?
-//        if (!muxing) {
-//            throw new IllegalStateException("should have added track before processing output");
-//        }
-
-        mLogger.d(String.format(Locale.US, "audio encoder: returned output buffer: %d", encoderOutputBufferIndex));
-        mLogger.d(String.format(Locale.US, "audio encoder: returned buffer of size %d", audioEncoderOutputBufferInfo.size));
-        mLogger.d(String.format(Locale.US, "audio encoder: returned buffer for time %d", audioEncoderOutputBufferInfo.presentationTimeUs));
-
-        if (audioEncoderOutputBufferInfo.size != 0) {
-            ByteBuffer encoderOutputBuffer = mAudioEncoderOutputBuffers[encoderOutputBufferIndex];
-
-            if (audioEncoderOutputBufferInfo.presentationTimeUs >= mPreviousPresentationTime) {
-                mPreviousPresentationTime = audioEncoderOutputBufferInfo.presentationTimeUs;
-                mMuxer.writeSampleData(mOutputAudioTrack, encoderOutputBuffer, audioEncoderOutputBufferInfo);
-            } else {
-                mLogger.d(String.format("presentationTimeUs %s < previousPresentationTime %s",
-                        audioEncoderOutputBufferInfo.presentationTimeUs, mPreviousPresentationTime));
-            }
-        }
-
-        mAudioEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
-
-        if ((audioEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            mLogger.d("audio encoder: EOS");
-            return true;
-        }
-
-        mStats.audioEncodedFrameCount++;
-
-        return false;
-    }
-
-    private void setupMuxer() {
-        mLogger.d("muxer: adding video track.");
-        mOutputVideoTrack = mMuxer.addTrack(mEncoderOutputVideoFormat);
-
-        if (shouldIncludeAudio()) {
-            mLogger.d("muxer: adding audio track.");
-            mOutputAudioTrack = mMuxer.addTrack(mEncoderOutputAudioFormat);
+    private void releaseCodec(AndroidCodec codec, String mimeType, boolean encoder) {
+        // Codecs of a failed job may be in a bad state, only keep the ones that finished
+        if (mReuseCodecs && mTranscodeSucceeded) {
+            CodecPool.getInstance().recycle(codec.getMediaCodec(), mimeType, encoder);
+        } else {
+            codec.stop();
+            codec.release();
         }
-
-        mLogger.d("muxer: starting");
-        mMuxer.setOrientationHint(mOrientationHint);
-        mMuxer.start();
     }
 
     /**
      * @param mimeType specified MIME type
-     * @return The first codec capable of encoding the specified MIME type, or null if no match was found.
+     * @param width Planned output width, or 0 for audio
+     * @param height Planned output height, or 0 for audio
+     * @return The name of the fastest encoder that can handle the output
      */
-    private MediaCodecInfo selectCodec(String mimeType) {
-        int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-            if (!codecInfo.isEncoder()) {
-                continue;
-            }
-
-            String[] types = codecInfo.getSupportedTypes();
-            for (String type : types) {
-                if (type.equalsIgnoreCase(mimeType)) {
-                    mLogger.d(String.format("Codec %s found for mime type %s", codecInfo.getName(), mimeType));
-                    return codecInfo;
-                }
-            }
+    private String selectEncoder(String mimeType, int width, int height) {
+        String codecName = CodecCatalog.getInstance(mContext).selectEncoder(mimeType, width, height,
+                width > 0 ? mOutputVideoFrameRate : 0);
+        if (codecName == null) {
+            throw new RuntimeException("Unable to find an appropriate codec for " + mimeType);
         }
 
-        throw new RuntimeException("Unable to find an appropriate codec for " + mimeType);
+        mLogger.d(String.format("Codec %s found for mime type %s", codecName, mimeType));
+        return codecName;
     }
 
     private void createComponents() throws IOException {
-        mInputVideoComponent = new Component(mContext, mSrcUri, Component.COMPONENT_TYPE_VIDEO);
+        mInputVideoComponent = new Component(mSource, Component.COMPONENT_TYPE_VIDEO);
 
         MediaFormat inputFormat = mInputVideoComponent.getTrackFormat();
         if (inputFormat.containsKey("rotation-degrees")) {
@@ -851,7 +1024,7 @@ public class VideoTranscoder {
         }
 
         if (shouldIncludeAudio()) {
-            mInputAudioComponent = new Component(mContext, mSrcUri, Component.COMPONENT_TYPE_AUDIO);
+            mInputAudioComponent = new Component(mSource, Component.COMPONENT_TYPE_AUDIO);
             if (mInputAudioComponent.getSelectedTrackIndex() == Component.NO_TRACK_AVAILABLE) {
                 shouldIncludeAudio(false);
             }
@@ -859,33 +1032,46 @@ public class VideoTranscoder {
     }
 
     private void calculateOutputDimensions() {
+        int[] dimensions = getOutputDimensions(Defaults.OUTPUT_MAX_WIDTH, Defaults.OUTPUT_MAX_HEIGHT);
+        mOutputVideoWidth = dimensions[0];
+        mOutputVideoHeight = dimensions[1];
+    }
+
+    /**
+     * @return The output width and height of the source scaled down to fit the given bounds
+     */
+    private int[] getOutputDimensions(int maxWidth, int maxHeight) {
         MediaFormat trackFormat = mInputVideoComponent.getTrackFormat();
 
         int inputWidth = trackFormat.getInteger(MediaFormat.KEY_WIDTH);
         int inputHeight = trackFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        int outputWidth;
+        int outputHeight;
 
         // If this is a portrait video taken by a device that supports orientation hints, the resolution will be swapped.
         // If its landscape, a screencap, or a device that doesn't support hints, it won't be.
         if (inputWidth >= inputHeight || mOrientationHint == 0 || mOrientationHint == 180) {
-            mOutputVideoHeight = inputHeight;
-            mOutputVideoWidth = inputWidth;
+            outputHeight = inputHeight;
+            outputWidth = inputWidth;
 
-            if (inputWidth > Defaults.OUTPUT_MAX_WIDTH || inputHeight > Defaults.OUTPUT_MAX_HEIGHT) {
-                float ratio = Math.min(Defaults.OUTPUT_MAX_WIDTH / (float) inputWidth, Defaults.OUTPUT_MAX_HEIGHT / (float) inputHeight);
-                mOutputVideoHeight = getRoundedSize(ratio, inputHeight);
-                mOutputVideoWidth = getRoundedSize(ratio, inputWidth);
+            if (inputWidth > maxWidth || inputHeight > maxHeight) {
+                float ratio = Math.min(maxWidth / (float) inputWidth, maxHeight / (float) inputHeight);
+                outputHeight = getRoundedSize(ratio, inputHeight);
+                outputWidth = getRoundedSize(ratio, inputWidth);
             }
 
         } else {
-            mOutputVideoHeight = inputWidth;
-            mOutputVideoWidth = inputHeight;
+            outputHeight = inputWidth;
+            outputWidth = inputHeight;
 
-            if (inputHeight > Defaults.OUTPUT_MAX_WIDTH || inputWidth > Defaults.OUTPUT_MAX_HEIGHT) {
-                float ratio = Math.min(Defaults.OUTPUT_MAX_WIDTH / (float) inputHeight, Defaults.OUTPUT_MAX_HEIGHT / (float) inputWidth);
-                mOutputVideoHeight = getRoundedSize(ratio, inputWidth);
-                mOutputVideoWidth = getRoundedSize(ratio, inputHeight);
+            if (inputHeight > maxWidth || inputWidth > maxHeight) {
+                float ratio = Math.min(maxWidth / (float) inputHeight, maxHeight / (float) inputWidth);
+                outputHeight = getRoundedSize(ratio, inputWidth);
+                outputWidth = getRoundedSize(ratio, inputHeight);
             }
         }
+
+        return new int[] {outputWidth, outputHeight};
     }
 
     private int getRoundedSize(float ratio, int size) {
@@ -900,10 +1086,13 @@ public class VideoTranscoder {
 
         if (trackFormat.containsKey(KEY_ROTATION)) {
             mOrientationHint = trackFormat.getInteger(KEY_ROTATION);
+        } else if (mProbe != null && mProbe.getVideoTrack() != null) {
+            mOrientationHint = mProbe.getVideoTrack().rotation;
         } else {
             MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(mContext, mSrcUri);
+            retriever.setDataSource(mSource.getFileDescriptor());
             String orientation = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+            retriever.release();
             if (!TextUtils.isEmpty(orientation)) {
                 mOrientationHint = Integer.parseInt(orientation);
             }
@@ -913,22 +1102,41 @@ public class VideoTranscoder {
     private void createOutputFormats() {
         createVideoOutputFormat();
 
-        if (shouldIncludeAudio()) {
+        if (shouldIncludeAudio() && !mCopyAudio) {
             createAudioOutputFormat();
         }
     }
 
     private void createVideoOutputFormat() {
-        mOutputVideoFormat = MediaFormat.createVideoFormat(
-                Defaults.OUTPUT_VIDEO_MIME_TYPE, mOutputVideoWidth, mOutputVideoHeight);
+        mOutputVideoFormat = createVideoFormat(mOutputVideoWidth, mOutputVideoHeight, getOutputVideoBitRate(mOutputVideoBitRate));
+    }
+
+    private MediaFormat createVideoFormat(int width, int height, int bitRate) {
+        MediaFormat format = MediaFormat.createVideoFormat(Defaults.OUTPUT_VIDEO_MIME_TYPE, width, height);
 
         // Set some properties. Failing to specify some of these can cause the MediaCodec
         // configure() call to throw an unhelpful exception.
-        mOutputVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, getOutputVideoBitRate());
-        mOutputVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mOutputVideoFrameRate);
-        mOutputVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mOutputVideoIFrameInterval);
-        mOutputVideoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mOutputVideoFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mOutputVideoIFrameInterval);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        return format;
+    }
+
+    /**
+     * The output track keeps the source's format. This is only the format of the encoder for the
+     * transcoded boundaries, which has to stay within the source's profile and level.
+     */
+    private void createSmartTrimOutputFormat() {
+        createVideoOutputFormat();
+
+        MediaFormat inputFormat = mInputVideoComponent.getTrackFormat();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && inputFormat.containsKey(MediaFormat.KEY_PROFILE) && inputFormat.containsKey(MediaFormat.KEY_LEVEL)) {
+            mOutputVideoFormat.setInteger(MediaFormat.KEY_PROFILE, inputFormat.getInteger(MediaFormat.KEY_PROFILE));
+            mOutputVideoFormat.setInteger(MediaFormat.KEY_LEVEL, inputFormat.getInteger(MediaFormat.KEY_LEVEL));
+        }
     }
 
     private void createVideoEncoder() throws IOException {
@@ -936,23 +1144,56 @@ public class VideoTranscoder {
         // our desired properties. Request a Surface to use for input.
         AtomicReference<Surface> inputSurfaceReference = new AtomicReference<>();
 
-        MediaCodecInfo codecInfo = selectCodec(Defaults.OUTPUT_VIDEO_MIME_TYPE);
+        String codecName = selectEncoder(Defaults.OUTPUT_VIDEO_MIME_TYPE, mOutputVideoWidth, mOutputVideoHeight);
+        mStats.videoEncoder = codecName;
 
-        mVideoEncoder = MediaCodec.createByCodecName(codecInfo.getName());
-        mVideoEncoder.configure(mOutputVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        inputSurfaceReference.set(mVideoEncoder.createInputSurface());
+        mVideoEncoder = createCodec(obtainCodec(codecName, Defaults.OUTPUT_VIDEO_MIME_TYPE, true));
+        mVideoEncoder.getMediaCodec().configure(mOutputVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        inputSurfaceReference.set(mVideoEncoder.getMediaCodec().createInputSurface());
         mVideoEncoder.start();
 
+        if (mRenderDirect) {
+            mEncoderSurface = inputSurfaceReference.get();
+            return;
+        }
+
         mInputSurface = new InputSurface(inputSurfaceReference.get());
         mInputSurface.makeCurrent();
 
         mOutputSurface = new OutputSurface();
     }
 
+    /**
+     * Creates an encoder for every rendition, with an input surface sharing the main input
+     * surface's context so the decoded frame only has to be latched once. The encoders run without
+     * callbacks, the video chain drains them.
+     */
+    private void createRenditionEncoders() throws IOException {
+        for (RenditionOutput rendition : mRenditions) {
+            int[] dimensions = getOutputDimensions(rendition.maxWidth, rendition.maxHeight);
+            MediaFormat format = createVideoFormat(dimensions[0], dimensions[1], getOutputVideoBitRate(rendition.bitRate));
+            String codecName = selectEncoder(Defaults.OUTPUT_VIDEO_MIME_TYPE, dimensions[0], dimensions[1]);
+
+            mLogger.d(String.format("Rendition %s: %sx%s", rendition.filePath, dimensions[0], dimensions[1]));
+
+            rendition.encoder = new AndroidCodec(obtainCodec(codecName, Defaults.OUTPUT_VIDEO_MIME_TYPE, true));
+            rendition.encoder.getMediaCodec().configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            rendition.inputSurface = new InputSurface(rendition.encoder.getMediaCodec().createInputSurface(), mInputSurface);
+            rendition.encoder.start();
+        }
+    }
+
+    private void createRenditionMuxers() throws IOException {
+        for (RenditionOutput rendition : mRenditions) {
+            rendition.muxer = createMuxer(rendition.filePath);
+        }
+    }
+
     private void createVideoDecoder() throws IOException {
         MediaFormat inputFormat = mInputVideoComponent.getTrackFormat();
-        mVideoDecoder = MediaCodec.createDecoderByType(MediaInfo.getMimeTypeFor(inputFormat));
-        mVideoDecoder.configure(inputFormat, mOutputSurface.getSurface(), null, 0);
+        mVideoDecoder = createCodec(obtainCodec(null, MediaInfo.getMimeTypeFor(inputFormat), false));
+        Surface surface = mRenderDirect ? mEncoderSurface : mOutputSurface.getSurface();
+        mVideoDecoder.getMediaCodec().configure(inputFormat, surface, null, 0);
         mVideoDecoder.start();
     }
 
@@ -970,49 +1211,131 @@ public class VideoTranscoder {
     }
 
     private void createAudioEncoder() throws IOException {
-        MediaCodecInfo codecInfo = selectCodec(Defaults.OUTPUT_AUDIO_MIME_TYPE);
+        String codecName = selectEncoder(Defaults.OUTPUT_AUDIO_MIME_TYPE, 0, 0);
 
-        mAudioEncoder = MediaCodec.createByCodecName(codecInfo.getName());
-        mAudioEncoder.configure(mOutputAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mAudioEncoder = createCodec(obtainCodec(codecName, Defaults.OUTPUT_AUDIO_MIME_TYPE, true));
+        mAudioEncoder.getMediaCodec().configure(mOutputAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mAudioEncoder.start();
     }
 
     private void createAudioDecoder() throws IOException {
         MediaFormat inputFormat = mInputAudioComponent.getTrackFormat();
 
-        mAudioDecoder = MediaCodec.createDecoderByType(MediaInfo.getMimeTypeFor(inputFormat));
-        mAudioDecoder.configure(inputFormat, null, null, 0);
+        mAudioDecoder = createCodec(obtainCodec(null, MediaInfo.getMimeTypeFor(inputFormat), false));
+        mAudioDecoder.getMediaCodec().configure(inputFormat, null, null, 0);
         mAudioDecoder.start();
     }
 
-    private void createMuxer() throws IOException {
-        mMuxer = new MediaMuxer(mOutputFilePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        mMuxer.setOrientationHint(mOrientationHint);
+    private void createCallbackThread() {
+        mCallbackThread = new HandlerThread("VideoTranscoder-callbacks");
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        mCodecEvents = new CodecEventQueue<>();
     }
 
-    private int getOutputVideoBitRate() {
-        int inputBitRate = mOutputVideoBitRate;
+    /**
+     * Takes an idle codec from the {@link CodecPool} when codec reuse is enabled, or creates a new
+     * one. Either way the codec still has to be configured.
+     *
+     * @param codecName Name of the codec, or null for the default decoder of the MIME type
+     */
+    private MediaCodec obtainCodec(String codecName, String mimeType, boolean encoder) throws IOException {
+        if (mReuseCodecs) {
+            MediaCodec codec = CodecPool.getInstance().acquire(codecName, mimeType, encoder);
+            // Parallel segments obtain their codecs at the same time
+            synchronized (mStats) {
+                if (codec != null) {
+                    mStats.codecPoolHits++;
+                } else {
+                    mStats.codecPoolMisses++;
+                }
+            }
 
-        if (mInputVideoComponent.getTrackFormat().containsKey(MediaFormat.KEY_BIT_RATE)) {
-            inputBitRate = mInputVideoComponent.getTrackFormat().getInteger(MediaFormat.KEY_BIT_RATE);
+            if (codec != null) {
+                mLogger.d(String.format("Reusing pooled codec %s for %s", codec.getName(), mimeType));
+                return codec;
+            }
+        }
+
+        if (codecName != null) {
+            return MediaCodec.createByCodecName(codecName);
+        }
+
+        return MediaCodec.createDecoderByType(mimeType);
+    }
+
+    /**
+     * Wraps a freshly created codec. For the async engine the codec's callbacks are routed to
+     * {@link #mCodecEvents}, which has to happen before the codec is configured.
+     */
+    private AndroidCodec createCodec(MediaCodec codec) {
+        if (mCodecEvents == null) {
+            return new AndroidCodec(codec);
+        }
+
+        AndroidCodec androidCodec = new AndroidCodec(codec, mCallbackHandler);
+        androidCodec.setCallback(mCodecEvents);
+        return androidCodec;
+    }
+
+    private void createMuxer() throws IOException {
+        if (mOutputSink != null) {
+            mOutputChannel = new SinkChannel(mOutputSink);
+            mMuxer = new FragmentedMuxer<>(mOutputChannel, new AndroidTrackFormatReader(), mOrientationHint);
         } else {
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(mContext, mSrcUri);
+            mMuxer = createMuxer(mOutputFilePath);
+        }
+    }
 
-            String bitrate = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE);
+    private MuxerPort<MediaFormat> createMuxer(String path) throws IOException {
+        if (mFragmentedOutput) {
+            FileChannel channel = new FileOutputStream(path).getChannel();
+            return new FragmentedMuxer<>(channel, new AndroidTrackFormatReader(), mOrientationHint);
+        }
 
-            if (bitrate != null) {
-                inputBitRate = Integer.parseInt(bitrate);
-            }
+        return new AndroidMuxer(path, mOrientationHint);
+    }
+
+    private int getOutputVideoBitRate(int maxBitRate) {
+        int inputBitRate = getInputVideoBitRate();
+        if (inputBitRate <= 0) {
+            inputBitRate = maxBitRate;
         }
 
         if (DeviceUtils.deviceisOnBlacklist()) {
-            return mOutputVideoBitRate;
+            return maxBitRate;
         } else {
-            return Math.min(inputBitRate, mOutputVideoBitRate);
+            return Math.min(inputBitRate, maxBitRate);
         }
     }
 
+    /**
+     * @return The bit rate of the source video, or -1 if it isn't known
+     */
+    private int getInputVideoBitRate() {
+        if (mInputVideoComponent.getTrackFormat().containsKey(MediaFormat.KEY_BIT_RATE)) {
+            return mInputVideoComponent.getTrackFormat().getInteger(MediaFormat.KEY_BIT_RATE);
+        }
+
+        if (mProbe != null) {
+            // Like the retriever, fall back to the bit rate of the whole file
+            Mp4Probe.Track videoTrack = mProbe.getVideoTrack();
+            return videoTrack != null && videoTrack.bitRate > 0 ? videoTrack.bitRate : mProbe.getOverallBitRate();
+        }
+
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        retriever.setDataSource(mSource.getFileDescriptor());
+
+        String bitrate = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE);
+        retriever.release();
+
+        if (bitrate != null) {
+            return Integer.parseInt(bitrate);
+        }
+
+        return -1;
+    }
+
     public interface Listener {
         void onSuccess(Stats stats);
         void onFailure();
@@ -1043,22 +1366,108 @@ public class VideoTranscoder {
         public int videoEncodedFrameCount;
         public int audioEncodedFrameCount;
 
+        /** Buffers of decoded audio queued to the audio encoder, after re-chunking them to its buffer size. */
+        public int audioEncoderInputBufferCount;
+
+        /** Video frames decoded only as references for the frames at either end of the trim range. */
+        public int videoPreRollFrameCount;
+
+        /** Video frames dropped to bring the source down to the output frame rate. */
+        public int videoDroppedFrameCount;
+
         public double timeToTranscode;
+        public double cpuTimeToTranscode;
         public double inputFileSize;
         public double outputFileSize;
 
-        void incrementExtractedFrameCount(Component component) {
-            if (component.getType() == Component.COMPONENT_TYPE_VIDEO) {
-                videoExtractedFrameCount++;
-            } else {
-                audioExtractedFrameCount++;
-            }
+        /** Whether the source was copied into the output without transcoding. */
+        public boolean remuxed;
+
+        /** How the audio track was produced, one of the {@code AUDIO_PATH_} constants. */
+        public int audioPath;
+
+        /** How the video frames reached the encoder, one of the {@code VIDEO_PATH_} constants. */
+        public int videoPath;
+
+        /** Most drawn frames the GPU was still rendering at once, on the GL video path. */
+        public int renderFramesInFlightHighWaterMark;
+
+        /** Time spent waiting for the GPU to finish drawn frames, on the GL video path. */
+        public long renderGpuWaitTimeUs;
+
+        /** Name of the video encoder picked by the {@link CodecCatalog}. */
+        public String videoEncoder;
+
+        /** The engine that ran the job, one of the {@code ENGINE_} constants. */
+        public int engine;
+
+        /** Most encoded samples held back at once while waiting for the muxer to start. */
+        public int stagedSampleHighWaterMark;
+
+        /** Buffers encoded samples were copied into on their way to the muxer, and how many of them had to be allocated. */
+        public long sampleBufferAcquireCount;
+        public long sampleBufferAllocationCount;
+
+        /** Codecs taken from and missing in the {@link CodecPool}, if codec reuse is enabled. */
+        public int codecPoolHits;
+        public int codecPoolMisses;
+
+        /** Segments the video was split into to transcode them in parallel, 0 if it wasn't split. */
+        public int videoSegmentCount;
+
+        /** Video frames a smart trim copied from the source instead of transcoding them. */
+        public int videoCopiedFrameCount;
+
+        /** Video frames encoded by each rendition added with {@link Builder#rendition}. */
+        public int[] renditionEncodedFrameCount = new int[0];
+
+        /** Time spent moving the moov box of the outputs to the front, 0 if none was moved. */
+        public long fastStartTimeMs;
+
+        /** Whether the extractors read from a memory mapping of the source. */
+        public boolean sourceMapped;
+
+        /** Reads issued to the source by the extractors, 0 if it was memory mapped. */
+        public long sourceReadCount;
+
+        /** Share of extractor reads served from prefetched data, if the source was prefetched. */
+        public float sourcePrefetchHitRate;
+
+        /** Time the extractors waited for the prefetcher, if the source was prefetched. */
+        public long sourcePrefetchStallTimeUs;
+
+        /** Bytes handed to the {@link OutputSink}, if the job wrote to one. */
+        public long outputBytesEmitted;
+
+        /** Time from the start of the job to the first byte handed to the {@link OutputSink}. */
+        public long outputTimeToFirstByteMs;
+    }
+
+    /**
+     * An extra output declared with {@link Builder#rendition}, and the objects writing it.
+     */
+    private static final class RenditionOutput {
+        final String filePath;
+        final int maxWidth;
+        final int maxHeight;
+        final int bitRate;
+
+        AndroidCodec encoder;
+        InputSurface inputSurface;
+        MuxerPort<MediaFormat> muxer;
+
+        RenditionOutput(String filePath, int maxWidth, int maxHeight, int bitRate) {
+            this.filePath = filePath;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.bitRate = bitRate;
         }
     }
 
     public static final class Builder {
         private final Uri mSrcUri;
         private final File mDestFile;
+        private final OutputSink mOutputSink;
 
         private boolean mIncludeAudio = true;
 
@@ -1072,6 +1481,15 @@ public class VideoTranscoder {
         private long mStartTime = 0;
         private long mEndTime = TRIM_TIME_END;
 
+        private int mEngine = ENGINE_POLLING;
+        private boolean mReuseCodecs;
+        private boolean mSmartTrim;
+        private int mMaxParallelSegments = 1;
+        private boolean mFragmentedOutput;
+        private boolean mFastStart = true;
+        private final List<RenditionOutput> mRenditions = new ArrayList<>();
+        private SourceSession mSourceSession;
+
         private Logger mLogger;
 
         public Builder(Uri srcUri, File destFile) {
@@ -1085,6 +1503,26 @@ public class VideoTranscoder {
 
             mSrcUri = srcUri;
             mDestFile = destFile;
+            mOutputSink = null;
+        }
+
+        /**
+         * Writes the output to a sink as it is produced instead of to a file, so it can be uploaded
+         * while the job is running. The output is a fragmented MP4 file, see
+         * {@link #fragmentedOutput}.
+         */
+        public Builder(Uri srcUri, OutputSink sink) {
+            if (srcUri == null) {
+                throw new NullPointerException("srcUri cannot be null");
+            }
+
+            if (sink == null) {
+                throw new NullPointerException("sink cannot be null");
+            }
+
+            mSrcUri = srcUri;
+            mDestFile = null;
+            mOutputSink = sink;
         }
 
         public Builder includeAudio(boolean includeAudio) {
@@ -1123,6 +1561,103 @@ public class VideoTranscoder {
             return this;
         }
 
+        /**
+         * @param engine {@link #ENGINE_POLLING} (the default), {@link #ENGINE_ASYNC} or
+         *               {@link #ENGINE_THREADED}. The async engine falls back to polling below API 23.
+         */
+        public Builder engine(int engine) {
+            if (engine != ENGINE_POLLING && engine != ENGINE_ASYNC && engine != ENGINE_THREADED) {
+                throw new IllegalArgumentException("Invalid engine. Must be one of ENGINE_POLLING, ENGINE_ASYNC or ENGINE_THREADED");
+            }
+
+            mEngine = engine;
+            return this;
+        }
+
+        /**
+         * @param reuseCodecs Whether to take codecs from and return them to the process-wide
+         *                    {@link CodecPool}, saving codec setup on consecutive jobs.
+         */
+        public Builder reuseCodecs(boolean reuseCodecs) {
+            mReuseCodecs = reuseCodecs;
+            return this;
+        }
+
+        /**
+         * @param smartTrim Whether a trim of a source that meets the output constraints may copy
+         *                  everything between the first and last sync samples in the range, and
+         *                  only transcode the frames before and after them.
+         */
+        public Builder smartTrim(boolean smartTrim) {
+            mSmartTrim = smartTrim;
+            return this;
+        }
+
+        /**
+         * @param maxSegments Up to how many segments of the video to transcode at once, each
+         *                    with a decoder and encoder of its own. The device's codec instance
+         *                    limits may lower it further. Requires API 23, and audio that can be
+         *                    copied or isn't included. 1, the default, transcodes sequentially.
+         */
+        public Builder parallelSegments(int maxSegments) {
+            if (maxSegments < 1) {
+                throw new IllegalArgumentException("maxSegments must be at least 1");
+            }
+
+            mMaxParallelSegments = maxSegments;
+            return this;
+        }
+
+        /**
+         * @param fragmentedOutput Whether to write fragmented MP4 files, a fragment per group of
+         *                         pictures. Each fragment is final once it is written, so the
+         *                         output can be read while the job is still running, and the muxer
+         *                         never holds more than one fragment in memory.
+         */
+        public Builder fragmentedOutput(boolean fragmentedOutput) {
+            mFragmentedOutput = fragmentedOutput;
+            return this;
+        }
+
+        /**
+         * @param fastStart Whether to move the moov box of the outputs in front of the media data
+         *                  once they are written, so players can start before they have the whole
+         *                  file. On by default. Fragmented outputs already start with it.
+         */
+        public Builder fastStart(boolean fastStart) {
+            mFastStart = fastStart;
+            return this;
+        }
+
+        /**
+         * Adds another output encoded from the same decode as the main one, for example a lower
+         * resolution or bit rate of a ladder. It gets the same audio track and trim range. A job
+         * with renditions always transcodes, it never remuxes, smart trims or splits into segments.
+         *
+         * @param destFile Where to write the rendition
+         * @param maxWidth Largest width of the rendition
+         * @param maxHeight Largest height of the rendition
+         * @param bitRate Video bit rate of the rendition, capped at the source's
+         */
+        public Builder rendition(File destFile, int maxWidth, int maxHeight, int bitRate) {
+            if (destFile == null) {
+                throw new NullPointerException("destFile cannot be null");
+            }
+
+            mRenditions.add(new RenditionOutput(destFile.getAbsolutePath(), maxWidth, maxHeight, bitRate));
+            return this;
+        }
+
+        /**
+         * @param session Session the source was already opened in, for example for a
+         *                {@link MediaInfo}. The job reads everything through it instead of opening
+         *                the source again. The caller releases it once the job has finished.
+         */
+        public Builder sourceSession(SourceSession session) {
+            mSourceSession = session;
+            return this;
+        }
+
         public Builder logger(Logger logger) {
             mLogger = logger;
             return this;
@@ -1136,7 +1671,19 @@ public class VideoTranscoder {
             transcoder.mOutputVideoBitRate = mVideoBitRate;
             transcoder.mOutputVideoFrameRate = mVideoFrameRate;
             transcoder.mOutputVideoIFrameInterval = mVideoIFrameInterval;
-            transcoder.mOutputFilePath = mDestFile.getAbsolutePath();
+            transcoder.mOutputFilePath = mDestFile != null ? mDestFile.getAbsolutePath() : null;
+            transcoder.mOutputSink = mOutputSink;
+            transcoder.mEngine = mEngine;
+            transcoder.mReuseCodecs = mReuseCodecs;
+            transcoder.mSmartTrim = mSmartTrim;
+            transcoder.mMaxParallelSegments = mMaxParallelSegments;
+            transcoder.mFragmentedOutput = mFragmentedOutput || mOutputSink != null;
+            transcoder.mFastStart = mFastStart;
+            transcoder.mSource = mSourceSession;
+            for (RenditionOutput rendition : mRenditions) {
+                transcoder.mRenditions.add(new RenditionOutput(rendition.filePath, rendition.maxWidth,
+                        rendition.maxHeight, rendition.bitRate));
+            }
 
             if (mStartTime > 0) {
                 transcoder.mTrimStartTime = mStartTime;
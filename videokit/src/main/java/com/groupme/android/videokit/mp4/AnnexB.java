@@ -0,0 +1,90 @@
+package com.groupme.android.videokit.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the NAL units of an Annex B byte stream, where each one follows a 3 or 4 byte start code.
+ */
+final class AnnexB {
+    private AnnexB() {}
+
+    /**
+     * @return The index of the next start code at or after {@code from}, or -1
+     */
+    static int findStartCode(byte[] data, int from) {
+        for (int i = from; i + 2 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i > from && data[i - 1] == 0 ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index of the first byte of the NAL unit after the start code at or after
+     * {@code from}, or -1
+     */
+    static int findNalUnit(byte[] data, int from) {
+        int start = findStartCode(data, from);
+        if (start < 0) {
+            return -1;
+        }
+        return data[start + 2] == 1 ? start + 3 : start + 4;
+    }
+
+    /**
+     * @return Whether the buffer's remaining bytes begin with a start code
+     */
+    static boolean startsWithStartCode(ByteBuffer buffer) {
+        int p = buffer.position();
+        int remaining = buffer.remaining();
+        if (remaining >= 3 && buffer.get(p) == 0 && buffer.get(p + 1) == 0) {
+            return buffer.get(p + 2) == 1
+                    || (remaining >= 4 && buffer.get(p + 2) == 0 && buffer.get(p + 3) == 1);
+        }
+        return false;
+    }
+
+    /**
+     * Copies the NAL units of the buffer's remaining bytes into {@code out}, each with a 4 byte
+     * length in place of its start code, the way MP4 samples store them.
+     *
+     * @return The number of bytes written
+     */
+    static int writeLengthPrefixed(ByteBuffer buffer, BoxWriter out) {
+        int position = out.position();
+        int end = buffer.limit();
+        int start = nextNalUnit(buffer, buffer.position(), end);
+
+        while (start >= 0) {
+            int next = nextStartCode(buffer, start, end);
+            int unitEnd = next >= 0 ? next : end;
+
+            out.putInt(unitEnd - start);
+            ByteBuffer unit = buffer.duplicate();
+            unit.limit(unitEnd).position(start);
+            out.put(unit);
+
+            start = next >= 0 ? nextNalUnit(buffer, next, end) : -1;
+        }
+
+        return out.position() - position;
+    }
+
+    private static int nextStartCode(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i > from && buffer.get(i - 1) == 0 ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    private static int nextNalUnit(ByteBuffer buffer, int from, int end) {
+        int start = nextStartCode(buffer, from, end);
+        if (start < 0) {
+            return -1;
+        }
+        return buffer.get(start + 2) == 1 ? start + 3 : start + 4;
+    }
+}
@@ -0,0 +1,142 @@
+package com.groupme.android.videokit.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Walks the boxes of an ISO-BMFF file with positional reads, so any number of readers can share a
+ * channel. Fixed-size box fields are read into a small reused buffer.
+ */
+final class BoxReader {
+    // Large enough for the fixed part of every box read by the probe
+    private static final int BUFFER_SIZE = 128;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    BoxReader(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    long size() throws IOException {
+        return mChannel.size();
+    }
+
+    /**
+     * @return The first child of the given type in {@code [start, end)}, or null
+     */
+    Box findChild(long start, long end, String type) throws IOException {
+        long position = start;
+        while (position + 8 <= end) {
+            Box box = readBox(position, end);
+            if (box.is(type)) {
+                return box;
+            }
+            position = box.end;
+        }
+        return null;
+    }
+
+    Box readBox(long offset, long parentEnd) throws IOException {
+        ByteBuffer buffer = read(offset, Math.min(offset + 16, parentEnd));
+        if (buffer.remaining() < 8) {
+            throw new IOException("Truncated box header at " + offset);
+        }
+
+        long size = readUnsignedInt(buffer);
+        String type = readType(buffer);
+        long contentOffset = offset + 8;
+
+        if (size == 1) {
+            if (buffer.remaining() < 8) {
+                throw new IOException("Truncated box header at " + offset);
+            }
+            size = buffer.getLong();
+            contentOffset += 8;
+        } else if (size == 0) {
+            // The box extends to the end of its parent
+            size = parentEnd - offset;
+        }
+
+        if (size < contentOffset - offset || offset + size > parentEnd) {
+            throw new IOException("Invalid size " + size + " of box " + type + " at " + offset);
+        }
+
+        return new Box(type, offset, contentOffset, offset + size);
+    }
+
+    /**
+     * Reads up to {@link #BUFFER_SIZE} bytes of {@code [start, end)} into the shared buffer,
+     * which is only valid until the next read.
+     */
+    ByteBuffer read(long start, long end) throws IOException {
+        mBuffer.clear();
+        mBuffer.limit((int) Math.min(BUFFER_SIZE, end - start));
+        readFully(mBuffer, start);
+        return mBuffer;
+    }
+
+    /**
+     * Reads the whole content of a box into a buffer of its own, for tables of any size.
+     */
+    ByteBuffer readContent(Box box) throws IOException {
+        long size = box.end - box.contentOffset;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Box " + box.type + " is too large");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        readFully(buffer, box.contentOffset);
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+
+        buffer.flip();
+    }
+
+    static void skip(ByteBuffer buffer, int count) throws IOException {
+        if (count > buffer.remaining()) {
+            throw new IOException("Truncated box");
+        }
+        buffer.position(buffer.position() + count);
+    }
+
+    static long readUnsignedInt(ByteBuffer buffer) {
+        return buffer.getInt() & 0xffffffffL;
+    }
+
+    static String readType(ByteBuffer buffer) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) (buffer.get() & 0xff);
+        }
+        return new String(type);
+    }
+
+    static final class Box {
+        final String type;
+        final long offset;
+        final long contentOffset;
+        final long end;
+
+        Box(String type, long offset, long contentOffset, long end) {
+            this.type = type;
+            this.offset = offset;
+            this.contentOffset = contentOffset;
+            this.end = end;
+        }
+
+        boolean is(String type) {
+            return this.type.equals(type);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.groupme.android.videokit.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds ISO-BMFF boxes into a heap buffer that grows as needed and is kept between uses, so
+ * writing one fragment after another settles on a single allocation. Box sizes are patched in when
+ * a box ends.
+ */
+final class BoxWriter {
+    private static final int MAX_DEPTH = 16;
+
+    private ByteBuffer mBuffer;
+    private final int[] mBoxStarts = new int[MAX_DEPTH];
+    private int mDepth;
+
+    BoxWriter(int initialCapacity) {
+        mBuffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    void start(String type) {
+        mBoxStarts[mDepth++] = mBuffer.position();
+        putInt(0);
+        putType(type);
+    }
+
+    void startFull(String type, int version, int flags) {
+        start(type);
+        putInt((version << 24) | (flags & 0xffffff));
+    }
+
+    void end() {
+        int start = mBoxStarts[--mDepth];
+        mBuffer.putInt(start, mBuffer.position() - start);
+    }
+
+    void putByte(int value) {
+        ensure(1);
+        mBuffer.put((byte) value);
+    }
+
+    void putShort(int value) {
+        ensure(2);
+        mBuffer.putShort((short) value);
+    }
+
+    void putInt(int value) {
+        ensure(4);
+        mBuffer.putInt(value);
+    }
+
+    void putInt(int position, int value) {
+        mBuffer.putInt(position, value);
+    }
+
+    void putLong(long value) {
+        ensure(8);
+        mBuffer.putLong(value);
+    }
+
+    void putType(String type) {
+        ensure(4);
+        for (int i = 0; i < 4; i++) {
+            mBuffer.put((byte) type.charAt(i));
+        }
+    }
+
+    void put(byte[] value) {
+        ensure(value.length);
+        mBuffer.put(value);
+    }
+
+    void put(ByteBuffer value) {
+        ensure(value.remaining());
+        mBuffer.put(value);
+    }
+
+    void putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.put((byte) 0);
+        }
+    }
+
+    int position() {
+        return mBuffer.position();
+    }
+
+    int capacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * @return The bytes written so far, valid until the next write
+     */
+    ByteBuffer getData() {
+        ByteBuffer data = mBuffer.duplicate();
+        data.flip();
+        return data;
+    }
+
+    void clear() {
+        mBuffer.clear();
+        mDepth = 0;
+    }
+
+    private void ensure(int count) {
+        if (mBuffer.remaining() >= count) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + count));
+        mBuffer.flip();
+        buffer.put(mBuffer);
+        mBuffer = buffer;
+    }
+}
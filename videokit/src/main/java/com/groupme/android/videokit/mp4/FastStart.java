@@ -0,0 +1,182 @@
+package com.groupme.android.videokit.mp4;
+
+import com.groupme.android.videokit.mp4.BoxReader.Box;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves the {@code moov} box of an MP4 file in front of its media data, so a player can start
+ * before it has the whole file. {@code MediaMuxer} only knows the sample tables once it stops, so
+ * it writes the box last.
+ * <p>
+ * The file is rewritten in place: the media data is shifted up by the size of the box through a
+ * memory mapping and a small copy buffer, and only the box itself, with its chunk offsets patched,
+ * is read onto the heap.
+ */
+public final class FastStart {
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    private FastStart() {}
+
+    /**
+     * @return true if the box was moved, false if it already comes first, or the file is
+     * fragmented or too large to map
+     * @throws IOException if the file can't be read or written. The file may be left corrupt if
+     * this happens while the media data is being moved.
+     */
+    public static boolean relocate(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            return relocate(randomAccessFile.getChannel());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static boolean relocate(FileChannel channel) throws IOException {
+        BoxReader reader = new BoxReader(channel);
+        long fileSize = reader.size();
+
+        Box moov = null;
+        long firstMdatOffset = -1;
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            Box box = reader.readBox(position, fileSize);
+            if (box.is("moov")) {
+                moov = box;
+            } else if (box.is("mdat") && firstMdatOffset < 0) {
+                firstMdatOffset = box.offset;
+            } else if (box.is("moof")) {
+                // Fragmented files only describe the tracks in the moov, it is already first
+                return false;
+            }
+            position = box.end;
+        }
+
+        if (moov == null) {
+            throw new IOException("No moov box, not an MP4 file");
+        }
+        if (firstMdatOffset < 0 || moov.offset < firstMdatOffset) {
+            return false;
+        }
+        if (moov.end - firstMdatOffset > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        int moovSize = (int) (moov.end - moov.offset);
+        ByteBuffer moovData = ByteBuffer.allocate(moovSize);
+        channel.read(moovData, moov.offset);
+        if (moovData.hasRemaining()) {
+            throw new IOException("Truncated moov box");
+        }
+
+        // Patch the copy first, so a file that can't be fixed is left untouched
+        if (!patchChunkOffsets(moovData, 0, moovSize, firstMdatOffset, moov.offset, moovSize)) {
+            return false;
+        }
+
+        int dataSize = (int) (moov.offset - firstMdatOffset);
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, firstMdatOffset, dataSize + moovSize);
+        moveUp(region, dataSize, moovSize);
+
+        moovData.rewind();
+        region.position(0);
+        region.put(moovData);
+        region.force();
+        return true;
+    }
+
+    /**
+     * Moves the first {@code size} bytes of the region up by {@code distance}, a block at a time
+     * from the end so no block overwrites bytes still to be moved.
+     */
+    private static void moveUp(ByteBuffer region, int size, int distance) {
+        ByteBuffer block = ByteBuffer.allocateDirect(Math.min(COPY_BUFFER_SIZE, Math.max(size, 1)));
+
+        int end = size;
+        while (end > 0) {
+            int start = Math.max(0, end - block.capacity());
+
+            ByteBuffer source = region.duplicate();
+            source.limit(end).position(start);
+            block.clear();
+            block.put(source);
+            block.flip();
+
+            ByteBuffer destination = region.duplicate();
+            destination.position(start + distance);
+            destination.put(block);
+
+            end = start;
+        }
+    }
+
+    /**
+     * Adds {@code shift} to every chunk offset in {@code [start, end)} of the file, in the stco and
+     * co64 boxes within {@code [offset, limit)} of the moov copy.
+     *
+     * @return false if a 32 bit offset would overflow, which would take a co64 box
+     */
+    private static boolean patchChunkOffsets(ByteBuffer moov, int offset, int limit, long start, long end,
+                                             int shift) throws IOException {
+        int position = offset;
+        while (position + 8 <= limit) {
+            moov.position(position);
+            long size = BoxReader.readUnsignedInt(moov);
+            String type = BoxReader.readType(moov);
+            int headerSize = 8;
+            if (size == 1) {
+                size = moov.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = limit - position;
+            }
+            if (size < headerSize || position + size > limit) {
+                throw new IOException("Invalid size " + size + " of box " + type + " in moov");
+            }
+
+            int contentStart = position + headerSize;
+            int boxEnd = (int) (position + size);
+
+            if (type.equals("moov") || type.equals("trak") || type.equals("mdia") || type.equals("minf")
+                    || type.equals("stbl")) {
+                if (!patchChunkOffsets(moov, contentStart, boxEnd, start, end, shift)) {
+                    return false;
+                }
+            } else if (type.equals("stco") || type.equals("co64")) {
+                boolean large = type.equals("co64");
+                // Version and flags
+                moov.position(contentStart + 4);
+                long count = BoxReader.readUnsignedInt(moov);
+                if (count * (large ? 8 : 4) > boxEnd - moov.position()) {
+                    throw new IOException("Truncated " + type + " box");
+                }
+                for (long i = 0; i < count; i++) {
+                    int entry = moov.position();
+                    long chunkOffset = large ? moov.getLong() : BoxReader.readUnsignedInt(moov);
+                    if (chunkOffset < start || chunkOffset >= end) {
+                        continue;
+                    }
+
+                    chunkOffset += shift;
+                    if (large) {
+                        moov.putLong(entry, chunkOffset);
+                    } else if (chunkOffset > 0xffffffffL) {
+                        return false;
+                    } else {
+                        moov.putInt(entry, (int) chunkOffset);
+                    }
+                }
+            }
+
+            position = boxEnd;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,569 @@
+package com.groupme.android.videokit.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a fragmented MP4 file to a channel as the samples arrive. The header only describes the
+ * tracks, every group of pictures then follows as a {@code moof} box with its sample table and an
+ * {@code mdat} box with its samples. Bytes are final once written, so the output can be read, for
+ * example uploaded, while it is still being written, and memory stays at one fragment however long
+ * the file gets.
+ * <p>
+ * A fragment ends at each video sync sample, or every {@link #MAX_AUDIO_FRAGMENT_DURATION_US}
+ * without a video track. AVC samples may be given in Annex B form, they are converted to the
+ * length prefixed form MP4 stores.
+ */
+public final class FragmentedMp4Writer {
+    /** Fragment duration of a file with no video track. */
+    public static final long MAX_AUDIO_FRAGMENT_DURATION_US = 1000000;
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final WritableByteChannel mChannel;
+    private final int mOrientationHint;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final BoxWriter mHeader = new BoxWriter(4096);
+
+    private Track mVideoTrack;
+    private boolean mStarted;
+    private int mSequenceNumber;
+    private long mFragmentStartTimeUs = -1;
+
+    private long mBytesWritten;
+    private int mFragmentCount;
+    private int mBufferedBytesHighWaterMark;
+
+    /**
+     * @param channel Where the file is written, from its first byte on
+     * @param orientationHint Rotation in degrees to record for the video track
+     */
+    public FragmentedMp4Writer(WritableByteChannel channel, int orientationHint) {
+        mChannel = channel;
+        mOrientationHint = orientationHint;
+    }
+
+    /**
+     * @return The index of the new track, to pass to {@link #writeSample}
+     */
+    public int addTrack(TrackFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("addTrack() called after start()");
+        }
+
+        Track track = new Track(mTracks.size() + 1, format);
+        if (format.isVideo() && mVideoTrack == null) {
+            mVideoTrack = track;
+        }
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Writes the {@code ftyp} and {@code moov} boxes.
+     */
+    public void start() throws IOException {
+        if (mStarted) {
+            throw new IllegalStateException("start() called twice");
+        }
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("start() called without tracks");
+        }
+
+        mStarted = true;
+        mHeader.clear();
+        writeFileType();
+        writeMovie();
+        write(mHeader.getData());
+    }
+
+    /**
+     * Adds the buffer's remaining bytes as the next sample of a track, writing out the current
+     * fragment first if this sample starts a new one.
+     */
+    public void writeSample(int trackIndex, ByteBuffer buffer, long presentationTimeUs, boolean sync)
+            throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("writeSample() called before start()");
+        }
+
+        Track track = mTracks.get(trackIndex);
+        // Fragments can't start before the file does
+        presentationTimeUs = Math.max(0, presentationTimeUs);
+
+        if (mFragmentStartTimeUs >= 0 && startsFragment(track, presentationTimeUs, sync)) {
+            writeFragment(track, presentationTimeUs);
+        }
+        if (mFragmentStartTimeUs < 0) {
+            mFragmentStartTimeUs = presentationTimeUs;
+        }
+
+        int size;
+        if (track.format.type == TrackFormat.TYPE_AVC && AnnexB.startsWithStartCode(buffer)) {
+            size = AnnexB.writeLengthPrefixed(buffer, track.data);
+        } else {
+            size = buffer.remaining();
+            track.data.put(buffer);
+        }
+        track.add(presentationTimeUs, size, sync);
+    }
+
+    private boolean startsFragment(Track track, long presentationTimeUs, boolean sync) {
+        if (mVideoTrack != null) {
+            return track == mVideoTrack && sync && mVideoTrack.sampleCount > 0;
+        }
+        return presentationTimeUs - mFragmentStartTimeUs >= MAX_AUDIO_FRAGMENT_DURATION_US;
+    }
+
+    /**
+     * Writes out the last fragment. The file is complete once this returns.
+     */
+    public void finish() throws IOException {
+        if (mStarted && mFragmentStartTimeUs >= 0) {
+            writeFragment(null, 0);
+        }
+    }
+
+    /**
+     * @return Bytes written to the channel so far
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public int getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    /**
+     * @return The most sample data held for a single fragment, in bytes
+     */
+    public int getBufferedBytesHighWaterMark() {
+        return mBufferedBytesHighWaterMark;
+    }
+
+    /**
+     * @param nextTrack The track whose next sample ends this fragment, null at the end of the file
+     * @param nextTimeUs The presentation time of that sample, which gives this fragment's last
+     *                   sample of the track its duration
+     */
+    private void writeFragment(Track nextTrack, long nextTimeUs) throws IOException {
+        mHeader.clear();
+        mHeader.start("moof");
+
+        mHeader.startFull("mfhd", 0, 0);
+        mHeader.putInt(++mSequenceNumber);
+        mHeader.end();
+
+        int[] dataOffsetPositions = new int[mTracks.size()];
+        int dataSize = 0;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.sampleCount > 0) {
+                dataOffsetPositions[i] = writeTrackFragment(track, track == nextTrack ? nextTimeUs : -1);
+                dataSize += track.data.position();
+            }
+        }
+
+        mHeader.end();
+
+        // Sample data offsets are relative to the moof box, the mdat header comes right after it
+        int dataOffset = mHeader.position() + 8;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.sampleCount > 0) {
+                mHeader.putInt(dataOffsetPositions[i], dataOffset);
+                dataOffset += track.data.position();
+            }
+        }
+
+        mHeader.putInt(8 + dataSize);
+        mHeader.putType("mdat");
+        write(mHeader.getData());
+
+        for (Track track : mTracks) {
+            write(track.data.getData());
+            track.clear();
+        }
+
+        mBufferedBytesHighWaterMark = Math.max(mBufferedBytesHighWaterMark, dataSize);
+        mFragmentCount++;
+        mFragmentStartTimeUs = -1;
+    }
+
+    /**
+     * @return The position of the trun data offset, patched once the moof size is known
+     */
+    private int writeTrackFragment(Track track, long nextTimeUs) {
+        int count = track.sampleCount;
+        long[] presentationTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            presentationTimes[i] = track.toTicks(track.presentationTimesUs[i]);
+        }
+
+        // Samples arrive in decode order, the presentation times in order are their decode times
+        long[] decodeTimes = Arrays.copyOf(presentationTimes, count);
+        Arrays.sort(decodeTimes);
+
+        boolean compositionOffsets = false;
+        for (int i = 0; i < count && !compositionOffsets; i++) {
+            compositionOffsets = presentationTimes[i] != decodeTimes[i];
+        }
+
+        mHeader.start("traf");
+
+        mHeader.startFull("tfhd", 0, 0x020000);
+        mHeader.putInt(track.id);
+        mHeader.end();
+
+        mHeader.startFull("tfdt", 1, 0);
+        mHeader.putLong(decodeTimes[0]);
+        mHeader.end();
+
+        int flags = 0x000001 | 0x000100 | 0x000200 | 0x000400 | (compositionOffsets ? 0x000800 : 0);
+        mHeader.startFull("trun", compositionOffsets ? 1 : 0, flags);
+        mHeader.putInt(count);
+        int dataOffsetPosition = mHeader.position();
+        mHeader.putInt(0);
+
+        long lastDuration = track.lastDuration;
+        for (int i = 0; i < count; i++) {
+            long duration;
+            if (i + 1 < count) {
+                duration = decodeTimes[i + 1] - decodeTimes[i];
+            } else if (nextTimeUs >= 0) {
+                duration = track.toTicks(nextTimeUs) - decodeTimes[i];
+            } else {
+                // Nothing follows, repeat the duration before
+                duration = lastDuration;
+            }
+            lastDuration = Math.max(0, duration);
+
+            mHeader.putInt((int) lastDuration);
+            mHeader.putInt(track.sizes[i]);
+            mHeader.putInt(track.syncs[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            if (compositionOffsets) {
+                mHeader.putInt((int) (presentationTimes[i] - decodeTimes[i]));
+            }
+        }
+        track.lastDuration = lastDuration;
+
+        mHeader.end();
+        mHeader.end();
+        return dataOffsetPosition;
+    }
+
+    private void writeFileType() {
+        mHeader.start("ftyp");
+        mHeader.putType("isom");
+        mHeader.putInt(0x200);
+        mHeader.putType("isom");
+        mHeader.putType("iso6");
+        mHeader.putType("avc1");
+        mHeader.putType("mp41");
+        mHeader.end();
+    }
+
+    private void writeMovie() {
+        mHeader.start("moov");
+
+        mHeader.startFull("mvhd", 0, 0);
+        // Creation and modification time
+        mHeader.putZeros(8);
+        mHeader.putInt(MOVIE_TIMESCALE);
+        // The duration is the sum of the fragments
+        mHeader.putInt(0);
+        mHeader.putInt(0x00010000);
+        mHeader.putShort(0x0100);
+        mHeader.putZeros(10);
+        writeMatrix(0);
+        mHeader.putZeros(24);
+        mHeader.putInt(mTracks.size() + 1);
+        mHeader.end();
+
+        for (Track track : mTracks) {
+            writeTrack(track);
+        }
+
+        mHeader.start("mvex");
+        for (Track track : mTracks) {
+            mHeader.startFull("trex", 0, 0);
+            mHeader.putInt(track.id);
+            // Sample description index, then default duration, size and flags
+            mHeader.putInt(1);
+            mHeader.putZeros(12);
+            mHeader.end();
+        }
+        mHeader.end();
+
+        mHeader.end();
+    }
+
+    private void writeTrack(Track track) {
+        TrackFormat format = track.format;
+        boolean video = format.isVideo();
+
+        mHeader.start("trak");
+
+        mHeader.startFull("tkhd", 0, 0x000003);
+        mHeader.putZeros(8);
+        mHeader.putInt(track.id);
+        mHeader.putZeros(4);
+        mHeader.putInt(0);
+        // Reserved, layer and alternate group
+        mHeader.putZeros(12);
+        mHeader.putShort(video ? 0 : 0x0100);
+        mHeader.putShort(0);
+        writeMatrix(video ? mOrientationHint : 0);
+        mHeader.putInt(format.width << 16);
+        mHeader.putInt(format.height << 16);
+        mHeader.end();
+
+        mHeader.start("mdia");
+
+        mHeader.startFull("mdhd", 0, 0);
+        mHeader.putZeros(8);
+        mHeader.putInt(track.timescale);
+        mHeader.putInt(0);
+        // Undetermined language
+        mHeader.putShort(0x55c4);
+        mHeader.putShort(0);
+        mHeader.end();
+
+        mHeader.startFull("hdlr", 0, 0);
+        mHeader.putInt(0);
+        mHeader.putType(video ? Mp4Probe.HANDLER_VIDEO : Mp4Probe.HANDLER_AUDIO);
+        mHeader.putZeros(12);
+        mHeader.put((video ? "VideoHandler" : "SoundHandler").getBytes());
+        mHeader.putByte(0);
+        mHeader.end();
+
+        mHeader.start("minf");
+        if (video) {
+            mHeader.startFull("vmhd", 0, 1);
+            mHeader.putZeros(8);
+        } else {
+            mHeader.startFull("smhd", 0, 0);
+            mHeader.putZeros(4);
+        }
+        mHeader.end();
+
+        mHeader.start("dinf");
+        mHeader.startFull("dref", 0, 0);
+        mHeader.putInt(1);
+        // The samples are in this file
+        mHeader.startFull("url ", 0, 1);
+        mHeader.end();
+        mHeader.end();
+        mHeader.end();
+
+        writeSampleTable(track);
+
+        mHeader.end();
+        mHeader.end();
+        mHeader.end();
+    }
+
+    /**
+     * Writes the sample description and empty sample tables, the samples are in the fragments.
+     */
+    private void writeSampleTable(Track track) {
+        mHeader.start("stbl");
+
+        mHeader.startFull("stsd", 0, 0);
+        mHeader.putInt(1);
+        if (track.format.type == TrackFormat.TYPE_AVC) {
+            writeAvcSampleEntry(track.format);
+        } else {
+            writeAacSampleEntry(track.format);
+        }
+        mHeader.end();
+
+        mHeader.startFull("stts", 0, 0);
+        mHeader.putInt(0);
+        mHeader.end();
+        mHeader.startFull("stsc", 0, 0);
+        mHeader.putInt(0);
+        mHeader.end();
+        mHeader.startFull("stsz", 0, 0);
+        mHeader.putZeros(8);
+        mHeader.end();
+        mHeader.startFull("stco", 0, 0);
+        mHeader.putInt(0);
+        mHeader.end();
+
+        mHeader.end();
+    }
+
+    private void writeAvcSampleEntry(TrackFormat format) {
+        mHeader.start("avc1");
+        // Reserved, then data reference index 1
+        mHeader.putZeros(6);
+        mHeader.putShort(1);
+        mHeader.putZeros(16);
+        mHeader.putShort(format.width);
+        mHeader.putShort(format.height);
+        // 72 dpi
+        mHeader.putInt(0x00480000);
+        mHeader.putInt(0x00480000);
+        mHeader.putInt(0);
+        mHeader.putShort(1);
+        // Compressor name
+        mHeader.putZeros(32);
+        mHeader.putShort(0x0018);
+        mHeader.putShort(-1);
+
+        mHeader.start("avcC");
+        mHeader.putByte(1);
+        // Profile, compatibility and level, as in the SPS
+        mHeader.putByte(format.sps[1]);
+        mHeader.putByte(format.sps[2]);
+        mHeader.putByte(format.sps[3]);
+        // 4 byte NAL unit lengths, one SPS and one PPS
+        mHeader.putByte(0xff);
+        mHeader.putByte(0xe1);
+        mHeader.putShort(format.sps.length);
+        mHeader.put(format.sps);
+        mHeader.putByte(1);
+        mHeader.putShort(format.pps.length);
+        mHeader.put(format.pps);
+        mHeader.end();
+
+        mHeader.end();
+    }
+
+    private void writeAacSampleEntry(TrackFormat format) {
+        mHeader.start("mp4a");
+        mHeader.putZeros(6);
+        mHeader.putShort(1);
+        mHeader.putZeros(8);
+        mHeader.putShort(format.channelCount);
+        mHeader.putShort(16);
+        mHeader.putZeros(4);
+        mHeader.putInt(format.sampleRate << 16);
+
+        byte[] config = format.audioSpecificConfig;
+        mHeader.startFull("esds", 0, 0);
+        // ES_Descriptor with ES_ID 0 and no optional fields
+        writeDescriptorHeader(0x03, 3 + 2 + 13 + 2 + config.length + 3);
+        mHeader.putShort(0);
+        mHeader.putByte(0);
+        // DecoderConfigDescriptor: AAC, audio stream, no buffer size
+        writeDescriptorHeader(0x04, 13 + 2 + config.length);
+        mHeader.putByte(0x40);
+        mHeader.putByte(0x15);
+        mHeader.putZeros(3);
+        mHeader.putInt(format.bitRate);
+        mHeader.putInt(format.bitRate);
+        writeDescriptorHeader(0x05, config.length);
+        mHeader.put(config);
+        // SLConfigDescriptor, predefined for MP4
+        writeDescriptorHeader(0x06, 1);
+        mHeader.putByte(0x02);
+        mHeader.end();
+
+        mHeader.end();
+    }
+
+    /**
+     * Writes a descriptor tag and a single byte length, enough for any AAC config.
+     */
+    private void writeDescriptorHeader(int tag, int length) {
+        mHeader.putByte(tag);
+        mHeader.putByte(length);
+    }
+
+    /**
+     * Writes a transformation matrix rotating clockwise by the given degrees.
+     */
+    private void writeMatrix(int rotation) {
+        final int one = 0x10000;
+        int a = one;
+        int b = 0;
+        int c = 0;
+        int d = one;
+        if (rotation == 90) {
+            a = 0;
+            b = one;
+            c = -one;
+            d = 0;
+        } else if (rotation == 180) {
+            a = -one;
+            d = -one;
+        } else if (rotation == 270) {
+            a = 0;
+            b = -one;
+            c = one;
+            d = 0;
+        }
+
+        mHeader.putInt(a);
+        mHeader.putInt(b);
+        mHeader.putInt(0);
+        mHeader.putInt(c);
+        mHeader.putInt(d);
+        mHeader.putInt(0);
+        mHeader.putInt(0);
+        mHeader.putInt(0);
+        mHeader.putInt(0x40000000);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(buffer);
+        }
+    }
+
+    /**
+     * A track and the samples it has in the current fragment. The arrays grow to the largest
+     * fragment and are reused.
+     */
+    private static final class Track {
+        final int id;
+        final TrackFormat format;
+        final int timescale;
+        final BoxWriter data = new BoxWriter(64 * 1024);
+
+        long[] presentationTimesUs = new long[64];
+        int[] sizes = new int[64];
+        boolean[] syncs = new boolean[64];
+        int sampleCount;
+        long lastDuration;
+
+        Track(int id, TrackFormat format) {
+            this.id = id;
+            this.format = format;
+            timescale = format.isVideo() ? VIDEO_TIMESCALE : format.sampleRate;
+        }
+
+        void add(long presentationTimeUs, int size, boolean sync) {
+            if (sampleCount == sizes.length) {
+                presentationTimesUs = Arrays.copyOf(presentationTimesUs, sampleCount * 2);
+                sizes = Arrays.copyOf(sizes, sampleCount * 2);
+                syncs = Arrays.copyOf(syncs, sampleCount * 2);
+            }
+
+            presentationTimesUs[sampleCount] = presentationTimeUs;
+            sizes[sampleCount] = size;
+            syncs[sampleCount] = sync;
+            sampleCount++;
+        }
+
+        void clear() {
+            sampleCount = 0;
+            data.clear();
+        }
+
+        long toTicks(long timeUs) {
+            return (timeUs * timescale + 500000) / 1000000;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.groupme.android.videokit.mp4;
+
+import com.groupme.android.videokit.mp4.BoxReader.Box;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the track metadata of an MP4 or QuickTime file straight from its boxes, without the
+ * media framework. Only the headers of the boxes on the way to {@code moov/trak/tkhd},
+ * {@code mdhd}, {@code hdlr} and {@code stsd} are read, with positional reads on the channel, so
+ * probing costs a handful of small reads however large the file is.
+ */
+public final class Mp4Probe {
+    public static final String HANDLER_VIDEO = "vide";
+    public static final String HANDLER_AUDIO = "soun";
+
+    private final BoxReader mReader;
+
+    private Mp4Probe(FileChannel channel) {
+        mReader = new BoxReader(channel);
+    }
+
+    public static Result probe(FileDescriptor descriptor) throws IOException {
+        // Closing the stream would close the descriptor, which belongs to the caller
+        return probe(new FileInputStream(descriptor).getChannel());
+    }
+
+    public static Result probe(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            return probe(stream.getChannel());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @param channel A channel over the whole file. Its position is left untouched.
+     * @throws IOException if the file can't be read or has no {@code moov} box
+     */
+    public static Result probe(FileChannel channel) throws IOException {
+        return new Mp4Probe(channel).probe();
+    }
+
+    private Result probe() throws IOException {
+        Result result = new Result();
+        result.fileSize = mReader.size();
+
+        Box moov = mReader.findChild(0, result.fileSize, "moov");
+        if (moov == null) {
+            throw new IOException("No moov box, not an MP4 file");
+        }
+        result.moovOffset = moov.offset;
+
+        long position = moov.contentOffset;
+        while (position < moov.end) {
+            Box box = mReader.readBox(position, moov.end);
+            if (box.is("mvhd")) {
+                readMovieHeader(box, result);
+            } else if (box.is("trak")) {
+                Track track = readTrack(box);
+                if (track != null) {
+                    result.tracks.add(track);
+                }
+            }
+            position = box.end;
+        }
+
+        return result;
+    }
+
+    private void readMovieHeader(Box mvhd, Result result) throws IOException {
+        ByteBuffer buffer = mReader.read(mvhd.contentOffset, mvhd.end);
+        int version = buffer.get() & 0xff;
+        BoxReader.skip(buffer, 3 + (version == 1 ? 16 : 8));
+
+        long timescale = BoxReader.readUnsignedInt(buffer);
+        long duration = version == 1 ? buffer.getLong() : BoxReader.readUnsignedInt(buffer);
+        result.durationUs = toMicroseconds(duration, timescale);
+    }
+
+    private Track readTrack(Box trak) throws IOException {
+        Track track = new Track();
+
+        long position = trak.contentOffset;
+        while (position < trak.end) {
+            Box box = mReader.readBox(position, trak.end);
+            if (box.is("tkhd")) {
+                readTrackHeader(box, track);
+            } else if (box.is("mdia")) {
+                readMedia(box, track);
+            } else if (box.is("edts")) {
+                Box elst = mReader.findChild(box.contentOffset, box.end, "elst");
+                if (elst != null) {
+                    readEditList(elst, track);
+                }
+            }
+            position = box.end;
+        }
+
+        return track.handlerType != null ? track : null;
+    }
+
+    private void readTrackHeader(Box tkhd, Track track) throws IOException {
+        ByteBuffer buffer = mReader.read(tkhd.contentOffset, tkhd.end);
+        int version = buffer.get() & 0xff;
+        BoxReader.skip(buffer, 3 + (version == 1 ? 16 : 8));
+
+        track.trackId = buffer.getInt();
+        // Reserved, duration, reserved, layer, alternate group, volume, reserved
+        BoxReader.skip(buffer, 4 + (version == 1 ? 8 : 4) + 8 + 8);
+
+        int a = buffer.getInt();
+        int b = buffer.getInt();
+        BoxReader.skip(buffer, 4);
+        int c = buffer.getInt();
+        int d = buffer.getInt();
+        track.rotation = getRotation(a, b, c, d);
+        BoxReader.skip(buffer, 16);
+
+        // 16.16 fixed point
+        track.displayWidth = buffer.getInt() >>> 16;
+        track.displayHeight = buffer.getInt() >>> 16;
+    }
+
+    /**
+     * Reads where the first edit with media starts. Empty edits only delay the track and are
+     * skipped.
+     */
+    private void readEditList(Box elst, Track track) throws IOException {
+        ByteBuffer buffer = mReader.read(elst.contentOffset, elst.end);
+        int version = buffer.get() & 0xff;
+        BoxReader.skip(buffer, 3);
+
+        long count = BoxReader.readUnsignedInt(buffer);
+        int entrySize = version == 1 ? 20 : 12;
+        for (long i = 0; i < count && buffer.remaining() >= entrySize; i++) {
+            BoxReader.skip(buffer, version == 1 ? 8 : 4);
+            long mediaTime = version == 1 ? buffer.getLong() : buffer.getInt();
+            BoxReader.skip(buffer, 4);
+
+            if (mediaTime >= 0) {
+                track.mediaStartTime = mediaTime;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The clockwise rotation of a tkhd matrix, in degrees
+     */
+    private static int getRotation(int a, int b, int c, int d) {
+        final int one = 0x10000;
+        if (a == 0 && b == one && c == -one && d == 0) {
+            return 90;
+        } else if (a == -one && b == 0 && c == 0 && d == -one) {
+            return 180;
+        } else if (a == 0 && b == -one && c == one && d == 0) {
+            return 270;
+        }
+        return 0;
+    }
+
+    private void readMedia(Box mdia, Track track) throws IOException {
+        Box stbl = null;
+
+        long position = mdia.contentOffset;
+        while (position < mdia.end) {
+            Box box = mReader.readBox(position, mdia.end);
+            if (box.is("mdhd")) {
+                ByteBuffer buffer = mReader.read(box.contentOffset, box.end);
+                int version = buffer.get() & 0xff;
+                BoxReader.skip(buffer, 3 + (version == 1 ? 16 : 8));
+
+                track.timescale = BoxReader.readUnsignedInt(buffer);
+                long duration = version == 1 ? buffer.getLong() : BoxReader.readUnsignedInt(buffer);
+                track.durationUs = toMicroseconds(duration, track.timescale);
+            } else if (box.is("hdlr")) {
+                ByteBuffer buffer = mReader.read(box.contentOffset, box.end);
+                BoxReader.skip(buffer, 8);
+                track.handlerType = BoxReader.readType(buffer);
+            } else if (box.is("minf")) {
+                stbl = mReader.findChild(box.contentOffset, box.end, "stbl");
+            }
+            position = box.end;
+        }
+
+        if (stbl != null) {
+            track.sampleTableOffset = stbl.offset;
+            Box stsd = mReader.findChild(stbl.contentOffset, stbl.end, "stsd");
+            if (stsd != null) {
+                readSampleDescription(stsd, track);
+            }
+        }
+    }
+
+    /**
+     * Reads the first sample entry, which describes the codec of every sample in practice.
+     */
+    private void readSampleDescription(Box stsd, Track track) throws IOException {
+        // Version, flags and entry count
+        long entryOffset = stsd.contentOffset + 8;
+        if (entryOffset >= stsd.end) {
+            return;
+        }
+
+        Box entry = mReader.readBox(entryOffset, stsd.end);
+        track.codec = entry.type;
+
+        ByteBuffer buffer = mReader.read(entry.contentOffset, entry.end);
+        // Reserved and data reference index
+        BoxReader.skip(buffer, 8);
+
+        long childOffset;
+        if (HANDLER_VIDEO.equals(track.handlerType)) {
+            BoxReader.skip(buffer, 16);
+            track.width = buffer.getShort() & 0xffff;
+            track.height = buffer.getShort() & 0xffff;
+            childOffset = entry.contentOffset + 78;
+        } else if (HANDLER_AUDIO.equals(track.handlerType)) {
+            int version = buffer.getShort() & 0xffff;
+            BoxReader.skip(buffer, 6);
+            track.channelCount = buffer.getShort() & 0xffff;
+            BoxReader.skip(buffer, 6);
+            track.sampleRate = (int) (BoxReader.readUnsignedInt(buffer) >>> 16);
+            // QuickTime sound descriptions carry extra fields before the child boxes
+            childOffset = entry.contentOffset + 28 + (version == 1 ? 16 : version == 2 ? 36 : 0);
+        } else {
+            return;
+        }
+
+        while (childOffset + 8 <= entry.end) {
+            Box box = mReader.readBox(childOffset, entry.end);
+            if (box.is("btrt")) {
+                ByteBuffer btrt = mReader.read(box.contentOffset, box.end);
+                BoxReader.skip(btrt, 4);
+                int maxBitRate = (int) BoxReader.readUnsignedInt(btrt);
+                int averageBitRate = (int) BoxReader.readUnsignedInt(btrt);
+                track.bitRate = averageBitRate > 0 ? averageBitRate : maxBitRate;
+            } else if (box.is("esds") && track.bitRate <= 0) {
+                track.bitRate = readEsdsBitRate(box);
+            }
+            childOffset = box.end;
+        }
+    }
+
+    /**
+     * @return The average bit rate of the DecoderConfigDescriptor in an esds box, the maximum if
+     * the average isn't set, or 0
+     */
+    private int readEsdsBitRate(Box esds) throws IOException {
+        ByteBuffer buffer = mReader.read(esds.contentOffset, esds.end);
+        // Version and flags
+        BoxReader.skip(buffer, 4);
+
+        while (buffer.remaining() > 2) {
+            int tag = buffer.get() & 0xff;
+            int length = readDescriptorLength(buffer);
+
+            if (tag == 0x03) {
+                // ES_Descriptor: ES_ID, then flags that add optional fields
+                BoxReader.skip(buffer, 2);
+                int flags = buffer.get() & 0xff;
+                if ((flags & 0x80) != 0) {
+                    BoxReader.skip(buffer, 2);
+                }
+                if ((flags & 0x40) != 0) {
+                    BoxReader.skip(buffer, buffer.get() & 0xff);
+                }
+                if ((flags & 0x20) != 0) {
+                    BoxReader.skip(buffer, 2);
+                }
+            } else if (tag == 0x04) {
+                // DecoderConfigDescriptor: object type, stream type, buffer size, then the bit rates
+                if (buffer.remaining() < 13) {
+                    return 0;
+                }
+                BoxReader.skip(buffer, 5);
+                int maxBitRate = (int) BoxReader.readUnsignedInt(buffer);
+                int averageBitRate = (int) BoxReader.readUnsignedInt(buffer);
+                return averageBitRate > 0 ? averageBitRate : maxBitRate;
+            } else {
+                BoxReader.skip(buffer, length);
+            }
+        }
+
+        return 0;
+    }
+
+    private static int readDescriptorLength(ByteBuffer buffer) {
+        int length = 0;
+        for (int i = 0; i < 4 && buffer.hasRemaining(); i++) {
+            int b = buffer.get() & 0xff;
+            length = (length << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    static long toMicroseconds(long duration, long timescale) {
+        if (timescale <= 0) {
+            return -1;
+        }
+        return (duration / timescale) * 1000000L + (duration % timescale) * 1000000L / timescale;
+    }
+
+    public static final class Result {
+        public long fileSize;
+        /** Duration of the movie in microseconds, -1 if unknown. */
+        public long durationUs = -1;
+        /** Offset of the moov box, after the media data unless the file is fast start. */
+        public long moovOffset;
+        public final List<Track> tracks = new ArrayList<>();
+
+        /**
+         * @return The first track with the given handler type, or null
+         */
+        public Track getTrack(String handlerType) {
+            for (Track track : tracks) {
+                if (handlerType.equals(track.handlerType)) {
+                    return track;
+                }
+            }
+            return null;
+        }
+
+        public Track getVideoTrack() {
+            return getTrack(HANDLER_VIDEO);
+        }
+
+        public Track getAudioTrack() {
+            return getTrack(HANDLER_AUDIO);
+        }
+
+        /**
+         * @return The average bit rate of the whole file, or -1 if the duration is unknown
+         */
+        public int getOverallBitRate() {
+            return durationUs > 0 ? (int) (fileSize * 8 * 1000000L / durationUs) : -1;
+        }
+    }
+
+    public static final class Track {
+        public int trackId;
+        /** {@link #HANDLER_VIDEO}, {@link #HANDLER_AUDIO} or another hdlr type. */
+        public String handlerType;
+        /** Four character code of the sample entry, such as avc1 or mp4a. */
+        public String codec;
+
+        public long timescale;
+        /** Duration of the media in microseconds, -1 if unknown. */
+        public long durationUs = -1;
+
+        /** Coded size from the sample entry, for video tracks. */
+        public int width;
+        public int height;
+        /** Size after the tkhd transform, for video tracks. */
+        public int displayWidth;
+        public int displayHeight;
+        /** Clockwise rotation from the tkhd matrix, in degrees. */
+        public int rotation;
+
+        /** For audio tracks. */
+        public int channelCount;
+        public int sampleRate;
+
+        /** Average bit rate from the btrt or esds box, or the maximum if that's all it says. 0 if unknown. */
+        public int bitRate;
+
+        /**
+         * Media time the presentation starts at, from the edit list, in timescale units. Sample
+         * times are shifted back by this much.
+         */
+        public long mediaStartTime;
+
+        /** Offset of the stbl box, 0 if the track has none. */
+        public long sampleTableOffset;
+    }
+}
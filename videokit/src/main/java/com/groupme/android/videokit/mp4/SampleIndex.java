@@ -0,0 +1,412 @@
+package com.groupme.android.videokit.mp4;
+
+import com.groupme.android.videokit.mp4.BoxReader.Box;
+import com.groupme.android.videokit.pipeline.SyncSampleIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The sample table of one track, read once from its stbl box into primitive arrays. Finding a
+ * sync sample, the bytes a time range needs or the samples in it is a binary search, where a
+ * {@link android.media.MediaExtractor} has to seek and read sample headers.
+ * <p>
+ * Times follow the edit list the way the extractor reports them, so they can be mixed with
+ * extractor sample times. Sync samples are assumed to be in presentation order, as they are in any
+ * stream a decoder can start from.
+ */
+public final class SampleIndex implements SyncSampleIndex {
+    private final long mTimescale;
+    private final int mSampleCount;
+
+    private final long[] mOffsets;
+    private final int[] mSizes;
+    /** Decode time of every sample in timescale units, shifted by the edit list. */
+    private final long[] mDecodeTimes;
+    /** Composition offset of every sample, null if the track has none. */
+    private final int[] mCompositionOffsets;
+    /** Presentation time of every sample in ascending order, the same array as mDecodeTimes without composition offsets. */
+    private final long[] mSortedPresentationTimes;
+    /** Every sync sample, null if every sample is one. */
+    private final int[] mSyncSamples;
+    /** Presentation time of every sync sample. */
+    private final long[] mSyncTimes;
+    private final boolean mOffsetsAscending;
+
+    private SampleIndex(long timescale, long[] offsets, int[] sizes, long[] decodeTimes,
+                        int[] compositionOffsets, int[] syncSamples) {
+        mTimescale = timescale;
+        mSampleCount = sizes.length;
+        mOffsets = offsets;
+        mSizes = sizes;
+        mDecodeTimes = decodeTimes;
+        mCompositionOffsets = compositionOffsets;
+        mSyncSamples = syncSamples;
+
+        if (compositionOffsets == null) {
+            mSortedPresentationTimes = decodeTimes;
+        } else {
+            mSortedPresentationTimes = new long[mSampleCount];
+            for (int i = 0; i < mSampleCount; i++) {
+                mSortedPresentationTimes[i] = decodeTimes[i] + compositionOffsets[i];
+            }
+            Arrays.sort(mSortedPresentationTimes);
+        }
+
+        if (syncSamples == null && compositionOffsets == null) {
+            mSyncTimes = decodeTimes;
+        } else {
+            int syncCount = syncSamples != null ? syncSamples.length : mSampleCount;
+            mSyncTimes = new long[syncCount];
+            for (int i = 0; i < syncCount; i++) {
+                mSyncTimes[i] = getPresentationTime(syncSamples != null ? syncSamples[i] : i);
+            }
+        }
+
+        boolean ascending = true;
+        for (int i = 1; i < mSampleCount && ascending; i++) {
+            ascending = offsets[i] >= offsets[i - 1];
+        }
+        mOffsetsAscending = ascending;
+    }
+
+    /**
+     * @param channel A channel over the file the track was probed from. Its position is left
+     *                untouched.
+     * @throws IOException if the track has no sample table or it can't be read
+     */
+    public static SampleIndex read(FileChannel channel, Mp4Probe.Track track) throws IOException {
+        if (track.sampleTableOffset <= 0 || track.timescale <= 0) {
+            throw new IOException("Track " + track.trackId + " has no sample table");
+        }
+
+        BoxReader reader = new BoxReader(channel);
+        Box stbl = reader.readBox(track.sampleTableOffset, reader.size());
+
+        ByteBuffer stsz = readTable(reader, stbl, "stsz", true);
+        ByteBuffer stts = readTable(reader, stbl, "stts", true);
+        ByteBuffer stsc = readTable(reader, stbl, "stsc", true);
+        ByteBuffer ctts = readTable(reader, stbl, "ctts", false);
+        ByteBuffer stss = readTable(reader, stbl, "stss", false);
+
+        ByteBuffer chunkOffsets = readTable(reader, stbl, "stco", false);
+        boolean largeOffsets = chunkOffsets == null;
+        if (largeOffsets) {
+            chunkOffsets = readTable(reader, stbl, "co64", true);
+        }
+
+        int[] sizes = readSizes(stsz);
+        long[] decodeTimes = readDecodeTimes(stts, sizes.length, track.mediaStartTime);
+        long[] offsets = readOffsets(stsc, chunkOffsets, largeOffsets, sizes);
+        int[] compositionOffsets = ctts != null ? readCompositionOffsets(ctts, sizes.length) : null;
+        int[] syncSamples = stss != null ? readSyncSamples(stss, sizes.length) : null;
+
+        return new SampleIndex(track.timescale, offsets, sizes, decodeTimes, compositionOffsets, syncSamples);
+    }
+
+    /**
+     * @return The content of a full box after its version and flags, or null if it is optional
+     * and missing
+     */
+    private static ByteBuffer readTable(BoxReader reader, Box stbl, String type, boolean required) throws IOException {
+        Box box = reader.findChild(stbl.contentOffset, stbl.end, type);
+        if (box == null) {
+            if (required) {
+                throw new IOException("Sample table has no " + type + " box");
+            }
+            return null;
+        }
+
+        ByteBuffer buffer = reader.readContent(box);
+        BoxReader.skip(buffer, 4);
+        return buffer;
+    }
+
+    private static int readCount(ByteBuffer buffer, int entrySize) throws IOException {
+        long count = BoxReader.readUnsignedInt(buffer);
+        if (count * entrySize > buffer.remaining()) {
+            throw new IOException("Truncated sample table");
+        }
+        return (int) count;
+    }
+
+    private static int[] readSizes(ByteBuffer stsz) throws IOException {
+        int sampleSize = stsz.getInt();
+        int count = readCount(stsz, sampleSize == 0 ? 4 : 0);
+
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = sampleSize != 0 ? sampleSize : stsz.getInt();
+        }
+        return sizes;
+    }
+
+    private static long[] readDecodeTimes(ByteBuffer stts, int sampleCount, long startTime) throws IOException {
+        long[] times = new long[sampleCount];
+        int entryCount = readCount(stts, 8);
+
+        long time = -startTime;
+        int sample = 0;
+        for (int i = 0; i < entryCount && sample < sampleCount; i++) {
+            long count = BoxReader.readUnsignedInt(stts);
+            long delta = BoxReader.readUnsignedInt(stts);
+            for (long j = 0; j < count && sample < sampleCount; j++) {
+                times[sample++] = time;
+                time += delta;
+            }
+        }
+
+        if (sample < sampleCount) {
+            throw new IOException("stts covers " + sample + " of " + sampleCount + " samples");
+        }
+        return times;
+    }
+
+    private static int[] readCompositionOffsets(ByteBuffer ctts, int sampleCount) throws IOException {
+        int[] offsets = new int[sampleCount];
+        int entryCount = readCount(ctts, 8);
+
+        int sample = 0;
+        for (int i = 0; i < entryCount && sample < sampleCount; i++) {
+            long count = BoxReader.readUnsignedInt(ctts);
+            // Unsigned in version 0, but writers put negative offsets there too
+            int offset = ctts.getInt();
+            for (long j = 0; j < count && sample < sampleCount; j++) {
+                offsets[sample++] = offset;
+            }
+        }
+        return offsets;
+    }
+
+    private static int[] readSyncSamples(ByteBuffer stss, int sampleCount) throws IOException {
+        int count = readCount(stss, 4);
+
+        int[] samples = new int[count];
+        for (int i = 0; i < count; i++) {
+            // Sample numbers start at 1
+            samples[i] = (int) BoxReader.readUnsignedInt(stss) - 1;
+            if (samples[i] < 0 || samples[i] >= sampleCount) {
+                throw new IOException("Invalid sync sample " + (samples[i] + 1));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Places every sample in its chunk: stsc says how many samples each run of chunks holds, and
+     * the samples of a chunk follow each other from the chunk's offset.
+     */
+    private static long[] readOffsets(ByteBuffer stsc, ByteBuffer chunkOffsets, boolean largeOffsets,
+                                      int[] sizes) throws IOException {
+        int chunkCount = readCount(chunkOffsets, largeOffsets ? 8 : 4);
+        int entryCount = readCount(stsc, 12);
+
+        long[] offsets = new long[sizes.length];
+        int sample = 0;
+        int chunk = 0;
+        for (int i = 0; i < entryCount; i++) {
+            int firstChunk = stsc.getInt() - 1;
+            long samplesPerChunk = BoxReader.readUnsignedInt(stsc);
+            BoxReader.skip(stsc, 4);
+            int lastChunk = i + 1 < entryCount ? stsc.getInt(stsc.position()) - 1 : chunkCount;
+
+            if (firstChunk != chunk || lastChunk > chunkCount) {
+                throw new IOException("Invalid stsc entry " + i);
+            }
+
+            for (; chunk < lastChunk; chunk++) {
+                long offset = largeOffsets ? chunkOffsets.getLong() : BoxReader.readUnsignedInt(chunkOffsets);
+                for (long j = 0; j < samplesPerChunk && sample < sizes.length; j++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample++];
+                }
+            }
+        }
+
+        if (sample < sizes.length) {
+            throw new IOException("Chunks hold " + sample + " of " + sizes.length + " samples");
+        }
+        return offsets;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public long getOffset(int sample) {
+        return mOffsets[sample];
+    }
+
+    public int getSize(int sample) {
+        return mSizes[sample];
+    }
+
+    public long getPresentationTimeUs(int sample) {
+        return toMicroseconds(getPresentationTime(sample));
+    }
+
+    public boolean isSync(int sample) {
+        return mSyncSamples == null || Arrays.binarySearch(mSyncSamples, sample) >= 0;
+    }
+
+    /**
+     * @return The last sync sample presented at or before the given time, or -1 if there is none
+     */
+    public int getSyncSampleAtOrBefore(long timeUs) {
+        int sync = countAtOrBefore(mSyncTimes, timeUs) - 1;
+        return sync >= 0 ? getSyncSample(sync) : -1;
+    }
+
+    /**
+     * @return The first sync sample presented at or after the given time, or -1 if there is none
+     */
+    public int getSyncSampleAtOrAfter(long timeUs) {
+        int sync = countBefore(mSyncTimes, timeUs);
+        return sync < mSyncTimes.length ? getSyncSample(sync) : -1;
+    }
+
+    @Override
+    public long getSyncSampleTimeAtOrBefore(long timeUs) {
+        int sample = getSyncSampleAtOrBefore(timeUs);
+        return sample >= 0 ? getPresentationTimeUs(sample) : -1;
+    }
+
+    @Override
+    public long getSyncSampleTimeAtOrAfter(long timeUs) {
+        int sample = getSyncSampleAtOrAfter(timeUs);
+        return sample >= 0 ? getPresentationTimeUs(sample) : -1;
+    }
+
+    /**
+     * @return The number of samples presented in {@code [startTimeUs, endTimeUs)}
+     */
+    public int getSampleCount(long startTimeUs, long endTimeUs) {
+        return Math.max(0, countBefore(mSortedPresentationTimes, endTimeUs)
+                - countBefore(mSortedPresentationTimes, startTimeUs));
+    }
+
+    /**
+     * Finds the samples a decoder needs to present {@code [startTimeUs, endTimeUs]}: from the sync
+     * sample at or before the start up to the last sample decoded by the end, which covers every
+     * sample presented by then.
+     *
+     * @return The samples and the bytes they span, or null if the range holds none
+     */
+    public Range getByteRange(long startTimeUs, long endTimeUs) {
+        int first = getSyncSampleAtOrBefore(startTimeUs);
+        if (first < 0) {
+            first = getSyncSampleAtOrAfter(startTimeUs);
+        }
+        int last = countAtOrBefore(mDecodeTimes, endTimeUs) - 1;
+        if (first < 0 || last < first) {
+            return null;
+        }
+
+        long startOffset;
+        long endOffset;
+        if (mOffsetsAscending) {
+            startOffset = mOffsets[first];
+            endOffset = mOffsets[last] + mSizes[last];
+        } else {
+            startOffset = Long.MAX_VALUE;
+            endOffset = 0;
+            for (int i = first; i <= last; i++) {
+                startOffset = Math.min(startOffset, mOffsets[i]);
+                endOffset = Math.max(endOffset, mOffsets[i] + mSizes[i]);
+            }
+        }
+
+        return new Range(first, last, startOffset, endOffset);
+    }
+
+    /**
+     * @return The average distance in bytes from the start of one chunk of the track to the next,
+     * which takes in the other tracks' chunks interleaved in between, or 0 if there is one chunk
+     */
+    public long getAverageChunkSpacing() {
+        int chunkCount = 1;
+        long lastChunkOffset = mSampleCount > 0 ? mOffsets[0] : 0;
+        for (int i = 1; i < mSampleCount; i++) {
+            if (mOffsets[i] != mOffsets[i - 1] + mSizes[i - 1]) {
+                chunkCount++;
+                lastChunkOffset = mOffsets[i];
+            }
+        }
+
+        return chunkCount > 1 ? Math.abs(lastChunkOffset - mOffsets[0]) / (chunkCount - 1) : 0;
+    }
+
+    /**
+     * @return The approximate size of the index, in bytes
+     */
+    public long getMemoryUsage() {
+        long size = mSampleCount * (8L + 4L + 8L);
+        if (mCompositionOffsets != null) {
+            size += mSampleCount * (4L + 8L);
+        }
+        if (mSyncSamples != null) {
+            size += mSyncSamples.length * 4L;
+        }
+        if (mSyncTimes != mDecodeTimes) {
+            size += mSyncTimes.length * 8L;
+        }
+        return size;
+    }
+
+    private int getSyncSample(int sync) {
+        return mSyncSamples != null ? mSyncSamples[sync] : sync;
+    }
+
+    private long getPresentationTime(int sample) {
+        return mDecodeTimes[sample] + (mCompositionOffsets != null ? mCompositionOffsets[sample] : 0);
+    }
+
+    private long toMicroseconds(long time) {
+        // Negative times are samples before the edit, keep them negative
+        return time >= 0 ? Mp4Probe.toMicroseconds(time, mTimescale) : -Mp4Probe.toMicroseconds(-time, mTimescale);
+    }
+
+    /**
+     * @return The number of times, in ascending order, below the given time in microseconds
+     */
+    private int countBefore(long[] times, long timeUs) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (toMicroseconds(times[mid]) < timeUs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The number of times, in ascending order, at or below the given time in microseconds
+     */
+    private int countAtOrBefore(long[] times, long timeUs) {
+        return timeUs == Long.MAX_VALUE ? times.length : countBefore(times, timeUs + 1);
+    }
+
+    /**
+     * Samples {@code firstSample} to {@code lastSample} in decode order, and the bytes from
+     * {@code startOffset} up to {@code endOffset} that hold them.
+     */
+    public static final class Range {
+        public final int firstSample;
+        public final int lastSample;
+        public final long startOffset;
+        public final long endOffset;
+
+        Range(int firstSample, int lastSample, long startOffset, long endOffset) {
+            this.firstSample = firstSample;
+            this.lastSample = lastSample;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+        }
+    }
+}
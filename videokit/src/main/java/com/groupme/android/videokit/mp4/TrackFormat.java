@@ -0,0 +1,84 @@
+package com.groupme.android.videokit.mp4;
+
+import java.util.Arrays;
+
+/**
+ * What {@link FragmentedMp4Writer} needs to describe a track: the codec, its configuration and the
+ * picture or sound properties. Only AVC video and AAC audio are supported, which is what the
+ * transcoder writes.
+ */
+public final class TrackFormat {
+    static final int TYPE_AVC = 0;
+    static final int TYPE_AAC = 1;
+
+    final int type;
+    final int width;
+    final int height;
+    final int sampleRate;
+    final int channelCount;
+    final int bitRate;
+    /** SPS and PPS NAL units without start codes, for AVC. */
+    final byte[] sps;
+    final byte[] pps;
+    /** AudioSpecificConfig, for AAC. */
+    final byte[] audioSpecificConfig;
+
+    private TrackFormat(int type, int width, int height, int sampleRate, int channelCount, int bitRate,
+                        byte[] sps, byte[] pps, byte[] audioSpecificConfig) {
+        this.type = type;
+        this.width = width;
+        this.height = height;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bitRate = bitRate;
+        this.sps = sps;
+        this.pps = pps;
+        this.audioSpecificConfig = audioSpecificConfig;
+    }
+
+    /**
+     * @param codecConfig The SPS and PPS as Annex B NAL units with start codes
+     * @throws IllegalArgumentException if the config lacks an SPS or PPS
+     */
+    public static TrackFormat avc(int width, int height, byte[] codecConfig) {
+        byte[] sps = null;
+        byte[] pps = null;
+
+        int start = AnnexB.findNalUnit(codecConfig, 0);
+        while (start >= 0) {
+            int next = AnnexB.findStartCode(codecConfig, start);
+            int end = next >= 0 ? next : codecConfig.length;
+            int type = codecConfig[start] & 0x1f;
+
+            if (type == 7 && sps == null) {
+                sps = Arrays.copyOfRange(codecConfig, start, end);
+            } else if (type == 8 && pps == null) {
+                pps = Arrays.copyOfRange(codecConfig, start, end);
+            }
+
+            start = next >= 0 ? AnnexB.findNalUnit(codecConfig, next) : -1;
+        }
+
+        if (sps == null || pps == null || sps.length < 4) {
+            throw new IllegalArgumentException("AVC codec config needs an SPS and a PPS");
+        }
+
+        return new TrackFormat(TYPE_AVC, width, height, 0, 0, 0, sps, pps, null);
+    }
+
+    /**
+     * @param audioSpecificConfig The decoder config, {@code csd-0} of an AAC format
+     * @param bitRate Average bit rate, or 0 if unknown
+     */
+    public static TrackFormat aac(int sampleRate, int channelCount, int bitRate, byte[] audioSpecificConfig) {
+        if (audioSpecificConfig == null || audioSpecificConfig.length == 0) {
+            throw new IllegalArgumentException("AAC needs an AudioSpecificConfig");
+        }
+
+        return new TrackFormat(TYPE_AAC, 0, 0, sampleRate, channelCount, bitRate, null, null, audioSpecificConfig);
+    }
+
+    boolean isVideo() {
+        return type == TYPE_AVC;
+    }
+}
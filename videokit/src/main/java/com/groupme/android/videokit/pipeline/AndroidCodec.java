@@ -0,0 +1,126 @@
+package com.groupme.android.videokit.pipeline;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link CodecPort} backed by a {@link MediaCodec}. Configuration stays with the owner of the
+ * codec, see {@link #getMediaCodec()}.
+ */
+public class AndroidCodec implements CodecPort<MediaFormat> {
+    private final MediaCodec mCodec;
+    private final Handler mCallbackHandler;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    public AndroidCodec(MediaCodec codec) {
+        this(codec, null);
+    }
+
+    /**
+     * @param codec The codec to drive
+     * @param callbackHandler Handler to deliver callbacks on, if {@link #setCallback} is used
+     */
+    public AndroidCodec(MediaCodec codec, Handler callbackHandler) {
+        mCodec = codec;
+        mCallbackHandler = callbackHandler;
+    }
+
+    public MediaCodec getMediaCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public String getName() {
+        return mCodec.getName();
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.M)
+    public void setCallback(final Callback<MediaFormat> callback) {
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(AndroidCodec.this, index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                SampleInfo sampleInfo = new SampleInfo();
+                sampleInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                callback.onOutputBufferAvailable(AndroidCodec.this, index, sampleInfo);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(AndroidCodec.this, e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(AndroidCodec.this, format);
+            }
+        }, mCallbackHandler);
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        int index = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        info.set(mBufferInfo.offset, mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+}
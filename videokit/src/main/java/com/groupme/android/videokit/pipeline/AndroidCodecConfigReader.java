@@ -0,0 +1,42 @@
+package com.groupme.android.videokit.pipeline;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link CodecConfigReader} for AVC {@link MediaFormat}s, which carry the SPS in {@code csd-0} and
+ * the PPS in {@code csd-1}, both with start codes.
+ */
+public class AndroidCodecConfigReader implements CodecConfigReader<MediaFormat> {
+    private static final String KEY_CSD_0 = "csd-0";
+    private static final String KEY_CSD_1 = "csd-1";
+
+    @Override
+    public byte[] read(MediaFormat format) {
+        if (!format.containsKey(KEY_CSD_0)) {
+            return null;
+        }
+
+        // Read from the start, the buffers may have been consumed by whoever set them
+        ByteBuffer sps = format.getByteBuffer(KEY_CSD_0).duplicate();
+        sps.rewind();
+        int spsSize = sps.remaining();
+
+        ByteBuffer pps = null;
+        int ppsSize = 0;
+        if (format.containsKey(KEY_CSD_1)) {
+            pps = format.getByteBuffer(KEY_CSD_1).duplicate();
+            pps.rewind();
+            ppsSize = pps.remaining();
+        }
+
+        byte[] config = new byte[spsSize + ppsSize];
+        sps.get(config, 0, spsSize);
+        if (pps != null) {
+            pps.get(config, spsSize, ppsSize);
+        }
+
+        return config;
+    }
+}
@@ -0,0 +1,42 @@
+package com.groupme.android.videokit.pipeline;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ExtractorPort} backed by a {@link MediaExtractor} with its track already selected.
+ * Releasing the extractor is left to its owner.
+ */
+public class AndroidExtractor implements ExtractorPort {
+    private final MediaExtractor mExtractor;
+
+    public AndroidExtractor(MediaExtractor extractor) {
+        mExtractor = extractor;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return mExtractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return mExtractor.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+    }
+}
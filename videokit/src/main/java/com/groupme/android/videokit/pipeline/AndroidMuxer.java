@@ -0,0 +1,51 @@
+package com.groupme.android.videokit.pipeline;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MuxerPort} backed by a {@link MediaMuxer} writing an MPEG-4 file.
+ */
+public class AndroidMuxer implements MuxerPort<MediaFormat> {
+    private final MediaMuxer mMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param path Path of the output file
+     * @param orientationHint Rotation in degrees to record in the output
+     */
+    public AndroidMuxer(String path, int orientationHint) throws IOException {
+        mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer.setOrientationHint(orientationHint);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        mMuxer.writeSampleData(trackIndex, buffer, mBufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+}
@@ -0,0 +1,35 @@
+package com.groupme.android.videokit.pipeline;
+
+import android.media.AudioFormat;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * {@link PcmFormatReader} for the output {@link MediaFormat} of an audio decoder. Decoders only
+ * report a PCM encoding from API 24, before that the output is always 16 bit.
+ */
+public class AndroidPcmFormatReader implements PcmFormatReader<MediaFormat> {
+    @Override
+    public int getSampleRate(MediaFormat format) {
+        return format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+    }
+
+    @Override
+    public int getFrameSize(MediaFormat format) {
+        int encoding = AudioFormat.ENCODING_PCM_16BIT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && format.containsKey(MediaFormat.KEY_PCM_ENCODING)) {
+            encoding = format.getInteger(MediaFormat.KEY_PCM_ENCODING);
+        }
+
+        int sampleSize;
+        if (encoding == AudioFormat.ENCODING_PCM_FLOAT) {
+            sampleSize = 4;
+        } else if (encoding == AudioFormat.ENCODING_PCM_8BIT) {
+            sampleSize = 1;
+        } else {
+            sampleSize = 2;
+        }
+
+        return format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) * sampleSize;
+    }
+}
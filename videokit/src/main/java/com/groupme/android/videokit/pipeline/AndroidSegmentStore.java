@@ -0,0 +1,60 @@
+package com.groupme.android.videokit.pipeline;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link SegmentStore} keeping every segment in an MPEG-4 file of its own.
+ */
+public class AndroidSegmentStore implements SegmentStore<MediaFormat> {
+    private final File mDirectory;
+    private final Map<Integer, File> mFiles = new HashMap<>();
+    private final List<MediaExtractor> mExtractors = new ArrayList<>();
+
+    /**
+     * @param directory Directory for the segment files, usually the cache directory
+     */
+    public AndroidSegmentStore(File directory) {
+        mDirectory = directory;
+    }
+
+    @Override
+    public MuxerPort<MediaFormat> createMuxer(int segment) throws IOException {
+        File file = File.createTempFile("videokit-segment-" + segment + "-", ".mp4", mDirectory);
+        synchronized (this) {
+            mFiles.put(segment, file);
+        }
+
+        return new AndroidMuxer(file.getAbsolutePath(), 0);
+    }
+
+    @Override
+    public synchronized ExtractorPort openExtractor(int segment) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        mExtractors.add(extractor);
+
+        extractor.setDataSource(mFiles.get(segment).getAbsolutePath());
+        extractor.selectTrack(0);
+        return new AndroidExtractor(extractor);
+    }
+
+    @Override
+    public synchronized void release() {
+        for (MediaExtractor extractor : mExtractors) {
+            extractor.release();
+        }
+        mExtractors.clear();
+
+        for (File file : mFiles.values()) {
+            file.delete();
+        }
+        mFiles.clear();
+    }
+}
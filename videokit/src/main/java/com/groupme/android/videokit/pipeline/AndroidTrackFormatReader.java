@@ -0,0 +1,47 @@
+package com.groupme.android.videokit.pipeline;
+
+import android.media.MediaFormat;
+
+import com.groupme.android.videokit.mp4.TrackFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link TrackFormatReader} for encoder and extractor {@link MediaFormat}s.
+ */
+public class AndroidTrackFormatReader implements TrackFormatReader<MediaFormat> {
+    private static final String KEY_CSD_0 = "csd-0";
+
+    private final AndroidCodecConfigReader mCodecConfigReader = new AndroidCodecConfigReader();
+
+    @Override
+    public TrackFormat read(MediaFormat format) {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equalsIgnoreCase(mimeType)) {
+            byte[] config = mCodecConfigReader.read(format);
+            if (config == null) {
+                throw new IllegalArgumentException("AVC format has no codec config");
+            }
+            return TrackFormat.avc(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), config);
+        }
+
+        if (MediaFormat.MIMETYPE_AUDIO_AAC.equalsIgnoreCase(mimeType)) {
+            if (!format.containsKey(KEY_CSD_0)) {
+                throw new IllegalArgumentException("AAC format has no codec config");
+            }
+
+            ByteBuffer csd = format.getByteBuffer(KEY_CSD_0).duplicate();
+            csd.rewind();
+            byte[] config = new byte[csd.remaining()];
+            csd.get(config);
+
+            int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+            return TrackFormat.aac(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), bitRate, config);
+        }
+
+        throw new IllegalArgumentException("Unsupported track type " + mimeType);
+    }
+}
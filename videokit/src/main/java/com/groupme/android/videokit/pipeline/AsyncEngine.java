@@ -0,0 +1,213 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Runs a {@link TranscodePipeline} from codec callbacks instead of polling. Callbacks only enqueue
+ * events on the pipeline's {@link CodecEventQueue}; the extractor, rendering and muxer work all
+ * stays on the thread that calls {@link #transcode()}, which must own the EGL context. That
+ * thread sleeps until some codec actually has a buffer ready, so an idle codec never delays the
+ * others.
+ */
+class AsyncEngine<F> {
+    /** How long to wait for any codec callback before giving up, in milliseconds. */
+    private static final int CODEC_EVENT_TIMEOUT_MS = 10000;
+
+    private final TranscodePipeline<F> mPipeline;
+
+    private final ArrayDeque<CodecEvent<F>> mPendingAudioDecoderOutput = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mAudioEncoderInputBufferIndices = new ArrayDeque<>();
+
+    // Encoder output that arrives while the pipeline cannot stage any more samples
+    private final ArrayDeque<CodecEvent<F>> mPendingVideoEncoderOutput = new ArrayDeque<>();
+    private final ArrayDeque<CodecEvent<F>> mPendingAudioEncoderOutput = new ArrayDeque<>();
+
+    private boolean mVideoExtractorDone;
+    private boolean mAudioExtractorDone;
+    private boolean mVideoDecoderDone;
+    private boolean mVideoEncoderDone;
+    private boolean mAudioEncoderDone;
+    private boolean mMuxing;
+
+    AsyncEngine(TranscodePipeline<F> pipeline) {
+        mPipeline = pipeline;
+    }
+
+    void transcode() throws InterruptedException {
+        mAudioEncoderDone = !mPipeline.hasAudio();
+
+        mPipeline.seekToTrimStart();
+
+        while (!mVideoEncoderDone || !mAudioEncoderDone) {
+            // A copied audio track has no codec events, it follows the video written so far
+            if (mPipeline.isAudioCopy()) {
+                while (!mAudioEncoderDone && mPipeline.canAcceptEncoderOutput(false)
+                        && !mPipeline.isAudioCopyAhead(mVideoEncoderDone)) {
+                    mAudioEncoderDone = mPipeline.copyAudioSample();
+                }
+
+                if (mVideoEncoderDone && mAudioEncoderDone) {
+                    break;
+                }
+            }
+
+            // Audio held back for the renditions may be written now
+            writePendingAudioEncoderOutput();
+            if (mVideoEncoderDone && mAudioEncoderDone) {
+                break;
+            }
+
+            CodecEvent<F> event = mPipeline.mCodecEvents.next(CODEC_EVENT_TIMEOUT_MS);
+            if (event == null) {
+                throw new IllegalStateException("Timed out waiting for a codec callback");
+            }
+
+            switch (event.type) {
+                case CodecEvent.INPUT_BUFFER_AVAILABLE:
+                    onInputBuffer(event);
+                    break;
+                case CodecEvent.OUTPUT_BUFFER_AVAILABLE:
+                    onOutputBuffer(event);
+                    break;
+                case CodecEvent.OUTPUT_FORMAT_CHANGED:
+                    onOutputFormat(event);
+                    break;
+                case CodecEvent.ERROR:
+                    throw event.error;
+            }
+        }
+
+        if (!mPendingAudioDecoderOutput.isEmpty()) {
+            throw new IllegalStateException("no frame should be pending");
+        }
+    }
+
+    private void onInputBuffer(CodecEvent<F> event) {
+        TranscodePipeline<F> p = mPipeline;
+        CodecPort<F> codec = event.codec;
+
+        if (codec == p.mVideoDecoder) {
+            if (!mVideoExtractorDone) {
+                p.mLogger.d(String.format(Locale.US, "video decoder: returned input buffer: %d", event.index));
+                mVideoExtractorDone = p.feedDecoderInputBuffer(codec, event.index,
+                        codec.getInputBuffer(event.index), p.mVideoExtractor);
+            }
+        } else if (codec == p.mAudioDecoder) {
+            if (!mAudioExtractorDone) {
+                p.mLogger.d(String.format(Locale.US, "audio decoder: returned input buffer: %d", event.index));
+                mAudioExtractorDone = p.feedDecoderInputBuffer(codec, event.index,
+                        codec.getInputBuffer(event.index), p.mAudioExtractor);
+            }
+        } else if (codec == p.mAudioEncoder) {
+            mAudioEncoderInputBufferIndices.add(event.index);
+            feedPendingAudio();
+        }
+    }
+
+    private void onOutputBuffer(CodecEvent<F> event) {
+        TranscodePipeline<F> p = mPipeline;
+        CodecPort<F> codec = event.codec;
+        SampleInfo info = event.info;
+
+        if ((info.flags & CodecPort.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            p.mLogger.d(String.format("%s: codec config buffer", codec.getName()));
+            codec.releaseOutputBuffer(event.index, false);
+            return;
+        }
+
+        if (codec == p.mVideoDecoder) {
+            if (!mVideoDecoderDone) {
+                mVideoDecoderDone = p.renderVideoDecoderOutputBuffer(event.index, info);
+            }
+        } else if (codec == p.mAudioDecoder) {
+            if (p.dropAudioPreRoll(event.index, info)) {
+                return;
+            }
+
+            p.mLogger.d(String.format(Locale.US, "audio decoder: output buffer is now pending: %d", event.index));
+            mPendingAudioDecoderOutput.add(event);
+            p.mStats.audioDecodedFrameCount++;
+            feedPendingAudio();
+        } else if (codec == p.mVideoEncoder) {
+            if (mPendingVideoEncoderOutput.isEmpty() && p.canAcceptEncoderOutput(true)) {
+                mVideoEncoderDone = p.writeVideoEncoderOutputBuffer(event.index, codec.getOutputBuffer(event.index), info);
+            } else {
+                mPendingVideoEncoderOutput.add(event);
+            }
+        } else if (codec == p.mAudioEncoder) {
+            if (mPendingAudioEncoderOutput.isEmpty() && p.canAcceptEncoderOutput(false)) {
+                mAudioEncoderDone = p.writeAudioEncoderOutputBuffer(event.index, codec.getOutputBuffer(event.index), info);
+            } else {
+                mPendingAudioEncoderOutput.add(event);
+            }
+        }
+    }
+
+    private void onOutputFormat(CodecEvent<F> event) {
+        TranscodePipeline<F> p = mPipeline;
+        CodecPort<F> codec = event.codec;
+
+        if (codec == p.mVideoDecoder) {
+            p.mDecoderOutputVideoFormat = event.format;
+            p.mLogger.d(String.format("video decoder: output format changed: %s", event.format));
+        } else if (codec == p.mAudioDecoder) {
+            p.mDecoderOutputAudioFormat = event.format;
+            p.mLogger.d(String.format("audio decoder: output format changed: %s", event.format));
+        } else if (codec == p.mVideoEncoder) {
+            p.setEncoderOutputVideoFormat(event.format);
+        } else if (codec == p.mAudioEncoder) {
+            p.setEncoderOutputAudioFormat(event.format);
+        }
+
+        if (!mMuxing && p.isReadyToMux()) {
+            p.setupMuxer();
+            mMuxing = true;
+
+            while (!mPendingVideoEncoderOutput.isEmpty()) {
+                CodecEvent<F> pending = mPendingVideoEncoderOutput.poll();
+                mVideoEncoderDone = p.writeVideoEncoderOutputBuffer(pending.index,
+                        p.mVideoEncoder.getOutputBuffer(pending.index), pending.info);
+            }
+
+            writePendingAudioEncoderOutput();
+        }
+    }
+
+    /**
+     * Writes the audio encoder output that was held back, for as long as the pipeline takes it.
+     */
+    private void writePendingAudioEncoderOutput() {
+        TranscodePipeline<F> p = mPipeline;
+
+        while (!mPendingAudioEncoderOutput.isEmpty() && p.canAcceptEncoderOutput(false)) {
+            CodecEvent<F> pending = mPendingAudioEncoderOutput.poll();
+            mAudioEncoderDone = p.writeAudioEncoderOutputBuffer(pending.index,
+                    p.mAudioEncoder.getOutputBuffer(pending.index), pending.info);
+        }
+    }
+
+    /**
+     * Copies pending decoded audio buffers into free encoder input buffers, for as long as there
+     * are both.
+     */
+    private void feedPendingAudio() {
+        TranscodePipeline<F> p = mPipeline;
+
+        while (!mPendingAudioDecoderOutput.isEmpty()) {
+            if (p.needsAudioEncoderInputBuffer()) {
+                if (mAudioEncoderInputBufferIndices.isEmpty()) {
+                    return;
+                }
+
+                int encoderInputBufferIndex = mAudioEncoderInputBufferIndices.poll();
+                p.setAudioEncoderInputBuffer(encoderInputBufferIndex, p.mAudioEncoder.getInputBuffer(encoderInputBufferIndex));
+            }
+
+            CodecEvent<F> decoded = mPendingAudioDecoderOutput.peek();
+            if (p.feedAudioDecoderOutputToEncoder(decoded.index, p.mAudioDecoder.getOutputBuffer(decoded.index), decoded.info)) {
+                mPendingAudioDecoderOutput.poll();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reusable direct buffers for the samples copied between the codecs and the muxer. Buffers are
+ * kept in power of two size classes, so once every class has seen its peak number of buffers in
+ * flight, acquiring one no longer allocates. Requests larger than the biggest class get an
+ * unpooled buffer of their own.
+ * <p>
+ * Shared by every thread of a pipeline, so all methods are synchronized.
+ */
+final class BufferArena {
+    private static final int MIN_SIZE_SHIFT = 10; // 1 KB
+    private static final int MAX_SIZE_SHIFT = 22; // 4 MB
+
+    private final ArrayDeque<ByteBuffer>[] mFree;
+
+    private long mAcquireCount;
+    private long mAllocationCount;
+    private long mAllocatedBytes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferArena() {
+        mFree = new ArrayDeque[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < mFree.length; i++) {
+            mFree[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return A cleared buffer with room for at least {@code size} bytes, its limit set to its
+     * capacity. Hand it back with {@link #release} once its contents have been consumed.
+     */
+    synchronized ByteBuffer acquire(int size) {
+        mAcquireCount++;
+
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = sizeClass >= 0 ? mFree[sizeClass].poll() : null;
+        if (buffer == null) {
+            int capacity = sizeClass >= 0 ? 1 << (sizeClass + MIN_SIZE_SHIFT) : size;
+            buffer = ByteBuffer.allocateDirect(capacity);
+            mAllocationCount++;
+            mAllocatedBytes += capacity;
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer taken from {@link #acquire}. Unpooled buffers are left to the collector.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= 0 && 1 << (sizeClass + MIN_SIZE_SHIFT) == capacity) {
+            mFree[sizeClass].add(buffer);
+        }
+    }
+
+    /**
+     * @return The index of the smallest class holding {@code size} bytes, -1 if none does
+     */
+    private static int sizeClass(int size) {
+        if (size > 1 << MAX_SIZE_SHIFT) {
+            return -1;
+        }
+
+        int shift = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+    }
+
+    /**
+     * @return Buffers handed out so far, reused or not
+     */
+    synchronized long getAcquireCount() {
+        return mAcquireCount;
+    }
+
+    /**
+     * @return Buffers that had to be allocated because their class had none free
+     */
+    synchronized long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    /**
+     * @return Total capacity of the allocated buffers, in bytes
+     */
+    synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+}
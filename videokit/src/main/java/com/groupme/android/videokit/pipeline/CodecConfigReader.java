@@ -0,0 +1,14 @@
+package com.groupme.android.videokit.pipeline;
+
+/**
+ * Reads the codec specific data of a format, for AVC the SPS and PPS NAL units.
+ *
+ * @param <F> The media format type
+ */
+public interface CodecConfigReader<F> {
+    /**
+     * @return The parameter sets as Annex B NAL units with start codes, or null if the format
+     * doesn't carry any
+     */
+    byte[] read(F format);
+}
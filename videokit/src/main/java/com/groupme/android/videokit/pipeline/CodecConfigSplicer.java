@@ -0,0 +1,39 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Puts parameter sets in front of a sync sample, for video tracks spliced together from ranges
+ * that were encoded with different codec configs.
+ */
+final class CodecConfigSplicer {
+    private ByteBuffer mBuffer;
+
+    /**
+     * @param codecConfig Parameter sets from a {@link CodecConfigReader}, or null
+     * @return A buffer holding the parameter sets followed by the sample, or the sample itself if
+     * there are no parameter sets. {@code info} is updated to describe the returned buffer.
+     */
+    ByteBuffer splice(byte[] codecConfig, ByteBuffer sample, SampleInfo info) {
+        if (codecConfig == null) {
+            return sample;
+        }
+
+        int size = codecConfig.length + info.size;
+        if (mBuffer == null || mBuffer.capacity() < size) {
+            mBuffer = ByteBuffer.allocateDirect(size);
+        }
+
+        ByteBuffer source = sample.duplicate();
+        source.limit(info.offset + info.size);
+        source.position(info.offset);
+
+        mBuffer.clear();
+        mBuffer.put(codecConfig);
+        mBuffer.put(source);
+        mBuffer.flip();
+
+        info.set(0, size, info.presentationTimeUs, info.flags);
+        return mBuffer;
+    }
+}
@@ -0,0 +1,27 @@
+package com.groupme.android.videokit.pipeline;
+
+/**
+ * A codec callback captured on the callback thread and handed to the transcoding thread.
+ */
+public final class CodecEvent<F> {
+    public static final int INPUT_BUFFER_AVAILABLE = 0;
+    public static final int OUTPUT_BUFFER_AVAILABLE = 1;
+    public static final int OUTPUT_FORMAT_CHANGED = 2;
+    public static final int ERROR = 3;
+
+    public final int type;
+    public final CodecPort<F> codec;
+    public final int index;
+    public final SampleInfo info;
+    public final F format;
+    public final RuntimeException error;
+
+    CodecEvent(int type, CodecPort<F> codec, int index, SampleInfo info, F format, RuntimeException error) {
+        this.type = type;
+        this.codec = codec;
+        this.index = index;
+        this.info = info;
+        this.format = format;
+        this.error = error;
+    }
+}
@@ -0,0 +1,46 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects callbacks from any number of codecs into a single queue, so that the async engine can
+ * sleep until one of them has work for it.
+ */
+public class CodecEventQueue<F> implements CodecPort.Callback<F> {
+    private final LinkedBlockingQueue<CodecEvent<F>> mEvents = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onInputBufferAvailable(CodecPort<F> codec, int index) {
+        mEvents.add(new CodecEvent<>(CodecEvent.INPUT_BUFFER_AVAILABLE, codec, index, null, null, null));
+    }
+
+    @Override
+    public void onOutputBufferAvailable(CodecPort<F> codec, int index, SampleInfo info) {
+        mEvents.add(new CodecEvent<>(CodecEvent.OUTPUT_BUFFER_AVAILABLE, codec, index, info, null, null));
+    }
+
+    @Override
+    public void onOutputFormatChanged(CodecPort<F> codec, F format) {
+        mEvents.add(new CodecEvent<>(CodecEvent.OUTPUT_FORMAT_CHANGED, codec, -1, null, format, null));
+    }
+
+    @Override
+    public void onError(CodecPort<F> codec, RuntimeException error) {
+        mEvents.add(new CodecEvent<>(CodecEvent.ERROR, codec, -1, null, null, error));
+    }
+
+    /**
+     * @return The next event, or null if none arrived within the timeout.
+     */
+    public CodecEvent<F> next(long timeoutMs) throws InterruptedException {
+        return mEvents.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The next event if one is already queued, null otherwise.
+     */
+    protected CodecEvent<F> poll() {
+        return mEvents.poll();
+    }
+}
@@ -0,0 +1,56 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@code MediaCodec} that the transcode pipeline drives. Constants carry the same
+ * values as their {@code MediaCodec} counterparts.
+ *
+ * @param <F> The media format type produced by the codec
+ */
+public interface CodecPort<F> {
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    int BUFFER_FLAG_KEY_FRAME = 1;
+    int BUFFER_FLAG_CODEC_CONFIG = 2;
+    int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    String getName();
+
+    /**
+     * Registers callbacks and switches the codec to asynchronous mode. Must be called before the
+     * codec is configured, after which the dequeue methods may no longer be used.
+     */
+    void setCallback(Callback<F> callback);
+
+    void start();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(SampleInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    void signalEndOfInputStream();
+
+    F getOutputFormat();
+
+    void stop();
+
+    void release();
+
+    interface Callback<F> {
+        void onInputBufferAvailable(CodecPort<F> codec, int index);
+        void onOutputBufferAvailable(CodecPort<F> codec, int index, SampleInfo info);
+        void onOutputFormatChanged(CodecPort<F> codec, F format);
+        void onError(CodecPort<F> codec, RuntimeException error);
+    }
+}
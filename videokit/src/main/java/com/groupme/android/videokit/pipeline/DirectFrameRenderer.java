@@ -0,0 +1,13 @@
+package com.groupme.android.videokit.pipeline;
+
+/**
+ * {@link FrameRenderer} for a video decoder configured with the encoder's input surface.
+ * Releasing the decoder output buffer has already queued the frame, with its presentation time,
+ * to the encoder, so there is nothing left to draw.
+ */
+public class DirectFrameRenderer implements FrameRenderer {
+    @Override
+    public void renderFrame(long presentationTimeUs) {
+        // Nothing to do
+    }
+}
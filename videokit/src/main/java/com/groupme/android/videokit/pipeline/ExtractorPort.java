@@ -0,0 +1,26 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@code MediaExtractor} that the transcode pipeline reads from. The extractor is
+ * expected to have exactly one track selected. Constants carry the same values as their
+ * {@code MediaExtractor} counterparts.
+ */
+public interface ExtractorPort {
+    int SEEK_TO_PREVIOUS_SYNC = 0;
+    int SEEK_TO_NEXT_SYNC = 1;
+    int SEEK_TO_CLOSEST_SYNC = 2;
+
+    int SAMPLE_FLAG_SYNC = 1;
+
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    boolean advance();
+
+    void seekTo(long timeUs, int mode);
+}
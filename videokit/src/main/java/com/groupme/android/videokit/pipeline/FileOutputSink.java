@@ -0,0 +1,30 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link OutputSink} writing the output to a local file.
+ */
+public class FileOutputSink implements OutputSink {
+    private final FileChannel mChannel;
+
+    public FileOutputSink(File file) throws IOException {
+        mChannel = new FileOutputStream(file).getChannel();
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            mChannel.write(data);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,97 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.mp4.FragmentedMp4Writer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link MuxerPort} writing a fragmented MP4 file to a channel with {@link FragmentedMp4Writer},
+ * instead of a {@code MediaMuxer} that only finishes the file when it stops. Every fragment is
+ * written to the channel as soon as the next one begins.
+ * <p>
+ * Like {@code MediaMuxer}, it may be written to from several threads.
+ *
+ * @param <F> The media format type
+ */
+public class FragmentedMuxer<F> implements MuxerPort<F> {
+    private final WritableByteChannel mChannel;
+    private final TrackFormatReader<F> mFormatReader;
+    private final FragmentedMp4Writer mWriter;
+
+    /**
+     * @param channel Where the file is written. Closed on {@link #release()}.
+     * @param orientationHint Rotation in degrees to record in the output
+     */
+    public FragmentedMuxer(WritableByteChannel channel, TrackFormatReader<F> formatReader, int orientationHint) {
+        mChannel = channel;
+        mFormatReader = formatReader;
+        mWriter = new FragmentedMp4Writer(channel, orientationHint);
+    }
+
+    @Override
+    public synchronized int addTrack(F format) {
+        return mWriter.addTrack(mFormatReader.read(format));
+    }
+
+    @Override
+    public synchronized void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        if ((info.flags & CodecPort.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0) {
+            // The codec config is in the track's sample description
+            return;
+        }
+
+        // The same buffer may be written to renditions next, so it is restored instead of duplicated
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(info.offset + info.size).position(info.offset);
+
+        try {
+            mWriter.writeSample(trackIndex, buffer, info.presentationTimeUs,
+                    (info.flags & CodecPort.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            buffer.limit(limit).position(position);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        try {
+            mWriter.finish();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return Bytes written to the channel so far
+     */
+    public synchronized long getBytesWritten() {
+        return mWriter.getBytesWritten();
+    }
+
+    public synchronized int getFragmentCount() {
+        return mWriter.getFragmentCount();
+    }
+}
@@ -0,0 +1,42 @@
+package com.groupme.android.videokit.pipeline;
+
+/**
+ * Picks the decoded frames to keep for a lower output frame rate, based on their presentation
+ * times alone. Sources at or below the target rate keep every frame.
+ */
+final class FrameDecimator {
+    private final long mFrameIntervalUs;
+    // Timestamps jitter, a frame this much early still takes its slot
+    private final long mToleranceUs;
+
+    private long mNextFrameTimeUs = -1;
+
+    /**
+     * @param framesPerSecond Target frame rate, or 0 to keep every frame
+     */
+    FrameDecimator(int framesPerSecond) {
+        mFrameIntervalUs = framesPerSecond > 0 ? 1000000L / framesPerSecond : 0;
+        mToleranceUs = mFrameIntervalUs / 4;
+    }
+
+    /**
+     * @return true if the frame should be rendered and encoded, false if it should be dropped
+     */
+    boolean shouldKeep(long presentationTimeUs) {
+        if (mFrameIntervalUs == 0) {
+            return true;
+        }
+
+        if (mNextFrameTimeUs >= 0 && presentationTimeUs < mNextFrameTimeUs - mToleranceUs) {
+            return false;
+        }
+
+        if (mNextFrameTimeUs < 0 || presentationTimeUs >= mNextFrameTimeUs + mFrameIntervalUs) {
+            // First frame, or after a gap in the source: start counting again from this frame
+            mNextFrameTimeUs = presentationTimeUs + mFrameIntervalUs;
+        } else {
+            mNextFrameTimeUs += mFrameIntervalUs;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,13 @@
+package com.groupme.android.videokit.pipeline;
+
+/**
+ * Moves a decoded video frame from the decoder's output surface to the encoder's input surface.
+ */
+public interface FrameRenderer {
+    /**
+     * Called after the decoder output buffer was released with {@code render == true}.
+     *
+     * @param presentationTimeUs Presentation time of the frame in microseconds
+     */
+    void renderFrame(long presentationTimeUs);
+}
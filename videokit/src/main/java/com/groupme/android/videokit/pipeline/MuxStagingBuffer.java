@@ -0,0 +1,81 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Holds copies of encoded samples until the muxer has been started, so the encoders can keep
+ * running while the other track is still waiting for its output format. Each track is bounded on
+ * its own, which guarantees a track that has not produced anything yet can always make progress.
+ * <p>
+ * The copies are made into buffers of a {@link BufferArena}, and written samples are kept for the
+ * next ones, so staging only allocates until the arena has buffers to spare.
+ */
+final class MuxStagingBuffer {
+    private final int mCapacityPerTrack;
+    private final ArrayDeque<Sample> mVideoSamples;
+    private final ArrayDeque<Sample> mAudioSamples;
+    private final ArrayDeque<Sample> mFreeSamples = new ArrayDeque<>();
+    private final BufferArena mArena;
+
+    private int mHighWaterMark;
+
+    MuxStagingBuffer(int capacityPerTrack, BufferArena arena) {
+        mCapacityPerTrack = capacityPerTrack;
+        mArena = arena;
+        mVideoSamples = new ArrayDeque<>(capacityPerTrack);
+        mAudioSamples = new ArrayDeque<>(capacityPerTrack);
+    }
+
+    boolean isFull(boolean video) {
+        return (video ? mVideoSamples : mAudioSamples).size() >= mCapacityPerTrack;
+    }
+
+    /**
+     * Copies the sample out of {@code buffer}, which may be handed back to the codec afterwards.
+     */
+    void add(boolean video, ByteBuffer buffer, SampleInfo info) {
+        if (isFull(video)) {
+            throw new IllegalStateException("mux staging buffer is full");
+        }
+
+        Sample sample = mFreeSamples.poll();
+        if (sample == null) {
+            sample = new Sample();
+        }
+        sample.copyFrom(video, buffer, info, mArena);
+        (video ? mVideoSamples : mAudioSamples).add(sample);
+
+        mHighWaterMark = Math.max(mHighWaterMark, mVideoSamples.size() + mAudioSamples.size());
+    }
+
+    /**
+     * @return the staged sample with the earliest presentation time, or null once empty. Pass it
+     * to {@link #recycle} once it has been written.
+     */
+    Sample poll() {
+        Sample video = mVideoSamples.peek();
+        Sample audio = mAudioSamples.peek();
+
+        if (audio == null || (video != null && video.info.presentationTimeUs <= audio.info.presentationTimeUs)) {
+            return mVideoSamples.poll();
+        }
+
+        return mAudioSamples.poll();
+    }
+
+    /**
+     * Returns the buffer of a sample taken from {@link #poll} to the arena.
+     */
+    void recycle(Sample sample) {
+        sample.recycle(mArena);
+        mFreeSamples.add(sample);
+    }
+
+    /**
+     * @return the largest number of samples held at once
+     */
+    int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+}
@@ -0,0 +1,20 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@code MediaMuxer} that the transcode pipeline writes to.
+ *
+ * @param <F> The media format type accepted for new tracks
+ */
+public interface MuxerPort<F> {
+    int addTrack(F format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,23 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the output file while it is being written, for example to upload it during the
+ * transcode. The bytes arrive in file order and are final, nothing already written is ever
+ * rewritten, which is why a job writing to a sink produces a fragmented MP4 file.
+ */
+public interface OutputSink {
+    /**
+     * Takes the next range of the file, the buffer's remaining bytes. Called on the thread
+     * writing the output, so a slow sink slows down the job.
+     */
+    void write(ByteBuffer data) throws IOException;
+
+    /**
+     * Called once nothing more will be written, also after a failed job. The job's result tells
+     * whether the file is complete.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,423 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.VideoTranscoder.Stats;
+import com.groupme.android.videokit.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits the video at sync samples into segments, transcodes the segments at the same time with
+ * a decoder and encoder each, and concatenates them into the output in order. The audio track is
+ * copied while concatenating.
+ * <p>
+ * Every encoder has its own codec config, so each segment's parameter sets are written in band on
+ * its first sync sample whenever they differ from the ones before.
+ *
+ * @param <F> The media format type
+ */
+public class ParallelTranscodePipeline<F> {
+    /** Segments shorter than this aren't worth a decoder and encoder of their own. */
+    public static final long MIN_SEGMENT_DURATION_US = 5000000;
+
+    private final ExtractorPort mVideoExtractor;
+    private final long mVideoDurationUs;
+    private final SyncSampleIndex mSyncIndex;
+    private final ExtractorPort mAudioExtractor;
+    private final F mAudioFormat;
+    private final MuxerPort<F> mMuxer;
+    private final SegmentTranscoder<F> mSegmentTranscoder;
+    private final CodecConfigReader<F> mCodecConfigReader;
+    private final SegmentStore<F> mSegmentStore;
+    private final int mMaxSegments;
+    private final long mTrimStartTimeUs;
+    private final long mTrimEndTimeUs;
+    private final int mBufferSize;
+    private final Stats mStats;
+    private final Logger mLogger;
+
+    private final Object mLock = new Object();
+    private Throwable mFailure;
+    // Presentation time of the first sample written to each segment, -1 until there is one
+    private long[] mSegmentFirstTimesUs;
+
+    private boolean mAudioDone;
+
+    private ParallelTranscodePipeline(Builder<F> builder) {
+        mVideoExtractor = builder.mVideoExtractor;
+        mVideoDurationUs = builder.mVideoDurationUs;
+        mSyncIndex = builder.mSyncIndex;
+        mAudioExtractor = builder.mAudioExtractor;
+        mAudioFormat = builder.mAudioFormat;
+        mMuxer = builder.mMuxer;
+        mSegmentTranscoder = builder.mSegmentTranscoder;
+        mCodecConfigReader = builder.mCodecConfigReader;
+        mSegmentStore = builder.mSegmentStore;
+        mMaxSegments = builder.mMaxSegments;
+        mTrimStartTimeUs = builder.mTrimStartTimeUs;
+        mTrimEndTimeUs = builder.mTrimEndTimeUs;
+        mBufferSize = builder.mBufferSize;
+        mStats = builder.mStats;
+        mLogger = builder.mLogger;
+    }
+
+    public void transcode() throws IOException, InterruptedException {
+        long[] segmentStartTimesUs = planSegments();
+        mStats.videoSegmentCount = segmentStartTimesUs.length;
+        mSegmentFirstTimesUs = new long[segmentStartTimesUs.length];
+        Arrays.fill(mSegmentFirstTimesUs, -1);
+
+        List<F> formats = transcodeSegments(segmentStartTimesUs);
+        concatenate(formats);
+    }
+
+    /**
+     * Splits the trim range into segments of about the same duration, each starting at a sync
+     * sample except for the first one. The sync samples come from the index when there is one,
+     * otherwise from seeking the video extractor.
+     *
+     * @return The start time of every segment
+     */
+    private long[] planSegments() {
+        long startTimeUs = mTrimStartTimeUs;
+        long endTimeUs = mTrimEndTimeUs == TranscodePipeline.TRIM_TIME_END ? mVideoDurationUs : mTrimEndTimeUs;
+        int count = (int) Math.max(1, Math.min(mMaxSegments, (endTimeUs - startTimeUs) / MIN_SEGMENT_DURATION_US));
+
+        List<Long> startTimesUs = new ArrayList<>(count);
+        startTimesUs.add(startTimeUs);
+
+        for (int i = 1; i < count; i++) {
+            long splitTimeUs = startTimeUs + (endTimeUs - startTimeUs) * i / count;
+            long syncTimeUs;
+            if (mSyncIndex != null) {
+                syncTimeUs = mSyncIndex.getSyncSampleTimeAtOrBefore(splitTimeUs);
+            } else {
+                mVideoExtractor.seekTo(splitTimeUs, ExtractorPort.SEEK_TO_PREVIOUS_SYNC);
+                syncTimeUs = mVideoExtractor.getSampleTime();
+            }
+
+            // Long groups of pictures can put two split points on the same sync sample
+            if (syncTimeUs > startTimesUs.get(startTimesUs.size() - 1)) {
+                startTimesUs.add(syncTimeUs);
+            }
+        }
+
+        long[] result = new long[startTimesUs.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = startTimesUs.get(i);
+        }
+
+        mLogger.d(String.format(Locale.US, "parallel transcode: %d segments starting at %s",
+                result.length, Arrays.toString(result)));
+        return result;
+    }
+
+    /**
+     * Runs every segment on a thread of its own and waits for all of them.
+     *
+     * @return The format of every segment's track
+     */
+    private List<F> transcodeSegments(final long[] segmentStartTimesUs) throws IOException, InterruptedException {
+        final List<F> formats = new ArrayList<>(segmentStartTimesUs.length);
+        Thread[] threads = new Thread[segmentStartTimesUs.length];
+
+        for (int i = 0; i < segmentStartTimesUs.length; i++) {
+            formats.add(null);
+
+            final int segment = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transcodeSegment(segment, segmentStartTimesUs, formats);
+                    } catch (Throwable t) {
+                        synchronized (mLock) {
+                            if (mFailure == null) {
+                                mFailure = t;
+                            }
+                        }
+                    }
+                }
+            }, "VideoTranscoder-segment-" + i);
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        synchronized (mLock) {
+            if (mFailure instanceof IOException) {
+                throw (IOException) mFailure;
+            } else if (mFailure instanceof RuntimeException) {
+                throw (RuntimeException) mFailure;
+            } else if (mFailure instanceof Error) {
+                throw (Error) mFailure;
+            } else if (mFailure != null) {
+                throw new IllegalStateException(mFailure);
+            }
+
+            return formats;
+        }
+    }
+
+    private void transcodeSegment(int segment, long[] segmentStartTimesUs, final List<F> formats)
+            throws IOException, InterruptedException {
+        long startTimeUs = segmentStartTimesUs[segment];
+        long endTimeUs = segment + 1 < segmentStartTimesUs.length ? segmentStartTimesUs[segment + 1] - 1 : mTrimEndTimeUs;
+        final int index = segment;
+
+        final MuxerPort<F> muxer = mSegmentStore.createMuxer(segment);
+        try {
+            // Remember the encoder's format, the segment's codec config is needed for splicing
+            mSegmentTranscoder.transcode(startTimeUs, endTimeUs, new MuxerPort<F>() {
+                @Override
+                public int addTrack(F format) {
+                    synchronized (mLock) {
+                        formats.set(index, format);
+                    }
+                    return muxer.addTrack(format);
+                }
+
+                @Override
+                public void start() {
+                    muxer.start();
+                }
+
+                @Override
+                public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+                    synchronized (mLock) {
+                        if (mSegmentFirstTimesUs[index] < 0) {
+                            mSegmentFirstTimesUs[index] = info.presentationTimeUs;
+                        }
+                    }
+                    muxer.writeSampleData(trackIndex, buffer, info);
+                }
+
+                @Override
+                public void stop() {
+                    muxer.stop();
+                }
+
+                @Override
+                public void release() {
+                    muxer.release();
+                }
+            });
+
+            muxer.stop();
+        } finally {
+            muxer.release();
+        }
+
+        mLogger.d(String.format(Locale.US, "parallel transcode: segment %d done", segment));
+    }
+
+    private void concatenate(List<F> formats) throws IOException {
+        mLogger.d("muxer: adding video track.");
+        int videoTrack = mMuxer.addTrack(formats.get(0));
+
+        int audioTrack = -1;
+        if (mAudioExtractor != null) {
+            mLogger.d("muxer: adding audio track.");
+            audioTrack = mMuxer.addTrack(mAudioFormat);
+
+            mAudioExtractor.seekTo(mTrimStartTimeUs, ExtractorPort.SEEK_TO_CLOSEST_SYNC);
+            while (mAudioExtractor.getSampleTime() >= 0 && mAudioExtractor.getSampleTime() < mTrimStartTimeUs) {
+                mAudioExtractor.advance();
+            }
+        }
+
+        mLogger.d("muxer: starting");
+        mMuxer.start();
+
+        ByteBuffer videoBuffer = ByteBuffer.allocateDirect(mBufferSize);
+        ByteBuffer audioBuffer = mAudioExtractor != null ? ByteBuffer.allocateDirect(mBufferSize) : null;
+        SampleInfo info = new SampleInfo();
+        SampleInfo audioInfo = new SampleInfo();
+        CodecConfigSplicer splicer = new CodecConfigSplicer();
+
+        byte[] activeCodecConfig = mCodecConfigReader.read(formats.get(0));
+
+        for (int segment = 0; segment < formats.size(); segment++) {
+            ExtractorPort extractor = mSegmentStore.openExtractor(segment);
+            byte[] codecConfig = mCodecConfigReader.read(formats.get(segment));
+            boolean first = true;
+            // A segment file may start its own timeline at 0, as MediaMuxer does
+            long offsetUs = 0;
+
+            int size;
+            while ((size = extractor.readSampleData(videoBuffer, 0)) >= 0) {
+                if (first) {
+                    synchronized (mLock) {
+                        offsetUs = mSegmentFirstTimesUs[segment] - extractor.getSampleTime();
+                    }
+                }
+
+                boolean sync = (extractor.getSampleFlags() & ExtractorPort.SAMPLE_FLAG_SYNC) != 0;
+                info.set(0, size, extractor.getSampleTime() + offsetUs, sync ? CodecPort.BUFFER_FLAG_KEY_FRAME : 0);
+
+                // Keep the audio interleaved with the video
+                copyAudio(audioTrack, audioBuffer, audioInfo, info.presentationTimeUs);
+
+                if (first && sync && !Arrays.equals(codecConfig, activeCodecConfig)) {
+                    mMuxer.writeSampleData(videoTrack, splicer.splice(codecConfig, videoBuffer, info), info);
+                    activeCodecConfig = codecConfig;
+                } else {
+                    mMuxer.writeSampleData(videoTrack, videoBuffer, info);
+                }
+
+                first = false;
+                extractor.advance();
+            }
+        }
+
+        copyAudio(audioTrack, audioBuffer, audioInfo, Long.MAX_VALUE);
+    }
+
+    /**
+     * Copies audio samples up to the given time.
+     */
+    private void copyAudio(int audioTrack, ByteBuffer buffer, SampleInfo info, long timeUs) {
+        while (mAudioExtractor != null && !mAudioDone) {
+            long sampleTime = mAudioExtractor.getSampleTime();
+            if (sampleTime > timeUs) {
+                return;
+            }
+
+            int size = mAudioExtractor.readSampleData(buffer, 0);
+            if (size < 0 || (mTrimEndTimeUs != TranscodePipeline.TRIM_TIME_END && sampleTime > mTrimEndTimeUs)) {
+                mLogger.d("audio extractor: EOS");
+                mAudioDone = true;
+                return;
+            }
+
+            info.set(0, size, sampleTime, CodecPort.BUFFER_FLAG_KEY_FRAME);
+            mMuxer.writeSampleData(audioTrack, buffer, info);
+            mStats.audioExtractedFrameCount++;
+
+            mAudioExtractor.advance();
+        }
+    }
+
+    public static final class Builder<F> {
+        private ExtractorPort mVideoExtractor;
+        private long mVideoDurationUs;
+        private SyncSampleIndex mSyncIndex;
+        private ExtractorPort mAudioExtractor;
+        private F mAudioFormat;
+        private MuxerPort<F> mMuxer;
+        private SegmentTranscoder<F> mSegmentTranscoder;
+        private CodecConfigReader<F> mCodecConfigReader;
+        private SegmentStore<F> mSegmentStore;
+        private int mMaxSegments = 2;
+        private long mTrimStartTimeUs = 0;
+        private long mTrimEndTimeUs = TranscodePipeline.TRIM_TIME_END;
+        private int mBufferSize = RemuxPipeline.DEFAULT_BUFFER_SIZE;
+        private Stats mStats;
+        private Logger mLogger;
+
+        /**
+         * @param extractor Source video, only used to find the split points
+         * @param durationUs Duration of the source video
+         */
+        public Builder<F> video(ExtractorPort extractor, long durationUs) {
+            mVideoExtractor = extractor;
+            mVideoDurationUs = durationUs;
+            return this;
+        }
+
+        /**
+         * @param syncIndex Sync samples of the source video, to find the split points without
+         *                  seeking the extractor
+         */
+        public Builder<F> syncIndex(SyncSampleIndex syncIndex) {
+            mSyncIndex = syncIndex;
+            return this;
+        }
+
+        /**
+         * Copies the audio track into the output.
+         */
+        public Builder<F> audio(ExtractorPort extractor, F format) {
+            mAudioExtractor = extractor;
+            mAudioFormat = format;
+            return this;
+        }
+
+        public Builder<F> muxer(MuxerPort<F> muxer) {
+            mMuxer = muxer;
+            return this;
+        }
+
+        /**
+         * @param segmentTranscoder Transcodes a segment, called from a thread per segment
+         * @param codecConfigReader Reads parameter sets from encoder formats
+         * @param segmentStore Keeps the encoded segments until they are concatenated
+         */
+        public Builder<F> segments(SegmentTranscoder<F> segmentTranscoder, CodecConfigReader<F> codecConfigReader,
+                                   SegmentStore<F> segmentStore) {
+            mSegmentTranscoder = segmentTranscoder;
+            mCodecConfigReader = codecConfigReader;
+            mSegmentStore = segmentStore;
+            return this;
+        }
+
+        /**
+         * @param maxSegments Segments to transcode at once, at most one per available decoder and
+         *                    encoder pair
+         */
+        public Builder<F> maxSegments(int maxSegments) {
+            mMaxSegments = maxSegments;
+            return this;
+        }
+
+        public Builder<F> trim(long startTimeUs, long endTimeUs) {
+            mTrimStartTimeUs = startTimeUs;
+            mTrimEndTimeUs = endTimeUs;
+            return this;
+        }
+
+        /**
+         * @param bufferSize Size of the largest sample in either track
+         */
+        public Builder<F> bufferSize(int bufferSize) {
+            mBufferSize = bufferSize;
+            return this;
+        }
+
+        public Builder<F> stats(Stats stats) {
+            mStats = stats;
+            return this;
+        }
+
+        public Builder<F> logger(Logger logger) {
+            mLogger = logger;
+            return this;
+        }
+
+        public ParallelTranscodePipeline<F> build() {
+            if (mVideoExtractor == null || mVideoDurationUs <= 0) {
+                throw new IllegalStateException("video() must be called before build()");
+            }
+
+            if (mSegmentTranscoder == null || mCodecConfigReader == null || mSegmentStore == null) {
+                throw new IllegalStateException("segments() must be called before build()");
+            }
+
+            if (mMuxer == null) {
+                throw new IllegalStateException("muxer() must be called before build()");
+            }
+
+            if (mStats == null || mLogger == null) {
+                throw new IllegalStateException("stats() and logger() must be called before build()");
+            }
+
+            return new ParallelTranscodePipeline<>(this);
+        }
+    }
+}
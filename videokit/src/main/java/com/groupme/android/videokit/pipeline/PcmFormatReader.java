@@ -0,0 +1,18 @@
+package com.groupme.android.videokit.pipeline;
+
+/**
+ * Reads the layout of decoded audio from an audio decoder's output format.
+ *
+ * @param <F> The media format type
+ */
+public interface PcmFormatReader<F> {
+    /**
+     * @return Frames per second of the decoded audio
+     */
+    int getSampleRate(F format);
+
+    /**
+     * @return Size of one frame, a sample of every channel, in bytes
+     */
+    int getFrameSize(F format);
+}
@@ -0,0 +1,152 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies decoded audio into the audio encoder's input buffers. Decoders and encoders rarely agree
+ * on a buffer size, so decoded buffers are split or coalesced until every encoder buffer is full,
+ * and each one is stamped with the time of its first frame, counted from the frames queued before
+ * it.
+ * <p>
+ * A decoded buffer may span several encoder buffers, so it is only consumed once all of it has
+ * been copied. Without a frame size the data can't be retimed, and every decoded buffer is queued
+ * on its own as before.
+ */
+final class PcmRechunker {
+    private final CodecPort<?> mEncoder;
+
+    private int mSampleRate;
+    private int mFrameSize;
+
+    private int mInputIndex = -1;
+    private ByteBuffer mInput;
+    private int mInputSize;
+
+    private int mConsumed;
+    private long mStartTimeUs = -1;
+    private long mQueuedBytes;
+    private int mQueuedBufferCount;
+
+    PcmRechunker(CodecPort<?> encoder) {
+        mEncoder = encoder;
+    }
+
+    /**
+     * The format is only known from the first decoded buffer, by which time an encoder input
+     * buffer may already be open. Its size is rounded again so it still fills up with whole frames.
+     *
+     * @param frameSize Size of one frame of every channel in bytes, 0 to queue buffers as they are
+     */
+    void setFormat(int sampleRate, int frameSize) {
+        mSampleRate = sampleRate;
+        mFrameSize = frameSize;
+        if (mInput != null) {
+            mInputSize = getInputSize(mInput);
+        }
+    }
+
+    /**
+     * @return true if the next call to {@link #feed} first needs an encoder input buffer
+     */
+    boolean needsInputBuffer() {
+        return mInputIndex < 0;
+    }
+
+    void setInputBuffer(int index, ByteBuffer buffer) {
+        buffer.clear();
+        mInputIndex = index;
+        mInput = buffer;
+        mInputSize = getInputSize(buffer);
+    }
+
+    private int getInputSize(ByteBuffer buffer) {
+        // Whole frames only, so every buffer starts on a frame
+        int size = mFrameSize > 0 ? buffer.capacity() / mFrameSize * mFrameSize : buffer.capacity();
+        if (size == 0) {
+            throw new IllegalStateException("audio encoder input buffer can't hold a single frame");
+        }
+        return size;
+    }
+
+    /**
+     * Copies as much of a decoded buffer as the encoder input buffers take, queueing every one
+     * that fills up. The end of stream flag is passed on with whatever is left over.
+     *
+     * @return true once the decoded buffer has been consumed and can go back to the decoder,
+     * false if it needs another encoder input buffer first
+     */
+    boolean feed(ByteBuffer decoded, SampleInfo info) {
+        if (mStartTimeUs < 0 && info.size > 0) {
+            mStartTimeUs = info.presentationTimeUs;
+        }
+
+        if (mFrameSize == 0) {
+            return feedWhole(decoded, info);
+        }
+
+        while (mConsumed < info.size) {
+            if (needsInputBuffer()) {
+                return false;
+            }
+
+            int size = Math.min(info.size - mConsumed, mInputSize - mInput.position());
+            decoded.limit(info.offset + mConsumed + size);
+            decoded.position(info.offset + mConsumed);
+            mInput.put(decoded);
+            mConsumed += size;
+
+            if (mInput.position() == mInputSize) {
+                queue(0);
+            }
+        }
+
+        if ((info.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if (needsInputBuffer()) {
+                return false;
+            }
+            queue(CodecPort.BUFFER_FLAG_END_OF_STREAM);
+        }
+
+        mConsumed = 0;
+        return true;
+    }
+
+    private boolean feedWhole(ByteBuffer decoded, SampleInfo info) {
+        if (needsInputBuffer()) {
+            return false;
+        }
+
+        if (info.size > mInputSize) {
+            throw new IllegalStateException("decoded audio buffer of " + info.size
+                    + " bytes doesn't fit an encoder input buffer of " + mInputSize);
+        }
+
+        decoded.limit(info.offset + info.size);
+        decoded.position(info.offset);
+        mInput.put(decoded);
+
+        mEncoder.queueInputBuffer(mInputIndex, 0, info.size, info.presentationTimeUs, info.flags);
+        mQueuedBufferCount++;
+        mInputIndex = -1;
+        mInput = null;
+        return true;
+    }
+
+    private void queue(int flags) {
+        int size = mInput.position();
+        long presentationTimeUs = Math.max(mStartTimeUs, 0) + mQueuedBytes / mFrameSize * 1000000 / mSampleRate;
+
+        mEncoder.queueInputBuffer(mInputIndex, 0, size, presentationTimeUs, flags);
+        mQueuedBytes += size;
+        mQueuedBufferCount++;
+        mInputIndex = -1;
+        mInput = null;
+    }
+
+    /**
+     * @return Buffers queued to the encoder so far
+     */
+    int getQueuedBufferCount() {
+        return mQueuedBufferCount;
+    }
+}
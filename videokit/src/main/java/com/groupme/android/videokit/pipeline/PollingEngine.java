@@ -0,0 +1,314 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Runs every stage of a {@link TranscodePipeline} from one loop, polling each codec in turn
+ * with a blocking timeout.
+ */
+class PollingEngine<F> {
+    /** How long to wait for the next buffer to become available in microseconds. */
+    private static final int TIMEOUT_USEC = 40000;
+
+    final TranscodePipeline<F> mPipeline;
+
+    private final SampleInfo mVideoDecoderOutputBufferInfo = new SampleInfo();
+    private final SampleInfo mVideoEncoderOutputBufferInfo = new SampleInfo();
+    private final SampleInfo mAudioDecoderOutputBufferInfo = new SampleInfo();
+    private final SampleInfo mAudioEncoderOutputBufferInfo = new SampleInfo();
+
+    int mPendingAudioDecoderOutputBufferIndex = -1;
+
+    PollingEngine(TranscodePipeline<F> pipeline) {
+        mPipeline = pipeline;
+    }
+
+    void transcode() throws InterruptedException {
+        TranscodePipeline<F> p = mPipeline;
+        boolean includeAudio = p.hasAudio();
+        boolean audioCopy = p.isAudioCopy();
+
+        boolean videoEncoderDone = false;
+        boolean audioEncoderDone = false;
+
+        boolean videoDecoderDone = false;
+        boolean audioDecoderDone = false;
+
+        boolean videoExtractorDone = false;
+        boolean audioExtractorDone = false;
+
+        boolean muxing = false;
+
+        p.seekToTrimStart();
+
+        // loop until all the encoding is finished
+        while (!videoEncoderDone || (includeAudio && !audioEncoderDone)) {
+
+            // Encoded samples are staged until the muxer is started. A track only pauses once its
+            // share of the staging buffer is full.
+            boolean videoFlowing = p.canAcceptEncoderOutput(true);
+            boolean audioFlowing = includeAudio && p.canAcceptEncoderOutput(false);
+            boolean audioDecoding = audioFlowing && !audioCopy;
+
+            // Extract video from file and feed to decoder.
+            if (!videoExtractorDone && videoFlowing) {
+                videoExtractorDone = extractAndFeedDecoder(p.mVideoDecoder, p.mVideoExtractor, "video");
+            }
+
+            // Extract audio from file and feed to decoder.
+            if (!audioExtractorDone && audioDecoding) {
+                audioExtractorDone = extractAndFeedDecoder(p.mAudioDecoder, p.mAudioExtractor, "audio");
+            }
+
+            // Poll output frames from the video decoder and feed the encoder
+            if (!videoDecoderDone && videoFlowing) {
+                videoDecoderDone = pollVideoFromDecoderAndFeedToEncoder();
+            }
+
+            // Poll output frames from the audio decoder.
+            if (!audioDecoderDone && mPendingAudioDecoderOutputBufferIndex == -1 && audioDecoding) {
+                pollAudioFromDecoder();
+            }
+
+            // Feed the pending audio buffer to the audio encoder
+            if (includeAudio && mPendingAudioDecoderOutputBufferIndex != -1) {
+                feedPendingAudioBufferToEncoder();
+            }
+
+            // Poll frames from video encoder and send them to the muxer
+            if (!videoEncoderDone && videoFlowing && (videoDecoderDone || !p.isVideoEncoderDrained())) {
+                videoEncoderDone = pollVideoFromEncoderAndFeedToMuxer();
+            }
+
+            // Poll frames from audio encoder and send them to the muxer
+            if (!audioEncoderDone && audioDecoding) {
+                audioEncoderDone = pollAudioFromEncoderAndFeedToMuxer();
+            }
+
+            // Copy audio samples up to the video written so far
+            if (audioCopy) {
+                while (!audioEncoderDone && p.canAcceptEncoderOutput(false) && !p.isAudioCopyAhead(videoEncoderDone)) {
+                    audioEncoderDone = p.copyAudioSample();
+                }
+            }
+
+            // Setup muxer
+            if (!muxing && p.isReadyToMux()) {
+                p.setupMuxer();
+                muxing = true;
+            }
+        }
+
+        if (includeAudio && mPendingAudioDecoderOutputBufferIndex != -1) {
+            throw new IllegalStateException("no frame should be pending");
+        }
+    }
+
+    /**
+     * Extract and feed to decoder.
+     *
+     * @return Finished. True when it extracts the last frame.
+     */
+    boolean extractAndFeedDecoder(CodecPort<F> decoder, ExtractorPort extractor, String type) {
+        int decoderInputBufferIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+        if (decoderInputBufferIndex == CodecPort.INFO_TRY_AGAIN_LATER) {
+            mPipeline.mLogger.d(String.format(Locale.US, "no %s decoder input buffer", type));
+            return false;
+        }
+
+        mPipeline.mLogger.d(String.format(Locale.US, "%s decoder: returned input buffer: %d", type, decoderInputBufferIndex));
+
+        return mPipeline.feedDecoderInputBuffer(decoder, decoderInputBufferIndex,
+                decoder.getInputBuffer(decoderInputBufferIndex), extractor);
+    }
+
+    /**
+     * Extract frame for decoder and feed to encoder.
+     * @return true if video was completely polled from decoder and fed to encoder, false otherwise
+     */
+    boolean pollVideoFromDecoderAndFeedToEncoder() {
+        CodecPort<F> decoder = mPipeline.mVideoDecoder;
+        int decoderOutputBufferIndex = decoder.dequeueOutputBuffer(mVideoDecoderOutputBufferInfo, TIMEOUT_USEC);
+
+        if (decoderOutputBufferIndex == CodecPort.INFO_TRY_AGAIN_LATER) {
+            mPipeline.mLogger.d("no video decoder output buffer");
+            return false;
+        }
+
+        if (decoderOutputBufferIndex == CodecPort.INFO_OUTPUT_BUFFERS_CHANGED) {
+            mPipeline.mLogger.d("video decoder: output buffers changed");
+            return false;
+        }
+
+        if (decoderOutputBufferIndex == CodecPort.INFO_OUTPUT_FORMAT_CHANGED) {
+            mPipeline.mDecoderOutputVideoFormat = decoder.getOutputFormat();
+            mPipeline.mLogger.d(String.format("video decoder: output format changed: %s", mPipeline.mDecoderOutputVideoFormat));
+            return false;
+        }
+
+        if ((mVideoDecoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            mPipeline.mLogger.d("video decoder: codec config buffer");
+            decoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
+            return false;
+        }
+
+        return mPipeline.renderVideoDecoderOutputBuffer(decoderOutputBufferIndex, mVideoDecoderOutputBufferInfo);
+    }
+
+    void pollAudioFromDecoder() {
+        CodecPort<F> decoder = mPipeline.mAudioDecoder;
+        int decoderOutputBufferIndex = decoder.dequeueOutputBuffer(mAudioDecoderOutputBufferInfo, TIMEOUT_USEC);
+
+        if (decoderOutputBufferIndex == CodecPort.INFO_TRY_AGAIN_LATER) {
+            mPipeline.mLogger.d("no audio decoder output buffer");
+            return;
+        }
+
+        if (decoderOutputBufferIndex == CodecPort.INFO_OUTPUT_BUFFERS_CHANGED) {
+            mPipeline.mLogger.d("audio decoder: output buffers changed");
+            return;
+        }
+
+        if (decoderOutputBufferIndex == CodecPort.INFO_OUTPUT_FORMAT_CHANGED) {
+            mPipeline.mDecoderOutputAudioFormat = decoder.getOutputFormat();
+            mPipeline.mLogger.d(String.format(Locale.US, "audio decoder: output format changed: %s", mPipeline.mDecoderOutputAudioFormat));
+            return;
+        }
+
+        mPipeline.mLogger.d(String.format(Locale.US, "audio decoder: returned output buffer: %d", decoderOutputBufferIndex));
+        mPipeline.mLogger.d(String.format(Locale.US, "audio decoder: returned buffer of size %d", mAudioDecoderOutputBufferInfo.size));
+
+        if ((mAudioDecoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            mPipeline.mLogger.d("audio decoder: codec config buffer");
+            decoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
+            return;
+        }
+
+        mPipeline.mLogger.d(String.format("audio decoder: returned buffer for time %s", mAudioDecoderOutputBufferInfo.presentationTimeUs));
+
+        if (mPipeline.dropAudioPreRoll(decoderOutputBufferIndex, mAudioDecoderOutputBufferInfo)) {
+            return;
+        }
+        mPipeline.mLogger.d(String.format("audio decoder: output buffer is now pending: %s", decoderOutputBufferIndex));
+
+        mPendingAudioDecoderOutputBufferIndex = decoderOutputBufferIndex;
+        mPipeline.mStats.audioDecodedFrameCount++;
+    }
+
+    void feedPendingAudioBufferToEncoder() {
+        mPipeline.mLogger.d(String.format(Locale.US, "audio decoder: attempting to process pending buffer: %d", mPendingAudioDecoderOutputBufferIndex));
+
+        CodecPort<F> encoder = mPipeline.mAudioEncoder;
+
+        // A large decoded buffer may fill several encoder input buffers
+        while (mPendingAudioDecoderOutputBufferIndex != -1) {
+            if (mPipeline.needsAudioEncoderInputBuffer()) {
+                int encoderInputBufferIndex = encoder.dequeueInputBuffer(TIMEOUT_USEC);
+
+                if (encoderInputBufferIndex == CodecPort.INFO_TRY_AGAIN_LATER) {
+                    mPipeline.mLogger.d("no audio encoder input buffer");
+                    return;
+                }
+
+                mPipeline.mLogger.d(String.format(Locale.US, "audio encoder: returned input buffer: %d", encoderInputBufferIndex));
+                mPipeline.setAudioEncoderInputBuffer(encoderInputBufferIndex, encoder.getInputBuffer(encoderInputBufferIndex));
+            }
+
+            if (mPipeline.feedAudioDecoderOutputToEncoder(
+                    mPendingAudioDecoderOutputBufferIndex,
+                    mPipeline.mAudioDecoder.getOutputBuffer(mPendingAudioDecoderOutputBufferIndex),
+                    mAudioDecoderOutputBufferInfo)) {
+                mPendingAudioDecoderOutputBufferIndex = -1;
+            }
+        }
+    }
+
+    /**
+     * @return true if video was successfully polled from encoder and fed to muxer, false otherwise
+     */
+    boolean pollVideoFromEncoderAndFeedToMuxer() throws InterruptedException {
+        CodecPort<F> encoder = mPipeline.mVideoEncoder;
+        int encoderOutputBufferIndex = encoder.dequeueOutputBuffer(mVideoEncoderOutputBufferInfo, TIMEOUT_USEC);
+
+        if (encoderOutputBufferIndex == CodecPort.INFO_TRY_AGAIN_LATER) {
+            mPipeline.mLogger.d("no video encoder output buffer");
+            return false;
+        }
+
+        if (encoderOutputBufferIndex == CodecPort.INFO_OUTPUT_BUFFERS_CHANGED) {
+            mPipeline.mLogger.d("video encoder: output buffers changed");
+            return false;
+        }
+
+        if (encoderOutputBufferIndex == CodecPort.INFO_OUTPUT_FORMAT_CHANGED) {
+            onEncoderOutputFormat(true, encoder.getOutputFormat());
+            return false;
+        }
+
+        if ((mVideoEncoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            mPipeline.mLogger.d("video encoder: codec config buffer");
+            // Simply ignore codec config buffers.
+            encoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
+            return false;
+        }
+
+        return onEncoderOutputBuffer(true, encoderOutputBufferIndex,
+                encoder.getOutputBuffer(encoderOutputBufferIndex), mVideoEncoderOutputBufferInfo);
+    }
+
+    boolean pollAudioFromEncoderAndFeedToMuxer() throws InterruptedException {
+        CodecPort<F> encoder = mPipeline.mAudioEncoder;
+        int encoderOutputBufferIndex = encoder.dequeueOutputBuffer(mAudioEncoderOutputBufferInfo, TIMEOUT_USEC);
+
+        if (encoderOutputBufferIndex == CodecPort.INFO_TRY_AGAIN_LATER) {
+            mPipeline.mLogger.d("no audio encoder output buffer");
+            return false;
+        }
+
+        if (encoderOutputBufferIndex == CodecPort.INFO_OUTPUT_BUFFERS_CHANGED) {
+            mPipeline.mLogger.d("audio encoder: output buffers changed");
+            return false;
+        }
+
+        if (encoderOutputBufferIndex == CodecPort.INFO_OUTPUT_FORMAT_CHANGED) {
+            onEncoderOutputFormat(false, encoder.getOutputFormat());
+            return false;
+        }
+
+        if ((mAudioEncoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            mPipeline.mLogger.d("audio encoder: codec config buffer");
+            // Simply ignore codec config buffers.
+            encoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
+            return false;
+        }
+
+        return onEncoderOutputBuffer(false, encoderOutputBufferIndex,
+                encoder.getOutputBuffer(encoderOutputBufferIndex), mAudioEncoderOutputBufferInfo);
+    }
+
+    /**
+     * Called when an encoder reports its output format.
+     */
+    void onEncoderOutputFormat(boolean video, F format) {
+        if (video) {
+            mPipeline.setEncoderOutputVideoFormat(format);
+        } else {
+            mPipeline.setEncoderOutputAudioFormat(format);
+        }
+    }
+
+    /**
+     * Called with every encoded buffer. Writes it to the muxer, or stages it if the muxer has not
+     * been started yet.
+     *
+     * @return true if this was the last buffer of the stream, false otherwise
+     */
+    boolean onEncoderOutputBuffer(boolean video, int index, ByteBuffer buffer, SampleInfo info) throws InterruptedException {
+        if (video) {
+            return mPipeline.writeVideoEncoderOutputBuffer(index, buffer, info);
+        } else {
+            return mPipeline.writeAudioEncoderOutputBuffer(index, buffer, info);
+        }
+    }
+}
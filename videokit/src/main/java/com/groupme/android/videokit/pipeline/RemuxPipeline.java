@@ -0,0 +1,163 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.VideoTranscoder.Stats;
+import com.groupme.android.videokit.util.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Copies compressed samples from the extractors straight into the muxer, for sources that
+ * already meet the output constraints. No codec is involved, so the job is bound by I/O alone.
+ *
+ * @param <F> The media format type accepted by the muxer
+ */
+public class RemuxPipeline<F> {
+    /** Sample buffer size used when the source formats don't declare a max input size. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final ExtractorPort mVideoExtractor;
+    private final F mVideoFormat;
+    private final ExtractorPort mAudioExtractor;
+    private final F mAudioFormat;
+    private final MuxerPort<F> mMuxer;
+    private final int mBufferSize;
+    private final Stats mStats;
+    private final Logger mLogger;
+
+    private RemuxPipeline(Builder<F> builder) {
+        mVideoExtractor = builder.mVideoExtractor;
+        mVideoFormat = builder.mVideoFormat;
+        mAudioExtractor = builder.mAudioExtractor;
+        mAudioFormat = builder.mAudioFormat;
+        mMuxer = builder.mMuxer;
+        mBufferSize = builder.mBufferSize;
+        mStats = builder.mStats;
+        mLogger = builder.mLogger;
+    }
+
+    /**
+     * Copies every sample of both tracks, interleaved by presentation time.
+     */
+    public void remux() {
+        boolean hasAudio = mAudioExtractor != null;
+
+        mLogger.d("muxer: adding video track.");
+        int videoTrack = mMuxer.addTrack(mVideoFormat);
+
+        int audioTrack = -1;
+        if (hasAudio) {
+            mLogger.d("muxer: adding audio track.");
+            audioTrack = mMuxer.addTrack(mAudioFormat);
+        }
+
+        mLogger.d("muxer: starting");
+        mMuxer.start();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(mBufferSize);
+        SampleInfo info = new SampleInfo();
+
+        boolean videoDone = false;
+        boolean audioDone = !hasAudio;
+
+        while (!videoDone || !audioDone) {
+            // Extractors report -1 once they run out, which sends us to the finished track first
+            boolean video = audioDone
+                    || (!videoDone && mVideoExtractor.getSampleTime() <= mAudioExtractor.getSampleTime());
+            ExtractorPort extractor = video ? mVideoExtractor : mAudioExtractor;
+
+            int size = extractor.readSampleData(buffer, 0);
+            if (size < 0) {
+                mLogger.d(String.format("%s extractor: EOS", video ? "video" : "audio"));
+                if (video) {
+                    videoDone = true;
+                } else {
+                    audioDone = true;
+                }
+                continue;
+            }
+
+            int flags = (extractor.getSampleFlags() & ExtractorPort.SAMPLE_FLAG_SYNC) != 0
+                    ? CodecPort.BUFFER_FLAG_KEY_FRAME : 0;
+            info.set(0, size, extractor.getSampleTime(), flags);
+
+            mLogger.d(String.format(Locale.US, "%s extractor: copying sample of size %d for time %d",
+                    video ? "video" : "audio", size, info.presentationTimeUs));
+
+            if (video) {
+                mMuxer.writeSampleData(videoTrack, buffer, info);
+                mStats.videoExtractedFrameCount++;
+            } else {
+                mMuxer.writeSampleData(audioTrack, buffer, info);
+                mStats.audioExtractedFrameCount++;
+            }
+
+            extractor.advance();
+        }
+    }
+
+    public static final class Builder<F> {
+        private ExtractorPort mVideoExtractor;
+        private F mVideoFormat;
+        private ExtractorPort mAudioExtractor;
+        private F mAudioFormat;
+        private MuxerPort<F> mMuxer;
+        private int mBufferSize = DEFAULT_BUFFER_SIZE;
+        private Stats mStats;
+        private Logger mLogger;
+
+        /**
+         * @param format The source track format, handed to the muxer as is
+         */
+        public Builder<F> video(ExtractorPort extractor, F format) {
+            mVideoExtractor = extractor;
+            mVideoFormat = format;
+            return this;
+        }
+
+        public Builder<F> audio(ExtractorPort extractor, F format) {
+            mAudioExtractor = extractor;
+            mAudioFormat = format;
+            return this;
+        }
+
+        public Builder<F> muxer(MuxerPort<F> muxer) {
+            mMuxer = muxer;
+            return this;
+        }
+
+        /**
+         * @param bufferSize Size of the largest sample in either track
+         */
+        public Builder<F> bufferSize(int bufferSize) {
+            mBufferSize = bufferSize;
+            return this;
+        }
+
+        public Builder<F> stats(Stats stats) {
+            mStats = stats;
+            return this;
+        }
+
+        public Builder<F> logger(Logger logger) {
+            mLogger = logger;
+            return this;
+        }
+
+        public RemuxPipeline<F> build() {
+            if (mVideoExtractor == null || mVideoFormat == null) {
+                throw new IllegalStateException("video() must be called before build()");
+            }
+
+            if (mMuxer == null) {
+                throw new IllegalStateException("muxer() must be called before build()");
+            }
+
+            if (mStats == null || mLogger == null) {
+                throw new IllegalStateException("stats() and logger() must be called before build()");
+            }
+
+            return new RemuxPipeline<>(this);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.util.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * An extra output of the pipeline. It is fed the same decoded frames as the main video encoder,
+ * and the same audio samples as the main muxer, so one decode produces several sizes or bit rates.
+ * <p>
+ * The encoder is drained by the video chain, while audio may arrive from another thread, so every
+ * method touching the muxer is synchronized.
+ *
+ * @param <F> The media format type used by the codecs and muxer
+ */
+final class Rendition<F> {
+    private static final long DRAIN_TIMEOUT_US = 10000;
+    /** How long the audio track waits for the output format once the encoder has all of its input. */
+    private static final long FORMAT_TIMEOUT_US = 10000000;
+    /** Enough to cover the encoder's latency while the audio track is already running. */
+    private static final int MAX_STAGED_SAMPLES_PER_TRACK = 120;
+
+    private final int mIndex;
+    private final CodecPort<F> mEncoder;
+    private final FrameRenderer mFrameRenderer;
+    private final MuxerPort<F> mMuxer;
+    private final boolean mHasAudio;
+    private final Logger mLogger;
+
+    private final SampleInfo mInfo = new SampleInfo();
+    private final MuxStagingBuffer mStaging;
+
+    private F mVideoFormat;
+    private F mAudioFormat;
+    private int mVideoTrack = -1;
+    private int mAudioTrack = -1;
+    private boolean mMuxerStarted;
+    private boolean mDone;
+    private boolean mInputDone;
+    private int mEncodedFrameCount;
+
+    Rendition(int index, CodecPort<F> encoder, FrameRenderer renderer, MuxerPort<F> muxer, boolean hasAudio,
+              BufferArena arena, Logger logger) {
+        mIndex = index;
+        mEncoder = encoder;
+        mFrameRenderer = renderer;
+        mMuxer = muxer;
+        mHasAudio = hasAudio;
+        mStaging = new MuxStagingBuffer(MAX_STAGED_SAMPLES_PER_TRACK, arena);
+        mLogger = logger;
+    }
+
+    /**
+     * Draws the frame the main renderer just latched. Must be called on the video chain.
+     */
+    void renderFrame(long presentationTimeUs) {
+        mFrameRenderer.renderFrame(presentationTimeUs);
+    }
+
+    synchronized void signalEndOfInputStream() {
+        mEncoder.signalEndOfInputStream();
+        mInputDone = true;
+    }
+
+    /**
+     * The encoder needs more frames from the video chain before it reports its format, so the
+     * pipeline holds audio back while this is false instead of waiting here.
+     *
+     * @return true if an audio sample can be written or staged without waiting for the encoder
+     */
+    synchronized boolean canAcceptAudioSample() {
+        return mMuxerStarted || mInputDone || !mStaging.isFull(false);
+    }
+
+    /**
+     * Writes every output buffer the encoder has ready.
+     *
+     * @param timeoutUs How long to wait for each buffer, 0 to only take what is already there
+     * @return true once the encoder has reached the end of stream
+     */
+    synchronized boolean drain(long timeoutUs) {
+        while (!mDone) {
+            int index = mEncoder.dequeueOutputBuffer(mInfo, timeoutUs);
+            if (index == CodecPort.INFO_TRY_AGAIN_LATER) {
+                break;
+            } else if (index == CodecPort.INFO_OUTPUT_FORMAT_CHANGED) {
+                mLogger.d(String.format(Locale.US, "rendition %d encoder: output format changed", mIndex));
+                mVideoFormat = mEncoder.getOutputFormat();
+                maybeStartMuxer();
+            } else if (index >= 0) {
+                writeEncoderOutputBuffer(index);
+            }
+        }
+
+        return mDone;
+    }
+
+    /**
+     * Drains the encoder until the end of stream, after the video chain has finished.
+     */
+    synchronized void finish() {
+        while (!drain(DRAIN_TIMEOUT_US)) {
+            mLogger.d(String.format(Locale.US, "rendition %d encoder: waiting for EOS", mIndex));
+        }
+    }
+
+    private void writeEncoderOutputBuffer(int index) {
+        ByteBuffer buffer = mEncoder.getOutputBuffer(index);
+
+        if ((mInfo.flags & CodecPort.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // Already part of the output format
+            mInfo.size = 0;
+        }
+
+        if (mInfo.size != 0) {
+            writeOrStageSampleData(true, buffer, mInfo);
+            mEncodedFrameCount++;
+        }
+
+        mEncoder.releaseOutputBuffer(index, false);
+
+        if ((mInfo.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mLogger.d(String.format(Locale.US, "rendition %d encoder: EOS", mIndex));
+            mDone = true;
+        }
+    }
+
+    /**
+     * Called once the main muxer knows the audio format, which this rendition shares.
+     */
+    synchronized void setAudioFormat(F format) {
+        mAudioFormat = format;
+        maybeStartMuxer();
+    }
+
+    /**
+     * Writes an audio sample the main muxer has just accepted. Once {@link #canAcceptAudioSample}
+     * only returns true because the encoder has all of its input, this may wait for its format.
+     */
+    synchronized void writeAudioSampleData(ByteBuffer buffer, SampleInfo info) {
+        long deadlineNs = System.nanoTime() + FORMAT_TIMEOUT_US * 1000;
+        while (!mMuxerStarted && mStaging.isFull(false)) {
+            // The encoder is behind the audio track, wait for it to report its format
+            drain(DRAIN_TIMEOUT_US);
+            if (!mMuxerStarted && System.nanoTime() > deadlineNs) {
+                throw new IllegalStateException("rendition " + mIndex + " encoder has not reported its output format");
+            }
+        }
+
+        writeOrStageSampleData(false, buffer, info);
+    }
+
+    private void writeOrStageSampleData(boolean video, ByteBuffer buffer, SampleInfo info) {
+        if (mMuxerStarted) {
+            mMuxer.writeSampleData(video ? mVideoTrack : mAudioTrack, buffer, info);
+        } else {
+            mStaging.add(video, buffer, info);
+        }
+    }
+
+    private void maybeStartMuxer() {
+        if (mMuxerStarted || mVideoFormat == null || (mHasAudio && mAudioFormat == null)) {
+            return;
+        }
+
+        mVideoTrack = mMuxer.addTrack(mVideoFormat);
+        if (mHasAudio) {
+            mAudioTrack = mMuxer.addTrack(mAudioFormat);
+        }
+
+        mLogger.d(String.format(Locale.US, "rendition %d muxer: starting", mIndex));
+        mMuxer.start();
+        mMuxerStarted = true;
+
+        Sample staged;
+        while ((staged = mStaging.poll()) != null) {
+            mMuxer.writeSampleData(staged.video ? mVideoTrack : mAudioTrack, staged.buffer, staged.info);
+            mStaging.recycle(staged);
+        }
+    }
+
+    synchronized int getEncodedFrameCount() {
+        return mEncodedFrameCount;
+    }
+}
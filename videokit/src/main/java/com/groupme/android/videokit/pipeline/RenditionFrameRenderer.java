@@ -0,0 +1,30 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.support.InputSurface;
+import com.groupme.android.videokit.support.OutputSurface;
+
+/**
+ * {@link FrameRenderer} for an extra rendition. Draws the frame a {@link SurfaceFrameRenderer}
+ * has already latched from the {@link OutputSurface} into another encoder's {@link InputSurface},
+ * which must share its context with the main input surface.
+ */
+public class RenditionFrameRenderer implements FrameRenderer {
+    private final OutputSurface mOutputSurface;
+    private final InputSurface mInputSurface;
+    private final InputSurface mMainInputSurface;
+
+    public RenditionFrameRenderer(OutputSurface outputSurface, InputSurface inputSurface, InputSurface mainInputSurface) {
+        mOutputSurface = outputSurface;
+        mInputSurface = inputSurface;
+        mMainInputSurface = mainInputSurface;
+    }
+
+    @Override
+    public void renderFrame(long presentationTimeUs) {
+        mInputSurface.makeCurrent();
+        mOutputSurface.drawImage();
+        mInputSurface.setPresentationTime(presentationTimeUs * 1000);
+        mInputSurface.swapBuffers();
+        mMainInputSurface.makeCurrent();
+    }
+}
@@ -0,0 +1,49 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoded sample copied out of a codec buffer so the buffer can go back to the codec while
+ * the sample waits for the muxer.
+ */
+final class Sample {
+    final SampleInfo info = new SampleInfo();
+    ByteBuffer buffer;
+    boolean video;
+
+    /**
+     * Copies {@code info.size} bytes starting at {@code info.offset} out of {@code source} into a
+     * buffer from {@code arena}, which {@link #recycle} hands back.
+     */
+    void copyFrom(boolean video, ByteBuffer source, SampleInfo info, BufferArena arena) {
+        if (buffer == null || buffer.capacity() < info.size) {
+            recycle(arena);
+            buffer = arena.acquire(info.size);
+        }
+
+        buffer.clear();
+        if (info.size > 0) {
+            source.limit(info.offset + info.size);
+            source.position(info.offset);
+            buffer.put(source);
+        }
+        buffer.flip();
+
+        this.video = video;
+        this.info.set(0, info.size, info.presentationTimeUs, info.flags);
+    }
+
+    /**
+     * Returns the backing buffer to {@code arena} once the sample has been written.
+     */
+    void recycle(BufferArena arena) {
+        if (buffer != null) {
+            arena.release(buffer);
+            buffer = null;
+        }
+    }
+
+    boolean isEndOfStream() {
+        return (info.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+}
@@ -0,0 +1,23 @@
+package com.groupme.android.videokit.pipeline;
+
+/**
+ * Metadata for one buffer of media data. Mirrors {@code MediaCodec.BufferInfo} so that the
+ * pipeline can be driven without the Android framework.
+ */
+public final class SampleInfo {
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+
+    public void set(int offset, int size, long presentationTimeUs, int flags) {
+        this.offset = offset;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+
+    public void set(SampleInfo other) {
+        set(other.offset, other.size, other.presentationTimeUs, other.flags);
+    }
+}
@@ -0,0 +1,34 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.util.ArrayDeque;
+
+/**
+ * A fixed number of reusable {@link Sample}s. Not thread safe, callers guard it with their own
+ * lock.
+ */
+final class SamplePool {
+    private final ArrayDeque<Sample> mFree;
+
+    SamplePool(int size) {
+        mFree = new ArrayDeque<>(size);
+        for (int i = 0; i < size; i++) {
+            mFree.add(new Sample());
+        }
+    }
+
+    boolean isEmpty() {
+        return mFree.isEmpty();
+    }
+
+    Sample acquire() {
+        Sample sample = mFree.poll();
+        if (sample == null) {
+            throw new IllegalStateException("sample pool is exhausted");
+        }
+        return sample;
+    }
+
+    void release(Sample sample) {
+        mFree.add(sample);
+    }
+}
@@ -0,0 +1,25 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.io.IOException;
+
+/**
+ * Holds encoded segments between transcoding them and concatenating them into the output.
+ *
+ * @param <F> The media format type
+ */
+public interface SegmentStore<F> {
+    /**
+     * @return A muxer writing the given segment. May be called from any thread.
+     */
+    MuxerPort<F> createMuxer(int segment) throws IOException;
+
+    /**
+     * @return An extractor over the single track of a segment whose muxer has been stopped
+     */
+    ExtractorPort openExtractor(int segment) throws IOException;
+
+    /**
+     * Releases the extractors and deletes every segment.
+     */
+    void release();
+}
@@ -0,0 +1,19 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.io.IOException;
+
+/**
+ * Transcodes one time range of the video track into a muxer. Implementations own the codecs for
+ * the range, creating them before and releasing them after each call.
+ *
+ * @param <F> The media format type
+ */
+public interface SegmentTranscoder<F> {
+    /**
+     * @param startTimeUs First presentation time to include
+     * @param endTimeUs Last presentation time to include
+     * @param muxer Muxer to write the encoded range to. It is started by the time the range's
+     *              track has been added.
+     */
+    void transcode(long startTimeUs, long endTimeUs, MuxerPort<F> muxer) throws IOException, InterruptedException;
+}
@@ -0,0 +1,63 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel handing everything written to it to an {@link OutputSink}, counting the bytes and
+ * noting when the first one went out.
+ */
+public class SinkChannel implements WritableByteChannel {
+    private final OutputSink mSink;
+    private boolean mOpen = true;
+
+    private long mBytesWritten;
+    private long mFirstByteTimeMs;
+
+    public SinkChannel(OutputSink sink) {
+        mSink = sink;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        if (count == 0) {
+            return 0;
+        }
+
+        if (mFirstByteTimeMs == 0) {
+            mFirstByteTimeMs = System.currentTimeMillis();
+        }
+
+        mSink.write(src);
+        // The sink may have read a copy, the bytes are written either way
+        src.position(src.limit());
+        mBytesWritten += count;
+        return count;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mOpen) {
+            mOpen = false;
+            mSink.close();
+        }
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return The wall clock time of the first byte handed to the sink, 0 if none was yet
+     */
+    public synchronized long getFirstByteTimeMs() {
+        return mFirstByteTimeMs;
+    }
+}
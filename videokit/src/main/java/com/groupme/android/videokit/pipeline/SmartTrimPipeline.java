@@ -0,0 +1,454 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.VideoTranscoder.Stats;
+import com.groupme.android.videokit.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Trims a source that could otherwise be copied as is, re-encoding only what the cut requires:
+ * <ul>
+ * <li>the head, from the trim start up to the first sync sample in the range</li>
+ * <li>the tail, from the last group of pictures in the range to the trim end, only if the source
+ * reorders frames. Without reordering the copy can simply stop at the trim end.</li>
+ * </ul>
+ * Everything in between is copied from the extractor, and audio is copied over the whole range.
+ * <p>
+ * The output track is described by the source's codec config, so re-encoded ranges can only be
+ * mixed in if the encoder produces exactly the source's parameter sets. Otherwise all of the range
+ * is transcoded.
+ *
+ * @param <F> The media format type
+ */
+public class SmartTrimPipeline<F> {
+    private final ExtractorPort mVideoExtractor;
+    private final F mVideoFormat;
+    private final ExtractorPort mAudioExtractor;
+    private final F mAudioFormat;
+    private final MuxerPort<F> mMuxer;
+    private final SegmentTranscoder<F> mSegmentTranscoder;
+    private final CodecConfigReader<F> mCodecConfigReader;
+    private final long mTrimStartTimeUs;
+    private final long mTrimEndTimeUs;
+    private final Stats mStats;
+    private final Logger mLogger;
+
+    private final ByteBuffer mBuffer;
+    private final SampleInfo mInfo = new SampleInfo();
+
+    private int mVideoTrack;
+    private int mAudioTrack = -1;
+    private boolean mAudioDone;
+    private boolean mMuxerStarted;
+
+    private SmartTrimPipeline(Builder<F> builder) {
+        mVideoExtractor = builder.mVideoExtractor;
+        mVideoFormat = builder.mVideoFormat;
+        mAudioExtractor = builder.mAudioExtractor;
+        mAudioFormat = builder.mAudioFormat;
+        mMuxer = builder.mMuxer;
+        mSegmentTranscoder = builder.mSegmentTranscoder;
+        mCodecConfigReader = builder.mCodecConfigReader;
+        mTrimStartTimeUs = builder.mTrimStartTimeUs;
+        mTrimEndTimeUs = builder.mTrimEndTimeUs;
+        mStats = builder.mStats;
+        mLogger = builder.mLogger;
+        mBuffer = ByteBuffer.allocateDirect(builder.mBufferSize);
+    }
+
+    public void trim() throws IOException, InterruptedException {
+        boolean trimToEnd = mTrimEndTimeUs == TranscodePipeline.TRIM_TIME_END;
+        long trimEndTimeUs = trimToEnd ? Long.MAX_VALUE : mTrimEndTimeUs;
+
+        long copyStartTimeUs = findSyncSampleAtOrAfter(mTrimStartTimeUs);
+        if (copyStartTimeUs < 0 || copyStartTimeUs > trimEndTimeUs) {
+            // No sync sample inside the range, there is nothing to copy
+            mLogger.d("smart trim: no sync sample in range, transcoding all of it");
+            transcodeAll();
+            return;
+        }
+
+        long tailStartTimeUs = -1;
+        long tailTranscodeStartTimeUs = -1;
+        if (!trimToEnd) {
+            long lastSyncTimeUs = findSyncSampleAtOrBefore(mTrimEndTimeUs);
+            if (isReorderedGroup(lastSyncTimeUs)) {
+                tailStartTimeUs = lastSyncTimeUs;
+                // The copy stops at the tail's sync sample, which leaves its leading pictures to the tail
+                tailTranscodeStartTimeUs = Math.max(findGroupStartTime(lastSyncTimeUs), copyStartTimeUs);
+            }
+        }
+
+        // A decoder only goes by the sample entry, which holds the source's parameter sets, and an
+        // encoder numbers its own with the same ids. Unless the encoder's are identical, the
+        // re-encoded frames would be decoded with the wrong ones.
+        boolean reencodes = copyStartTimeUs > mTrimStartTimeUs || tailStartTimeUs >= 0;
+        if (reencodes && !Arrays.equals(probeEncoderConfig(copyStartTimeUs), mCodecConfigReader.read(mVideoFormat))) {
+            mLogger.d("smart trim: the encoder's codec config differs from the source's, transcoding all of it");
+            transcodeAll();
+            return;
+        }
+
+        mLogger.d(String.format(Locale.US, "smart trim: head %d-%d, copy from %d, tail from %d",
+                mTrimStartTimeUs, copyStartTimeUs, copyStartTimeUs, tailTranscodeStartTimeUs));
+
+        startMuxer(mVideoFormat);
+
+        if (copyStartTimeUs > mTrimStartTimeUs) {
+            transcodeSegment(mTrimStartTimeUs, copyStartTimeUs - 1);
+        }
+
+        copyVideo(copyStartTimeUs, tailStartTimeUs, trimEndTimeUs);
+
+        if (tailStartTimeUs >= 0) {
+            transcodeSegment(tailTranscodeStartTimeUs, mTrimEndTimeUs);
+        }
+
+        copyAudioUpTo(Long.MAX_VALUE);
+    }
+
+    private void startMuxer(F videoFormat) {
+        mLogger.d("muxer: adding video track.");
+        mVideoTrack = mMuxer.addTrack(videoFormat);
+
+        if (mAudioExtractor != null) {
+            mLogger.d("muxer: adding audio track.");
+            mAudioTrack = mMuxer.addTrack(mAudioFormat);
+            mAudioExtractor.seekTo(mTrimStartTimeUs, ExtractorPort.SEEK_TO_CLOSEST_SYNC);
+            while (mAudioExtractor.getSampleTime() >= 0 && mAudioExtractor.getSampleTime() < mTrimStartTimeUs) {
+                mAudioExtractor.advance();
+            }
+        } else {
+            mAudioDone = true;
+        }
+
+        mLogger.d("muxer: starting");
+        mMuxer.start();
+        mMuxerStarted = true;
+    }
+
+    /**
+     * Transcodes all of the range. The output track is described by the encoder's format, so the
+     * muxer is only started once the encoder reports it.
+     */
+    private void transcodeAll() throws IOException, InterruptedException {
+        transcodeSegment(mTrimStartTimeUs, mTrimEndTimeUs, new SegmentMuxer());
+
+        if (!mMuxerStarted) {
+            // Nothing was encoded
+            startMuxer(mVideoFormat);
+        }
+        copyAudioUpTo(Long.MAX_VALUE);
+    }
+
+    private void transcodeSegment(long startTimeUs, long endTimeUs) throws IOException, InterruptedException {
+        transcodeSegment(startTimeUs, endTimeUs, new SegmentMuxer());
+    }
+
+    private void transcodeSegment(long startTimeUs, long endTimeUs, MuxerPort<F> muxer) throws IOException, InterruptedException {
+        // Probing moved the extractor around, put it back for the segment's decoder
+        mVideoExtractor.seekTo(startTimeUs, ExtractorPort.SEEK_TO_PREVIOUS_SYNC);
+        mSegmentTranscoder.transcode(startTimeUs, endTimeUs, muxer);
+    }
+
+    /**
+     * Encodes the sync sample at the given time on its own, only to learn the encoder's codec config.
+     *
+     * @return The encoder's parameter sets, or null if it reported none
+     */
+    private byte[] probeEncoderConfig(long syncTimeUs) throws IOException, InterruptedException {
+        ConfigProbeMuxer muxer = new ConfigProbeMuxer();
+        transcodeSegment(syncTimeUs, syncTimeUs, muxer);
+        return muxer.mCodecConfig;
+    }
+
+    /**
+     * @return The time of the first sync sample at or after the given time, or -1 if there is none
+     */
+    private long findSyncSampleAtOrAfter(long timeUs) {
+        mVideoExtractor.seekTo(timeUs, ExtractorPort.SEEK_TO_NEXT_SYNC);
+
+        // Seeking rounds to the nearest sample, which may put us on the sync sample just before
+        do {
+            long sampleTime = mVideoExtractor.getSampleTime();
+            if (sampleTime < 0) {
+                break;
+            }
+
+            if (sampleTime >= timeUs && (mVideoExtractor.getSampleFlags() & ExtractorPort.SAMPLE_FLAG_SYNC) != 0) {
+                return sampleTime;
+            }
+        } while (mVideoExtractor.advance());
+
+        return -1;
+    }
+
+    private long findSyncSampleAtOrBefore(long timeUs) {
+        mVideoExtractor.seekTo(timeUs, ExtractorPort.SEEK_TO_PREVIOUS_SYNC);
+        return mVideoExtractor.getSampleTime();
+    }
+
+    /**
+     * @return true if the samples of the group starting at the given sync sample are not stored in
+     * presentation order, in which case the group can't be cut short by copying
+     */
+    private boolean isReorderedGroup(long syncTimeUs) {
+        mVideoExtractor.seekTo(syncTimeUs, ExtractorPort.SEEK_TO_PREVIOUS_SYNC);
+
+        long previousTimeUs = -1;
+        do {
+            long sampleTime = mVideoExtractor.getSampleTime();
+            if (sampleTime < 0) {
+                break;
+            }
+
+            if (previousTimeUs >= 0 && (mVideoExtractor.getSampleFlags() & ExtractorPort.SAMPLE_FLAG_SYNC) != 0) {
+                break;
+            }
+
+            if (sampleTime < previousTimeUs) {
+                return true;
+            }
+
+            previousTimeUs = sampleTime;
+        } while (mVideoExtractor.advance());
+
+        return false;
+    }
+
+    /**
+     * @return The earliest presentation time in the group starting at the given sync sample. That is
+     * the time of its first leading picture if the group is open, or the sync sample's own time.
+     */
+    private long findGroupStartTime(long syncTimeUs) {
+        mVideoExtractor.seekTo(syncTimeUs, ExtractorPort.SEEK_TO_PREVIOUS_SYNC);
+
+        long startTimeUs = syncTimeUs;
+        while (mVideoExtractor.advance()) {
+            if ((mVideoExtractor.getSampleFlags() & ExtractorPort.SAMPLE_FLAG_SYNC) != 0) {
+                break;
+            }
+            startTimeUs = Math.min(startTimeUs, mVideoExtractor.getSampleTime());
+        }
+
+        return startTimeUs;
+    }
+
+    /**
+     * Copies video samples from the sync sample at {@code startTimeUs}, up to the sync sample at
+     * {@code tailStartTimeUs} if the tail is re-encoded, or up to {@code endTimeUs} otherwise.
+     */
+    private void copyVideo(long startTimeUs, long tailStartTimeUs, long endTimeUs) {
+        mVideoExtractor.seekTo(startTimeUs, ExtractorPort.SEEK_TO_PREVIOUS_SYNC);
+
+        while (true) {
+            int size = mVideoExtractor.readSampleData(mBuffer, 0);
+            if (size < 0) {
+                break;
+            }
+
+            long sampleTime = mVideoExtractor.getSampleTime();
+            boolean sync = (mVideoExtractor.getSampleFlags() & ExtractorPort.SAMPLE_FLAG_SYNC) != 0;
+
+            if (tailStartTimeUs >= 0 ? (sync && sampleTime >= tailStartTimeUs) : sampleTime > endTimeUs) {
+                break;
+            }
+
+            // Leading pictures of an open group refer back to the re-encoded head, which also
+            // encodes them
+            if (sampleTime >= startTimeUs) {
+                mInfo.set(0, size, sampleTime, sync ? CodecPort.BUFFER_FLAG_KEY_FRAME : 0);
+                writeVideo(mBuffer, mInfo);
+
+                mStats.videoExtractedFrameCount++;
+                mStats.videoCopiedFrameCount++;
+            }
+
+            mVideoExtractor.advance();
+        }
+    }
+
+    private void writeVideo(ByteBuffer buffer, SampleInfo info) {
+        mMuxer.writeSampleData(mVideoTrack, buffer, info);
+        copyAudioUpTo(info.presentationTimeUs);
+    }
+
+    /**
+     * Copies audio samples up to the given time, which keeps the output interleaved.
+     */
+    private void copyAudioUpTo(long timeUs) {
+        while (!mAudioDone) {
+            long sampleTime = mAudioExtractor.getSampleTime();
+            if (sampleTime > timeUs) {
+                return;
+            }
+
+            int size = mAudioExtractor.readSampleData(mBuffer, 0);
+            if (size < 0 || (mTrimEndTimeUs != TranscodePipeline.TRIM_TIME_END && sampleTime > mTrimEndTimeUs)) {
+                mLogger.d("audio extractor: EOS");
+                mAudioDone = true;
+                return;
+            }
+
+            mInfo.set(0, size, sampleTime, CodecPort.BUFFER_FLAG_KEY_FRAME);
+            mMuxer.writeSampleData(mAudioTrack, mBuffer, mInfo);
+            mStats.audioExtractedFrameCount++;
+
+            mAudioExtractor.advance();
+        }
+    }
+
+    /**
+     * Hands a re-encoded range the output muxer, starting it with the encoder's format if all of
+     * the range is transcoded.
+     */
+    private class SegmentMuxer implements MuxerPort<F> {
+        @Override
+        public int addTrack(F format) {
+            if (!mMuxerStarted) {
+                startMuxer(format);
+            }
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+            writeVideo(buffer, info);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * Keeps the codec config of the encoder's format and drops the encoded samples.
+     */
+    private class ConfigProbeMuxer implements MuxerPort<F> {
+        private byte[] mCodecConfig;
+
+        @Override
+        public int addTrack(F format) {
+            mCodecConfig = mCodecConfigReader.read(format);
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    public static final class Builder<F> {
+        private ExtractorPort mVideoExtractor;
+        private F mVideoFormat;
+        private ExtractorPort mAudioExtractor;
+        private F mAudioFormat;
+        private MuxerPort<F> mMuxer;
+        private SegmentTranscoder<F> mSegmentTranscoder;
+        private CodecConfigReader<F> mCodecConfigReader;
+        private long mTrimStartTimeUs = 0;
+        private long mTrimEndTimeUs = TranscodePipeline.TRIM_TIME_END;
+        private int mBufferSize = RemuxPipeline.DEFAULT_BUFFER_SIZE;
+        private Stats mStats;
+        private Logger mLogger;
+
+        /**
+         * @param extractor Source video, shared with the segment transcoder
+         * @param format The source track format, handed to the muxer as is unless all of the range
+         *               is transcoded
+         */
+        public Builder<F> video(ExtractorPort extractor, F format) {
+            mVideoExtractor = extractor;
+            mVideoFormat = format;
+            return this;
+        }
+
+        public Builder<F> audio(ExtractorPort extractor, F format) {
+            mAudioExtractor = extractor;
+            mAudioFormat = format;
+            return this;
+        }
+
+        public Builder<F> muxer(MuxerPort<F> muxer) {
+            mMuxer = muxer;
+            return this;
+        }
+
+        /**
+         * @param segmentTranscoder Re-encodes the head and tail ranges
+         * @param codecConfigReader Reads parameter sets from source and encoder formats, to compare them
+         */
+        public Builder<F> segments(SegmentTranscoder<F> segmentTranscoder, CodecConfigReader<F> codecConfigReader) {
+            mSegmentTranscoder = segmentTranscoder;
+            mCodecConfigReader = codecConfigReader;
+            return this;
+        }
+
+        public Builder<F> trim(long startTimeUs, long endTimeUs) {
+            mTrimStartTimeUs = startTimeUs;
+            mTrimEndTimeUs = endTimeUs;
+            return this;
+        }
+
+        /**
+         * @param bufferSize Size of the largest sample in either track
+         */
+        public Builder<F> bufferSize(int bufferSize) {
+            mBufferSize = bufferSize;
+            return this;
+        }
+
+        public Builder<F> stats(Stats stats) {
+            mStats = stats;
+            return this;
+        }
+
+        public Builder<F> logger(Logger logger) {
+            mLogger = logger;
+            return this;
+        }
+
+        public SmartTrimPipeline<F> build() {
+            if (mVideoExtractor == null || mVideoFormat == null) {
+                throw new IllegalStateException("video() must be called before build()");
+            }
+
+            if (mSegmentTranscoder == null || mCodecConfigReader == null) {
+                throw new IllegalStateException("segments() must be called before build()");
+            }
+
+            if (mMuxer == null) {
+                throw new IllegalStateException("muxer() must be called before build()");
+            }
+
+            if (mStats == null || mLogger == null) {
+                throw new IllegalStateException("stats() and logger() must be called before build()");
+            }
+
+            return new SmartTrimPipeline<>(this);
+        }
+    }
+}
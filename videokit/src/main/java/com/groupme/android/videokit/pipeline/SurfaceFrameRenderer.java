@@ -0,0 +1,51 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.VideoTranscoder.Stats;
+import com.groupme.android.videokit.support.FrameFenceQueue;
+import com.groupme.android.videokit.support.InputSurface;
+import com.groupme.android.videokit.support.OutputSurface;
+
+/**
+ * {@link FrameRenderer} that latches the decoded frame from an {@link OutputSurface} and draws it
+ * into the encoder's {@link InputSurface} with GL. Must be used on the thread where the input
+ * surface is current.
+ * <p>
+ * Up to {@link #MAX_FRAMES_IN_FLIGHT} drawn frames may still be rendering on the GPU while the
+ * next one is latched, see {@link FrameFenceQueue}.
+ */
+public class SurfaceFrameRenderer implements FrameRenderer {
+    public static final int MAX_FRAMES_IN_FLIGHT = 2;
+
+    private final OutputSurface mOutputSurface;
+    private final InputSurface mInputSurface;
+    private final FrameFenceQueue mFences = new FrameFenceQueue(MAX_FRAMES_IN_FLIGHT);
+    private final Stats mStats;
+
+    /**
+     * @param stats Receives the frames in flight and the time spent waiting for the GPU
+     */
+    public SurfaceFrameRenderer(OutputSurface outputSurface, InputSurface inputSurface, Stats stats) {
+        mOutputSurface = outputSurface;
+        mInputSurface = inputSurface;
+        mStats = stats;
+    }
+
+    @Override
+    public void renderFrame(long presentationTimeUs) {
+        mOutputSurface.awaitNewImage();
+        mOutputSurface.drawImage();
+        mFences.frameDrawn();
+        mInputSurface.setPresentationTime(presentationTimeUs * 1000);
+        mInputSurface.swapBuffers();
+
+        mStats.renderFramesInFlightHighWaterMark = mFences.getFramesInFlightHighWaterMark();
+        mStats.renderGpuWaitTimeUs = mFences.getWaitTimeUs();
+    }
+
+    /**
+     * Waits for the frames still rendering. Call before releasing the surfaces.
+     */
+    public void release() {
+        mFences.release();
+    }
+}
@@ -0,0 +1,18 @@
+package com.groupme.android.videokit.pipeline;
+
+/**
+ * Answers where the sync samples of a video track are without seeking an extractor.
+ */
+public interface SyncSampleIndex {
+    /**
+     * @return The presentation time of the last sync sample at or before the given time, in
+     * microseconds, or -1 if there is none
+     */
+    long getSyncSampleTimeAtOrBefore(long timeUs);
+
+    /**
+     * @return The presentation time of the first sync sample at or after the given time, in
+     * microseconds, or -1 if there is none
+     */
+    long getSyncSampleTimeAtOrAfter(long timeUs);
+}
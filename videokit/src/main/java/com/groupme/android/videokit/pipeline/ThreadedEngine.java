@@ -0,0 +1,294 @@
+package com.groupme.android.videokit.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Runs the video chain, the audio chain and the muxer on threads of their own.
+ *
+ * The video chain stays on the calling thread since it owns the GL context. Each chain copies
+ * encoded samples into a small per-track pool and hands them to the muxer thread. A chain only
+ * blocks when all of its samples are waiting to be muxed, so one slow track no longer holds up
+ * the other.
+ */
+class ThreadedEngine<F> extends PollingEngine<F> {
+    /** Encoded samples each track may have queued up for the muxer. */
+    private static final int SAMPLES_PER_TRACK = 8;
+
+    private final Object mLock = new Object();
+
+    private final SamplePool mVideoPool = new SamplePool(SAMPLES_PER_TRACK);
+    private final SamplePool mAudioPool = new SamplePool(SAMPLES_PER_TRACK);
+    private final ArrayDeque<Sample> mVideoSamples = new ArrayDeque<>(SAMPLES_PER_TRACK);
+    private final ArrayDeque<Sample> mAudioSamples = new ArrayDeque<>(SAMPLES_PER_TRACK);
+
+    private boolean mVideoMuxed;
+    private boolean mAudioMuxed;
+    private Throwable mFailure;
+
+    ThreadedEngine(TranscodePipeline<F> pipeline) {
+        super(pipeline);
+    }
+
+    @Override
+    void transcode() throws InterruptedException {
+        final TranscodePipeline<F> p = mPipeline;
+
+        p.seekToTrimStart();
+
+        Thread audioThread = null;
+        if (p.hasAudio()) {
+            audioThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runAudioChain();
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            }, "VideoTranscoder-audio");
+        } else {
+            mAudioMuxed = true;
+        }
+
+        Thread muxerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runMuxer();
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }
+        }, "VideoTranscoder-muxer");
+
+        if (audioThread != null) {
+            audioThread.start();
+        }
+        muxerThread.start();
+
+        try {
+            runVideoChain();
+        } catch (Throwable t) {
+            fail(t);
+        }
+
+        if (audioThread != null) {
+            audioThread.join();
+        }
+        muxerThread.join();
+
+        synchronized (mLock) {
+            if (mFailure instanceof RuntimeException) {
+                throw (RuntimeException) mFailure;
+            } else if (mFailure instanceof Error) {
+                throw (Error) mFailure;
+            } else if (mFailure != null) {
+                throw new IllegalStateException(mFailure);
+            }
+        }
+    }
+
+    private void runVideoChain() throws InterruptedException {
+        boolean extractorDone = false;
+        boolean decoderDone = false;
+        boolean encoderDone = false;
+
+        while (!encoderDone) {
+            checkFailure();
+
+            if (!extractorDone) {
+                extractorDone = extractAndFeedDecoder(mPipeline.mVideoDecoder, mPipeline.mVideoExtractor, "video");
+            }
+
+            if (!decoderDone) {
+                decoderDone = pollVideoFromDecoderAndFeedToEncoder();
+            }
+
+            if (decoderDone || !mPipeline.isVideoEncoderDrained()) {
+                encoderDone = pollVideoFromEncoderAndFeedToMuxer();
+            }
+        }
+    }
+
+    private void runAudioChain() throws InterruptedException {
+        if (mPipeline.isAudioCopy()) {
+            runAudioCopy();
+            return;
+        }
+
+        boolean extractorDone = false;
+        boolean encoderDone = false;
+
+        while (!encoderDone) {
+            checkFailure();
+
+            if (!extractorDone) {
+                extractorDone = extractAndFeedDecoder(mPipeline.mAudioDecoder, mPipeline.mAudioExtractor, "audio");
+            }
+
+            if (mPendingAudioDecoderOutputBufferIndex == -1) {
+                pollAudioFromDecoder();
+            }
+
+            if (mPendingAudioDecoderOutputBufferIndex != -1) {
+                feedPendingAudioBufferToEncoder();
+            }
+
+            encoderDone = pollAudioFromEncoderAndFeedToMuxer();
+        }
+
+        if (mPendingAudioDecoderOutputBufferIndex != -1) {
+            throw new IllegalStateException("no frame should be pending");
+        }
+    }
+
+    private void runAudioCopy() throws InterruptedException {
+        SampleInfo info = new SampleInfo();
+
+        do {
+            checkFailure();
+            mPipeline.readAudioCopySample(mPipeline.mAudioCopyBuffer, info);
+            enqueueSample(false, mPipeline.mAudioCopyBuffer, info);
+        } while ((info.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) == 0);
+    }
+
+    private void runMuxer() throws InterruptedException {
+        synchronized (mLock) {
+            while (!mPipeline.isReadyToMux()) {
+                checkFailure();
+                mLock.wait();
+            }
+        }
+
+        mPipeline.setupMuxer();
+
+        while (true) {
+            Sample sample;
+            synchronized (mLock) {
+                while ((sample = nextSample()) == null) {
+                    if (mVideoMuxed && mAudioMuxed) {
+                        return;
+                    }
+                    checkFailure();
+                    mLock.wait();
+                }
+            }
+
+            if (sample.info.size != 0) {
+                mPipeline.writeSampleData(sample.video, sample.buffer, sample.info);
+            }
+
+            synchronized (mLock) {
+                if (sample.isEndOfStream()) {
+                    if (sample.video) {
+                        mVideoMuxed = true;
+                    } else {
+                        mAudioMuxed = true;
+                    }
+                }
+                sample.recycle(mPipeline.mBufferArena);
+                (sample.video ? mVideoPool : mAudioPool).release(sample);
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes the earliest sample at the head of either track queue. Audio the pipeline can't take
+     * yet waits for the video chain to catch up. Called with the lock held.
+     */
+    private Sample nextSample() {
+        Sample video = mVideoSamples.peek();
+        Sample audio = mAudioSamples.peek();
+        if (audio != null && !mPipeline.canAcceptEncoderOutput(false)) {
+            audio = null;
+        }
+
+        if (video == null && audio == null) {
+            return null;
+        }
+
+        if (audio == null || (video != null && video.info.presentationTimeUs <= audio.info.presentationTimeUs)) {
+            return mVideoSamples.poll();
+        }
+
+        return mAudioSamples.poll();
+    }
+
+    @Override
+    void onEncoderOutputFormat(boolean video, F format) {
+        synchronized (mLock) {
+            super.onEncoderOutputFormat(video, format);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    boolean onEncoderOutputBuffer(boolean video, int index, ByteBuffer buffer, SampleInfo info) throws InterruptedException {
+        // The sample belongs to the muxer thread once it is queued
+        boolean endOfStream = (info.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) != 0;
+
+        enqueueSample(video, buffer, info);
+        (video ? mPipeline.mVideoEncoder : mPipeline.mAudioEncoder).releaseOutputBuffer(index, false);
+
+        if (endOfStream) {
+            mPipeline.mLogger.d(String.format("%s encoder: EOS", video ? "video" : "audio"));
+            return true;
+        }
+
+        if (video) {
+            mPipeline.mStats.videoEncodedFrameCount++;
+        } else {
+            mPipeline.mStats.audioEncodedFrameCount++;
+        }
+
+        return false;
+    }
+
+    /**
+     * Copies a sample into the track's pool, waiting for a free slot, and queues it for the
+     * muxer thread.
+     */
+    private void enqueueSample(boolean video, ByteBuffer buffer, SampleInfo info) throws InterruptedException {
+        SamplePool pool = video ? mVideoPool : mAudioPool;
+
+        Sample sample;
+        synchronized (mLock) {
+            while (pool.isEmpty()) {
+                checkFailure();
+                mLock.wait();
+            }
+            sample = pool.acquire();
+        }
+
+        sample.copyFrom(video, buffer, info, mPipeline.mBufferArena);
+
+        synchronized (mLock) {
+            (video ? mVideoSamples : mAudioSamples).add(sample);
+            mLock.notifyAll();
+        }
+    }
+
+    private void fail(Throwable t) {
+        synchronized (mLock) {
+            if (mFailure == null) {
+                mFailure = t;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Aborts the current thread once any other thread has failed. Called with the lock held or
+     * from a chain's loop.
+     */
+    private void checkFailure() {
+        synchronized (mLock) {
+            if (mFailure != null) {
+                throw new IllegalStateException("transcode aborted", mFailure);
+            }
+        }
+    }
+}
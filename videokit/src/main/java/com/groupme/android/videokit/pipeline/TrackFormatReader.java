@@ -0,0 +1,15 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.mp4.TrackFormat;
+
+/**
+ * Describes a media format to the pure Java MP4 writer.
+ *
+ * @param <F> The media format type
+ */
+public interface TrackFormatReader<F> {
+    /**
+     * @throws IllegalArgumentException if the format isn't AVC video or AAC audio
+     */
+    TrackFormat read(F format);
+}
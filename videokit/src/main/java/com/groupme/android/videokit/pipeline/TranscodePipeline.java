@@ -0,0 +1,761 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.VideoTranscoder.Stats;
+import com.groupme.android.videokit.util.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Moves samples from the extractors through the decoders and encoders into the muxer. All of the
+ * media objects are reached through ports, so the scheduling logic can run against the Android
+ * framework or against a fake backend on a plain JVM.
+ * <p>
+ * The pipeline owns the per-buffer stage logic; {@link PollingEngine} and {@link AsyncEngine}
+ * decide when each stage runs.
+ *
+ * @param <F> The media format type used by the codecs and muxer
+ */
+public class TranscodePipeline<F> {
+    /** Drives every codec from a single loop of blocking dequeue calls. */
+    public static final int ENGINE_POLLING = 0;
+    /** Drives every codec from {@link CodecPort.Callback} notifications. */
+    public static final int ENGINE_ASYNC = 1;
+    /** Runs the video chain, the audio chain and the muxer on threads of their own. */
+    public static final int ENGINE_THREADED = 2;
+
+    public static final long TRIM_TIME_END = -1;
+
+    /** Encoded samples each track may stage before the muxer has been started. */
+    private static final int MAX_STAGED_SAMPLES_PER_TRACK = 30;
+
+    final ExtractorPort mVideoExtractor;
+    final CodecPort<F> mVideoDecoder;
+    final CodecPort<F> mVideoEncoder;
+    final FrameRenderer mFrameRenderer;
+    private final FrameDecimator mFrameDecimator;
+
+    final ExtractorPort mAudioExtractor;
+    final CodecPort<F> mAudioDecoder;
+    final CodecPort<F> mAudioEncoder;
+    // Only set when the audio track is stream copied instead of transcoded
+    final ByteBuffer mAudioCopyBuffer;
+    private final PcmFormatReader<F> mPcmFormatReader;
+    private final PcmRechunker mPcmRechunker;
+    private boolean mPcmFormatRead;
+
+    final MuxerPort<F> mMuxer;
+    final CodecEventQueue<F> mCodecEvents;
+    private final List<Rendition<F>> mRenditions = new ArrayList<>();
+
+    final long mTrimStartTimeUs;
+    final long mTrimEndTimeUs;
+
+    final Stats mStats;
+    final Logger mLogger;
+
+    // Media Formats from codecs
+    F mDecoderOutputVideoFormat;
+    F mDecoderOutputAudioFormat;
+    F mEncoderOutputVideoFormat;
+    F mEncoderOutputAudioFormat;
+
+    private int mOutputVideoTrack = -1;
+    private int mOutputAudioTrack = -1;
+
+    private long mPreviousPresentationTime = 0L;
+    // Set once the first video sample past the trim end has been fed
+    private boolean mVideoPastTrimEnd;
+    private long mLastVideoPresentationTimeUs = 0L;
+    private final SampleInfo mAudioCopyInfo = new SampleInfo();
+
+    final BufferArena mBufferArena = new BufferArena();
+    private final MuxStagingBuffer mStaging = new MuxStagingBuffer(MAX_STAGED_SAMPLES_PER_TRACK, mBufferArena);
+    private boolean mMuxerStarted;
+
+    private TranscodePipeline(Builder<F> builder) {
+        mVideoExtractor = builder.mVideoExtractor;
+        mVideoDecoder = builder.mVideoDecoder;
+        mVideoEncoder = builder.mVideoEncoder;
+        mFrameRenderer = builder.mFrameRenderer;
+        mFrameDecimator = new FrameDecimator(builder.mFrameRate);
+        mAudioExtractor = builder.mAudioExtractor;
+        mAudioDecoder = builder.mAudioDecoder;
+        mAudioEncoder = builder.mAudioEncoder;
+        mPcmFormatReader = builder.mPcmFormatReader;
+        mPcmRechunker = new PcmRechunker(mAudioEncoder);
+        mAudioCopyBuffer = builder.mAudioCopyFormat != null ? ByteBuffer.allocateDirect(builder.mAudioCopyBufferSize) : null;
+        // A copied track keeps its source format, so the muxer doesn't have to wait for an encoder
+        mEncoderOutputAudioFormat = builder.mAudioCopyFormat;
+        mMuxer = builder.mMuxer;
+        mCodecEvents = builder.mCodecEvents;
+        mTrimStartTimeUs = builder.mTrimStartTimeUs;
+        mTrimEndTimeUs = builder.mTrimEndTimeUs;
+        mStats = builder.mStats;
+        mLogger = builder.mLogger;
+
+        for (int i = 0; i < builder.mRenditionEncoders.size(); i++) {
+            mRenditions.add(new Rendition<>(i + 1, builder.mRenditionEncoders.get(i), builder.mRenditionRenderers.get(i),
+                    builder.mRenditionMuxers.get(i), hasAudio(), mBufferArena, mLogger));
+        }
+    }
+
+    /**
+     * Runs the pipeline to completion on the calling thread.
+     *
+     * @param engine One of {@link #ENGINE_POLLING}, {@link #ENGINE_ASYNC} or {@link #ENGINE_THREADED}
+     */
+    public void transcode(int engine) throws InterruptedException {
+        mStats.engine = engine;
+
+        if (engine == ENGINE_ASYNC) {
+            if (mCodecEvents == null) {
+                throw new IllegalStateException("The async engine needs codecs with callbacks set to a CodecEventQueue");
+            }
+
+            new AsyncEngine<>(this).transcode();
+        } else if (engine == ENGINE_THREADED) {
+            new ThreadedEngine<>(this).transcode();
+        } else {
+            new PollingEngine<>(this).transcode();
+        }
+
+        finishRenditions();
+
+        mStats.sampleBufferAcquireCount = mBufferArena.getAcquireCount();
+        mStats.sampleBufferAllocationCount = mBufferArena.getAllocationCount();
+
+        // Basic sanity checks
+        sanityChecks();
+    }
+
+    private void finishRenditions() {
+        mStats.renditionEncodedFrameCount = new int[mRenditions.size()];
+        for (int i = 0; i < mRenditions.size(); i++) {
+            Rendition<F> rendition = mRenditions.get(i);
+            rendition.finish();
+            mStats.renditionEncodedFrameCount[i] = rendition.getEncodedFrameCount();
+        }
+    }
+
+    boolean hasAudio() {
+        return mAudioExtractor != null;
+    }
+
+    boolean isAudioCopy() {
+        return mAudioCopyBuffer != null;
+    }
+
+    void seekToTrimStart() {
+        if (mTrimStartTimeUs > 0) {
+            // Decoding has to start at or before the trim start, or the head of the range is lost
+            mVideoExtractor.seekTo(mTrimStartTimeUs, ExtractorPort.SEEK_TO_PREVIOUS_SYNC);
+
+            if (hasAudio()) {
+                mAudioExtractor.seekTo(mTrimStartTimeUs, ExtractorPort.SEEK_TO_CLOSEST_SYNC);
+            }
+
+            if (isAudioCopy()) {
+                // Copied samples can't be dropped after decoding, so skip them here instead
+                while (mAudioExtractor.getSampleTime() >= 0 && mAudioExtractor.getSampleTime() < mTrimStartTimeUs) {
+                    mAudioExtractor.advance();
+                }
+            }
+        }
+    }
+
+    /**
+     * Decoding has to start at the sync sample before the trim start. The frames decoded before
+     * the trim start are only needed as references and are dropped instead of being encoded.
+     *
+     * @return true if the decoded buffer lies before the trim start
+     */
+    private boolean isPreRoll(SampleInfo decoderOutputBufferInfo) {
+        return decoderOutputBufferInfo.size != 0
+                && (decoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) == 0
+                && decoderOutputBufferInfo.presentationTimeUs < mTrimStartTimeUs;
+    }
+
+    /**
+     * The first video sample past the trim end is decoded as the reference of the leading pictures
+     * behind it in decode order, and dropped like the pre-roll.
+     *
+     * @return true if the decoded buffer lies past the trim end
+     */
+    private boolean isPastTrimEnd(SampleInfo decoderOutputBufferInfo) {
+        return mTrimEndTimeUs > 0 && decoderOutputBufferInfo.size != 0
+                && (decoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) == 0
+                && decoderOutputBufferInfo.presentationTimeUs > mTrimEndTimeUs;
+    }
+
+    /**
+     * Performs a basic checks in an attempt to see if the transcode was successful.
+     * Will throw an IllegalStateException if any checks fail.
+     */
+    private void sanityChecks() {
+        if (mStats.videoDecodedFrameCount != mStats.videoEncodedFrameCount) {
+            throw new IllegalStateException("encoded and decoded video frame counts should match");
+        }
+
+        for (int encodedFrameCount : mStats.renditionEncodedFrameCount) {
+            if (encodedFrameCount != mStats.videoDecodedFrameCount) {
+                throw new IllegalStateException("every rendition should encode every decoded video frame");
+            }
+        }
+
+        if (mStats.videoDecodedFrameCount + mStats.videoPreRollFrameCount + mStats.videoDroppedFrameCount
+                > mStats.videoExtractedFrameCount) {
+            throw new IllegalStateException("decoded frame count should be less than extracted frame count");
+        }
+
+        if (isAudioCopy()) {
+            mLogger.d(String.format("audioExtractedFrameCount: %s (stream copy)", mStats.audioExtractedFrameCount));
+        } else if (hasAudio()) {
+            mLogger.d(String.format("audioDecodedFrameCount: %s audioExtractedFrameCount: %s",
+                    mStats.audioDecodedFrameCount, mStats.audioExtractedFrameCount));
+        }
+    }
+
+    /**
+     * Reads the next sample of the extractor into the given decoder input buffer and queues it.
+     * End of stream is queued once the extractor runs dry or passes the trim end time. Video
+     * passes it at the second sample past the trim end, since the leading pictures of an open group
+     * follow their sync sample in decode order but are presented before it.
+     *
+     * @return Finished. True when the end of stream was queued.
+     */
+    boolean feedDecoderInputBuffer(CodecPort<F> decoder, int decoderInputBufferIndex, ByteBuffer buffer, ExtractorPort extractor) {
+        boolean video = extractor == mVideoExtractor;
+        String type = video ? "video" : "audio";
+
+        int size = extractor.readSampleData(buffer, 0);
+        long presentationTime = extractor.getSampleTime();
+
+        mLogger.d(String.format(Locale.US, "%s extractor: returned buffer of size %d", type, size));
+        mLogger.d(String.format(Locale.US, "%s extractor: returned buffer for time %d", type, presentationTime));
+
+        if (size < 0) {
+            mLogger.d(String.format("%s extractor: EOS", type));
+            decoder.queueInputBuffer(
+                    decoderInputBufferIndex,
+                    0,
+                    0,
+                    0,
+                    CodecPort.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+
+        if (mTrimEndTimeUs > 0 && presentationTime > mTrimEndTimeUs) {
+            if (!video || mVideoPastTrimEnd) {
+                mLogger.d("The current sample is over the trim time. Lets stop.");
+                decoder.queueInputBuffer(
+                        decoderInputBufferIndex,
+                        0,
+                        0,
+                        0,
+                        CodecPort.BUFFER_FLAG_END_OF_STREAM);
+                return true;
+            }
+
+            mLogger.d("video extractor: feeding the sample over the trim time for its leading pictures");
+            mVideoPastTrimEnd = true;
+        }
+
+        decoder.queueInputBuffer(
+                decoderInputBufferIndex,
+                0,
+                size,
+                presentationTime,
+                extractor.getSampleFlags());
+
+        if (video) {
+            mStats.videoExtractedFrameCount++;
+        } else {
+            mStats.audioExtractedFrameCount++;
+        }
+
+        extractor.advance();
+
+        return false;
+    }
+
+    /**
+     * Reads the next audio sample to stream copy. Once the track or the trim range ends, the info
+     * only carries the end of stream flag.
+     */
+    void readAudioCopySample(ByteBuffer buffer, SampleInfo info) {
+        int size = mAudioExtractor.readSampleData(buffer, 0);
+        long presentationTime = mAudioExtractor.getSampleTime();
+
+        if (size < 0 || (mTrimEndTimeUs > 0 && presentationTime > mTrimEndTimeUs)) {
+            mLogger.d("audio extractor: EOS");
+            info.set(0, 0, 0, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+            return;
+        }
+
+        int flags = (mAudioExtractor.getSampleFlags() & ExtractorPort.SAMPLE_FLAG_SYNC) != 0
+                ? CodecPort.BUFFER_FLAG_KEY_FRAME : 0;
+        info.set(0, size, presentationTime, flags);
+
+        mLogger.d(String.format(Locale.US, "audio extractor: copying buffer of size %d for time %d", size, presentationTime));
+
+        mStats.audioExtractedFrameCount++;
+        mAudioExtractor.advance();
+    }
+
+    /**
+     * Copies the next audio sample into the muxer, or stages it until the muxer has been started.
+     *
+     * @return true once the audio track or the trim range has ended
+     */
+    boolean copyAudioSample() {
+        readAudioCopySample(mAudioCopyBuffer, mAudioCopyInfo);
+        if ((mAudioCopyInfo.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            return true;
+        }
+
+        writeOrStageSampleData(false, mAudioCopyBuffer, mAudioCopyInfo);
+        return false;
+    }
+
+    /**
+     * Copying audio is much faster than encoding video, so the copy waits for the video track to
+     * catch up. That keeps the two tracks interleaved in the output file.
+     *
+     * @return true if the next audio sample to copy is ahead of the video written so far
+     */
+    boolean isAudioCopyAhead(boolean videoDone) {
+        return !videoDone && mAudioExtractor.getSampleTime() > mLastVideoPresentationTimeUs;
+    }
+
+    /**
+     * Releases a video decoder output buffer to the output surface and hands it to the
+     * {@link FrameRenderer}. Frames outside the trim range, or over the output frame rate, are
+     * released without rendering.
+     *
+     * @return true if this was the last buffer of the stream, false otherwise
+     */
+    boolean renderVideoDecoderOutputBuffer(int decoderOutputBufferIndex, SampleInfo videoDecoderOutputBufferInfo) {
+        mLogger.d(String.format(Locale.US, "video decoder: returned output buffer: %s", decoderOutputBufferIndex));
+        mLogger.d(String.format(Locale.US, "video decoder: returned buffer of size %s", videoDecoderOutputBufferInfo.size));
+        mLogger.d(String.format(Locale.US, "video decoder: returned buffer for time %d", videoDecoderOutputBufferInfo.presentationTimeUs));
+
+        boolean preRoll = isPreRoll(videoDecoderOutputBufferInfo) || isPastTrimEnd(videoDecoderOutputBufferInfo);
+        boolean dropped = !preRoll && videoDecoderOutputBufferInfo.size != 0
+                && (videoDecoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) == 0
+                && !mFrameDecimator.shouldKeep(videoDecoderOutputBufferInfo.presentationTimeUs);
+        boolean render = videoDecoderOutputBufferInfo.size != 0 && !preRoll && !dropped;
+
+        mVideoDecoder.releaseOutputBuffer(decoderOutputBufferIndex, render);
+
+        if (render) {
+            mFrameRenderer.renderFrame(videoDecoderOutputBufferInfo.presentationTimeUs);
+            mLogger.d("video encoder: notified of new frame");
+
+            // The frame is latched once and drawn again for every rendition
+            for (Rendition<F> rendition : mRenditions) {
+                rendition.renderFrame(videoDecoderOutputBufferInfo.presentationTimeUs);
+                rendition.drain(0);
+            }
+        }
+
+        if ((videoDecoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mLogger.d("video decoder: EOS");
+
+            mVideoEncoder.signalEndOfInputStream();
+            for (Rendition<F> rendition : mRenditions) {
+                rendition.signalEndOfInputStream();
+            }
+            return true;
+        }
+
+        if (preRoll) {
+            mLogger.d("video decoder: dropped frame outside the trim range");
+            mStats.videoPreRollFrameCount++;
+            return false;
+        }
+
+        if (dropped) {
+            mLogger.d("video decoder: dropped frame over the output frame rate");
+            mStats.videoDroppedFrameCount++;
+            return false;
+        }
+
+        mStats.videoDecodedFrameCount++;
+
+        return false;
+    }
+
+    /**
+     * Hands a decoded audio buffer from before the trim start straight back to the decoder.
+     *
+     * @return true if the buffer was dropped and must not be fed to the encoder
+     */
+    boolean dropAudioPreRoll(int decoderOutputBufferIndex, SampleInfo audioDecoderOutputBufferInfo) {
+        if (!isPreRoll(audioDecoderOutputBufferInfo)) {
+            return false;
+        }
+
+        mLogger.d("audio decoder: dropped buffer before the trim start");
+        mAudioDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
+        return true;
+    }
+
+    /**
+     * Dropped frames never reach the encoder, and a blocking poll of an encoder without input
+     * only waits out its timeout.
+     *
+     * @return true if every frame rendered so far has come out of the video encoder
+     */
+    boolean isVideoEncoderDrained() {
+        return mStats.videoEncodedFrameCount >= mStats.videoDecodedFrameCount;
+    }
+
+    /**
+     * @return true if the audio encoder input buffer has been queued, and another one must be
+     * passed to {@link #setAudioEncoderInputBuffer} before decoded audio can be fed
+     */
+    boolean needsAudioEncoderInputBuffer() {
+        return mPcmRechunker.needsInputBuffer();
+    }
+
+    void setAudioEncoderInputBuffer(int encoderInputBufferIndex, ByteBuffer encoderInputBuffer) {
+        mLogger.d(String.format(Locale.US, "audio encoder: filling input buffer: %d", encoderInputBufferIndex));
+        mPcmRechunker.setInputBuffer(encoderInputBufferIndex, encoderInputBuffer);
+    }
+
+    /**
+     * Copies a decoded audio buffer into the audio encoder's input buffers, queueing each one
+     * that fills up, and hands the decoder buffer back to the decoder once all of it is copied.
+     *
+     * @return true if the decoder buffer was handed back, false if it needs another encoder
+     * input buffer first
+     */
+    boolean feedAudioDecoderOutputToEncoder(int decoderOutputBufferIndex, ByteBuffer decoderOutputBuffer,
+                                            SampleInfo audioDecoderOutputBufferInfo) {
+        mLogger.d(String.format(Locale.US, "audio decoder: processing pending buffer: %d", decoderOutputBufferIndex));
+        mLogger.d(String.format(Locale.US, "audio decoder: pending buffer of size %s", audioDecoderOutputBufferInfo.size));
+        mLogger.d(String.format(Locale.US, "audio decoder: pending buffer for time %s", audioDecoderOutputBufferInfo.presentationTimeUs));
+
+        if (!mPcmFormatRead) {
+            // Decoded audio has its own layout, an AAC decoder may report twice the source's sample rate
+            mPcmFormatRead = true;
+            F format = mDecoderOutputAudioFormat != null ? mDecoderOutputAudioFormat : mAudioDecoder.getOutputFormat();
+            if (mPcmFormatReader != null) {
+                mPcmRechunker.setFormat(mPcmFormatReader.getSampleRate(format), mPcmFormatReader.getFrameSize(format));
+            }
+        }
+
+        // The decoder buffer goes back to the decoder once consumed, its position and limit are ours to move
+        if (!mPcmRechunker.feed(decoderOutputBuffer, audioDecoderOutputBufferInfo)) {
+            return false;
+        }
+
+        mStats.audioEncoderInputBufferCount = mPcmRechunker.getQueuedBufferCount();
+        mAudioDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
+
+        if ((audioDecoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mLogger.d("audio decoder: EOS");
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes an encoded video buffer to the muxer, or stages it until the muxer has been started,
+     * and releases it back to the encoder.
+     *
+     * @return true if this was the last buffer of the stream, false otherwise
+     */
+    boolean writeVideoEncoderOutputBuffer(int encoderOutputBufferIndex, ByteBuffer encoderOutputBuffer,
+                                          SampleInfo videoEncoderOutputBufferInfo) {
+        mLogger.d(String.format(Locale.US, "video encoder: returned output buffer: %d", encoderOutputBufferIndex));
+        mLogger.d(String.format(Locale.US, "video encoder: returned buffer of size %d", videoEncoderOutputBufferInfo.size));
+        mLogger.d(String.format(Locale.US, "video encoder: returned buffer for time %d", videoEncoderOutputBufferInfo.presentationTimeUs));
+
+        if (videoEncoderOutputBufferInfo.size != 0) {
+            writeOrStageSampleData(true, encoderOutputBuffer, videoEncoderOutputBufferInfo);
+            mLastVideoPresentationTimeUs = videoEncoderOutputBufferInfo.presentationTimeUs;
+        }
+
+        mVideoEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
+
+        if ((videoEncoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mLogger.d("video encoder: EOS");
+            return true;
+        }
+
+        mStats.videoEncodedFrameCount++;
+
+        return false;
+    }
+
+    /**
+     * Writes an encoded audio buffer to the muxer, or stages it until the muxer has been started,
+     * and releases it back to the encoder. Buffers that would go backwards in time are dropped.
+     *
+     * @return true if this was the last buffer of the stream, false otherwise
+     */
+    boolean writeAudioEncoderOutputBuffer(int encoderOutputBufferIndex, ByteBuffer encoderOutputBuffer,
+                                          SampleInfo audioEncoderOutputBufferInfo) {
+        mLogger.d(String.format(Locale.US, "audio encoder: returned output buffer: %d", encoderOutputBufferIndex));
+        mLogger.d(String.format(Locale.US, "audio encoder: returned buffer of size %d", audioEncoderOutputBufferInfo.size));
+        mLogger.d(String.format(Locale.US, "audio encoder: returned buffer for time %d", audioEncoderOutputBufferInfo.presentationTimeUs));
+
+        if (audioEncoderOutputBufferInfo.size != 0) {
+            writeOrStageSampleData(false, encoderOutputBuffer, audioEncoderOutputBufferInfo);
+        }
+
+        mAudioEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
+
+        if ((audioEncoderOutputBufferInfo.flags & CodecPort.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mLogger.d("audio encoder: EOS");
+            return true;
+        }
+
+        mStats.audioEncodedFrameCount++;
+
+        return false;
+    }
+
+    private void writeOrStageSampleData(boolean video, ByteBuffer buffer, SampleInfo info) {
+        if (mMuxerStarted) {
+            writeSampleData(video, buffer, info);
+        } else {
+            mStaging.add(video, buffer, info);
+            mStats.stagedSampleHighWaterMark = mStaging.getHighWaterMark();
+        }
+    }
+
+    /**
+     * Audio is also held back while a rendition's encoder hasn't reported its format yet and the
+     * rendition can't stage any more audio, so the video chain can feed it the frames it needs.
+     *
+     * @return true if an encoded buffer of the given track can be written or staged right now
+     */
+    boolean canAcceptEncoderOutput(boolean video) {
+        if (!mMuxerStarted) {
+            return !mStaging.isFull(video);
+        }
+
+        if (!video) {
+            for (Rendition<F> rendition : mRenditions) {
+                if (!rendition.canAcceptAudioSample()) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes an encoded sample to its track of the started muxer. Audio samples that would go
+     * backwards in time are dropped, the others are also written to every rendition.
+     */
+    void writeSampleData(boolean video, ByteBuffer buffer, SampleInfo info) {
+        if (video) {
+            mMuxer.writeSampleData(mOutputVideoTrack, buffer, info);
+        } else if (info.presentationTimeUs >= mPreviousPresentationTime) {
+            mPreviousPresentationTime = info.presentationTimeUs;
+            mMuxer.writeSampleData(mOutputAudioTrack, buffer, info);
+
+            for (Rendition<F> rendition : mRenditions) {
+                rendition.writeAudioSampleData(buffer, info);
+            }
+        } else {
+            mLogger.d(String.format("presentationTimeUs %s < previousPresentationTime %s",
+                    info.presentationTimeUs, mPreviousPresentationTime));
+        }
+    }
+
+    void setEncoderOutputVideoFormat(F format) {
+        mLogger.d("video encoder: output format changed");
+        if (mOutputVideoTrack >= 0) {
+            throw new IllegalStateException("Video encoder changed its output format again? What's going on?");
+        }
+        mEncoderOutputVideoFormat = format;
+    }
+
+    void setEncoderOutputAudioFormat(F format) {
+        mLogger.d("audio encoder: output format changed");
+        if (mOutputAudioTrack >= 0) {
+            throw new IllegalStateException("audio encoder changed its output format again?");
+        }
+        mEncoderOutputAudioFormat = format;
+    }
+
+    /**
+     * @return true once every encoder has reported its output format
+     */
+    boolean isReadyToMux() {
+        return (!hasAudio() || mEncoderOutputAudioFormat != null) && mEncoderOutputVideoFormat != null;
+    }
+
+    void setupMuxer() {
+        mLogger.d("muxer: adding video track.");
+        mOutputVideoTrack = mMuxer.addTrack(mEncoderOutputVideoFormat);
+
+        if (hasAudio()) {
+            mLogger.d("muxer: adding audio track.");
+            mOutputAudioTrack = mMuxer.addTrack(mEncoderOutputAudioFormat);
+        }
+
+        mLogger.d("muxer: starting");
+        mMuxer.start();
+        mMuxerStarted = true;
+
+        if (hasAudio()) {
+            for (Rendition<F> rendition : mRenditions) {
+                rendition.setAudioFormat(mEncoderOutputAudioFormat);
+            }
+        }
+
+        Sample staged;
+        while ((staged = mStaging.poll()) != null) {
+            writeSampleData(staged.video, staged.buffer, staged.info);
+            mStaging.recycle(staged);
+        }
+    }
+
+    public static final class Builder<F> {
+        private ExtractorPort mVideoExtractor;
+        private CodecPort<F> mVideoDecoder;
+        private CodecPort<F> mVideoEncoder;
+        private FrameRenderer mFrameRenderer;
+        private int mFrameRate;
+
+        private ExtractorPort mAudioExtractor;
+        private CodecPort<F> mAudioDecoder;
+        private CodecPort<F> mAudioEncoder;
+        private F mAudioCopyFormat;
+        private int mAudioCopyBufferSize;
+        private PcmFormatReader<F> mPcmFormatReader;
+
+        private MuxerPort<F> mMuxer;
+        private CodecEventQueue<F> mCodecEvents;
+
+        private final List<CodecPort<F>> mRenditionEncoders = new ArrayList<>();
+        private final List<FrameRenderer> mRenditionRenderers = new ArrayList<>();
+        private final List<MuxerPort<F>> mRenditionMuxers = new ArrayList<>();
+
+        private long mTrimStartTimeUs = 0;
+        private long mTrimEndTimeUs = TRIM_TIME_END;
+
+        private Stats mStats;
+        private Logger mLogger;
+
+        public Builder<F> video(ExtractorPort extractor, CodecPort<F> decoder, CodecPort<F> encoder, FrameRenderer renderer) {
+            mVideoExtractor = extractor;
+            mVideoDecoder = decoder;
+            mVideoEncoder = encoder;
+            mFrameRenderer = renderer;
+            return this;
+        }
+
+        /**
+         * @param framesPerSecond Highest frame rate to encode, decoded frames over it are dropped.
+         *                        0, the default, keeps every frame.
+         */
+        public Builder<F> frameRate(int framesPerSecond) {
+            mFrameRate = framesPerSecond;
+            return this;
+        }
+
+        public Builder<F> audio(ExtractorPort extractor, CodecPort<F> decoder, CodecPort<F> encoder) {
+            mAudioExtractor = extractor;
+            mAudioDecoder = decoder;
+            mAudioEncoder = encoder;
+            mAudioCopyFormat = null;
+            return this;
+        }
+
+        /**
+         * Re-chunks the decoded audio to fill every audio encoder input buffer, timed from the
+         * frames queued so far. Without it every decoded buffer is queued to the encoder as is.
+         *
+         * @param reader Reads the sample rate and frame size of the audio decoder's output format
+         */
+        public Builder<F> pcmFormatReader(PcmFormatReader<F> reader) {
+            mPcmFormatReader = reader;
+            return this;
+        }
+
+        /**
+         * Copies the audio track into the output without decoding it.
+         *
+         * @param format The source track format, handed to the muxer as is
+         * @param maxSampleSize Size of the largest sample in the track
+         */
+        public Builder<F> audioCopy(ExtractorPort extractor, F format, int maxSampleSize) {
+            mAudioExtractor = extractor;
+            mAudioDecoder = null;
+            mAudioEncoder = null;
+            mAudioCopyFormat = format;
+            mAudioCopyBufferSize = maxSampleSize;
+            return this;
+        }
+
+        public Builder<F> muxer(MuxerPort<F> muxer) {
+            mMuxer = muxer;
+            return this;
+        }
+
+        /**
+         * Adds an output encoded from the same decoded frames as the main one, with the same
+         * audio track. The encoder must not have a callback set, it is drained by the video chain.
+         *
+         * @param renderer Draws the frame the main renderer has already latched into this
+         *                 rendition's encoder, and leaves the main encoder's surface current
+         */
+        public Builder<F> rendition(CodecPort<F> encoder, FrameRenderer renderer, MuxerPort<F> muxer) {
+            mRenditionEncoders.add(encoder);
+            mRenditionRenderers.add(renderer);
+            mRenditionMuxers.add(muxer);
+            return this;
+        }
+
+        /**
+         * @param codecEvents The queue every codec's callback was set to. Only needed by
+         *                    {@link #ENGINE_ASYNC}.
+         */
+        public Builder<F> codecEvents(CodecEventQueue<F> codecEvents) {
+            mCodecEvents = codecEvents;
+            return this;
+        }
+
+        public Builder<F> trim(long startTimeUs, long endTimeUs) {
+            mTrimStartTimeUs = startTimeUs;
+            mTrimEndTimeUs = endTimeUs;
+            return this;
+        }
+
+        public Builder<F> stats(Stats stats) {
+            mStats = stats;
+            return this;
+        }
+
+        public Builder<F> logger(Logger logger) {
+            mLogger = logger;
+            return this;
+        }
+
+        public TranscodePipeline<F> build() {
+            if (mVideoExtractor == null || mVideoDecoder == null || mVideoEncoder == null || mFrameRenderer == null) {
+                throw new IllegalStateException("video() must be called before build()");
+            }
+
+            if (mMuxer == null) {
+                throw new IllegalStateException("muxer() must be called before build()");
+            }
+
+            if (mStats == null || mLogger == null) {
+                throw new IllegalStateException("stats() and logger() must be called before build()");
+            }
+
+            return new TranscodePipeline<>(this);
+        }
+    }
+}
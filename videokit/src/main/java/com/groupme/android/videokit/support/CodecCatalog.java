@@ -0,0 +1,308 @@
+package com.groupme.android.videokit.support;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Range;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Snapshot of the device's encoders, ranked per MIME type. The snapshot is built from
+ * {@link MediaCodecList} once per build fingerprint and persisted, so later jobs only pay for a
+ * map lookup.
+ * <p>
+ * Encoders are ranked by hardware acceleration first, then by throughput. Throughput is the
+ * frame rate measured on real jobs through {@link #recordThroughput}. Encoders that haven't been
+ * measured yet are estimated from the achievable frame rate they report, scaled by how the
+ * measured encoders of the same type compare to their own reports. Until one has both, encoders
+ * are ranked by their reports alone.
+ * <p>
+ * Sizes and frame rates are checked against the codecs' full capabilities, which are only read
+ * from {@link MediaCodecList} once an encoder is actually selected.
+ */
+public class CodecCatalog {
+    private static final String PREFS_NAME = "videokit_codecs";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_ENCODERS = "encoders";
+    private static final String KEY_THROUGHPUT_PREFIX = "throughput/";
+
+    /** Weight of the newest measurement in the moving average of an encoder's throughput. */
+    private static final float THROUGHPUT_SMOOTHING = 0.3f;
+
+    /** Frame size used to ask an encoder for its achievable frame rate. */
+    private static final int REFERENCE_WIDTH = 1280;
+    private static final int REFERENCE_HEIGHT = 720;
+
+    private static CodecCatalog sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final Map<String, List<Encoder>> mEncoders = new HashMap<>();
+    private MediaCodecInfo[] mCodecInfos;
+
+    public static synchronized CodecCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CodecCatalog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CodecCatalog(Context context) {
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        String snapshot = mPreferences.getString(KEY_ENCODERS, null);
+        if (snapshot == null || !String.valueOf(Build.FINGERPRINT).equals(mPreferences.getString(KEY_FINGERPRINT, null))
+                || !parse(snapshot)) {
+            scan();
+            mPreferences.edit()
+                    .clear()
+                    .putString(KEY_FINGERPRINT, String.valueOf(Build.FINGERPRINT))
+                    .putString(KEY_ENCODERS, serialize())
+                    .apply();
+        }
+
+        for (List<Encoder> encoders : mEncoders.values()) {
+            for (Encoder encoder : encoders) {
+                encoder.measuredFrameRate = mPreferences.getFloat(KEY_THROUGHPUT_PREFIX + encoder.name, 0);
+            }
+            rank(encoders);
+        }
+    }
+
+    /**
+     * @param mimeType MIME type to encode
+     * @param width Planned output width, or 0 for audio
+     * @param height Planned output height, or 0 for audio
+     * @param frameRate Planned output frame rate, or 0 for audio
+     * @return The name of the best ranked encoder that can handle the output, or null if there is
+     * none
+     */
+    public synchronized String selectEncoder(String mimeType, int width, int height, int frameRate) {
+        String type = mimeType.toLowerCase(Locale.US);
+        List<Encoder> encoders = mEncoders.get(type);
+        if (encoders == null) {
+            return null;
+        }
+
+        for (Encoder encoder : encoders) {
+            if (supports(encoder, type, width, height, frameRate)) {
+                return encoder.name;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks the size against the codec's capabilities, which also cover alignment, minimum sizes
+     * and limits that depend on the other dimension. Falls back to the snapshot's maximum size if
+     * the codec is gone.
+     */
+    private boolean supports(Encoder encoder, String mimeType, int width, int height, int frameRate) {
+        if (encoder.maxWidth == 0 || width == 0 || height == 0) {
+            return true;
+        }
+
+        MediaCodecInfo.VideoCapabilities capabilities = getVideoCapabilities(encoder.name, mimeType);
+        if (capabilities == null) {
+            return width <= encoder.maxWidth && height <= encoder.maxHeight;
+        }
+
+        return frameRate > 0
+                ? capabilities.areSizeAndRateSupported(width, height, frameRate)
+                : capabilities.isSizeSupported(width, height);
+    }
+
+    private MediaCodecInfo.VideoCapabilities getVideoCapabilities(String codecName, String mimeType) {
+        if (mCodecInfos == null) {
+            mCodecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        }
+
+        for (MediaCodecInfo codecInfo : mCodecInfos) {
+            if (codecInfo.isEncoder() && codecInfo.getName().equals(codecName)) {
+                for (String type : codecInfo.getSupportedTypes()) {
+                    if (type.equalsIgnoreCase(mimeType)) {
+                        return codecInfo.getCapabilitiesForType(type).getVideoCapabilities();
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Folds the frame rate an encoder achieved on a finished job into its ranking.
+     */
+    public synchronized void recordThroughput(String codecName, float framesPerSecond) {
+        if (codecName == null || framesPerSecond <= 0) {
+            return;
+        }
+
+        for (List<Encoder> encoders : mEncoders.values()) {
+            for (Encoder encoder : encoders) {
+                if (encoder.name.equals(codecName)) {
+                    encoder.measuredFrameRate = encoder.measuredFrameRate == 0 ? framesPerSecond
+                            : encoder.measuredFrameRate + THROUGHPUT_SMOOTHING * (framesPerSecond - encoder.measuredFrameRate);
+                    mPreferences.edit().putFloat(KEY_THROUGHPUT_PREFIX + codecName, encoder.measuredFrameRate).apply();
+                    rank(encoders);
+                }
+            }
+        }
+    }
+
+    private void scan() {
+        MediaCodecInfo[] codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+
+        for (MediaCodecInfo codecInfo : codecInfos) {
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+
+            for (String type : codecInfo.getSupportedTypes()) {
+                Encoder encoder = new Encoder(codecInfo.getName(), isHardwareAccelerated(codecInfo));
+
+                MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(type);
+                MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+                if (videoCapabilities != null) {
+                    encoder.maxWidth = videoCapabilities.getSupportedWidths().getUpper();
+                    encoder.maxHeight = videoCapabilities.getSupportedHeights().getUpper();
+                    encoder.reportedFrameRate = getAchievableFrameRate(videoCapabilities);
+                }
+
+                addEncoder(type.toLowerCase(Locale.US), encoder);
+            }
+        }
+    }
+
+    private static boolean isHardwareAccelerated(MediaCodecInfo codecInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return codecInfo.isHardwareAccelerated();
+        }
+
+        String name = codecInfo.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.contains(".sw.");
+    }
+
+    private static float getAchievableFrameRate(MediaCodecInfo.VideoCapabilities videoCapabilities) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || !videoCapabilities.isSizeSupported(REFERENCE_WIDTH, REFERENCE_HEIGHT)) {
+            return 0;
+        }
+
+        Range<Double> frameRates = videoCapabilities.getAchievableFrameRatesFor(REFERENCE_WIDTH, REFERENCE_HEIGHT);
+        return frameRates == null ? 0 : frameRates.getUpper().floatValue();
+    }
+
+    private void addEncoder(String mimeType, Encoder encoder) {
+        List<Encoder> encoders = mEncoders.get(mimeType);
+        if (encoders == null) {
+            encoders = new ArrayList<>();
+            mEncoders.put(mimeType, encoders);
+        }
+        encoders.add(encoder);
+    }
+
+    private static void rank(List<Encoder> encoders) {
+        // Measured job frame rates and reported 720p frame rates aren't the same unit, so the
+        // reports are scaled by how the encoders measured so far compare to theirs
+        float ratios = 0;
+        int calibrated = 0;
+        for (Encoder encoder : encoders) {
+            if (encoder.measuredFrameRate > 0 && encoder.reportedFrameRate > 0) {
+                ratios += encoder.measuredFrameRate / encoder.reportedFrameRate;
+                calibrated++;
+            }
+        }
+
+        for (Encoder encoder : encoders) {
+            if (calibrated > 0) {
+                encoder.rankFrameRate = encoder.measuredFrameRate > 0
+                        ? encoder.measuredFrameRate : encoder.reportedFrameRate * ratios / calibrated;
+            } else {
+                encoder.rankFrameRate = encoder.reportedFrameRate;
+            }
+        }
+
+        // Stable, so encoders that tie keep the platform's order of preference
+        Collections.sort(encoders, new Comparator<Encoder>() {
+            @Override
+            public int compare(Encoder a, Encoder b) {
+                if (a.hardwareAccelerated != b.hardwareAccelerated) {
+                    return a.hardwareAccelerated ? -1 : 1;
+                }
+                return Float.compare(b.rankFrameRate, a.rankFrameRate);
+            }
+        });
+    }
+
+    /**
+     * One encoder per line: mime, name, hardware flag, max width, max height and reported frame
+     * rate, separated by tabs.
+     */
+    private String serialize() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, List<Encoder>> entry : mEncoders.entrySet()) {
+            for (Encoder encoder : entry.getValue()) {
+                builder.append(entry.getKey()).append('\t')
+                        .append(encoder.name).append('\t')
+                        .append(encoder.hardwareAccelerated ? 1 : 0).append('\t')
+                        .append(encoder.maxWidth).append('\t')
+                        .append(encoder.maxHeight).append('\t')
+                        .append(encoder.reportedFrameRate).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return false if the snapshot is corrupt and has to be rebuilt
+     */
+    private boolean parse(String snapshot) {
+        try {
+            for (String line : snapshot.split("\n")) {
+                String[] fields = line.split("\t");
+                if (fields.length != 6) {
+                    continue;
+                }
+
+                Encoder encoder = new Encoder(fields[1], "1".equals(fields[2]));
+                encoder.maxWidth = Integer.parseInt(fields[3]);
+                encoder.maxHeight = Integer.parseInt(fields[4]);
+                encoder.reportedFrameRate = Float.parseFloat(fields[5]);
+                addEncoder(fields[0], encoder);
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            mEncoders.clear();
+            return false;
+        }
+    }
+
+    private static final class Encoder {
+        final String name;
+        final boolean hardwareAccelerated;
+
+        // 0 for audio encoders
+        int maxWidth;
+        int maxHeight;
+
+        float reportedFrameRate;
+        float measuredFrameRate;
+        // Throughput in measured frames per second, actual or estimated, set by rank()
+        float rankFrameRate;
+
+        Encoder(String name, boolean hardwareAccelerated) {
+            this.name = name;
+            this.hardwareAccelerated = hardwareAccelerated;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.groupme.android.videokit.support;
+
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps stopped {@link MediaCodec} instances around between transcode jobs so the next job can
+ * skip creating them. A recycled codec is in the Uninitialized state and only needs to be
+ * configured and started again.
+ * <p>
+ * Idle codecs hold on to hardware resources, so at most {@link #MAX_IDLE_CODECS} are kept and
+ * each one is released once it has been idle for {@link #IDLE_TIMEOUT_MS}.
+ */
+public class CodecPool {
+    public static final int MAX_IDLE_CODECS = 4;
+    public static final long IDLE_TIMEOUT_MS = 30000;
+
+    private static final CodecPool sInstance = new CodecPool();
+
+    private final List<Entry> mIdle = new ArrayList<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mEvictRunnable = new Runnable() {
+        @Override
+        public void run() {
+            evictExpired();
+        }
+    };
+
+    private int mHitCount;
+    private int mMissCount;
+
+    public static CodecPool getInstance() {
+        return sInstance;
+    }
+
+    private CodecPool() {
+    }
+
+    /**
+     * @param codecName Name of the codec, or null to accept any codec for the MIME type
+     * @param mimeType MIME type the codec will be configured for
+     * @param encoder Whether an encoder or a decoder is wanted
+     * @return A stopped codec ready to be configured, or null if none is idle. The caller creates
+     * a new codec in that case.
+     */
+    public synchronized MediaCodec acquire(String codecName, String mimeType, boolean encoder) {
+        Iterator<Entry> iterator = mIdle.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.encoder == encoder && entry.mimeType.equalsIgnoreCase(mimeType)
+                    && (codecName == null || entry.codec.getName().equals(codecName))) {
+                iterator.remove();
+                mHitCount++;
+                return entry.codec;
+            }
+        }
+
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Stops the codec and keeps it for a later {@link #acquire}. Codecs that fail to stop are
+     * released instead, as is the least recently used idle codec when the pool is full.
+     *
+     * @param mimeType MIME type the codec was configured for
+     * @param encoder Whether the codec was configured as an encoder
+     */
+    public void recycle(MediaCodec codec, String mimeType, boolean encoder) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            try {
+                codec.reset();
+            } catch (IllegalStateException e2) {
+                codec.release();
+                return;
+            }
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // The next job decides between callbacks and polling before configuring
+            codec.setCallback(null);
+        }
+
+        MediaCodec evicted = null;
+        synchronized (this) {
+            if (mIdle.size() >= MAX_IDLE_CODECS) {
+                evicted = mIdle.remove(0).codec;
+            }
+            mIdle.add(new Entry(codec, mimeType, encoder, SystemClock.elapsedRealtime()));
+        }
+
+        if (evicted != null) {
+            evicted.release();
+        }
+
+        mHandler.removeCallbacks(mEvictRunnable);
+        mHandler.postDelayed(mEvictRunnable, IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Releases every idle codec, e.g. from {@code onTrimMemory}.
+     */
+    public void clear() {
+        List<Entry> released;
+        synchronized (this) {
+            released = new ArrayList<>(mIdle);
+            mIdle.clear();
+        }
+
+        for (Entry entry : released) {
+            entry.codec.release();
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private void evictExpired() {
+        long now = SystemClock.elapsedRealtime();
+        long nextExpiry = Long.MAX_VALUE;
+        List<Entry> expired = new ArrayList<>();
+
+        synchronized (this) {
+            Iterator<Entry> iterator = mIdle.iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                long expiry = entry.idleSince + IDLE_TIMEOUT_MS;
+                if (expiry <= now) {
+                    iterator.remove();
+                    expired.add(entry);
+                } else {
+                    nextExpiry = Math.min(nextExpiry, expiry);
+                }
+            }
+        }
+
+        for (Entry entry : expired) {
+            entry.codec.release();
+        }
+
+        if (nextExpiry != Long.MAX_VALUE) {
+            mHandler.postDelayed(mEvictRunnable, nextExpiry - now);
+        }
+    }
+
+    private static final class Entry {
+        final MediaCodec codec;
+        final String mimeType;
+        final boolean encoder;
+        final long idleSince;
+
+        Entry(MediaCodec codec, String mimeType, boolean encoder, long idleSince) {
+            this.codec = codec;
+            this.mimeType = mimeType;
+            this.encoder = encoder;
+            this.idleSince = idleSince;
+        }
+    }
+}
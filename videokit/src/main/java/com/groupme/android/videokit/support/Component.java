@@ -17,6 +17,7 @@ public class Component {
 
     private Context mContext;
     private final Uri mSrcUri;
+    private final SourceSession mSession;
     private final int mType;
 
     private MediaExtractor mMediaExtractor;
@@ -31,8 +32,23 @@ public class Component {
      * @throws IOException Thrown if the component type is invalid
      */
     public Component(Context context, Uri srcUri, int type) throws IOException {
+        this(context, srcUri, null, type);
+    }
+
+    /**
+     * @param session Session the source was opened in, the extractor reads through it and the
+     *                track formats are shared with the session's other components
+     * @param type Type of component - either audio or video
+     * @throws IOException Thrown if the component type is invalid
+     */
+    public Component(SourceSession session, int type) throws IOException {
+        this(null, null, session, type);
+    }
+
+    private Component(Context context, Uri srcUri, SourceSession session, int type) throws IOException {
         mContext = context;
         mSrcUri = srcUri;
+        mSession = session;
         mType = type;
 
         if (type != COMPONENT_TYPE_AUDIO && type != COMPONENT_TYPE_VIDEO) {
@@ -87,11 +103,16 @@ public class Component {
     }
 
     /**
-     * Creates an extractor that reads its frames from {@link #mSrcUri}
+     * Creates an extractor that reads its frames from {@link #mSession}, or {@link #mSrcUri}
      *
      * @throws IOException If unable to create a media extractor for this component
      */
     private void createExtractor() throws IOException {
+        if (mSession != null) {
+            mMediaExtractor = mSession.createExtractor();
+            return;
+        }
+
         mMediaExtractor = new MediaExtractor();
         mMediaExtractor.setDataSource(mContext, mSrcUri, null);
     }
@@ -99,9 +120,12 @@ public class Component {
     /**
      * Searches for and selects the track for the extractor to work on.
      */
-    private void selectTrackIndex() {
-        for (int index = 0; index < mMediaExtractor.getTrackCount(); ++index) {
-            MediaFormat trackFormat = mMediaExtractor.getTrackFormat(index);
+    private void selectTrackIndex() throws IOException {
+        MediaFormat[] sessionFormats = mSession != null ? mSession.getTrackFormats() : null;
+        int trackCount = sessionFormats != null ? sessionFormats.length : mMediaExtractor.getTrackCount();
+
+        for (int index = 0; index < trackCount; ++index) {
+            MediaFormat trackFormat = sessionFormats != null ? sessionFormats[index] : mMediaExtractor.getTrackFormat(index);
 
             if (mType == COMPONENT_TYPE_VIDEO && MediaInfo.isVideoFormat(trackFormat) ||
                 mType == COMPONENT_TYPE_AUDIO && MediaInfo.isAudioFormat(trackFormat)) {
@@ -0,0 +1,170 @@
+package com.groupme.android.videokit.support;
+
+import android.opengl.EGL14;
+import android.opengl.EGL15;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSync;
+import android.opengl.GLES20;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounds how many drawn frames the GPU may still be working on, so the next frame can be latched
+ * and drawn while the previous ones are still being rendered. Each frame gets an EGL fence sync
+ * object instead of a glFinish(), and the CPU only waits once too many fences are pending.
+ * <p>
+ * Fences need {@link EGL15}, which is API 29. Below that every frame is finished before the next
+ * one is drawn, as before. {@link EGL15} is only touched from {@link Fences}, which isn't loaded
+ * on older devices.
+ */
+public class FrameFenceQueue {
+    private final int mMaxFramesInFlight;
+    // Null below API 29, or once the device turned out not to support fences
+    private Fences mFences;
+
+    private int mFramesInFlightHighWaterMark;
+    private long mWaitTimeNs;
+
+    /**
+     * @param maxFramesInFlight Drawn frames the GPU may work on before the next draw waits
+     */
+    public FrameFenceQueue(int maxFramesInFlight) {
+        mMaxFramesInFlight = maxFramesInFlight;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mFences = new Fences(maxFramesInFlight + 1);
+        }
+    }
+
+    /**
+     * Call after the draw calls of a frame, with the context they were issued on still current.
+     * Waits for the oldest frame if more than the maximum are in flight.
+     */
+    public void frameDrawn() {
+        if (mFences != null && !mFences.add()) {
+            // No fences on this device, the frame has to be done before the next one
+            mFences.release();
+            mFences = null;
+        }
+
+        if (mFences == null) {
+            finishFrame();
+            return;
+        }
+
+        // Frames the GPU is already done with don't count as in flight
+        mFences.removeSignaled();
+
+        mFramesInFlightHighWaterMark = Math.max(mFramesInFlightHighWaterMark, mFences.size());
+
+        while (mFences.size() > mMaxFramesInFlight) {
+            long start = System.nanoTime();
+            mFences.removeOldest();
+            mWaitTimeNs += System.nanoTime() - start;
+        }
+    }
+
+    private void finishFrame() {
+        long start = System.nanoTime();
+        GLES20.glFinish();
+        mWaitTimeNs += System.nanoTime() - start;
+        mFramesInFlightHighWaterMark = Math.max(mFramesInFlightHighWaterMark, 1);
+    }
+
+    /**
+     * Waits for every frame still in flight and destroys their fences.
+     */
+    public void release() {
+        if (mFences != null) {
+            mFences.release();
+        }
+    }
+
+    /**
+     * @return The most frames the GPU was working on at once
+     */
+    public int getFramesInFlightHighWaterMark() {
+        return mFramesInFlightHighWaterMark;
+    }
+
+    /**
+     * @return Total time the CPU spent waiting for the GPU, in microseconds
+     */
+    public long getWaitTimeUs() {
+        return mWaitTimeNs / 1000;
+    }
+
+    /**
+     * The pending fence sync objects, oldest first.
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private static final class Fences {
+        private static final long[] FENCE_ATTRIBS = { EGL14.EGL_NONE };
+
+        private final ArrayDeque<EGLSync> mSyncs;
+        private EGLDisplay mDisplay;
+
+        Fences(int capacity) {
+            mSyncs = new ArrayDeque<>(capacity);
+        }
+
+        /**
+         * Inserts a fence after the draw calls issued so far.
+         *
+         * @return false if the device can't create fences
+         */
+        boolean add() {
+            if (mDisplay == null) {
+                mDisplay = EGL14.eglGetCurrentDisplay();
+            }
+
+            EGLSync fence = EGL15.eglCreateSync(mDisplay, EGL15.EGL_SYNC_FENCE, FENCE_ATTRIBS, 0);
+            if (fence == null || fence == EGL15.EGL_NO_SYNC) {
+                return false;
+            }
+
+            mSyncs.add(fence);
+            return true;
+        }
+
+        int size() {
+            return mSyncs.size();
+        }
+
+        void removeSignaled() {
+            while (!mSyncs.isEmpty() && waitForOldest(0)) {
+                mSyncs.poll();
+            }
+        }
+
+        void removeOldest() {
+            waitForOldest(EGL15.EGL_FOREVER);
+            mSyncs.poll();
+        }
+
+        /**
+         * Destroys the oldest fence once it has signaled.
+         *
+         * @return true if the oldest frame is done
+         */
+        private boolean waitForOldest(long timeoutNs) {
+            EGLSync fence = mSyncs.peek();
+            int result = EGL15.eglClientWaitSync(mDisplay, fence, EGL15.EGL_SYNC_FLUSH_COMMANDS_BIT, timeoutNs);
+            if (result == EGL15.EGL_TIMEOUT_EXPIRED) {
+                return false;
+            }
+
+            // A failed wait can't be retried either, stop tracking the frame
+            EGL15.eglDestroySync(mDisplay, fence);
+            return true;
+        }
+
+        void release() {
+            while (!mSyncs.isEmpty()) {
+                removeOldest();
+            }
+        }
+    }
+}
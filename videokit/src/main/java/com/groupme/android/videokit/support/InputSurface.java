@@ -42,23 +42,35 @@ public class InputSurface {
     private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
 
     private Surface mSurface;
+    // Set when this surface shares its textures with another one, which owns the display
+    private final boolean mShared;
 
     /**
      * Creates an InputSurface from a Surface.
      */
     public InputSurface(Surface surface) {
+        this(surface, null);
+    }
+
+    /**
+     * Creates an InputSurface from a Surface, with a context sharing textures and programs with
+     * another InputSurface's context. Frames latched there can be drawn here too. Must be
+     * released before the other surface.
+     */
+    public InputSurface(Surface surface, InputSurface sharedContext) {
         if (surface == null) {
             throw new NullPointerException();
         }
         mSurface = surface;
+        mShared = sharedContext != null;
 
-        eglSetup();
+        eglSetup(mShared ? sharedContext.mEGLContext : EGL14.EGL_NO_CONTEXT);
     }
 
     /**
      * Prepares EGL.  We want a GLES 2.0 context and a surface that supports recording.
      */
-    private void eglSetup() {
+    private void eglSetup(EGLContext sharedContext) {
         mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
         if (mEGLDisplay == EGL14.EGL_NO_DISPLAY) {
             throw new RuntimeException("unable to get EGL14 display");
@@ -91,7 +103,7 @@ public class InputSurface {
                 EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
                 EGL14.EGL_NONE
         };
-        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], EGL14.EGL_NO_CONTEXT,
+        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], sharedContext,
                 attrib_list, 0);
         checkEglError("eglCreateContext");
         if (mEGLContext == null) {
@@ -118,8 +130,10 @@ public class InputSurface {
         if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
             EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
             EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
-            EGL14.eglReleaseThread();
-            EGL14.eglTerminate(mEGLDisplay);
+            if (!mShared) {
+                EGL14.eglReleaseThread();
+                EGL14.eglTerminate(mEGLDisplay);
+            }
         }
 
         mSurface.release();
@@ -0,0 +1,45 @@
+package com.groupme.android.videokit.support;
+
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Serves an extractor straight from a memory mapping of the whole source, so reads are copies from
+ * the page cache instead of system calls. The mapping is shared by every extractor of a session.
+ */
+@RequiresApi(Build.VERSION_CODES.M)
+class MappedDataSource extends MediaDataSource {
+    private final ByteBuffer mData;
+
+    MappedDataSource(MappedByteBuffer mapping) {
+        // A view of its own, so the position used below is private to this source
+        mData = mapping.duplicate();
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) {
+        if (position >= mData.capacity()) {
+            return -1;
+        }
+
+        int count = (int) Math.min(size, mData.capacity() - position);
+        mData.position((int) position);
+        mData.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long getSize() {
+        return mData.capacity();
+    }
+
+    @Override
+    public void close() {
+        // The mapping goes away with the session's last reference to it
+    }
+}
@@ -0,0 +1,204 @@
+package com.groupme.android.videokit.support;
+
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serves an extractor from a ring buffer that a background thread keeps filled ahead of the
+ * extractor's read position, for sources where a single read can take hundreds of milliseconds,
+ * like files a cloud provider streams through a proxy descriptor. The extractor only waits when it
+ * gets ahead of the prefetcher, and the codec loop waiting on the extractor with it.
+ * <p>
+ * While the extractor reads sequentially, allowing for the other tracks' chunks it skips, the
+ * prefetcher fills the whole buffer ahead of it. After a jump elsewhere it restarts from there and
+ * only reads a chunk ahead until the reads are sequential again.
+ */
+@RequiresApi(Build.VERSION_CODES.M)
+class PrefetchDataSource extends MediaDataSource implements Runnable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /** Reads this far from the end of the previous one still count as sequential. */
+    private static final long SEQUENTIAL_GAP = 1024 * 1024;
+
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final byte[] mRing;
+    private final ReadCounters mCounters;
+
+    // The range of the source held in the ring, file position p is at mRing[p % mRing.length]
+    private long mStart;
+    private long mEnd;
+    // End of the extractor's last read, the prefetcher stays ahead of it
+    private long mReadPosition;
+    private boolean mSequential;
+    // Changes whenever the ring restarts somewhere else, to drop reads still in flight for the old position
+    private int mGeneration;
+    private boolean mClosed;
+    private IOException mError;
+
+    /**
+     * @param capacity Bytes held in the ring buffer
+     * @param counters Counts the reads, hits, misses and stall time
+     */
+    PrefetchDataSource(FileChannel channel, int capacity, ReadCounters counters) throws IOException {
+        mChannel = channel;
+        mSize = channel.size();
+        mRing = new byte[Math.max(capacity, CHUNK_SIZE * 2)];
+        mCounters = counters;
+
+        Thread thread = new Thread(this, "videokit-prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+        while (true) {
+            long position;
+            int generation;
+            synchronized (this) {
+                while (!mClosed && !shouldFill()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+                position = mEnd;
+                generation = mGeneration;
+            }
+
+            chunk.clear();
+            chunk.limit((int) Math.min(CHUNK_SIZE, mSize - position));
+            int read;
+            try {
+                mCounters.reads.incrementAndGet();
+                read = mChannel.read(chunk, position);
+            } catch (IOException e) {
+                synchronized (this) {
+                    mError = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    continue;
+                }
+
+                if (read <= 0) {
+                    mError = new IOException("Source ended at " + position + " of " + mSize + " bytes");
+                    notifyAll();
+                    return;
+                }
+
+                append(chunk.array(), read);
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean shouldFill() {
+        long readAhead = mSequential ? mRing.length - CHUNK_SIZE : CHUNK_SIZE;
+        return mError == null && mEnd < mSize && mEnd - mReadPosition < readAhead;
+    }
+
+    /**
+     * Adds bytes at the end of the ring, dropping the oldest ones if it is full.
+     */
+    private void append(byte[] data, int count) {
+        int index = (int) (mEnd % mRing.length);
+        int first = Math.min(count, mRing.length - index);
+        System.arraycopy(data, 0, mRing, index, first);
+        System.arraycopy(data, first, mRing, 0, count - first);
+
+        mEnd += count;
+        mStart = Math.max(mStart, mEnd - mRing.length);
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        if (position >= mSize) {
+            return -1;
+        }
+
+        mSequential = Math.abs(position - mReadPosition) <= SEQUENTIAL_GAP;
+        boolean stalled = false;
+
+        int total = 0;
+        while (total < size) {
+            long p = position + total;
+            if (p < mStart || p > mEnd + SEQUENTIAL_GAP) {
+                // Out of the prefetcher's reach, start over from here
+                mGeneration++;
+                mStart = p;
+                mEnd = p;
+            }
+
+            mReadPosition = p;
+            notifyAll();
+
+            if (p >= mEnd && mEnd < mSize) {
+                stalled = true;
+                long stallStart = System.nanoTime();
+                while (p >= mEnd && mEnd < mSize && !mClosed && mError == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the source", e);
+                    }
+                }
+                mCounters.stallTimeNs.addAndGet(System.nanoTime() - stallStart);
+            }
+
+            if (mError != null && p >= mEnd) {
+                throw mError;
+            }
+            if (p >= mEnd) {
+                break;
+            }
+
+            int count = (int) Math.min(size - total, mEnd - p);
+            int index = (int) (p % mRing.length);
+            int first = Math.min(count, mRing.length - index);
+            System.arraycopy(mRing, index, buffer, offset + total, first);
+            System.arraycopy(mRing, 0, buffer, offset + total + first, count - first);
+            total += count;
+        }
+
+        mReadPosition = position + total;
+        notifyAll();
+
+        (stalled ? mCounters.misses : mCounters.hits).incrementAndGet();
+        return total > 0 ? total : -1;
+    }
+
+    @Override
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Stops the prefetcher. Called when the extractor is released.
+     */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+}
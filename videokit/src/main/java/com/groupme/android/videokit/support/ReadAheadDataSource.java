@@ -0,0 +1,97 @@
+package com.groupme.android.videokit.support;
+
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serves an extractor from a window read ahead of its position, so the many small reads of sample
+ * headers and interleaved samples become a few large positional reads on the channel. Reads
+ * outside the window, like a seek, refill it from the requested position.
+ * <p>
+ * Positional reads leave the channel's position alone, so any number of these can share it.
+ */
+@RequiresApi(Build.VERSION_CODES.M)
+class ReadAheadDataSource extends MediaDataSource {
+    private final FileChannel mChannel;
+    private final ByteBuffer mWindow;
+    private final ReadCounters mCounters;
+
+    // File position of the window's first byte, its limit is the number of valid bytes
+    private long mWindowPosition = -1;
+
+    /**
+     * @param windowSize Bytes read at once
+     * @param counters Counts the reads issued to the channel
+     */
+    ReadAheadDataSource(FileChannel channel, int windowSize, ReadCounters counters) {
+        mChannel = channel;
+        mWindow = ByteBuffer.allocateDirect(windowSize);
+        mCounters = counters;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+
+        // A read larger than the window gains nothing from it
+        if (size >= mWindow.capacity()) {
+            mCounters.reads.incrementAndGet();
+            int read = mChannel.read(ByteBuffer.wrap(buffer, offset, size), position);
+            // MediaDataSource signals the end of the data with -1, a channel may also return 0
+            return read <= 0 ? -1 : read;
+        }
+
+        if (mWindowPosition < 0 || position < mWindowPosition || position + size > mWindowPosition + mWindow.limit()) {
+            if (!fill(position)) {
+                return -1;
+            }
+        }
+
+        int start = (int) (position - mWindowPosition);
+        int count = Math.min(size, mWindow.limit() - start);
+        if (count <= 0) {
+            return -1;
+        }
+
+        ByteBuffer window = mWindow.duplicate();
+        window.position(start);
+        window.get(buffer, offset, count);
+        return count;
+    }
+
+    /**
+     * @return false if the position is at or past the end of the file
+     */
+    private boolean fill(long position) throws IOException {
+        mWindow.clear();
+        while (mWindow.hasRemaining()) {
+            mCounters.reads.incrementAndGet();
+            int read = mChannel.read(mWindow, position + mWindow.position());
+            if (read <= 0) {
+                break;
+            }
+        }
+        mWindow.flip();
+
+        mWindowPosition = position;
+        return mWindow.hasRemaining();
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return mChannel.size();
+    }
+
+    @Override
+    public void close() {
+        // The session owns the channel
+    }
+}
@@ -0,0 +1,17 @@
+package com.groupme.android.videokit.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How the data sources of a {@link SourceSession} read the source, added up over every extractor.
+ */
+final class ReadCounters {
+    /** Reads issued to the channel. */
+    final AtomicLong reads = new AtomicLong();
+    /** Extractor reads a prefetching source served from data it already had. */
+    final AtomicLong hits = new AtomicLong();
+    /** Extractor reads that had to wait for the source. */
+    final AtomicLong misses = new AtomicLong();
+    /** Time extractors spent waiting in those reads. */
+    final AtomicLong stallTimeNs = new AtomicLong();
+}
@@ -0,0 +1,273 @@
+package com.groupme.android.videokit.support;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.RequiresApi;
+
+import com.groupme.android.videokit.mp4.Mp4Probe;
+import com.groupme.android.videokit.mp4.SampleIndex;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens a source once and serves everything a job reads from it: every {@link MediaExtractor},
+ * the track formats, the {@link Mp4Probe} result and the video {@link SampleIndex}. Opening a {@code content://} Uri can be
+ * expensive, a cloud provider may have to fetch the file first, so the file descriptor is shared
+ * instead of every consumer opening the Uri again.
+ * <p>
+ * On API 23 and up the extractors read through a {@link MediaDataSource}: a memory mapping of the
+ * whole source if it can be mapped. Otherwise a {@code content://} source is likely streamed by its
+ * provider through a proxy descriptor, and a background thread prefetches it. Anything else gets a
+ * read-ahead window sized to how the source's tracks are interleaved. Below API 23 the extractors
+ * are handed the descriptor itself.
+ * <p>
+ * Extractors may be created and read on several threads at once, a parallel transcode opens one
+ * per segment. Every extractor has a data source of its own: a mapped one reads a duplicate of
+ * the mapping, the others only read the shared channel at explicit positions, which never moves
+ * its position, and add to atomic counters. Parallel transcodes need API 23, so segments never
+ * share the descriptor itself.
+ */
+public class SourceSession {
+    // Larger sources would take too much of a 32 bit address space
+    private static final long MAX_MAPPED_SIZE = 512 * 1024 * 1024;
+    private static final int DEFAULT_READ_AHEAD_SIZE = 256 * 1024;
+    private static final int MIN_READ_AHEAD_SIZE = 64 * 1024;
+    private static final int MAX_READ_AHEAD_SIZE = 2 * 1024 * 1024;
+    private static final int PREFETCH_SIZE = 2 * 1024 * 1024;
+
+    private final ParcelFileDescriptor mDescriptor;
+    // Keeps the channel's stream reachable, the descriptor belongs to mDescriptor
+    private final FileInputStream mStream;
+    private final FileChannel mChannel;
+    private final boolean mContentUri;
+
+    private MediaFormat[] mTrackFormats;
+    private Mp4Probe.Result mProbe;
+    private boolean mProbed;
+    private SampleIndex mVideoSampleIndex;
+    private boolean mVideoSampleIndexRead;
+
+    private MappedByteBuffer mMapping;
+    private boolean mMapAttempted;
+    private int mReadAheadSize;
+    private final ReadCounters mCounters = new ReadCounters();
+    private final List<MediaDataSource> mDataSources = new ArrayList<>();
+    private boolean mPrefetching;
+
+    /**
+     * @throws IOException if the source can't be opened
+     */
+    public SourceSession(Context context, Uri uri) throws IOException {
+        mDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (mDescriptor == null) {
+            throw new IOException("Unable to open " + uri);
+        }
+
+        mStream = new FileInputStream(mDescriptor.getFileDescriptor());
+        mChannel = mStream.getChannel();
+        mContentUri = ContentResolver.SCHEME_CONTENT.equals(uri.getScheme());
+    }
+
+    /**
+     * @return A new extractor over the source, with no track selected. The caller releases it.
+     */
+    public MediaExtractor createExtractor() throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                extractor.setDataSource(createDataSource());
+            } else {
+                extractor.setDataSource(mDescriptor.getFileDescriptor());
+            }
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        }
+
+        synchronized (this) {
+            if (mTrackFormats == null) {
+                mTrackFormats = new MediaFormat[extractor.getTrackCount()];
+                for (int i = 0; i < mTrackFormats.length; i++) {
+                    mTrackFormats[i] = extractor.getTrackFormat(i);
+                }
+            }
+        }
+
+        return extractor;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private MediaDataSource createDataSource() throws IOException {
+        MediaDataSource source;
+        MappedByteBuffer mapping = getMapping();
+        if (mapping != null) {
+            source = new MappedDataSource(mapping);
+        } else if (mContentUri) {
+            source = new PrefetchDataSource(mChannel, PREFETCH_SIZE, mCounters);
+        } else {
+            source = new ReadAheadDataSource(mChannel, getReadAheadSize(), mCounters);
+        }
+
+        synchronized (this) {
+            mPrefetching |= source instanceof PrefetchDataSource;
+            mDataSources.add(source);
+        }
+        return source;
+    }
+
+    private synchronized MappedByteBuffer getMapping() {
+        if (!mMapAttempted) {
+            mMapAttempted = true;
+            try {
+                long size = mChannel.size();
+                if (size > 0 && size <= MAX_MAPPED_SIZE) {
+                    mMapping = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            } catch (IOException e) {
+                // Not a regular file, read it through the channel instead
+                mMapping = null;
+            }
+        }
+
+        return mMapping;
+    }
+
+    /**
+     * Sizes the window to two chunk intervals of the video track, so a window read for one video
+     * chunk also holds the audio chunks after it and the next video chunk.
+     */
+    private synchronized int getReadAheadSize() {
+        if (mReadAheadSize == 0) {
+            SampleIndex index = getVideoSampleIndex();
+            long spacing = index != null ? index.getAverageChunkSpacing() : 0;
+            mReadAheadSize = spacing > 0
+                    ? (int) Math.max(MIN_READ_AHEAD_SIZE, Math.min(MAX_READ_AHEAD_SIZE, spacing * 2))
+                    : DEFAULT_READ_AHEAD_SIZE;
+        }
+
+        return mReadAheadSize;
+    }
+
+    /**
+     * @return Whether the extractors read from a memory mapping of the source
+     */
+    public synchronized boolean isMapped() {
+        return mMapping != null;
+    }
+
+    /**
+     * @return Reads the extractors issued to the source's descriptor, 0 while it is memory mapped
+     */
+    public long getReadCount() {
+        return mCounters.reads.get();
+    }
+
+    /**
+     * @return Whether the extractors read through a background prefetcher
+     */
+    public synchronized boolean isPrefetching() {
+        return mPrefetching;
+    }
+
+    /**
+     * @return The share of extractor reads the prefetcher had already served, or 0 if none
+     */
+    public float getPrefetchHitRate() {
+        long hits = mCounters.hits.get();
+        long total = hits + mCounters.misses.get();
+        return total > 0 ? (float) hits / total : 0;
+    }
+
+    /**
+     * @return Time the extractors spent waiting for the prefetcher, in microseconds
+     */
+    public long getPrefetchStallTimeUs() {
+        return mCounters.stallTimeNs.get() / 1000;
+    }
+
+    /**
+     * @return The formats of every track, read by the first extractor and shared from then on
+     */
+    public synchronized MediaFormat[] getTrackFormats() throws IOException {
+        if (mTrackFormats == null) {
+            createExtractor().release();
+        }
+
+        return mTrackFormats;
+    }
+
+    /**
+     * @return The metadata read from the source's boxes, or null if it isn't an MP4 file
+     */
+    public synchronized Mp4Probe.Result getProbe() {
+        if (!mProbed) {
+            mProbed = true;
+            try {
+                mProbe = Mp4Probe.probe(mChannel);
+            } catch (IOException | RuntimeException e) {
+                mProbe = null;
+            }
+        }
+
+        return mProbe;
+    }
+
+    /**
+     * @return The sample table of the video track, read on first use, or null if the source isn't
+     * an MP4 file with a readable one
+     */
+    public synchronized SampleIndex getVideoSampleIndex() {
+        if (!mVideoSampleIndexRead) {
+            mVideoSampleIndexRead = true;
+            Mp4Probe.Result probe = getProbe();
+            Mp4Probe.Track track = probe != null ? probe.getVideoTrack() : null;
+            if (track != null) {
+                try {
+                    mVideoSampleIndex = SampleIndex.read(mChannel, track);
+                } catch (IOException | RuntimeException e) {
+                    mVideoSampleIndex = null;
+                }
+            }
+        }
+
+        return mVideoSampleIndex;
+    }
+
+    /**
+     * @return The shared descriptor, for APIs that take one. Must not be closed.
+     */
+    public FileDescriptor getFileDescriptor() {
+        return mDescriptor.getFileDescriptor();
+    }
+
+    /**
+     * Closes the descriptor. Every extractor created by this session must be released first.
+     */
+    public void release() throws IOException {
+        synchronized (this) {
+            // Stops the prefetchers of extractors that weren't released. Data sources are only
+            // created on API 23 and up.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                for (MediaDataSource source : mDataSources) {
+                    source.close();
+                }
+                mDataSources.clear();
+            }
+        }
+
+        mDescriptor.close();
+    }
+}
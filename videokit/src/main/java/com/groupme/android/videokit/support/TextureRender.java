@@ -127,7 +127,6 @@ public class TextureRender {
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         checkGlError("glDrawArrays");
-        GLES20.glFinish();
     }
 
     /**
@@ -4,6 +4,10 @@ import android.content.Context;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.groupme.android.videokit.mp4.Mp4Probe;
+import com.groupme.android.videokit.support.SourceSession;
 
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
@@ -12,9 +16,12 @@ public class MediaInfo {
 
     private final Context mContext;
     private final Uri mMediaUri;
+    private final SourceSession mSession;
 
-    private MediaFormat mAudioTrackFormat;
-    private MediaFormat mVideoTrackFormat;
+    private boolean mHasAudioTrack;
+    private boolean mHasVideoTrack;
+    private long mAudioDurationUs = -1;
+    private long mVideoDurationUs = -1;
 
     /** Static Utility Methods **/
 
@@ -30,67 +37,133 @@ public class MediaInfo {
         return format.getString(MediaFormat.KEY_MIME);
     }
 
+    /**
+     * Reads the metadata of an MP4 source straight from its boxes, see {@link Mp4Probe}.
+     *
+     * @return The probe result, or null if the source can't be opened or isn't an MP4 file
+     */
+    public static Mp4Probe.Result probe(Context context, Uri uri) {
+        try {
+            ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                return null;
+            }
+
+            try {
+                return Mp4Probe.probe(descriptor.getFileDescriptor());
+            } finally {
+                descriptor.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
     /** Instance Methods **/
 
     public MediaInfo(Context context, Uri uri) throws IOException {
         mContext = context.getApplicationContext();
         mMediaUri = uri;
+        mSession = null;
+
+        extract();
+    }
+
+    /**
+     * Reads the info from a session the source was already opened in, for example the one the
+     * transcode of the same source will use. See {@link com.groupme.android.videokit.VideoTranscoder.Builder#sourceSession}.
+     */
+    public MediaInfo(SourceSession session) throws IOException {
+        mContext = null;
+        mMediaUri = null;
+        mSession = session;
 
         extract();
     }
 
     public boolean hasAudioTrack() {
-        return mAudioTrackFormat != null;
+        return mHasAudioTrack;
     }
 
     public boolean hasVideoTrack() {
-        return mVideoTrackFormat != null;
+        return mHasVideoTrack;
     }
 
     /**
      * @return The track duration in seconds
      */
     public long getDuration() {
-        long duration = -1;
-
-        if (hasVideoTrack()) {
-            duration = mVideoTrackFormat.getLong(MediaFormat.KEY_DURATION);
-            duration = TimeUnit.MICROSECONDS.toSeconds(duration);
-        } else if (hasAudioTrack()) {
-            duration = mAudioTrackFormat.getLong(MediaFormat.KEY_DURATION);
-            duration = TimeUnit.MICROSECONDS.toSeconds(duration);
-        }
-
-        return duration;
+        long duration = getDurationUs();
+        return duration < 0 ? -1 : TimeUnit.MICROSECONDS.toSeconds(duration);
     }
 
     public int getDurationMilliseconds() {
-        long duration = -1;
+        long duration = getDurationUs();
+        return duration < 0 ? -1 : (int) TimeUnit.MICROSECONDS.toMillis(duration);
+    }
 
+    private long getDurationUs() {
         if (hasVideoTrack()) {
-            duration = mVideoTrackFormat.getLong(MediaFormat.KEY_DURATION);
-            duration = TimeUnit.MICROSECONDS.toMillis(duration);
+            return mVideoDurationUs;
         } else if (hasAudioTrack()) {
-            duration = mAudioTrackFormat.getLong(MediaFormat.KEY_DURATION);
-            duration = TimeUnit.MICROSECONDS.toMillis(duration);
+            return mAudioDurationUs;
         }
 
-        return (int) duration;
+        return -1;
     }
 
     private void extract() throws IOException {
+        // Reading the boxes is much cheaper than setting up an extractor, which is only needed
+        // for sources that aren't MP4 files
+        Mp4Probe.Result probe = mSession != null ? mSession.getProbe() : probe(mContext, mMediaUri);
+        if (probe != null) {
+            Mp4Probe.Track videoTrack = probe.getVideoTrack();
+            Mp4Probe.Track audioTrack = probe.getAudioTrack();
+
+            if (videoTrack != null) {
+                mHasVideoTrack = true;
+                mVideoDurationUs = videoTrack.durationUs;
+            }
+
+            if (audioTrack != null) {
+                mHasAudioTrack = true;
+                mAudioDurationUs = audioTrack.durationUs;
+            }
+            return;
+        }
+
+        if (mSession != null) {
+            readTrackFormats(mSession.getTrackFormats());
+            return;
+        }
+
         MediaExtractor mediaExtractor = new MediaExtractor();
-        mediaExtractor.setDataSource(mContext, mMediaUri, null);
+        try {
+            mediaExtractor.setDataSource(mContext, mMediaUri, null);
 
-        int trackCount = mediaExtractor.getTrackCount();
-        for (int i = 0; i < trackCount; i++) {
-            MediaFormat track = mediaExtractor.getTrackFormat(i);
+            MediaFormat[] formats = new MediaFormat[mediaExtractor.getTrackCount()];
+            for (int i = 0; i < formats.length; i++) {
+                formats[i] = mediaExtractor.getTrackFormat(i);
+            }
+            readTrackFormats(formats);
+        } finally {
+            mediaExtractor.release();
+        }
+    }
 
+    private void readTrackFormats(MediaFormat[] formats) {
+        for (MediaFormat track : formats) {
             if (isAudioFormat(track)) {
-                mAudioTrackFormat = track;
+                mHasAudioTrack = true;
+                mAudioDurationUs = getDurationUs(track);
             } else if (isVideoFormat(track)) {
-                mVideoTrackFormat = track;
+                mHasVideoTrack = true;
+                mVideoDurationUs = getDurationUs(track);
             }
         }
     }
+
+    private static long getDurationUs(MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : -1;
+    }
 }
@@ -0,0 +1,78 @@
+package com.groupme.android.videokit.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FastStartTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void movesMoovBeforeMediaData() throws IOException {
+        byte[] original = new Mp4FileBuilder().videoSamples(92, 30).audioSamples(131).build();
+        File file = write(original);
+
+        assertTrue(FastStart.relocate(file));
+
+        byte[] relocated = Files.readAllBytes(file.toPath());
+        assertEquals(original.length, relocated.length);
+
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            Mp4Probe.Result result = Mp4Probe.probe(channel);
+            assertEquals(24, result.moovOffset);
+
+            // Every sample is still where its patched chunk offset says
+            for (boolean video : new boolean[] { true, false }) {
+                SampleIndex index = SampleIndex.read(channel, video ? result.getVideoTrack() : result.getAudioTrack());
+                for (int i = 0; i < index.getSampleCount(); i++) {
+                    int offset = (int) index.getOffset(i);
+                    for (int j = offset; j < offset + index.getSize(i); j++) {
+                        assertEquals("sample " + i, Mp4FileBuilder.getSampleByte(video, i), relocated[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void leavesFastStartFileAlone() throws IOException {
+        byte[] original = new Mp4FileBuilder().moovFirst().build();
+        File file = write(original);
+
+        assertFalse(FastStart.relocate(file));
+        assertArrayEquals(original, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void relocatesOnce() throws IOException {
+        File file = write(new Mp4FileBuilder().build());
+
+        assertTrue(FastStart.relocate(file));
+        byte[] relocated = Files.readAllBytes(file.toPath());
+
+        assertFalse(FastStart.relocate(file));
+        assertArrayEquals(relocated, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileWithoutMoov() throws IOException {
+        FastStart.relocate(write(new byte[] { 0, 0, 0, 8, 'm', 'd', 'a', 't' }));
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,137 @@
+package com.groupme.android.videokit.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FragmentedMp4WriterTest {
+    private static final byte[] CODEC_CONFIG = {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = { 0x12, 0x10 };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+    @Test
+    public void writesFragmentPerGroupOfPictures() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOutput), 0);
+        int video = writer.addTrack(TrackFormat.avc(640, 360, CODEC_CONFIG));
+        int audio = writer.addTrack(TrackFormat.aac(44100, 2, 128000, AUDIO_SPECIFIC_CONFIG));
+        writer.start();
+
+        // 3 seconds of both tracks in presentation order, a sync sample every second
+        int v = 0;
+        int a = 0;
+        while (v < 90 || a < 130) {
+            long videoTimeUs = v * 1000000L / 30;
+            long audioTimeUs = a * 1024L * 1000000 / 44100;
+            if (a >= 130 || (v < 90 && videoTimeUs <= audioTimeUs)) {
+                writer.writeSample(video, ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0x65, 1, 2, 3 }), videoTimeUs, v % 30 == 0);
+                v++;
+            } else {
+                writer.writeSample(audio, ByteBuffer.allocate(200), audioTimeUs, true);
+                a++;
+            }
+        }
+        writer.finish();
+
+        assertEquals(3, writer.getFragmentCount());
+        assertEquals(mOutput.size(), writer.getBytesWritten());
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"),
+                getBoxTypes(mOutput.toByteArray()));
+    }
+
+    @Test
+    public void convertsAnnexBToLengthPrefixed() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOutput), 0);
+        int video = writer.addTrack(TrackFormat.avc(640, 360, CODEC_CONFIG));
+        writer.start();
+
+        writer.writeSample(video, ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0x06, 9, 0, 0, 1, 0x65, 1, 2, 3 }), 0, true);
+        writer.finish();
+
+        byte[] file = mOutput.toByteArray();
+        byte[] expected = { 0, 0, 0, 2, 0x06, 9, 0, 0, 0, 4, 0x65, 1, 2, 3 };
+        assertArrayEquals(expected, Arrays.copyOfRange(file, file.length - expected.length, file.length));
+    }
+
+    @Test
+    public void fragmentsAudioEverySecond() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOutput), 0);
+        int audio = writer.addTrack(TrackFormat.aac(44100, 2, 128000, AUDIO_SPECIFIC_CONFIG));
+        writer.start();
+
+        for (int i = 0; i < 130; i++) {
+            writer.writeSample(audio, ByteBuffer.allocate(200), i * 1024L * 1000000 / 44100, true);
+        }
+        writer.finish();
+
+        assertEquals(3, writer.getFragmentCount());
+        // One fragment of samples is held at a time
+        assertEquals(44 * 200, writer.getBufferedBytesHighWaterMark());
+    }
+
+    @Test
+    public void headerDescribesTracks() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOutput), 90);
+        writer.addTrack(TrackFormat.avc(640, 360, CODEC_CONFIG));
+        writer.addTrack(TrackFormat.aac(44100, 2, 128000, AUDIO_SPECIFIC_CONFIG));
+        writer.start();
+        writer.finish();
+
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), mOutput.toByteArray());
+        Mp4Probe.Result result = Mp4Probe.probe(file);
+
+        Mp4Probe.Track video = result.getVideoTrack();
+        assertEquals("avc1", video.codec);
+        assertEquals(640, video.width);
+        assertEquals(360, video.height);
+        assertEquals(90, video.rotation);
+
+        Mp4Probe.Track audio = result.getAudioTrack();
+        assertEquals("mp4a", audio.codec);
+        assertEquals(44100, audio.sampleRate);
+        assertEquals(2, audio.channelCount);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsSampleBeforeStart() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOutput), 0);
+        int audio = writer.addTrack(TrackFormat.aac(44100, 2, 128000, AUDIO_SPECIFIC_CONFIG));
+        writer.writeSample(audio, ByteBuffer.allocate(200), 0, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCodecConfigWithoutPps() {
+        TrackFormat.avc(640, 360, Arrays.copyOf(CODEC_CONFIG, 9));
+    }
+
+    private static List<String> getBoxTypes(byte[] file) {
+        List<String> types = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int size = buffer.getInt();
+            types.add(new String(file, start + 4, 4));
+            buffer.position(start + size);
+        }
+        return types;
+    }
+}
@@ -0,0 +1,374 @@
+package com.groupme.android.videokit.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes small progressive MP4 files with a 30 fps AVC track and a 44.1 kHz AAC track, holding
+ * only the boxes the parsers read. Video chunks of {@link #VIDEO_SAMPLES_PER_CHUNK} samples
+ * alternate with audio chunks of {@link #AUDIO_SAMPLES_PER_CHUNK}, and every byte of a sample
+ * holds {@link #getSampleByte}, so a sample read from the wrong offset shows.
+ */
+final class Mp4FileBuilder {
+    static final int VIDEO_TIMESCALE = 30000;
+    static final int VIDEO_SAMPLE_DELTA = 1000;
+    static final int AUDIO_TIMESCALE = 44100;
+    static final int AUDIO_SAMPLE_DELTA = 1024;
+    static final int VIDEO_SAMPLES_PER_CHUNK = 5;
+    static final int AUDIO_SAMPLES_PER_CHUNK = 7;
+
+    static final int WIDTH = 640;
+    static final int HEIGHT = 360;
+    static final int CHANNEL_COUNT = 2;
+    static final int VIDEO_BIT_RATE = 2000000;
+    static final int AUDIO_BIT_RATE = 128000;
+
+    private static final int MOVIE_TIMESCALE = 1000;
+
+    private int mVideoSampleCount = 90;
+    private int mAudioSampleCount = 130;
+    private int mSyncInterval = 30;
+    private int mRotation;
+    private long mVideoEditStart;
+    private boolean mMoovFirst;
+
+    Mp4FileBuilder videoSamples(int count, int syncInterval) {
+        mVideoSampleCount = count;
+        mSyncInterval = syncInterval;
+        return this;
+    }
+
+    Mp4FileBuilder audioSamples(int count) {
+        mAudioSampleCount = count;
+        return this;
+    }
+
+    Mp4FileBuilder rotation(int degrees) {
+        mRotation = degrees;
+        return this;
+    }
+
+    /**
+     * @param mediaTime Where the video edit starts, in video timescale units
+     */
+    Mp4FileBuilder videoEditStart(long mediaTime) {
+        mVideoEditStart = mediaTime;
+        return this;
+    }
+
+    Mp4FileBuilder moovFirst() {
+        mMoovFirst = true;
+        return this;
+    }
+
+    static int getVideoSampleSize(int sample) {
+        return 1000 + (sample % 7) * 10;
+    }
+
+    static int getAudioSampleSize(int sample) {
+        return 200 + sample % 3;
+    }
+
+    static byte getSampleByte(boolean video, int sample) {
+        return (byte) ((video ? 0 : 128) + sample % 128);
+    }
+
+    byte[] build() {
+        int videoChunkCount = getChunkCount(mVideoSampleCount, VIDEO_SAMPLES_PER_CHUNK);
+        int audioChunkCount = getChunkCount(mAudioSampleCount, AUDIO_SAMPLES_PER_CHUNK);
+        long[] videoChunkOffsets = new long[videoChunkCount];
+        long[] audioChunkOffsets = new long[audioChunkCount];
+
+        // Sample data from offset 0 of the mdat content, placed once the moov size is known
+        BoxWriter data = new BoxWriter(64 * 1024);
+        for (int chunk = 0; chunk < Math.max(videoChunkCount, audioChunkCount); chunk++) {
+            if (chunk < videoChunkCount) {
+                videoChunkOffsets[chunk] = data.position();
+                writeChunk(data, true, chunk * VIDEO_SAMPLES_PER_CHUNK,
+                        Math.min(mVideoSampleCount, (chunk + 1) * VIDEO_SAMPLES_PER_CHUNK));
+            }
+            if (chunk < audioChunkCount) {
+                audioChunkOffsets[chunk] = data.position();
+                writeChunk(data, false, chunk * AUDIO_SAMPLES_PER_CHUNK,
+                        Math.min(mAudioSampleCount, (chunk + 1) * AUDIO_SAMPLES_PER_CHUNK));
+            }
+        }
+
+        BoxWriter out = new BoxWriter(data.position() + 4096);
+        out.start("ftyp");
+        out.putType("isom");
+        out.putInt(0x200);
+        out.putType("isom");
+        out.putType("mp41");
+        out.end();
+
+        long dataStart;
+        if (mMoovFirst) {
+            int moovSize = writeMovie(new BoxWriter(4096), videoChunkOffsets, audioChunkOffsets, 0);
+            dataStart = out.position() + moovSize + 8;
+            writeMovie(out, videoChunkOffsets, audioChunkOffsets, dataStart);
+            writeMediaData(out, data);
+        } else {
+            dataStart = out.position() + 8;
+            writeMediaData(out, data);
+            writeMovie(out, videoChunkOffsets, audioChunkOffsets, dataStart);
+        }
+
+        ByteBuffer file = out.getData();
+        byte[] bytes = new byte[file.remaining()];
+        file.get(bytes);
+        return bytes;
+    }
+
+    private static int getChunkCount(int sampleCount, int samplesPerChunk) {
+        return (sampleCount + samplesPerChunk - 1) / samplesPerChunk;
+    }
+
+    private static void writeChunk(BoxWriter data, boolean video, int firstSample, int endSample) {
+        for (int i = firstSample; i < endSample; i++) {
+            int size = video ? getVideoSampleSize(i) : getAudioSampleSize(i);
+            for (int j = 0; j < size; j++) {
+                data.putByte(getSampleByte(video, i));
+            }
+        }
+    }
+
+    private static void writeMediaData(BoxWriter out, BoxWriter data) {
+        out.start("mdat");
+        out.put(data.getData());
+        out.end();
+    }
+
+    /**
+     * @return The size of the moov box
+     */
+    private int writeMovie(BoxWriter out, long[] videoChunkOffsets, long[] audioChunkOffsets, long dataStart) {
+        int start = out.position();
+        long videoDurationUs = (long) mVideoSampleCount * VIDEO_SAMPLE_DELTA * 1000000 / VIDEO_TIMESCALE;
+
+        out.start("moov");
+        out.startFull("mvhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(MOVIE_TIMESCALE);
+        out.putInt((int) (videoDurationUs / 1000));
+        out.putInt(0x10000);
+        out.putShort(0x100);
+        out.putZeros(10);
+        putMatrix(out, 0);
+        out.putZeros(24);
+        out.putInt(3);
+        out.end();
+
+        if (mVideoSampleCount > 0) {
+            writeTrack(out, true, mVideoSampleCount, videoChunkOffsets, dataStart);
+        }
+        if (mAudioSampleCount > 0) {
+            writeTrack(out, false, mAudioSampleCount, audioChunkOffsets, dataStart);
+        }
+        out.end();
+
+        return out.position() - start;
+    }
+
+    private void writeTrack(BoxWriter out, boolean video, int sampleCount, long[] chunkOffsets, long dataStart) {
+        int timescale = video ? VIDEO_TIMESCALE : AUDIO_TIMESCALE;
+        int delta = video ? VIDEO_SAMPLE_DELTA : AUDIO_SAMPLE_DELTA;
+        int samplesPerChunk = video ? VIDEO_SAMPLES_PER_CHUNK : AUDIO_SAMPLES_PER_CHUNK;
+
+        out.start("trak");
+        out.startFull("tkhd", 0, 3);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(video ? 1 : 2);
+        out.putInt(0);
+        out.putInt((int) ((long) sampleCount * delta * MOVIE_TIMESCALE / timescale));
+        out.putZeros(8);
+        out.putShort(0);
+        out.putShort(0);
+        out.putShort(video ? 0 : 0x100);
+        out.putShort(0);
+        putMatrix(out, video ? mRotation : 0);
+        out.putInt(video ? WIDTH << 16 : 0);
+        out.putInt(video ? HEIGHT << 16 : 0);
+        out.end();
+
+        if (video && mVideoEditStart > 0) {
+            out.start("edts");
+            out.startFull("elst", 0, 0);
+            out.putInt(1);
+            out.putInt((int) ((long) sampleCount * delta * MOVIE_TIMESCALE / timescale));
+            out.putInt((int) mVideoEditStart);
+            out.putInt(0x10000);
+            out.end();
+            out.end();
+        }
+
+        out.start("mdia");
+        out.startFull("mdhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(timescale);
+        out.putInt(sampleCount * delta);
+        out.putShort(0x55c4);
+        out.putShort(0);
+        out.end();
+
+        out.startFull("hdlr", 0, 0);
+        out.putInt(0);
+        out.putType(video ? Mp4Probe.HANDLER_VIDEO : Mp4Probe.HANDLER_AUDIO);
+        out.putZeros(12);
+        out.putByte(0);
+        out.end();
+
+        out.start("minf");
+        out.start("stbl");
+        out.startFull("stsd", 0, 0);
+        out.putInt(1);
+        if (video) {
+            writeVideoSampleEntry(out);
+        } else {
+            writeAudioSampleEntry(out);
+        }
+        out.end();
+
+        out.startFull("stts", 0, 0);
+        out.putInt(1);
+        out.putInt(sampleCount);
+        out.putInt(delta);
+        out.end();
+
+        if (video && mSyncInterval > 1) {
+            out.startFull("stss", 0, 0);
+            out.putInt(getChunkCount(sampleCount, mSyncInterval));
+            for (int i = 0; i < sampleCount; i += mSyncInterval) {
+                out.putInt(i + 1);
+            }
+            out.end();
+        }
+
+        out.startFull("stsz", 0, 0);
+        out.putInt(0);
+        out.putInt(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            out.putInt(video ? getVideoSampleSize(i) : getAudioSampleSize(i));
+        }
+        out.end();
+
+        // The last chunk may hold fewer samples and gets an entry of its own
+        int lastChunkSamples = sampleCount - (chunkOffsets.length - 1) * samplesPerChunk;
+        boolean shortLastChunk = lastChunkSamples != samplesPerChunk;
+        out.startFull("stsc", 0, 0);
+        out.putInt(shortLastChunk && chunkOffsets.length > 1 ? 2 : 1);
+        if (!shortLastChunk || chunkOffsets.length > 1) {
+            putChunkRun(out, 1, samplesPerChunk);
+        }
+        if (shortLastChunk) {
+            putChunkRun(out, chunkOffsets.length, lastChunkSamples);
+        }
+        out.end();
+
+        out.startFull("stco", 0, 0);
+        out.putInt(chunkOffsets.length);
+        for (long offset : chunkOffsets) {
+            out.putInt((int) (dataStart + offset));
+        }
+        out.end();
+
+        out.end();
+        out.end();
+        out.end();
+        out.end();
+    }
+
+    private static void putChunkRun(BoxWriter out, int firstChunk, int samplesPerChunk) {
+        out.putInt(firstChunk);
+        out.putInt(samplesPerChunk);
+        out.putInt(1);
+    }
+
+    private static void writeVideoSampleEntry(BoxWriter out) {
+        out.start("avc1");
+        out.putZeros(6);
+        out.putShort(1);
+        out.putZeros(16);
+        out.putShort(WIDTH);
+        out.putShort(HEIGHT);
+        out.putInt(0x480000);
+        out.putInt(0x480000);
+        out.putInt(0);
+        out.putShort(1);
+        out.putZeros(32);
+        out.putShort(0x18);
+        out.putShort(-1);
+
+        out.start("btrt");
+        out.putInt(0);
+        out.putInt(VIDEO_BIT_RATE * 2);
+        out.putInt(VIDEO_BIT_RATE);
+        out.end();
+        out.end();
+    }
+
+    private static void writeAudioSampleEntry(BoxWriter out) {
+        out.start("mp4a");
+        out.putZeros(6);
+        out.putShort(1);
+        out.putShort(0);
+        out.putZeros(6);
+        out.putShort(CHANNEL_COUNT);
+        out.putShort(16);
+        out.putZeros(4);
+        out.putInt(AUDIO_TIMESCALE << 16);
+
+        out.startFull("esds", 0, 0);
+        // ES_Descriptor without optional fields, holding a DecoderConfigDescriptor
+        out.putByte(0x03);
+        out.putByte(3 + 15);
+        out.putShort(0);
+        out.putByte(0);
+        out.putByte(0x04);
+        out.putByte(13);
+        out.putByte(0x40);
+        out.putByte(0x15);
+        out.putZeros(3);
+        out.putInt(AUDIO_BIT_RATE * 2);
+        out.putInt(AUDIO_BIT_RATE);
+        out.end();
+        out.end();
+    }
+
+    /**
+     * Writes a tkhd or mvhd matrix rotating the picture clockwise.
+     */
+    private static void putMatrix(BoxWriter out, int rotation) {
+        final int one = 0x10000;
+        int a = one;
+        int b = 0;
+        int c = 0;
+        int d = one;
+        if (rotation == 90) {
+            a = 0;
+            b = one;
+            c = -one;
+            d = 0;
+        } else if (rotation == 180) {
+            a = -one;
+            d = -one;
+        } else if (rotation == 270) {
+            a = 0;
+            b = -one;
+            c = one;
+            d = 0;
+        }
+
+        out.putInt(a);
+        out.putInt(b);
+        out.putInt(0);
+        out.putInt(c);
+        out.putInt(d);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x40000000);
+    }
+}
@@ -0,0 +1,114 @@
+package com.groupme.android.videokit.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4ProbeTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsVideoTrack() throws IOException {
+        Mp4Probe.Result result = probe(new Mp4FileBuilder().videoSamples(90, 30));
+
+        Mp4Probe.Track video = result.getVideoTrack();
+        assertEquals(1, video.trackId);
+        assertEquals("avc1", video.codec);
+        assertEquals(Mp4FileBuilder.VIDEO_TIMESCALE, video.timescale);
+        assertEquals(3000000, video.durationUs);
+        assertEquals(Mp4FileBuilder.WIDTH, video.width);
+        assertEquals(Mp4FileBuilder.HEIGHT, video.height);
+        assertEquals(Mp4FileBuilder.WIDTH, video.displayWidth);
+        assertEquals(Mp4FileBuilder.HEIGHT, video.displayHeight);
+        assertEquals(0, video.rotation);
+        assertEquals(Mp4FileBuilder.VIDEO_BIT_RATE, video.bitRate);
+        assertEquals(0, video.mediaStartTime);
+        assertTrue(video.sampleTableOffset > 0);
+    }
+
+    @Test
+    public void readsAudioTrack() throws IOException {
+        Mp4Probe.Result result = probe(new Mp4FileBuilder().audioSamples(130));
+
+        Mp4Probe.Track audio = result.getAudioTrack();
+        assertEquals(2, audio.trackId);
+        assertEquals("mp4a", audio.codec);
+        assertEquals(Mp4FileBuilder.AUDIO_TIMESCALE, audio.timescale);
+        assertEquals(Mp4FileBuilder.AUDIO_TIMESCALE, audio.sampleRate);
+        assertEquals(Mp4FileBuilder.CHANNEL_COUNT, audio.channelCount);
+        assertEquals(Mp4FileBuilder.AUDIO_BIT_RATE, audio.bitRate);
+        assertEquals(130L * 1024 * 1000000 / 44100, audio.durationUs);
+    }
+
+    @Test
+    public void readsMovie() throws IOException {
+        byte[] file = new Mp4FileBuilder().build();
+        Mp4Probe.Result result = probe(file);
+
+        assertEquals(file.length, result.fileSize);
+        assertEquals(3000000, result.durationUs);
+        assertEquals(2, result.tracks.size());
+        // The moov follows the mdat
+        assertTrue(result.moovOffset > file.length / 2);
+        assertEquals((int) (file.length * 8L * 1000000 / result.durationUs), result.getOverallBitRate());
+    }
+
+    @Test
+    public void readsMoovBeforeMediaData() throws IOException {
+        Mp4Probe.Result result = probe(new Mp4FileBuilder().moovFirst());
+
+        // Right after the 24 byte ftyp
+        assertEquals(24, result.moovOffset);
+        assertEquals(2, result.tracks.size());
+    }
+
+    @Test
+    public void readsRotation() throws IOException {
+        for (int rotation : new int[] { 90, 180, 270 }) {
+            Mp4Probe.Result result = probe(new Mp4FileBuilder().rotation(rotation));
+            assertEquals(rotation, result.getVideoTrack().rotation);
+        }
+    }
+
+    @Test
+    public void readsEditListStart() throws IOException {
+        Mp4Probe.Result result = probe(new Mp4FileBuilder().videoEditStart(2000));
+
+        assertEquals(2000, result.getVideoTrack().mediaStartTime);
+        assertEquals(0, result.getAudioTrack().mediaStartTime);
+    }
+
+    @Test
+    public void missingTrackIsNull() throws IOException {
+        Mp4Probe.Result result = probe(new Mp4FileBuilder().audioSamples(0));
+
+        assertEquals(1, result.tracks.size());
+        assertNull(result.getAudioTrack());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileWithoutMoov() throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), new byte[] { 0, 0, 0, 8, 'f', 'r', 'e', 'e' });
+        Mp4Probe.probe(file);
+    }
+
+    private Mp4Probe.Result probe(Mp4FileBuilder builder) throws IOException {
+        return probe(builder.build());
+    }
+
+    private Mp4Probe.Result probe(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), data);
+        return Mp4Probe.probe(file);
+    }
+}
@@ -0,0 +1,146 @@
+package com.groupme.android.videokit.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SampleIndexTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsSampleLayout() throws IOException {
+        byte[] data = new Mp4FileBuilder().videoSamples(92, 30).audioSamples(131).build();
+        File file = write(data);
+
+        for (boolean video : new boolean[] { true, false }) {
+            SampleIndex index = read(file, video);
+            assertEquals(video ? 92 : 131, index.getSampleCount());
+
+            for (int i = 0; i < index.getSampleCount(); i++) {
+                int size = video ? Mp4FileBuilder.getVideoSampleSize(i) : Mp4FileBuilder.getAudioSampleSize(i);
+                assertEquals(size, index.getSize(i));
+
+                int offset = (int) index.getOffset(i);
+                for (int j = offset; j < offset + size; j++) {
+                    assertEquals("sample " + i, Mp4FileBuilder.getSampleByte(video, i), data[j]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readsPresentationTimes() throws IOException {
+        File file = write(new Mp4FileBuilder().build());
+        SampleIndex video = read(file, true);
+        SampleIndex audio = read(file, false);
+
+        for (int i = 0; i < video.getSampleCount(); i++) {
+            assertEquals(i * 1000000L / 30, video.getPresentationTimeUs(i));
+        }
+        for (int i = 0; i < audio.getSampleCount(); i++) {
+            assertEquals(i * 1024L * 1000000 / 44100, audio.getPresentationTimeUs(i));
+        }
+    }
+
+    @Test
+    public void shiftsTimesByEditList() throws IOException {
+        File file = write(new Mp4FileBuilder().videoEditStart(2 * Mp4FileBuilder.VIDEO_SAMPLE_DELTA));
+        SampleIndex index = read(file, true);
+
+        assertEquals(-66666, index.getPresentationTimeUs(0));
+        assertEquals(0, index.getPresentationTimeUs(2));
+        assertEquals(0, index.getSyncSampleAtOrBefore(0));
+    }
+
+    @Test
+    public void findsSyncSamples() throws IOException {
+        SampleIndex index = read(write(new Mp4FileBuilder().videoSamples(90, 30)), true);
+
+        for (int i = 0; i < index.getSampleCount(); i++) {
+            assertEquals(i % 30 == 0, index.isSync(i));
+        }
+        assertEquals(30, index.getSyncSampleAtOrBefore(1500000));
+        assertEquals(60, index.getSyncSampleAtOrAfter(1500000));
+        assertEquals(30, index.getSyncSampleAtOrAfter(1000000));
+        assertEquals(1000000, index.getSyncSampleTimeAtOrBefore(1999999));
+        assertEquals(2000000, index.getSyncSampleTimeAtOrAfter(1000001));
+        assertEquals(-1, index.getSyncSampleTimeAtOrAfter(2000001));
+    }
+
+    @Test
+    public void everySampleIsSyncWithoutSyncTable() throws IOException {
+        SampleIndex index = read(write(new Mp4FileBuilder().videoSamples(20, 1)), true);
+
+        for (int i = 0; i < index.getSampleCount(); i++) {
+            assertTrue(index.isSync(i));
+        }
+        assertEquals(15, index.getSyncSampleAtOrBefore(500000 + 1));
+    }
+
+    @Test
+    public void countsSamplesInRange() throws IOException {
+        SampleIndex index = read(write(new Mp4FileBuilder()), true);
+
+        assertEquals(30, index.getSampleCount(1000000, 2000000));
+        assertEquals(90, index.getSampleCount(0, Long.MAX_VALUE));
+        assertEquals(0, index.getSampleCount(2000000, 1000000));
+    }
+
+    @Test
+    public void findsByteRangeFromSyncSample() throws IOException {
+        SampleIndex index = read(write(new Mp4FileBuilder()), true);
+
+        SampleIndex.Range range = index.getByteRange(1500000, 2000000);
+        assertEquals(30, range.firstSample);
+        assertEquals(60, range.lastSample);
+        assertEquals(index.getOffset(30), range.startOffset);
+        assertEquals(index.getOffset(60) + index.getSize(60), range.endOffset);
+
+        assertNull(index.getByteRange(-2000000, -1000000));
+    }
+
+    @Test
+    public void readsSingleChunk() throws IOException {
+        SampleIndex index = read(write(new Mp4FileBuilder().videoSamples(3, 30)), true);
+
+        assertEquals(3, index.getSampleCount());
+        assertEquals(index.getOffset(0) + index.getSize(0), index.getOffset(1));
+        assertFalse(index.isSync(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTrackWithoutSampleTable() throws IOException {
+        File file = write(new Mp4FileBuilder());
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            SampleIndex.read(channel, new Mp4Probe.Track());
+        }
+    }
+
+    private File write(Mp4FileBuilder builder) throws IOException {
+        return write(builder.build());
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static SampleIndex read(File file, boolean video) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            Mp4Probe.Result result = Mp4Probe.probe(channel);
+            return SampleIndex.read(channel, video ? result.getVideoTrack() : result.getAudioTrack());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.groupme.android.videokit.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecimatorTest {
+    @Test
+    public void keepsEveryFrameWithoutTargetRate() {
+        assertEquals(300, countKept(new FrameDecimator(0), 300, 16667));
+    }
+
+    @Test
+    public void keepsEveryOtherFrameAtHalfTheRate() {
+        FrameDecimator decimator = new FrameDecimator(30);
+        for (int i = 0; i < 300; i++) {
+            assertEquals("frame " + i, i % 2 == 0, decimator.shouldKeep(i * 16667L));
+        }
+    }
+
+    @Test
+    public void keepsEveryFrameAtTheTargetRate() {
+        assertEquals(300, countKept(new FrameDecimator(30), 300, 33333));
+        // 29.97 fps sources run a little slow
+        assertEquals(300, countKept(new FrameDecimator(30), 300, 33367));
+        assertEquals(300, countKept(new FrameDecimator(30), 300, 41667));
+    }
+
+    @Test
+    public void keepsTargetRateOfFasterSource() {
+        // 10 seconds of 30 fps down to 24 fps
+        assertEquals(240, countKept(new FrameDecimator(24), 300, 33333));
+    }
+
+    @Test
+    public void toleratesJitter() {
+        FrameDecimator decimator = new FrameDecimator(30);
+        long[] times = { 0, 33000, 67000, 99000, 134000, 166000 };
+        for (long time : times) {
+            assertTrue("frame at " + time, decimator.shouldKeep(time));
+        }
+    }
+
+    @Test
+    public void restartsAfterGap() {
+        FrameDecimator decimator = new FrameDecimator(30);
+        assertTrue(decimator.shouldKeep(0));
+        assertTrue(decimator.shouldKeep(5000000));
+        assertFalse(decimator.shouldKeep(5016667));
+        assertTrue(decimator.shouldKeep(5033333));
+    }
+
+    private static int countKept(FrameDecimator decimator, int frameCount, long frameDurationUs) {
+        int kept = 0;
+        for (int i = 0; i < frameCount; i++) {
+            if (decimator.shouldKeep(i * frameDurationUs)) {
+                kept++;
+            }
+        }
+        return kept;
+    }
+}
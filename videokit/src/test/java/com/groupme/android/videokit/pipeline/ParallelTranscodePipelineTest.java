@@ -0,0 +1,93 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.VideoTranscoder.Stats;
+import com.groupme.android.videokit.pipeline.fake.FakeCodec;
+import com.groupme.android.videokit.pipeline.fake.FakeFormat;
+import com.groupme.android.videokit.pipeline.fake.FakeLogger;
+import com.groupme.android.videokit.pipeline.fake.FakeMediaBackend;
+import com.groupme.android.videokit.pipeline.fake.FakeMuxer;
+import com.groupme.android.videokit.pipeline.fake.FakeSegmentStore;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Transcodes 20 seconds of 30 fps video with a sync sample every second in two segments, each
+ * reading the source through an extractor of its own like the segments of a shared source do.
+ */
+public class ParallelTranscodePipelineTest {
+    private static final int VIDEO_TRACK = 0;
+    private static final int AUDIO_TRACK = 1;
+    private static final int FRAME_COUNT = 600;
+    private static final long FRAME_DURATION_US = 33333;
+    private static final int AUDIO_FRAME_COUNT = 862;
+    private static final byte[] CODEC_CONFIG = { 0, 0, 0, 1, 0x67, 1, 0, 0, 0, 1, 0x68, 1 };
+
+    private final FakeMediaBackend mBackend = new FakeMediaBackend();
+    private final FakeMuxer mMuxer = mBackend.createMuxer();
+    private final Stats mStats = new Stats();
+    // Every segment waits here until the other one has started too
+    private final CountDownLatch mSegmentsStarted = new CountDownLatch(2);
+
+    @Test
+    public void transcodesSegmentsConcurrently() throws IOException, InterruptedException {
+        SegmentTranscoder<FakeFormat> segmentTranscoder = (startTimeUs, endTimeUs, muxer) -> {
+            mSegmentsStarted.countDown();
+            assertTrue("segments ran one after the other", mSegmentsStarted.await(10, TimeUnit.SECONDS));
+
+            // A backend per segment, so each one runs on its own virtual clock
+            FakeMediaBackend backend = new FakeMediaBackend();
+            FakeCodec decoder = backend.createCodec(new FakeCodec.Builder("vdec").latency(5000).outputMimeType("video/raw"));
+            FakeCodec encoder = backend.createCodec(new FakeCodec.Builder("venc").latency(8000).outputSampleSize(15000).outputMimeType("video/avc"));
+            decoder.start();
+            encoder.start();
+
+            Stats stats = new Stats();
+            new TranscodePipeline.Builder<FakeFormat>()
+                    .video(backend.createExtractor(FRAME_COUNT, FRAME_DURATION_US, 30, 20000, 200), decoder, encoder,
+                            backend.createFrameRenderer(encoder, 3000))
+                    .muxer(muxer)
+                    .trim(startTimeUs, endTimeUs)
+                    .stats(stats)
+                    .logger(new FakeLogger())
+                    .build()
+                    .transcode(TranscodePipeline.ENGINE_POLLING);
+
+            synchronized (mStats) {
+                mStats.videoEncodedFrameCount += stats.videoEncodedFrameCount;
+            }
+        };
+
+        new ParallelTranscodePipeline.Builder<FakeFormat>()
+                .video(mBackend.createExtractor(FRAME_COUNT, FRAME_DURATION_US, 30, 20000, 200), FRAME_COUNT * FRAME_DURATION_US)
+                .audio(mBackend.createExtractor(AUDIO_FRAME_COUNT, 23219, 1, 400, 50), new FakeFormat("audio/aac"))
+                .muxer(mMuxer)
+                .segments(segmentTranscoder, format -> CODEC_CONFIG, new FakeSegmentStore())
+                .maxSegments(2)
+                .bufferSize(20000)
+                .stats(mStats)
+                .logger(new FakeLogger())
+                .build()
+                .transcode();
+
+        assertEquals(2, mStats.videoSegmentCount);
+        assertEquals(FRAME_COUNT, mStats.videoEncodedFrameCount);
+        assertEquals(AUDIO_FRAME_COUNT, mMuxer.getSampleCount(AUDIO_TRACK));
+
+        // Every frame once and in order across the split
+        int frame = 0;
+        for (FakeMuxer.Sample sample : mMuxer.getSamples()) {
+            if (sample.trackIndex == VIDEO_TRACK) {
+                assertEquals("frame " + frame, frame * FRAME_DURATION_US, sample.presentationTimeUs);
+                frame++;
+            }
+        }
+        assertEquals(FRAME_COUNT, frame);
+    }
+}
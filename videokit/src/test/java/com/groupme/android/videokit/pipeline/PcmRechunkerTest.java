@@ -0,0 +1,158 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.pipeline.fake.FakeCodec;
+import com.groupme.android.videokit.pipeline.fake.FakeMediaBackend;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PcmRechunkerTest {
+    private static final int SAMPLE_RATE = 44100;
+    // 16 bit stereo
+    private static final int FRAME_SIZE = 4;
+
+    private final FakeMediaBackend mBackend = new FakeMediaBackend();
+    private final List<SampleInfo> mQueued = new ArrayList<>();
+    private FakeCodec mEncoder;
+    private PcmRechunker mRechunker;
+
+    @Test
+    public void coalescesSmallBuffers() {
+        createEncoder(4096, FRAME_SIZE);
+
+        for (int i = 0; i < 10; i++) {
+            feed(1024, 1000000 + i * 5805L, i == 9 ? CodecPort.BUFFER_FLAG_END_OF_STREAM : 0);
+        }
+
+        assertEquals(3, mRechunker.getQueuedBufferCount());
+        assertQueued(0, 4096, 1000000, 0);
+        assertQueued(1, 4096, 1000000 + 1024 * 1000000L / SAMPLE_RATE, 0);
+        assertQueued(2, 2048, 1000000 + 2048 * 1000000L / SAMPLE_RATE, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Test
+    public void splitsLargeBuffers() {
+        createEncoder(3000, FRAME_SIZE);
+
+        feed(10000, 0, 0);
+        feed(0, 0, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+
+        assertEquals(4, mQueued.size());
+        assertQueued(0, 3000, 0, 0);
+        assertQueued(1, 3000, 750 * 1000000L / SAMPLE_RATE, 0);
+        assertQueued(2, 3000, 1500 * 1000000L / SAMPLE_RATE, 0);
+        assertQueued(3, 1000, 2250 * 1000000L / SAMPLE_RATE, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Test
+    public void fillsWholeFramesOnly() {
+        createEncoder(3002, FRAME_SIZE);
+
+        feed(6000, 0, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+
+        // Both buffers filled up, the end of stream follows in an empty one
+        assertEquals(3, mQueued.size());
+        assertQueued(0, 3000, 0, 0);
+        assertQueued(1, 3000, 750 * 1000000L / SAMPLE_RATE, 0);
+        assertQueued(2, 0, 1500 * 1000000L / SAMPLE_RATE, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Test
+    public void fillsWholeFramesOfBufferSetBeforeFormat() {
+        // The engines hand over an encoder input buffer before the first decoded buffer tells the format
+        createEncoder(3002);
+        int index = mEncoder.dequeueInputBuffer(10000);
+        mRechunker.setInputBuffer(index, mEncoder.getInputBuffer(index));
+        mRechunker.setFormat(SAMPLE_RATE, FRAME_SIZE);
+
+        feed(6000, 0, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+
+        assertEquals(3, mQueued.size());
+        assertQueued(0, 3000, 0, 0);
+        assertQueued(1, 3000, 750 * 1000000L / SAMPLE_RATE, 0);
+        assertQueued(2, 0, 1500 * 1000000L / SAMPLE_RATE, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Test
+    public void queuesBuffersAsTheyAreWithoutFrameSize() {
+        createEncoder(4096, 0);
+
+        feed(1000, 0, 0);
+        feed(1500, 30000, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+
+        assertEquals(2, mQueued.size());
+        assertQueued(0, 1000, 0, 0);
+        assertQueued(1, 1500, 30000, CodecPort.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsDecodedBufferLargerThanEncoderBufferWithoutFrameSize() {
+        createEncoder(3000, 0);
+        feed(4096, 0, 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsEncoderBufferSmallerThanFrame() {
+        createEncoder(2, FRAME_SIZE);
+        feed(1024, 0, 0);
+    }
+
+    private void createEncoder(int inputBufferCapacity, int frameSize) {
+        createEncoder(inputBufferCapacity);
+        mRechunker.setFormat(SAMPLE_RATE, frameSize);
+    }
+
+    private void createEncoder(int inputBufferCapacity) {
+        mEncoder = mBackend.createCodec(new FakeCodec.Builder("aenc").inputBuffers(2, inputBufferCapacity));
+        mEncoder.start();
+        mRechunker = new PcmRechunker(mEncoder);
+    }
+
+    /**
+     * Feeds a decoded buffer the way the engines do, handing the rechunker encoder input buffers
+     * until it is consumed.
+     */
+    private void feed(int size, long presentationTimeUs, int flags) {
+        ByteBuffer decoded = ByteBuffer.allocate(size);
+        SampleInfo info = new SampleInfo();
+        info.set(0, size, presentationTimeUs, flags);
+
+        while (true) {
+            if (mRechunker.needsInputBuffer()) {
+                int index = mEncoder.dequeueInputBuffer(10000);
+                mRechunker.setInputBuffer(index, mEncoder.getInputBuffer(index));
+            }
+
+            boolean consumed = mRechunker.feed(decoded, info);
+            drainEncoder();
+            if (consumed) {
+                return;
+            }
+        }
+    }
+
+    private void drainEncoder() {
+        SampleInfo info = new SampleInfo();
+        int index;
+        while ((index = mEncoder.dequeueOutputBuffer(info, 0)) != CodecPort.INFO_TRY_AGAIN_LATER) {
+            if (index >= 0) {
+                SampleInfo queued = new SampleInfo();
+                queued.set(info);
+                mQueued.add(queued);
+                mEncoder.releaseOutputBuffer(index, false);
+            }
+        }
+    }
+
+    private void assertQueued(int buffer, int size, long presentationTimeUs, int flags) {
+        SampleInfo info = mQueued.get(buffer);
+        assertEquals("size of buffer " + buffer, size, info.size);
+        assertEquals("time of buffer " + buffer, presentationTimeUs, info.presentationTimeUs);
+        assertEquals("flags of buffer " + buffer, flags, info.flags);
+    }
+}
@@ -0,0 +1,117 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.VideoTranscoder.Stats;
+import com.groupme.android.videokit.pipeline.fake.FakeCodec;
+import com.groupme.android.videokit.pipeline.fake.FakeExtractor;
+import com.groupme.android.videokit.pipeline.fake.FakeFormat;
+import com.groupme.android.videokit.pipeline.fake.FakeLogger;
+import com.groupme.android.videokit.pipeline.fake.FakeMediaBackend;
+import com.groupme.android.videokit.pipeline.fake.FakeMuxer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Smart trims 10 seconds of 30 fps video with a sync sample every second from 2.5 to 6.5 seconds,
+ * which holds frames 76 to 195.
+ */
+public class SmartTrimPipelineTest {
+    private static final int VIDEO_TRACK = 0;
+    private static final long FRAME_DURATION_US = 33333;
+    private static final long TRIM_START_TIME_US = 2500000;
+    private static final long TRIM_END_TIME_US = 6500000;
+    private static final int FIRST_FRAME = 76;
+    private static final int LAST_FRAME = 195;
+    private static final byte[] SOURCE_CODEC_CONFIG = { 0, 0, 0, 1, 0x67, 1, 0, 0, 0, 1, 0x68, 1 };
+    private static final byte[] OTHER_CODEC_CONFIG = { 0, 0, 0, 1, 0x67, 2, 0, 0, 0, 1, 0x68, 2 };
+
+    private final FakeMediaBackend mBackend = new FakeMediaBackend();
+    private final FakeMuxer mMuxer = mBackend.createMuxer();
+    private final Stats mStats = new Stats();
+    private final Stats mSegmentStats = new Stats();
+    private final FakeFormat mSourceFormat = new FakeFormat("video/avc");
+    // The encoder writes the source's parameter sets unless set otherwise
+    private byte[] mEncoderCodecConfig = SOURCE_CODEC_CONFIG;
+
+    @Test
+    public void copiesGroupsAfterHead() throws IOException, InterruptedException {
+        trim(mBackend.createExtractor(300, FRAME_DURATION_US, 30, 20000, 200));
+
+        assertEveryFrameOnce();
+        // Frames 76 to 89 up to the sync sample at frame 90, after that frame alone to probe the
+        // encoder. The copy runs to the trim end.
+        assertEquals(1 + 14, mSegmentStats.videoEncodedFrameCount);
+        assertEquals(106, mStats.videoCopiedFrameCount);
+    }
+
+    @Test
+    public void encodesLeadingPicturesOfOpenGroups() throws IOException, InterruptedException {
+        trim(mBackend.createOpenGopExtractor(300, FRAME_DURATION_US, 30, 2, 20000, 200));
+
+        assertEveryFrameOnce();
+        // The head takes frames 88 and 89, stored after the sync sample at frame 90. The tail starts
+        // with frames 178 and 179, stored after the sync sample at frame 180.
+        assertEquals(1 + 14 + 18, mSegmentStats.videoEncodedFrameCount);
+        assertEquals(88, mStats.videoCopiedFrameCount);
+    }
+
+    @Test
+    public void transcodesAllWithOtherEncoderConfig() throws IOException, InterruptedException {
+        mEncoderCodecConfig = OTHER_CODEC_CONFIG;
+        trim(mBackend.createExtractor(300, FRAME_DURATION_US, 30, 20000, 200));
+
+        assertEveryFrameOnce();
+        assertEquals(0, mStats.videoCopiedFrameCount);
+        assertEquals(1 + 120, mSegmentStats.videoEncodedFrameCount);
+        // Described by the encoder's format instead of the source's
+        assertNotSame(mSourceFormat, mMuxer.getTracks().get(VIDEO_TRACK));
+    }
+
+    private void trim(final FakeExtractor extractor) throws IOException, InterruptedException {
+        SegmentTranscoder<FakeFormat> segmentTranscoder = (startTimeUs, endTimeUs, muxer) -> {
+            FakeCodec decoder = mBackend.createCodec(new FakeCodec.Builder("vdec").latency(5000).outputMimeType("video/raw"));
+            FakeCodec encoder = mBackend.createCodec(new FakeCodec.Builder("venc").latency(8000).outputSampleSize(15000).outputMimeType("video/avc"));
+            decoder.start();
+            encoder.start();
+
+            new TranscodePipeline.Builder<FakeFormat>()
+                    .video(extractor, decoder, encoder, mBackend.createFrameRenderer(encoder, 3000))
+                    .muxer(muxer)
+                    .trim(startTimeUs, endTimeUs)
+                    .stats(mSegmentStats)
+                    .logger(new FakeLogger())
+                    .build()
+                    .transcode(TranscodePipeline.ENGINE_POLLING);
+        };
+
+        new SmartTrimPipeline.Builder<FakeFormat>()
+                .video(extractor, mSourceFormat)
+                .muxer(mMuxer)
+                .segments(segmentTranscoder, format -> format == mSourceFormat ? SOURCE_CODEC_CONFIG : mEncoderCodecConfig)
+                .trim(TRIM_START_TIME_US, TRIM_END_TIME_US)
+                .stats(mStats)
+                .logger(new FakeLogger())
+                .build()
+                .trim();
+    }
+
+    private void assertEveryFrameOnce() {
+        Map<Long, Integer> counts = new HashMap<>();
+        for (FakeMuxer.Sample sample : mMuxer.getSamples()) {
+            if (sample.trackIndex == VIDEO_TRACK) {
+                counts.merge(sample.presentationTimeUs, 1, Integer::sum);
+            }
+        }
+
+        for (int i = FIRST_FRAME; i <= LAST_FRAME; i++) {
+            assertEquals("frame " + i, Integer.valueOf(1), counts.remove(i * FRAME_DURATION_US));
+        }
+        assertEquals("frames outside the range: " + counts.keySet(), 0, counts.size());
+    }
+}
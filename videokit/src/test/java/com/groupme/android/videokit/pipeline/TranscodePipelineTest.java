@@ -0,0 +1,248 @@
+package com.groupme.android.videokit.pipeline;
+
+import com.groupme.android.videokit.VideoTranscoder.Stats;
+import com.groupme.android.videokit.pipeline.fake.FakeCodec;
+import com.groupme.android.videokit.pipeline.fake.FakeCodecEventQueue;
+import com.groupme.android.videokit.pipeline.fake.FakeFormat;
+import com.groupme.android.videokit.pipeline.fake.FakeLogger;
+import com.groupme.android.videokit.pipeline.fake.FakeMediaBackend;
+import com.groupme.android.videokit.pipeline.fake.FakeMuxer;
+import com.groupme.android.videokit.pipeline.fake.FakePcmFormatReader;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the pipeline on every engine against the fake backend: 10 seconds of 30 fps video with a
+ * sync sample every second, and 430 AAC frames of audio decoded to 4096 byte buffers.
+ */
+@RunWith(Parameterized.class)
+public class TranscodePipelineTest {
+    private static final int VIDEO_TRACK = 0;
+    private static final int AUDIO_TRACK = 1;
+
+    private static final int AUDIO_FRAME_COUNT = 430;
+    private static final long AUDIO_FRAME_DURATION_US = 23219;
+    private static final int DECODED_AUDIO_SIZE = 4096;
+
+    @Parameterized.Parameters(name = "engine {0}")
+    public static Collection<Object[]> getEngines() {
+        return Arrays.asList(new Object[][] {
+                { TranscodePipeline.ENGINE_POLLING },
+                { TranscodePipeline.ENGINE_ASYNC },
+                { TranscodePipeline.ENGINE_THREADED } });
+    }
+
+    private final int mEngine;
+    private final FakeMediaBackend mBackend = new FakeMediaBackend();
+    private final FakeMuxer mMuxer = mBackend.createMuxer();
+    private final Stats mStats = new Stats();
+    // Started, and set to callback mode for the async engine, right before transcoding
+    private final List<FakeCodec> mCodecs = new ArrayList<>();
+
+    public TranscodePipelineTest(int engine) {
+        mEngine = engine;
+    }
+
+    @Test
+    public void transcodesVideoAndAudio() throws InterruptedException {
+        transcode(createVideoAndAudio());
+
+        assertEquals("video/avc", mMuxer.getTracks().get(VIDEO_TRACK).getMimeType());
+        assertEquals("audio/aac", mMuxer.getTracks().get(AUDIO_TRACK).getMimeType());
+        assertEquals(300, mStats.videoEncodedFrameCount);
+        assertEquals(AUDIO_FRAME_COUNT, mStats.audioEncodedFrameCount);
+        assertEquals(300, mMuxer.getSampleCount(VIDEO_TRACK));
+        assertEquals(AUDIO_FRAME_COUNT, mMuxer.getSampleCount(AUDIO_TRACK));
+        assertInOrder(mMuxer, VIDEO_TRACK);
+        assertInOrder(mMuxer, AUDIO_TRACK);
+    }
+
+    @Test
+    public void transcodesVideoOnly() throws InterruptedException {
+        transcode(createVideo(300, 33333));
+
+        assertEquals(1, mMuxer.getTracks().size());
+        assertEquals(300, mMuxer.getSampleCount(VIDEO_TRACK));
+        assertEquals(0, mStats.videoDroppedFrameCount);
+    }
+
+    @Test
+    public void trimsToRange() throws InterruptedException {
+        transcode(createVideoAndAudio().trim(2000000, 6000000));
+
+        // Frames 61 to 180 and audio frames 87 to 258 start within the range
+        assertEquals(120, mStats.videoEncodedFrameCount);
+        assertEquals(120, mMuxer.getSampleCount(VIDEO_TRACK));
+        assertEquals(172, mMuxer.getSampleCount(AUDIO_TRACK));
+        for (FakeMuxer.Sample sample : mMuxer.getSamples()) {
+            assertTrue("sample at " + sample.presentationTimeUs,
+                    sample.presentationTimeUs >= 2000000 && sample.presentationTimeUs < 6000000);
+        }
+    }
+
+    @Test
+    public void decimatesToOutputFrameRate() throws InterruptedException {
+        transcode(createVideo(300, 16667).frameRate(30));
+
+        assertEquals(150, mStats.videoDroppedFrameCount);
+        assertEquals(150, mStats.videoEncodedFrameCount);
+        assertEquals(150, mMuxer.getSampleCount(VIDEO_TRACK));
+        // Every other frame of the 60 fps source
+        for (FakeMuxer.Sample sample : mMuxer.getSamples()) {
+            assertEquals(0, sample.presentationTimeUs % (2 * 16667));
+        }
+    }
+
+    @Test
+    public void copiesAudio() throws InterruptedException {
+        transcode(createVideo(300, 33333).audioCopy(
+                mBackend.createExtractor(AUDIO_FRAME_COUNT, AUDIO_FRAME_DURATION_US, 1, 400, 50),
+                new FakeFormat("audio/aac"), 4096));
+
+        assertEquals(300, mMuxer.getSampleCount(VIDEO_TRACK));
+        assertEquals(AUDIO_FRAME_COUNT, mMuxer.getSampleCount(AUDIO_TRACK));
+        for (FakeMuxer.Sample sample : mMuxer.getSamples()) {
+            if (sample.trackIndex == AUDIO_TRACK) {
+                assertEquals(400, sample.size);
+            }
+        }
+        assertInOrder(mMuxer, AUDIO_TRACK);
+    }
+
+    @Test
+    public void copiesTrimmedAudio() throws InterruptedException {
+        transcode(createVideo(300, 33333).audioCopy(
+                mBackend.createExtractor(AUDIO_FRAME_COUNT, AUDIO_FRAME_DURATION_US, 1, 400, 50),
+                new FakeFormat("audio/aac"), 4096)
+                .trim(2000000, 6000000));
+
+        assertEquals(120, mMuxer.getSampleCount(VIDEO_TRACK));
+        assertEquals(172, mMuxer.getSampleCount(AUDIO_TRACK));
+    }
+
+    @Test
+    public void rechunksDecodedAudio() throws InterruptedException {
+        // Decoded buffers don't fit the encoder's, they have to be split
+        transcode(createVideoAndAudio(new FakeCodec.Builder("aenc").latency(1000).inputBuffers(4, 3000))
+                .pcmFormatReader(new FakePcmFormatReader(44100, 4)));
+
+        long bytes = 0;
+        long firstTimeUs = -1;
+        for (FakeMuxer.Sample sample : mMuxer.getSamples()) {
+            if (sample.trackIndex != AUDIO_TRACK) {
+                continue;
+            }
+            if (firstTimeUs < 0) {
+                firstTimeUs = sample.presentationTimeUs;
+            }
+            // Every buffer is timed from the frames before it
+            assertEquals(firstTimeUs + bytes / 4 * 1000000 / 44100, sample.presentationTimeUs);
+            bytes += sample.size;
+        }
+
+        assertEquals((long) AUDIO_FRAME_COUNT * DECODED_AUDIO_SIZE, bytes);
+        assertEquals(588, mStats.audioEncoderInputBufferCount);
+    }
+
+    @Test
+    public void writesRenditions() throws InterruptedException {
+        TranscodePipeline.Builder<FakeFormat> builder = createVideoAndAudio();
+        FakeMuxer[] muxers = { addRendition(builder, 4000), addRendition(builder, 6000) };
+        transcode(builder);
+
+        for (int i = 0; i < muxers.length; i++) {
+            assertEquals(300, mStats.renditionEncodedFrameCount[i]);
+            assertEquals(300, muxers[i].getSampleCount(VIDEO_TRACK));
+            assertEquals(AUDIO_FRAME_COUNT, muxers[i].getSampleCount(AUDIO_TRACK));
+            assertInOrder(muxers[i], VIDEO_TRACK);
+        }
+        assertEquals(300, mMuxer.getSampleCount(VIDEO_TRACK));
+    }
+
+    @Test
+    public void holdsAudioBackForSlowRenditionEncoder() throws InterruptedException {
+        // The rendition's format arrives long after its audio staging is full
+        TranscodePipeline.Builder<FakeFormat> builder = createVideoAndAudio();
+        FakeMuxer rendition = addRendition(builder, 1500000);
+        transcode(builder);
+
+        assertEquals(300, rendition.getSampleCount(VIDEO_TRACK));
+        assertEquals(AUDIO_FRAME_COUNT, rendition.getSampleCount(AUDIO_TRACK));
+        assertEquals(AUDIO_FRAME_COUNT, mMuxer.getSampleCount(AUDIO_TRACK));
+    }
+
+    private TranscodePipeline.Builder<FakeFormat> createVideo(int frameCount, long frameDurationUs) {
+        FakeCodec encoder = createCodec(new FakeCodec.Builder("venc").latency(8000).outputSampleSize(15000).outputMimeType("video/avc"));
+        return new TranscodePipeline.Builder<FakeFormat>()
+                .video(mBackend.createExtractor(frameCount, frameDurationUs, 30, 20000, 200),
+                        createCodec(new FakeCodec.Builder("vdec").latency(5000).outputMimeType("video/raw")),
+                        encoder, mBackend.createFrameRenderer(encoder, 3000))
+                .muxer(mMuxer)
+                .stats(mStats)
+                .logger(new FakeLogger());
+    }
+
+    private TranscodePipeline.Builder<FakeFormat> createVideoAndAudio() {
+        return createVideoAndAudio(new FakeCodec.Builder("aenc").latency(1000).outputSampleSize(380));
+    }
+
+    private TranscodePipeline.Builder<FakeFormat> createVideoAndAudio(FakeCodec.Builder audioEncoder) {
+        return createVideo(300, 33333).audio(
+                mBackend.createExtractor(AUDIO_FRAME_COUNT, AUDIO_FRAME_DURATION_US, 1, 400, 50),
+                createCodec(new FakeCodec.Builder("adec").latency(500).outputSampleSize(DECODED_AUDIO_SIZE)),
+                createCodec(audioEncoder.outputMimeType("audio/aac")));
+    }
+
+    /**
+     * Rendition encoders are driven from the video chain and stay in synchronous mode.
+     */
+    private FakeMuxer addRendition(TranscodePipeline.Builder<FakeFormat> builder, long latencyUs) {
+        FakeCodec encoder = mBackend.createCodec(new FakeCodec.Builder("renc").latency(latencyUs).outputSampleSize(5000).outputMimeType("video/avc"));
+        encoder.start();
+        FakeMuxer muxer = mBackend.createMuxer();
+        builder.rendition(encoder, mBackend.createFrameRenderer(encoder, 1500), muxer);
+        return muxer;
+    }
+
+    private FakeCodec createCodec(FakeCodec.Builder builder) {
+        FakeCodec codec = mBackend.createCodec(builder);
+        mCodecs.add(codec);
+        return codec;
+    }
+
+    private void transcode(TranscodePipeline.Builder<FakeFormat> builder) throws InterruptedException {
+        if (mEngine == TranscodePipeline.ENGINE_ASYNC) {
+            FakeCodecEventQueue codecEvents = mBackend.createCodecEventQueue();
+            for (FakeCodec codec : mCodecs) {
+                codec.setCallback(codecEvents);
+            }
+            builder.codecEvents(codecEvents);
+        }
+        for (FakeCodec codec : mCodecs) {
+            codec.start();
+        }
+
+        builder.build().transcode(mEngine);
+    }
+
+    private static void assertInOrder(FakeMuxer muxer, int trackIndex) {
+        long lastTimeUs = -1;
+        for (FakeMuxer.Sample sample : muxer.getSamples()) {
+            if (sample.trackIndex == trackIndex) {
+                assertTrue("sample at " + sample.presentationTimeUs + " after " + lastTimeUs,
+                        sample.presentationTimeUs > lastTimeUs);
+                lastTimeUs = sample.presentationTimeUs;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import java.util.PriorityQueue;
+
+/**
+ * Virtual time shared by every object of a {@link FakeMediaBackend}. Time only moves when a fake
+ * has to wait for something, so a run is deterministic and takes no real time, while
+ * {@link #nowUs()} still reports how long the same schedule would have taken on a device.
+ */
+public class FakeClock {
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+
+    private long mNowUs;
+    private long mTaskSequence;
+
+    public synchronized long nowUs() {
+        return mNowUs;
+    }
+
+    public synchronized void advanceBy(long durationUs) {
+        if (durationUs > 0) {
+            mNowUs += durationUs;
+        }
+    }
+
+    /**
+     * Moves time forward to the given point. Never moves backwards.
+     */
+    public synchronized void advanceTo(long timeUs) {
+        if (timeUs > mNowUs) {
+            mNowUs = timeUs;
+        }
+    }
+
+    /**
+     * Schedules a task to run once time reaches the given point. Tasks only run from
+     * {@link #runNextTask()}.
+     */
+    public synchronized void schedule(long timeUs, Runnable runnable) {
+        mTasks.add(new Task(timeUs, mTaskSequence++, runnable));
+    }
+
+    /**
+     * Advances time to the earliest scheduled task and runs it.
+     *
+     * @return false if no task was scheduled
+     */
+    public boolean runNextTask() {
+        Task task;
+        synchronized (this) {
+            task = mTasks.poll();
+            if (task == null) {
+                return false;
+            }
+            advanceTo(task.timeUs);
+        }
+
+        task.runnable.run();
+        return true;
+    }
+
+    private static final class Task implements Comparable<Task> {
+        final long timeUs;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long timeUs, long sequence, Runnable runnable) {
+            this.timeUs = timeUs;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (timeUs != other.timeUs) {
+                return timeUs < other.timeUs ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
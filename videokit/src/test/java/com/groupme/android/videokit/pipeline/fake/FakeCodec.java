@@ -0,0 +1,360 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import com.groupme.android.videokit.pipeline.CodecPort;
+import com.groupme.android.videokit.pipeline.SampleInfo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * {@link CodecPort} that models a codec as a serial worker with a fixed number of input and
+ * output buffers. Every queued buffer takes {@code latencyUs} of virtual time to come out the
+ * other side; its input buffer is only handed back once it has been processed, and it only
+ * becomes an output buffer once the client has released one.
+ * <p>
+ * Waiting in {@link #dequeueInputBuffer} or {@link #dequeueOutputBuffer} moves the shared
+ * {@link FakeClock} forward, up to the timeout, exactly as a real stall would. In callback mode
+ * the same transitions are delivered through the clock's scheduled tasks instead.
+ */
+public class FakeCodec implements CodecPort<FakeFormat> {
+    private final FakeClock mClock;
+    private final String mName;
+    private final FakeFormat mOutputFormat;
+    private final long mLatencyUs;
+    private final int mOutputSampleSize;
+
+    private final ByteBuffer[] mInputBuffers;
+    private final ByteBuffer[] mOutputBuffers;
+    private final SampleInfo[] mOutputInfos;
+
+    private final ArrayDeque<Integer> mFreeInputBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mFreeOutputBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mReadyOutputBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Job> mProcessing = new ArrayDeque<>();
+    private final ArrayDeque<Job> mProcessed = new ArrayDeque<>();
+
+    private Callback<FakeFormat> mCallback;
+
+    private boolean mStarted;
+    private boolean mFormatReported;
+    private long mBusyUntilUs;
+
+    private int mQueuedInputCount;
+    private int mRenderedOutputCount;
+    private int mReleasedOutputCount;
+
+    private FakeCodec(FakeClock clock, Builder builder) {
+        mClock = clock;
+        mName = builder.mName;
+        mOutputFormat = new FakeFormat(builder.mOutputMimeType);
+        mLatencyUs = builder.mLatencyUs;
+        mOutputSampleSize = builder.mOutputSampleSize;
+
+        mInputBuffers = new ByteBuffer[builder.mInputBufferCount];
+        for (int i = 0; i < mInputBuffers.length; i++) {
+            mInputBuffers[i] = ByteBuffer.allocate(builder.mInputBufferCapacity);
+            mFreeInputBuffers.add(i);
+        }
+
+        int outputCapacity = Math.max(builder.mInputBufferCapacity, mOutputSampleSize);
+        mOutputBuffers = new ByteBuffer[builder.mOutputBufferCount];
+        mOutputInfos = new SampleInfo[builder.mOutputBufferCount];
+        for (int i = 0; i < mOutputBuffers.length; i++) {
+            mOutputBuffers[i] = ByteBuffer.allocate(outputCapacity);
+            mOutputInfos[i] = new SampleInfo();
+            mFreeOutputBuffers.add(i);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public synchronized void setCallback(Callback<FakeFormat> callback) {
+        if (mStarted) {
+            throw new IllegalStateException("setCallback() must be called before start()");
+        }
+
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized void start() {
+        mStarted = true;
+
+        if (mCallback != null) {
+            mClock.schedule(mClock.nowUs(), this::update);
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        checkSynchronousMode();
+
+        long deadlineUs = mClock.nowUs() + timeoutUs;
+        while (true) {
+            synchronized (this) {
+                update();
+                if (!mFreeInputBuffers.isEmpty()) {
+                    return mFreeInputBuffers.poll();
+                }
+            }
+
+            if (!waitForNextCompletion(deadlineUs)) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (size > mInputBuffers[index].capacity()) {
+            throw new IllegalArgumentException("size " + size + " exceeds input buffer capacity");
+        }
+
+        mQueuedInputCount++;
+        enqueue(new Job(index, size, presentationTimeUs, flags));
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        checkSynchronousMode();
+
+        long deadlineUs = mClock.nowUs() + timeoutUs;
+        while (true) {
+            synchronized (this) {
+                update();
+                if (!mReadyOutputBuffers.isEmpty()) {
+                    if (!mFormatReported) {
+                        mFormatReported = true;
+                        return INFO_OUTPUT_FORMAT_CHANGED;
+                    }
+
+                    int index = mReadyOutputBuffers.poll();
+                    info.set(mOutputInfos[index]);
+                    return index;
+                }
+            }
+
+            if (!waitForNextCompletion(deadlineUs)) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        ByteBuffer buffer = mOutputBuffers[index];
+        buffer.clear();
+        buffer.limit(mOutputInfos[index].size);
+        return buffer;
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, boolean render) {
+        mReleasedOutputCount++;
+        if (render) {
+            mRenderedOutputCount++;
+        }
+
+        mFreeOutputBuffers.add(index);
+        update();
+    }
+
+    @Override
+    public synchronized void signalEndOfInputStream() {
+        enqueue(new Job(-1, 0, 0, BUFFER_FLAG_END_OF_STREAM));
+    }
+
+    /**
+     * Feeds a frame into an encoder as if it had been drawn into its input surface.
+     */
+    public synchronized void queueSurfaceFrame(long presentationTimeUs) {
+        mQueuedInputCount++;
+        enqueue(new Job(-1, mOutputSampleSize, presentationTimeUs, 0));
+    }
+
+    @Override
+    public FakeFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStarted = false;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    public synchronized int getQueuedInputCount() {
+        return mQueuedInputCount;
+    }
+
+    public synchronized int getReleasedOutputCount() {
+        return mReleasedOutputCount;
+    }
+
+    public synchronized int getRenderedOutputCount() {
+        return mRenderedOutputCount;
+    }
+
+    private void checkSynchronousMode() {
+        if (mCallback != null) {
+            throw new IllegalStateException(mName + " is in callback mode");
+        }
+    }
+
+    /**
+     * Starts processing a buffer once the codec has finished everything queued before it.
+     */
+    private void enqueue(Job job) {
+        job.readyAtUs = Math.max(mClock.nowUs(), mBusyUntilUs) + mLatencyUs;
+        mBusyUntilUs = job.readyAtUs;
+        mProcessing.add(job);
+
+        if (mCallback != null) {
+            mClock.schedule(job.readyAtUs, this::update);
+        }
+    }
+
+    /**
+     * Moves every buffer that is done at the current time along, returning input buffers and
+     * filling free output buffers.
+     */
+    private synchronized void update() {
+        long nowUs = mClock.nowUs();
+
+        while (!mProcessing.isEmpty() && mProcessing.peek().readyAtUs <= nowUs) {
+            Job job = mProcessing.poll();
+            if (job.inputIndex >= 0) {
+                mFreeInputBuffers.add(job.inputIndex);
+            }
+            mProcessed.add(job);
+        }
+
+        while (!mProcessed.isEmpty() && !mFreeOutputBuffers.isEmpty()) {
+            Job job = mProcessed.poll();
+            int index = mFreeOutputBuffers.poll();
+
+            int size = job.size == 0 ? 0 : (mOutputSampleSize > 0 ? mOutputSampleSize : job.size);
+            mOutputInfos[index].set(0, size, job.presentationTimeUs, job.flags);
+            mReadyOutputBuffers.add(index);
+        }
+
+        if (mCallback != null && mStarted) {
+            while (!mFreeInputBuffers.isEmpty()) {
+                mCallback.onInputBufferAvailable(this, mFreeInputBuffers.poll());
+            }
+
+            while (!mReadyOutputBuffers.isEmpty()) {
+                if (!mFormatReported) {
+                    mFormatReported = true;
+                    mCallback.onOutputFormatChanged(this, mOutputFormat);
+                }
+
+                int index = mReadyOutputBuffers.poll();
+                SampleInfo info = new SampleInfo();
+                info.set(mOutputInfos[index]);
+                mCallback.onOutputBufferAvailable(this, index, info);
+            }
+        }
+    }
+
+    /**
+     * Advances the clock to the next time this codec finishes a buffer, as long as that is before
+     * the deadline. Otherwise advances to the deadline.
+     *
+     * @return true if a buffer finished before the deadline
+     */
+    private boolean waitForNextCompletion(long deadlineUs) {
+        long nextUs;
+        synchronized (this) {
+            nextUs = mProcessing.isEmpty() ? Long.MAX_VALUE : mProcessing.peek().readyAtUs;
+        }
+
+        if (nextUs > deadlineUs) {
+            mClock.advanceTo(deadlineUs);
+            return false;
+        }
+
+        mClock.advanceTo(nextUs);
+        return true;
+    }
+
+    private static final class Job {
+        final int inputIndex;
+        final int size;
+        final long presentationTimeUs;
+        final int flags;
+        long readyAtUs;
+
+        Job(int inputIndex, int size, long presentationTimeUs, int flags) {
+            this.inputIndex = inputIndex;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    public static final class Builder {
+        private final String mName;
+
+        private String mOutputMimeType = "application/octet-stream";
+        private int mInputBufferCount = 4;
+        private int mOutputBufferCount = 4;
+        private int mInputBufferCapacity = 64 * 1024;
+        private int mOutputSampleSize = 0;
+        private long mLatencyUs = 0;
+
+        public Builder(String name) {
+            mName = name;
+        }
+
+        public Builder outputMimeType(String mimeType) {
+            mOutputMimeType = mimeType;
+            return this;
+        }
+
+        public Builder inputBuffers(int count, int capacity) {
+            mInputBufferCount = count;
+            mInputBufferCapacity = capacity;
+            return this;
+        }
+
+        public Builder outputBuffers(int count) {
+            mOutputBufferCount = count;
+            return this;
+        }
+
+        /**
+         * @param size Size of every output sample, or 0 to pass the input size through
+         */
+        public Builder outputSampleSize(int size) {
+            mOutputSampleSize = size;
+            return this;
+        }
+
+        /**
+         * @param latencyUs Virtual time it takes to process one buffer
+         */
+        public Builder latency(long latencyUs) {
+            mLatencyUs = latencyUs;
+            return this;
+        }
+
+        public FakeCodec build(FakeClock clock) {
+            return new FakeCodec(clock, this);
+        }
+    }
+}
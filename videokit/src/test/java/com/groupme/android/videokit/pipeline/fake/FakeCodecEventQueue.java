@@ -0,0 +1,27 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import com.groupme.android.videokit.pipeline.CodecEvent;
+import com.groupme.android.videokit.pipeline.CodecEventQueue;
+
+/**
+ * {@link CodecEventQueue} for fake codecs. Instead of blocking, it runs the clock forward to the
+ * next scheduled codec event whenever the queue is empty.
+ */
+public class FakeCodecEventQueue extends CodecEventQueue<FakeFormat> {
+    private final FakeClock mClock;
+
+    FakeCodecEventQueue(FakeClock clock) {
+        mClock = clock;
+    }
+
+    @Override
+    public CodecEvent<FakeFormat> next(long timeoutMs) {
+        CodecEvent<FakeFormat> event = poll();
+
+        while (event == null && mClock.runNextTask()) {
+            event = poll();
+        }
+
+        return event;
+    }
+}
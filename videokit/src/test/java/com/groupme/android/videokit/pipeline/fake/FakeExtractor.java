@@ -0,0 +1,137 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import com.groupme.android.videokit.pipeline.ExtractorPort;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ExtractorPort} over a synthetic track of evenly spaced, equally sized samples, with a
+ * sync sample every {@code syncInterval} samples. Each read costs {@code readLatencyUs} of
+ * virtual time.
+ * <p>
+ * Groups of pictures can be open: every sync sample after the first is then followed in decode
+ * order by {@code leadingPictureCount} leading pictures, the samples presented right before it.
+ */
+public class FakeExtractor implements ExtractorPort {
+    private final FakeClock mClock;
+    private final int mSampleCount;
+    private final long mSampleDurationUs;
+    private final int mSyncInterval;
+    private final int mSampleSize;
+    private final long mReadLatencyUs;
+    // Presentation index of each sample in decode order, and the other way around
+    private final int[] mDecodeOrder;
+    private final int[] mDecodeIndex;
+
+    // Decode index
+    private int mSampleIndex;
+    private int mReadCount;
+
+    FakeExtractor(FakeClock clock, int sampleCount, long sampleDurationUs, int syncInterval,
+                  int leadingPictureCount, int sampleSize, long readLatencyUs) {
+        if (syncInterval <= 0) {
+            throw new IllegalArgumentException("syncInterval must be positive");
+        }
+
+        if (leadingPictureCount < 0 || leadingPictureCount >= syncInterval) {
+            throw new IllegalArgumentException("leadingPictureCount must be less than syncInterval");
+        }
+
+        mClock = clock;
+        mSampleCount = sampleCount;
+        mSampleDurationUs = sampleDurationUs;
+        mSyncInterval = syncInterval;
+        mSampleSize = sampleSize;
+        mReadLatencyUs = readLatencyUs;
+        mDecodeOrder = createDecodeOrder(sampleCount, syncInterval, leadingPictureCount);
+        mDecodeIndex = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            mDecodeIndex[mDecodeOrder[i]] = i;
+        }
+    }
+
+    private static int[] createDecodeOrder(int sampleCount, int syncInterval, int leadingPictureCount) {
+        int[] order = new int[sampleCount];
+        int index = 0;
+        for (int sync = 0; sync < sampleCount; sync += syncInterval) {
+            order[index++] = sync;
+            if (sync > 0) {
+                for (int i = sync - leadingPictureCount; i < sync; i++) {
+                    order[index++] = i;
+                }
+            }
+
+            // The last pictures before the next sync sample are its leading pictures
+            int nextSync = sync + syncInterval;
+            int end = nextSync < sampleCount ? nextSync - leadingPictureCount : sampleCount;
+            for (int i = sync + 1; i < end; i++) {
+                order[index++] = i;
+            }
+        }
+        return order;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (mSampleIndex >= mSampleCount) {
+            return -1;
+        }
+
+        if (buffer.capacity() - offset < mSampleSize) {
+            throw new IllegalArgumentException("buffer too small for sample of size " + mSampleSize);
+        }
+
+        mClock.advanceBy(mReadLatencyUs);
+        mReadCount++;
+
+        buffer.clear();
+        buffer.position(offset);
+        buffer.limit(offset + mSampleSize);
+        return mSampleSize;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mSampleIndex < mSampleCount ? mDecodeOrder[mSampleIndex] * mSampleDurationUs : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        if (mSampleIndex >= mSampleCount) {
+            return 0;
+        }
+        return mDecodeOrder[mSampleIndex] % mSyncInterval == 0 ? SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (mSampleIndex < mSampleCount) {
+            mSampleIndex++;
+        }
+        return mSampleIndex < mSampleCount;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        int target = (int) Math.min(Math.max(timeUs / mSampleDurationUs, 0), mSampleCount - 1);
+        int previous = target - target % mSyncInterval;
+        int next = Math.min(previous + mSyncInterval, mSampleCount - 1);
+
+        int sample;
+        if (mode == SEEK_TO_PREVIOUS_SYNC) {
+            sample = previous;
+        } else if (mode == SEEK_TO_NEXT_SYNC) {
+            sample = target == previous ? previous : next;
+        } else {
+            sample = target - previous <= next - target ? previous : next;
+        }
+        mSampleIndex = mDecodeIndex[sample];
+    }
+
+    /**
+     * @return The number of samples read so far
+     */
+    public int getReadCount() {
+        return mReadCount;
+    }
+}
@@ -0,0 +1,21 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+/**
+ * Media format used by the fake backend. Only carries a MIME type.
+ */
+public final class FakeFormat {
+    private final String mMimeType;
+
+    public FakeFormat(String mimeType) {
+        mMimeType = mimeType;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    @Override
+    public String toString() {
+        return "FakeFormat{" + mMimeType + "}";
+    }
+}
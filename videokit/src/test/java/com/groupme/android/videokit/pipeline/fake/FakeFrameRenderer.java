@@ -0,0 +1,32 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import com.groupme.android.videokit.pipeline.FrameRenderer;
+
+/**
+ * {@link FrameRenderer} that costs {@code latencyUs} of virtual time per frame and then hands the
+ * frame to the encoder's input surface.
+ */
+public class FakeFrameRenderer implements FrameRenderer {
+    private final FakeClock mClock;
+    private final FakeCodec mEncoder;
+    private final long mLatencyUs;
+
+    private int mRenderedFrameCount;
+
+    FakeFrameRenderer(FakeClock clock, FakeCodec encoder, long latencyUs) {
+        mClock = clock;
+        mEncoder = encoder;
+        mLatencyUs = latencyUs;
+    }
+
+    @Override
+    public void renderFrame(long presentationTimeUs) {
+        mClock.advanceBy(mLatencyUs);
+        mEncoder.queueSurfaceFrame(presentationTimeUs);
+        mRenderedFrameCount++;
+    }
+
+    public int getRenderedFrameCount() {
+        return mRenderedFrameCount;
+    }
+}
@@ -0,0 +1,40 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import com.groupme.android.videokit.util.Logger;
+
+/**
+ * {@link Logger} that drops every message, since the pipelines log each buffer they handle.
+ */
+public class FakeLogger implements Logger {
+    @Override
+    public void d(String message) {
+    }
+
+    @Override
+    public void v(String message) {
+    }
+
+    @Override
+    public void v(Throwable e) {
+    }
+
+    @Override
+    public void i(String message) {
+    }
+
+    @Override
+    public void w(String message) {
+    }
+
+    @Override
+    public void w(Throwable e) {
+    }
+
+    @Override
+    public void e(String message) {
+    }
+
+    @Override
+    public void e(Throwable e) {
+    }
+}
@@ -0,0 +1,61 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+/**
+ * Creates fakes for every port of a {@link com.groupme.android.videokit.pipeline.TranscodePipeline}
+ * that share a single {@link FakeClock}. Everything runs in memory without the Android framework,
+ * so pipeline scheduling can be exercised and timed on a plain JVM.
+ */
+public class FakeMediaBackend {
+    private final FakeClock mClock = new FakeClock();
+
+    public FakeClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * @param sampleCount Number of samples in the track
+     * @param sampleDurationUs Time between consecutive samples
+     * @param syncInterval Number of samples from one sync sample to the next
+     * @param sampleSize Size of every sample in bytes
+     * @param readLatencyUs Virtual time each read takes
+     */
+    public FakeExtractor createExtractor(int sampleCount, long sampleDurationUs, int syncInterval,
+                                         int sampleSize, long readLatencyUs) {
+        return new FakeExtractor(mClock, sampleCount, sampleDurationUs, syncInterval, 0, sampleSize, readLatencyUs);
+    }
+
+    /**
+     * Like {@link #createExtractor}, with open groups of pictures.
+     *
+     * @param leadingPictureCount Number of samples presented before each sync sample but stored
+     *                            after it
+     */
+    public FakeExtractor createOpenGopExtractor(int sampleCount, long sampleDurationUs, int syncInterval,
+                                                int leadingPictureCount, int sampleSize, long readLatencyUs) {
+        return new FakeExtractor(mClock, sampleCount, sampleDurationUs, syncInterval, leadingPictureCount,
+                sampleSize, readLatencyUs);
+    }
+
+    public FakeCodec createCodec(FakeCodec.Builder builder) {
+        return builder.build(mClock);
+    }
+
+    /**
+     * @param encoder Encoder whose input surface receives the rendered frames
+     * @param latencyUs Virtual time each frame takes to render
+     */
+    public FakeFrameRenderer createFrameRenderer(FakeCodec encoder, long latencyUs) {
+        return new FakeFrameRenderer(mClock, encoder, latencyUs);
+    }
+
+    public FakeMuxer createMuxer() {
+        return new FakeMuxer();
+    }
+
+    /**
+     * @return A queue to set as every codec's callback when using the async engine
+     */
+    public FakeCodecEventQueue createCodecEventQueue() {
+        return new FakeCodecEventQueue(mClock);
+    }
+}
@@ -0,0 +1,98 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import com.groupme.android.videokit.pipeline.MuxerPort;
+import com.groupme.android.videokit.pipeline.SampleInfo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link MuxerPort} that records the tracks and samples it is given. Enforces the same call order
+ * as {@code MediaMuxer}.
+ */
+public class FakeMuxer implements MuxerPort<FakeFormat> {
+    private final List<FakeFormat> mTracks = new ArrayList<>();
+    private final List<Sample> mSamples = new ArrayList<>();
+
+    private boolean mStarted;
+    private boolean mStopped;
+
+    @Override
+    public synchronized int addTrack(FakeFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("addTrack() called after start()");
+        }
+
+        mTracks.add(format);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mStarted) {
+            throw new IllegalStateException("start() called twice");
+        }
+
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer buffer, SampleInfo info) {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("writeSampleData() called while not started");
+        }
+
+        if (trackIndex < 0 || trackIndex >= mTracks.size()) {
+            throw new IllegalArgumentException("invalid track index " + trackIndex);
+        }
+
+        mSamples.add(new Sample(trackIndex, info.size, info.presentationTimeUs, info.flags));
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!mStarted) {
+            throw new IllegalStateException("stop() called before start()");
+        }
+
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    public synchronized List<FakeFormat> getTracks() {
+        return Collections.unmodifiableList(new ArrayList<>(mTracks));
+    }
+
+    public synchronized List<Sample> getSamples() {
+        return Collections.unmodifiableList(new ArrayList<>(mSamples));
+    }
+
+    public synchronized int getSampleCount(int trackIndex) {
+        int count = 0;
+        for (Sample sample : mSamples) {
+            if (sample.trackIndex == trackIndex) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static final class Sample {
+        public final int trackIndex;
+        public final int size;
+        public final long presentationTimeUs;
+        public final int flags;
+
+        Sample(int trackIndex, int size, long presentationTimeUs, int flags) {
+            this.trackIndex = trackIndex;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+}
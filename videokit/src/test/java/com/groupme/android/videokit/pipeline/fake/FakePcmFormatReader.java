@@ -0,0 +1,30 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import com.groupme.android.videokit.pipeline.PcmFormatReader;
+
+/**
+ * {@link PcmFormatReader} for {@link FakeFormat}s, which don't describe their audio. Reports the
+ * same layout for every format.
+ */
+public class FakePcmFormatReader implements PcmFormatReader<FakeFormat> {
+    private final int mSampleRate;
+    private final int mFrameSize;
+
+    /**
+     * @param frameSize Size of one frame, a sample of every channel, in bytes
+     */
+    public FakePcmFormatReader(int sampleRate, int frameSize) {
+        mSampleRate = sampleRate;
+        mFrameSize = frameSize;
+    }
+
+    @Override
+    public int getSampleRate(FakeFormat format) {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getFrameSize(FakeFormat format) {
+        return mFrameSize;
+    }
+}
@@ -0,0 +1,87 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import com.groupme.android.videokit.pipeline.ExtractorPort;
+import com.groupme.android.videokit.pipeline.MuxerPort;
+import com.groupme.android.videokit.pipeline.SegmentStore;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link SegmentStore} keeping every segment in a {@link FakeMuxer}. Its extractors replay the
+ * samples in the order they were written, on a timeline starting at 0 as {@code MediaMuxer} files
+ * do.
+ */
+public class FakeSegmentStore implements SegmentStore<FakeFormat> {
+    private final Map<Integer, FakeMuxer> mMuxers = new HashMap<>();
+
+    @Override
+    public synchronized MuxerPort<FakeFormat> createMuxer(int segment) {
+        FakeMuxer muxer = new FakeMuxer();
+        mMuxers.put(segment, muxer);
+        return muxer;
+    }
+
+    @Override
+    public synchronized ExtractorPort openExtractor(int segment) {
+        return new SegmentExtractor(mMuxers.get(segment).getSamples());
+    }
+
+    @Override
+    public void release() {
+    }
+
+    private static final class SegmentExtractor implements ExtractorPort {
+        private final List<FakeMuxer.Sample> mSamples;
+        private final long mStartTimeUs;
+        private int mSampleIndex;
+
+        SegmentExtractor(List<FakeMuxer.Sample> samples) {
+            mSamples = samples;
+            mStartTimeUs = samples.isEmpty() ? 0 : samples.get(0).presentationTimeUs;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            if (mSampleIndex >= mSamples.size()) {
+                return -1;
+            }
+
+            int size = mSamples.get(mSampleIndex).size;
+            if (buffer.capacity() - offset < size) {
+                throw new IllegalArgumentException("buffer too small for sample of size " + size);
+            }
+
+            buffer.clear();
+            buffer.position(offset);
+            buffer.limit(offset + size);
+            return size;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mSampleIndex < mSamples.size() ? mSamples.get(mSampleIndex).presentationTimeUs - mStartTimeUs : -1;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            // Muxer key frame flags and extractor sync flags share a value
+            return mSampleIndex < mSamples.size() ? mSamples.get(mSampleIndex).flags & SAMPLE_FLAG_SYNC : 0;
+        }
+
+        @Override
+        public boolean advance() {
+            if (mSampleIndex < mSamples.size()) {
+                mSampleIndex++;
+            }
+            return mSampleIndex < mSamples.size();
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            throw new UnsupportedOperationException("segments are only read from the start");
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.groupme.android.videokit.pipeline.fake;
+
+import com.groupme.android.videokit.pipeline.OutputSink;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link OutputSink} keeping the output in memory, and how many ranges it arrived in.
+ */
+public class MemoryOutputSink implements OutputSink {
+    private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+    private int mWriteCount;
+    private boolean mClosed;
+
+    @Override
+    public synchronized void write(ByteBuffer data) {
+        if (mClosed) {
+            throw new IllegalStateException("write() called after close()");
+        }
+
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        mData.write(bytes, 0, bytes.length);
+        mWriteCount++;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+    }
+
+    public synchronized byte[] getData() {
+        return mData.toByteArray();
+    }
+
+    public synchronized int getWriteCount() {
+        return mWriteCount;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+}